@@ -0,0 +1,50 @@
+package com.shapesecurity.salvation2;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+// The real-world policies in src/test/resources/csp.txt, one `host:policy-list` per line
+final class Corpus {
+	private Corpus() {
+		// pass
+	}
+
+	static List<String> policyLists() {
+		List<String> lists = new ArrayList<>();
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(Corpus.class.getResourceAsStream("/csp.txt"), StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				lists.add(line.substring(line.indexOf(':') + 1));
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return lists;
+	}
+
+	// Each policy of each list, for the APIs which take a single policy
+	static List<String> policies() {
+		List<String> policies = new ArrayList<>();
+		for (String list : policyLists()) {
+			for (String policy : list.split(",")) {
+				if (!policy.trim().isEmpty()) {
+					policies.add(policy);
+				}
+			}
+		}
+		return policies;
+	}
+
+	static List<Policy> parsedPolicies() {
+		List<Policy> parsed = new ArrayList<>();
+		for (String policy : policies()) {
+			parsed.add(Policy.parseSerializedCSP(policy, Policy.PolicyErrorConsumer.ignored));
+		}
+		return parsed;
+	}
+}
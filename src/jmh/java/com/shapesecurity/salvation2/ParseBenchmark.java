@@ -0,0 +1,57 @@
+package com.shapesecurity.salvation2;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Each operation parses the entire corpus
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ParseBenchmark {
+	private List<String> policyLists;
+	private List<String> policies;
+	private DirectiveCache cache;
+
+	@Setup
+	public void setup() {
+		this.policyLists = Corpus.policyLists();
+		this.policies = Corpus.policies();
+		this.cache = new DirectiveCache(100000);
+	}
+
+	@Benchmark
+	public void parseSerializedCSPList(Blackhole blackhole) {
+		for (String list : this.policyLists) {
+			blackhole.consume(Policy.parseSerializedCSPList(list, Policy.PolicyListErrorConsumer.ignored));
+		}
+	}
+
+	@Benchmark
+	public void parseSerializedCSP(Blackhole blackhole) {
+		for (String policy : this.policies) {
+			blackhole.consume(Policy.parseSerializedCSP(policy, Policy.PolicyErrorConsumer.ignored));
+		}
+	}
+
+	@Benchmark
+	public void parseSerializedCSPWithDirectiveCache(Blackhole blackhole) {
+		for (String policy : this.policies) {
+			blackhole.consume(Policy.parseSerializedCSP(policy, Policy.PolicyErrorConsumer.ignored, this.cache));
+		}
+	}
+}
@@ -0,0 +1,162 @@
+package com.shapesecurity.salvation2;
+
+import com.shapesecurity.salvation2.URLs.URI;
+import com.shapesecurity.salvation2.URLs.URLWithScheme;
+import com.shapesecurity.salvation2.Values.MediaType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+// One benchmark per family of `allows*` queries. Each operation asks the question of every policy in the corpus.
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class QueryBenchmark {
+	private List<Policy> policies;
+	private List<PolicyInOrigin> policiesInOrigin;
+	private Optional<URLWithScheme> origin;
+	private Optional<URLWithScheme> url;
+	private URLWithScheme rawUrl;
+	private Optional<String> nonce;
+	private Optional<String> inlineSource;
+	private Optional<MediaType> mediaType;
+
+	@Setup
+	public void setup() {
+		this.policies = Corpus.parsedPolicies();
+		URLWithScheme origin = URI.parseURI("https://example.com").get();
+		this.origin = Optional.of(origin);
+		this.policiesInOrigin = new ArrayList<>(this.policies.size());
+		for (Policy policy : this.policies) {
+			this.policiesInOrigin.add(new PolicyInOrigin(policy, origin));
+		}
+		this.rawUrl = URI.parseURI("https://www.google-analytics.com/analytics.js").get();
+		this.url = Optional.of(this.rawUrl);
+		this.nonce = Optional.of("b2YgdGhlIHRocmVlIHdpdGNoZXM=");
+		this.inlineSource = Optional.of("window.dataLayer = window.dataLayer || [];");
+		this.mediaType = MediaType.parseMediaType("application/pdf");
+	}
+
+	@Benchmark
+	public void allowsExternalScript(Blackhole blackhole) {
+		for (Policy policy : this.policies) {
+			blackhole.consume(policy.allowsExternalScript(this.nonce, Optional.empty(), this.url, Optional.empty(), this.origin));
+		}
+	}
+
+	@Benchmark
+	public void allowsInlineScript(Blackhole blackhole) {
+		for (Policy policy : this.policies) {
+			blackhole.consume(policy.allowsInlineScript(this.nonce, this.inlineSource, Optional.empty()));
+		}
+	}
+
+	@Benchmark
+	public void allowsScriptAsAttribute(Blackhole blackhole) {
+		for (Policy policy : this.policies) {
+			blackhole.consume(policy.allowsScriptAsAttribute(this.inlineSource));
+		}
+	}
+
+	@Benchmark
+	public void allowsEval(Blackhole blackhole) {
+		for (Policy policy : this.policies) {
+			blackhole.consume(policy.allowsEval());
+		}
+	}
+
+	@Benchmark
+	public void allowsExternalStyle(Blackhole blackhole) {
+		for (Policy policy : this.policies) {
+			blackhole.consume(policy.allowsExternalStyle(this.nonce, this.url, this.origin));
+		}
+	}
+
+	@Benchmark
+	public void allowsInlineStyle(Blackhole blackhole) {
+		for (Policy policy : this.policies) {
+			blackhole.consume(policy.allowsInlineStyle(this.nonce, this.inlineSource));
+		}
+	}
+
+	@Benchmark
+	public void allowsNavigation(Blackhole blackhole) {
+		for (Policy policy : this.policies) {
+			blackhole.consume(policy.allowsNavigation(this.url, Optional.of(false), Optional.empty(), this.origin));
+		}
+	}
+
+	@Benchmark
+	public void allowsFormAction(Blackhole blackhole) {
+		for (Policy policy : this.policies) {
+			blackhole.consume(policy.allowsFormAction(this.url, Optional.of(false), Optional.empty(), this.origin));
+		}
+	}
+
+	@Benchmark
+	public void allowsFrameAndFrameAncestor(Blackhole blackhole) {
+		for (Policy policy : this.policies) {
+			blackhole.consume(policy.allowsFrame(this.url, this.origin));
+			blackhole.consume(policy.allowsFrameAncestor(this.url, this.origin));
+		}
+	}
+
+	@Benchmark
+	public void allowsConnection(Blackhole blackhole) {
+		for (Policy policy : this.policies) {
+			blackhole.consume(policy.allowsConnection(this.url, this.origin));
+		}
+	}
+
+	// The fetch directives which differ only in which directive governs them
+	@Benchmark
+	public void allowsOtherFetches(Blackhole blackhole) {
+		for (Policy policy : this.policies) {
+			blackhole.consume(policy.allowsImage(this.url, this.origin));
+			blackhole.consume(policy.allowsFont(this.url, this.origin));
+			blackhole.consume(policy.allowsMedia(this.url, this.origin));
+			blackhole.consume(policy.allowsObject(this.url, this.origin));
+			blackhole.consume(policy.allowsApplicationManifest(this.url, this.origin));
+			blackhole.consume(policy.allowsPrefetch(this.url, this.origin));
+			blackhole.consume(policy.allowsWorker(this.url, this.origin));
+		}
+	}
+
+	@Benchmark
+	public void allowsPlugin(Blackhole blackhole) {
+		for (Policy policy : this.policies) {
+			blackhole.consume(policy.allowsPlugin(this.mediaType));
+		}
+	}
+
+	// The same questions through PolicyInOrigin, which avoids the Optional wrapping
+	@Benchmark
+	public void policyInOriginAllowsScriptFromSource(Blackhole blackhole) {
+		for (PolicyInOrigin policy : this.policiesInOrigin) {
+			blackhole.consume(policy.allowsScriptFromSource(this.rawUrl));
+		}
+	}
+
+	@Benchmark
+	public void policyInOriginAllowsImageFromSource(Blackhole blackhole) {
+		for (PolicyInOrigin policy : this.policiesInOrigin) {
+			blackhole.consume(policy.allowsImageFromSource(this.rawUrl));
+		}
+	}
+}
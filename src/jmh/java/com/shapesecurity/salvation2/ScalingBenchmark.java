@@ -0,0 +1,78 @@
+package com.shapesecurity.salvation2;
+
+import com.shapesecurity.salvation2.URLs.URLWithScheme;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+// Parsing and querying synthetic policies of growing size, to chart how latency scales with the number of sources.
+// Query benchmarks run the whole URL workload, so divide by WORKLOAD_URLS for the cost of a single query.
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ScalingBenchmark {
+	private static final int WORKLOAD_URLS = 100;
+
+	@Param({ "10", "100", "1000", "10000", "100000" })
+	public int sources;
+
+	private String serialized;
+	private Policy policy;
+	private Optional<URLWithScheme> origin;
+	private List<Optional<URLWithScheme>> urls;
+	private Optional<String> lastHashedSource;
+
+	@Setup
+	public void setup() {
+		// A tenth of the sources are hashes, so the hash lookup scales too
+		SyntheticPolicyGenerator.Workload workload = new SyntheticPolicyGenerator(0)
+			.hostsPerDirective(this.sources - this.sources / 10)
+			.hashes(this.sources / 10)
+			.wildcardFraction(0.2)
+			.pathFraction(0.2)
+			.urls(WORKLOAD_URLS, 0.5)
+			.generate();
+		this.serialized = workload.policy;
+		this.policy = Policy.parseSerializedCSP(this.serialized, Policy.PolicyErrorConsumer.ignored);
+		this.origin = Optional.of(workload.origin);
+		this.urls = new ArrayList<>();
+		for (URLWithScheme url : workload.urls) {
+			this.urls.add(Optional.of(url));
+		}
+		this.lastHashedSource = Optional.of(workload.inlineSources.get(workload.inlineSources.size() - 1));
+	}
+
+	@Benchmark
+	public Policy parse() {
+		return Policy.parseSerializedCSP(this.serialized, Policy.PolicyErrorConsumer.ignored);
+	}
+
+	@Benchmark
+	public void queryWorkload(Blackhole blackhole) {
+		for (Optional<URLWithScheme> url : this.urls) {
+			blackhole.consume(this.policy.allowsImage(url, this.origin));
+		}
+	}
+
+	@Benchmark
+	public boolean inlineScriptWithLastHash() {
+		return this.policy.allowsInlineScript(Optional.empty(), this.lastHashedSource, Optional.empty());
+	}
+}
@@ -0,0 +1,56 @@
+package com.shapesecurity.salvation2;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Each operation serializes every policy in the corpus
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SerializeBenchmark {
+	private List<Policy> policies;
+
+	@Setup
+	public void setup() {
+		this.policies = Corpus.parsedPolicies();
+	}
+
+	// Serializations are cached, so this measures the common case of a policy which has not changed since it was last rendered
+	@Benchmark
+	public void toStringCached(Blackhole blackhole) {
+		for (Policy policy : this.policies) {
+			blackhole.consume(policy.toString());
+		}
+	}
+
+	@Benchmark
+	public void toStringUncached(Blackhole blackhole) {
+		for (Policy policy : this.policies) {
+			policy.invalidateSerialization();
+			blackhole.consume(policy.toString());
+		}
+	}
+
+	@Benchmark
+	public void toAsciiBytesUncached(Blackhole blackhole) {
+		for (Policy policy : this.policies) {
+			policy.invalidateSerialization();
+			blackhole.consume(policy.toAsciiBytes());
+		}
+	}
+}
@@ -0,0 +1,89 @@
+package com.shapesecurity.salvation2;
+
+import com.shapesecurity.salvation2.Directives.SourceExpressionDirective;
+import com.shapesecurity.salvation2.URLs.URI;
+import com.shapesecurity.salvation2.URLs.URLWithScheme;
+import com.shapesecurity.salvation2.Values.Hash;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+// Matching against a single source list, which is linear in its length
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SourceListBenchmark {
+	@Param({ "4", "1000" })
+	public int sources;
+
+	private SourceExpressionDirective hostList;
+	private Policy hashPolicy;
+	private Optional<URLWithScheme> origin;
+	private URLWithScheme firstHost;
+	private URLWithScheme lastHost;
+	private URLWithScheme noHost;
+	private Optional<String> lastHashedSource;
+	private Optional<String> unhashedSource;
+
+	@Setup
+	public void setup() {
+		StringBuilder hosts = new StringBuilder("img-src");
+		StringBuilder hashes = new StringBuilder("script-src");
+		for (int i = 0; i < this.sources; ++i) {
+			hosts.append(" https://host").append(i).append(".example.com");
+			hashes.append(' ').append(Hash.digest(Hash.Algorithm.SHA256, source(i)));
+		}
+		this.hostList = Policy.parseSerializedCSP(hosts.toString(), Policy.PolicyErrorConsumer.ignored).getFetchDirective(FetchDirectiveKind.ImgSrc).get();
+		this.hashPolicy = Policy.parseSerializedCSP(hashes.toString(), Policy.PolicyErrorConsumer.ignored);
+
+		this.origin = Optional.of(URI.parseURI("https://example.com").get());
+		this.firstHost = URI.parseURI("https://host0.example.com/a.png").get();
+		this.lastHost = URI.parseURI("https://host" + (this.sources - 1) + ".example.com/a.png").get();
+		this.noHost = URI.parseURI("https://elsewhere.example.com/a.png").get();
+		this.lastHashedSource = Optional.of(source(this.sources - 1));
+		this.unhashedSource = Optional.of("alert(1)");
+	}
+
+	private static String source(int i) {
+		return "console.log(" + i + ");";
+	}
+
+	@Benchmark
+	public boolean matchFirstHost() {
+		return Policy.doesUrlMatchSourceListInOrigin(this.firstHost, this.hostList, this.origin);
+	}
+
+	@Benchmark
+	public boolean matchLastHost() {
+		return Policy.doesUrlMatchSourceListInOrigin(this.lastHost, this.hostList, this.origin);
+	}
+
+	@Benchmark
+	public boolean matchNoHost() {
+		return Policy.doesUrlMatchSourceListInOrigin(this.noHost, this.hostList, this.origin);
+	}
+
+	@Benchmark
+	public boolean inlineScriptWithLastHash() {
+		return this.hashPolicy.allowsInlineScript(Optional.empty(), this.lastHashedSource, Optional.empty());
+	}
+
+	@Benchmark
+	public boolean inlineScriptWithNoHash() {
+		return this.hashPolicy.allowsInlineScript(Optional.empty(), this.unhashedSource, Optional.empty());
+	}
+}
@@ -0,0 +1,69 @@
+package com.shapesecurity.salvation2;
+
+import javax.annotation.Nonnull;
+import java.util.Arrays;
+
+// The order in which to try a frozen directive's host-sources: most often matched first. Any order gives the same answer to
+// "does some host-source match", so only the length of the scan changes; the directive's own order, and so its serialization, is untouched.
+// See Policy.adaptHostSourceOrder.
+final class AdaptiveSourceOrder {
+	// Below this, scanning every host-source is about as cheap as keeping count
+	static final int MIN_HOSTS = 4;
+
+	// Matches between reorderings
+	static final int REORDER_INTERVAL = 1024;
+
+	// The counts are racy on purpose: a lost increment only makes the order slightly worse, and plain writes are much cheaper than
+	// atomic ones on the query path. They are indexed by position in the directive.
+	@Nonnull
+	private final int[] hits;
+	private int matchesUntilReorder = REORDER_INTERVAL;
+
+	// Positions in the directive, most often matched first. Replaced rather than modified, so a scan in progress never sees a partial update.
+	@Nonnull
+	private volatile int[] order;
+
+	AdaptiveSourceOrder(int hostCount) {
+		this.hits = new int[hostCount];
+		int[] order = new int[hostCount];
+		for (int i = 0; i < hostCount; ++i) {
+			order[i] = i;
+		}
+		this.order = order;
+	}
+
+	@Nonnull
+	int[] order() {
+		return this.order;
+	}
+
+	void hit(int host) {
+		++this.hits[host];
+		if (--this.matchesUntilReorder <= 0) {
+			this.reorder();
+		}
+	}
+
+	synchronized void reorder() {
+		if (this.matchesUntilReorder > 0) {
+			// another thread got here first
+			return;
+		}
+		int count = this.hits.length;
+		// Sort by hits, descending, breaking ties by position so that sources which are never matched stay in declaration order.
+		// Hits and positions both fit in 32 bits, so each pair packs into a long which sorts the right way.
+		long[] keyed = new long[count];
+		for (int i = 0; i < count; ++i) {
+			keyed[i] = (long) (Integer.MAX_VALUE - this.hits[i]) << 32 | i;
+			// Halving lets the order follow traffic as it changes, rather than being dominated by history
+			this.hits[i] >>>= 1;
+		}
+		Arrays.sort(keyed);
+		int[] order = new int[count];
+		for (int i = 0; i < count; ++i) {
+			order[i] = (int) keyed[i];
+		}
+		this.order = order;
+		this.matchesUntilReorder = REORDER_INTERVAL;
+	}
+}
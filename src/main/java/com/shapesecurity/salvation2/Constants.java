@@ -19,6 +19,8 @@ public class Constants {
 	// port-part constants
 	public static final int WILDCARD_PORT = -200;
 	public static final int EMPTY_PORT = -1;
+	// the port of a URL which has no host, such as a GUID; this never equals a real or default port
+	public static final int NO_PORT = Integer.MIN_VALUE;
 
 	// https://w3c.github.io/webappsec-csp/#grammardef-host-part
 	private static final String hostPart = "\\*|(?:\\*\\.)?[a-zA-Z0-9-]+(?:\\.[a-zA-Z0-9-]+)*";
@@ -1,6 +1,6 @@
 package com.shapesecurity.salvation2;
 
-import java.util.ArrayList;
+import javax.annotation.Nullable;
 import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
@@ -13,7 +13,22 @@ public class Directive {
 	public static Predicate<String> IS_DIRECTIVE_NAME = s -> DIRECTIVE_NAME_PATTERN.matcher(s).matches();
 	private static final Pattern NON_DIRECTIVE_CHAR_PATTERN = Pattern.compile("[" + Constants.WHITESPACE_CHARS + ",;]");
 	public static Predicate<String> containsNonDirectiveCharacter =  s -> NON_DIRECTIVE_CHAR_PATTERN.matcher(s).matches();
-	protected List<String> values;
+	protected IndexedValueList<String> values;
+
+	// The policy this directive belongs to, which caches its serialization and so needs to hear about changes to `values`
+	Policy owner = null;
+
+	// Set once Policy.derive has shared this directive between policies, or Policy.countSourceHits or Policy.adaptHostSourceOrder has frozen it, after which it must never change
+	boolean shared = false;
+
+	// Set by Policy.adaptHostSourceOrder, only once this directive is frozen
+	@Nullable
+	volatile AdaptiveSourceOrder adaptiveOrder = null;
+
+	// For subclasses' lists of parsed sources, which need to find and remove sources without scanning
+	protected static <T> IndexedValueList<T> newSourceList() {
+		return IndexedValueList.byValue();
+	}
 
 	protected static DirectiveErrorConsumer wrapManipulationErrorConsumer(ManipulationErrorConsumer errors) {
 		return (severity, message, valueIndex) -> {
@@ -33,6 +48,13 @@ public class Directive {
 	}
 
 	protected void addValue(String value) {
+		this.enforceMutable();
+		checkValue(value);
+		this.values.add(value);
+		this.valuesChanged();
+	}
+
+	static void checkValue(String value) {
 		Policy.enforceAscii(value);
 		if (containsNonDirectiveCharacter.test(value)) {
 			throw new IllegalArgumentException("values must not contain whitespace, ',', or ';'");
@@ -40,7 +62,6 @@ public class Directive {
 		if (value.isEmpty()) {
 			throw new IllegalArgumentException("values must not be empty");
 		}
-		this.values.add(value);
 	}
 
 	public List<String> getValues() {
@@ -48,7 +69,7 @@ public class Directive {
 	}
 
 	protected Directive(List<String> values) {
-		this.values = new ArrayList<>();
+		this.values = new IndexedValueList<>(this::valueKey);
 		for (String value : values) {
 			// We use this API so we get the validity checks
 			this.addValue(value);
@@ -56,15 +77,30 @@ public class Directive {
 	}
 
 	protected void removeValueIgnoreCase(String value) {
-		String lowcaseValue = value.toLowerCase(Locale.ENGLISH);
-		// Could we use some fancy data structure to avoid the linear indexing here? Yes, probably. But in practice these are short lists, and iterating them is not that expensive.
-		ArrayList<String> copy = new ArrayList<>(this.values.size());
-		for (String existing : this.values) {
-			if (!existing.toLowerCase(Locale.ENGLISH).equals(lowcaseValue)) {
-				copy.add(existing);
-			}
+		this.enforceMutable();
+		this.values.removeKey(this.valueKey(value));
+		this.valuesChanged();
+	}
+
+	// What a value means, for the purposes of finding and removing it: values with equal keys are interchangeable spellings of one another.
+	// Keywords are case-insensitive, so by default this is the lowercased value. Subclasses for which that is wrong override this.
+	// This is called with each value the first time the directive is edited, so it must not depend on the subclass's fields.
+	protected Object valueKey(String value) {
+		return value.toLowerCase(Locale.ENGLISH);
+	}
+
+	// Mutators which change anything before calling addValue or removeValueIgnoreCase must call this first
+	protected void enforceMutable() {
+		if (this.shared) {
+			throw new IllegalStateException("This directive is shared between policies by Policy.derive or frozen by Policy.countSourceHits or Policy.adaptHostSourceOrder, and so cannot be modified; replace it with Policy.edit or Policy.derive instead");
+		}
+	}
+
+	// Subclasses which modify `values` directly must call this
+	protected void valuesChanged() {
+		if (this.owner != null) {
+			this.owner.invalidateSerialization();
 		}
-		this.values = copy;
 	}
 
 
@@ -0,0 +1,118 @@
+package com.shapesecurity.salvation2;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+// A bounded cache of parsed directives, keyed by directive name and values, which the parser can consult so that directives which
+// recur across many policies (like `img-src * data:` or `frame-ancestors 'self'`) are parsed once and stored once.
+// Only directives which parsed without any errors are cached, so a hit never needs to report anything.
+// Cached directives are shared between every policy parsed with them, and so cannot be modified; see Policy.derive.
+// The cache is split into independently locked segments, each evicting its least recently used entries, so it is safe to share between threads.
+public final class DirectiveCache {
+	private static final int MAX_SEGMENTS = 16;
+
+	@Nonnull
+	private final Segment[] segments;
+	private final int maxEntries;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	public DirectiveCache(int maxEntries) {
+		if (maxEntries < 1) {
+			throw new IllegalArgumentException("the cache must be able to hold at least one directive");
+		}
+		this.maxEntries = maxEntries;
+		int segmentCount = Math.min(MAX_SEGMENTS, maxEntries);
+		this.segments = new Segment[segmentCount];
+		for (int i = 0; i < segmentCount; ++i) {
+			// Spread the capacity so that the segments sum to exactly maxEntries
+			this.segments[i] = new Segment(maxEntries / segmentCount + (i < maxEntries % segmentCount ? 1 : 0));
+		}
+	}
+
+	static String key(String lowcaseName, List<String> values) {
+		StringBuilder key = new StringBuilder(lowcaseName);
+		for (String value : values) {
+			// values never contain whitespace, so this is unambiguous
+			key.append(' ').append(value);
+		}
+		return key.toString();
+	}
+
+	@Nullable
+	Directive get(String key) {
+		Segment segment = this.segmentFor(key);
+		Directive directive;
+		synchronized (segment) {
+			directive = segment.get(key);
+		}
+		(directive == null ? this.misses : this.hits).incrementAndGet();
+		return directive;
+	}
+
+	void put(String key, Directive directive) {
+		directive.shared = true;
+		directive.owner = null;
+		Segment segment = this.segmentFor(key);
+		synchronized (segment) {
+			segment.put(key, directive);
+		}
+	}
+
+	private Segment segmentFor(String key) {
+		int hash = key.hashCode();
+		// mix the high bits in, since String hashes of similar keys tend to differ mostly in the low ones
+		return this.segments[((hash ^ (hash >>> 16)) & 0x7fffffff) % this.segments.length];
+	}
+
+	public int maxEntries() {
+		return this.maxEntries;
+	}
+
+	public int size() {
+		int size = 0;
+		for (Segment segment : this.segments) {
+			synchronized (segment) {
+				size += segment.size();
+			}
+		}
+		return size;
+	}
+
+	public long hits() {
+		return this.hits.get();
+	}
+
+	public long misses() {
+		return this.misses.get();
+	}
+
+	public void clear() {
+		for (Segment segment : this.segments) {
+			synchronized (segment) {
+				segment.clear();
+			}
+		}
+	}
+
+	private static final class Segment extends LinkedHashMap<String, Directive> {
+		private static final long serialVersionUID = 1L;
+
+		private final int capacity;
+
+		Segment(int capacity) {
+			// access order, for LRU eviction
+			super(16, 0.75f, true);
+			this.capacity = capacity;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Directive> eldest) {
+			return this.size() > this.capacity;
+		}
+	}
+}
@@ -2,6 +2,7 @@ package com.shapesecurity.salvation2.Directives;
 
 import com.shapesecurity.salvation2.Constants;
 import com.shapesecurity.salvation2.Directive;
+import com.shapesecurity.salvation2.IndexedValueList;
 import com.shapesecurity.salvation2.Policy;
 import com.shapesecurity.salvation2.Values.Host;
 import com.shapesecurity.salvation2.Values.Scheme;
@@ -9,14 +10,14 @@ import com.shapesecurity.salvation2.Values.Scheme;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Locale;
 import java.util.Optional;
-import java.util.function.Function;
 
 public abstract class HostSourceDirective extends Directive {
 	private static final String NONE_SRC = "'none'";
 	private static final String SELF_SRC = "'self'";
 	protected List<Scheme> schemes = new ArrayList<>();
-	protected List<Host> hosts = new ArrayList<>();
+	protected IndexedValueList<Host> hosts = newSourceList();
 	protected boolean star = false;
 	protected boolean self = false;
 
@@ -28,11 +29,16 @@ public abstract class HostSourceDirective extends Directive {
 
 	@Override
 	protected void addValue(String value) {
+		this.removeNone();
+		super.addValue(value);
+	}
+
+	// Subclasses which add to `values` directly must call this first
+	protected void removeNone() {
 		if (this.none != null) {
 			super.removeValueIgnoreCase(NONE_SRC); // super so as to not immediately add it back
 			this.none = null;
 		}
-		super.addValue(value);
 	}
 
 	@Override
@@ -44,19 +50,25 @@ public abstract class HostSourceDirective extends Directive {
 		}
 	}
 
-	protected <T> void removeValuesMatching(T value, Function<String, Optional<T>> parser) {
-		ArrayList<String> copy = new ArrayList<>(this.values.size());
-		for (String existing : this.values) {
-			Optional<T> parsed = parser.apply(existing);
-			if (!parsed.isPresent() || !parsed.get().equals(value)) {
-				copy.add(existing);
-			}
+	// Host-sources have many spellings, so they are identified by what they parse to. Everything else is case-insensitive.
+	@Override
+	protected Object valueKey(String value) {
+		String lowcaseValue = value.toLowerCase(Locale.ENGLISH);
+		if (lowcaseValue.equals("*") || lowcaseValue.startsWith("'") || Scheme.parseScheme(value).isPresent()) {
+			return lowcaseValue;
 		}
-		this.values = copy;
+		Optional<Host> host = Host.parseHost(value);
+		return host.isPresent() ? host.get() : lowcaseValue;
+	}
+
+	protected void removeValuesWithKey(Object key) {
+		this.enforceMutable();
+		this.values.removeKey(key);
 		if (this.values.isEmpty()) {
 			this.values.add(NONE_SRC);
 			this.none = NONE_SRC;
 		}
+		this.valuesChanged();
 	}
 
 	void _addHostOrSchemeDuringConstruction(String token, String lowcaseToken, String kind, int index, DirectiveErrorConsumer errors) {
@@ -96,6 +108,26 @@ public abstract class HostSourceDirective extends Directive {
 		}
 	}
 
+	// Whether this directive understands `token`; this must agree with _addHostOrSchemeDuringConstruction
+	protected boolean isRecognizedValue(String token, String lowcaseToken) {
+		return lowcaseToken.equals(NONE_SRC)
+				|| lowcaseToken.equals("*")
+				|| lowcaseToken.equals(SELF_SRC)
+				|| Scheme.parseScheme(token).isPresent()
+				|| Host.parseHost(token).isPresent();
+	}
+
+	// The values this directive does not understand, and so ignores. A browser might understand them, so they are not quite meaningless.
+	public List<String> getUnrecognizedValues() {
+		List<String> unrecognized = new ArrayList<>();
+		for (String value : this.values) {
+			if (!this.isRecognizedValue(value, value.toLowerCase(Locale.ENGLISH))) {
+				unrecognized.add(value);
+			}
+		}
+		return unrecognized;
+	}
+
 	private boolean _addScheme(Scheme scheme, int index, DirectiveErrorConsumer errors) {
 		if (this.schemes.contains(scheme)) {
 			errors.add(Policy.Severity.Warning, "Duplicate scheme " + scheme, index);
@@ -109,7 +141,7 @@ public abstract class HostSourceDirective extends Directive {
 	}
 
 	private boolean _addHostSource(Host source, int index, DirectiveErrorConsumer errors) {
-		if (this.hosts.contains(source)) {
+		if (this.hosts.containsKey(source)) {
 			errors.add(Policy.Severity.Warning, "Duplicate host " + source.toString(), index);
 			return false;
 		} else {
@@ -156,12 +188,14 @@ public abstract class HostSourceDirective extends Directive {
 	}
 
 	public void addScheme(Scheme scheme, ManipulationErrorConsumer errors) {
+		this.enforceMutable();
 		if (this._addScheme(scheme, -1, wrapManipulationErrorConsumer(errors))) {
 			this.addValue(scheme.toString());
 		}
 	}
 
 	public boolean removeScheme(Scheme scheme) {
+		this.enforceMutable();
 		if (!this.schemes.contains(scheme)) {
 			return false;
 		}
@@ -176,6 +210,7 @@ public abstract class HostSourceDirective extends Directive {
 	}
 
 	public void addHost(Host host, ManipulationErrorConsumer errors) {
+		this.enforceMutable();
 		if (host.equals(Host.STAR)) {
 			if (this.star) {
 				errors.add(ManipulationErrorConsumer.Severity.Warning, "Duplicate host *");
@@ -191,6 +226,7 @@ public abstract class HostSourceDirective extends Directive {
 	}
 
 	public boolean removeHost(Host host) {
+		this.enforceMutable();
 		if (host.equals(Host.STAR)) {
 			if (this.star) {
 				this.setStar(false);
@@ -198,12 +234,11 @@ public abstract class HostSourceDirective extends Directive {
 			}
 			return false;
 		}
-		if (!this.hosts.contains(host)) {
+		if (this.hosts.removeKey(host) == 0) {
 			return false;
 		}
-		this.hosts.remove(host);
-		// Removing hosts is considerably more annoying than removing anything else, because they can have many representations.
-		removeValuesMatching(host, Host::parseHost);
+		// Hosts can have many representations, all of which share a key
+		this.removeValuesWithKey(host);
 		return true;
 	}
 }
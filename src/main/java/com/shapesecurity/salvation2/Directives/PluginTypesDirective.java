@@ -46,12 +46,14 @@ public class PluginTypesDirective extends Directive {
 	}
 
 	public void addMediaType(MediaType type, ManipulationErrorConsumer errors) {
+		this.enforceMutable();
 		if (this._addMediaType(type, -1, wrapManipulationErrorConsumer(errors))) {
 			this.addValue(type.toString());
 		}
 	}
 
 	public boolean removeMediaType(MediaType type) {
+		this.enforceMutable();
 		if (!this.mediaTypes.contains(type)) {
 			return false;
 		}
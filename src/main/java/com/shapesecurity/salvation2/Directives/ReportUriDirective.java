@@ -1,14 +1,14 @@
 package com.shapesecurity.salvation2.Directives;
 
 import com.shapesecurity.salvation2.Directive;
+import com.shapesecurity.salvation2.IndexedValueList;
 import com.shapesecurity.salvation2.Policy;
 
-import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
 public class ReportUriDirective extends Directive {
-	private List<String> uris = new ArrayList<>();
+	private IndexedValueList<String> uris = newSourceList();
 
 	public ReportUriDirective(List<String> values, DirectiveErrorConsumer errors) {
 		super(values);
@@ -26,38 +26,37 @@ public class ReportUriDirective extends Directive {
 	private void _addUri(String uri, int index, DirectiveErrorConsumer errors) {
 		// TODO actual parsing per https://tools.ietf.org/html/rfc3986#section-4.1
 		// It's awful, though: 'urn:example:animal:ferret:nose' is a valid URI
-		if (this.uris.contains(uri)) {
+		if (this.uris.containsKey(uri)) {
 			// NB: we don't prevent you from having duplicates, because that has actual semantic meaning - it will get each report twice (per spec)
 			errors.add(Policy.Severity.Info, "Duplicate report-to URI; are you sure you intend to get multiple copies of each report?", index);
 		}
 		this.uris.add(uri);
 	}
 
+	// URIs are case-sensitive
+	@Override
+	protected Object valueKey(String value) {
+		return value;
+	}
+
 	public List<String> getUris() {
 		return Collections.unmodifiableList(uris);
 	}
 
 	public void addUri(String uri, ManipulationErrorConsumer errors) {
+		this.enforceMutable();
 		this._addUri(uri, -1, wrapManipulationErrorConsumer(errors));
 		this.addValue(uri);
 	}
 
 	// Note that this removes all copies, not just the first
 	public boolean removeUri(String uri) {
-		if (!this.uris.contains(uri)) {
+		this.enforceMutable();
+		if (this.uris.removeKey(uri) == 0) {
 			return false;
 		}
-		while (this.uris.contains(uri)) {
-			this.uris.remove(uri);
-		}
-
-		ArrayList<String> copy = new ArrayList<>(this.values.size());
-		for (String existing : this.values) {
-			if (!existing.equals(uri)) {
-				copy.add(existing);
-			}
-		}
-		this.values = copy;
+		this.values.removeKey(uri);
+		this.valuesChanged();
 		return true;
 	}
 }
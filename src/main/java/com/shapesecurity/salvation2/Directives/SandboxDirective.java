@@ -3,24 +3,60 @@ package com.shapesecurity.salvation2.Directives;
 import com.shapesecurity.salvation2.Directive;
 import com.shapesecurity.salvation2.Policy;
 
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Collection;
+import java.util.EnumSet;
 import java.util.List;
 import java.util.Locale;
 
 public class SandboxDirective extends Directive {
-	private static final String ALLOW_DOWNLOADS = "allow-downloads";
-	private boolean allowDownloads = false;
-	private boolean allowForms = false;
-	private boolean allowModals = false;
-	private boolean allowOrientationLock = false;
-	private boolean allowPointerLock = false;
-	private boolean allowPopups = false;
-	private boolean allowPopupsToEscapeSandbox = false;
-	private boolean allowPresentation = false;
-	private boolean allowSameOrigin = false;
-	private boolean allowScripts = false;
-	private boolean allowStorageAccessByUserActivation = false;
-	private boolean allowTopNavigation = false;
-	private boolean allowTopNavigationByUserActivation = false;
+	// https://html.spec.whatwg.org/multipage/iframe-embed-object.html#attr-iframe-sandbox
+	// Each keyword is one bit of a mask, so sets of keywords combine with & (intersection), | (union), and & ~ (difference).
+	public enum Keyword {
+		AllowDownloads("allow-downloads"),
+		AllowForms("allow-forms"),
+		AllowModals("allow-modals"),
+		AllowOrientationLock("allow-orientation-lock"),
+		AllowPointerLock("allow-pointer-lock"),
+		AllowPopups("allow-popups"),
+		AllowPopupsToEscapeSandbox("allow-popups-to-escape-sandbox"),
+		AllowPresentation("allow-presentation"),
+		AllowSameOrigin("allow-same-origin"),
+		AllowScripts("allow-scripts"),
+		AllowStorageAccessByUserActivation("allow-storage-access-by-user-activation"),
+		AllowTopNavigation("allow-top-navigation"),
+		AllowTopNavigationByUserActivation("allow-top-navigation-by-user-activation");
+
+		@Nonnull
+		public final String repr;
+		public final int bit;
+
+		Keyword(@Nonnull String repr) {
+			this.repr = repr;
+			this.bit = 1 << this.ordinal();
+		}
+
+		// returns null if not matched; `name` must be lowercase
+		@Nullable
+		public static Keyword fromString(String name) {
+			for (Keyword keyword : values()) {
+				if (keyword.repr.equals(name)) {
+					return keyword;
+				}
+			}
+			return null;
+		}
+	}
+
+	// The mask of every keyword
+	public static final int ALL = (1 << Keyword.values().length) - 1;
+
+	// The flags of no sandbox at all, as from PolicyList.effectiveSandboxFlags: every bit is set, so it is the identity for &, and it
+	// differs from ALL, since a sandbox which allows everything still sandboxes (e.g. plugins)
+	public static final int NOT_SANDBOXED = -1;
+
+	private int flags = 0;
 
 	public SandboxDirective(List<String> values, DirectiveErrorConsumer errors) {
 		super(values);
@@ -28,328 +64,188 @@ public class SandboxDirective extends Directive {
 		int index = 0;
 		for (String token : values) {
 			// HTML attribute keywords are ascii-case-insensitive: https://html.spec.whatwg.org/multipage/common-microsyntaxes.html#keywords-and-enumerated-attributes
-			String lowcaseToken = token.toLowerCase(Locale.ENGLISH);
-			switch (lowcaseToken) {
-				case ALLOW_DOWNLOADS:
-					if (!this.allowDownloads) {
-						this.allowDownloads = true;
-					} else {
-						errors.add(Policy.Severity.Warning, "Duplicate sandbox keyword allow-downloads", index);
-					}
-					break;
-				case "allow-forms":
-					if (!this.allowForms) {
-						this.allowForms = true;
-					} else {
-						errors.add(Policy.Severity.Warning, "Duplicate sandbox keyword allow-forms", index);
-					}
-					break;
-				case "allow-modals":
-					if (!this.allowModals) {
-						this.allowModals = true;
-					} else {
-						errors.add(Policy.Severity.Warning, "Duplicate sandbox keyword allow-modals", index);
-					}
-					break;
-				case "allow-orientation-lock":
-					if (!this.allowOrientationLock) {
-						this.allowOrientationLock = true;
-					} else {
-						errors.add(Policy.Severity.Warning, "Duplicate sandbox keyword allow-orientation-lock", index);
-					}
-					break;
-				case "allow-pointer-lock":
-					if (!this.allowPointerLock) {
-						this.allowPointerLock = true;
-					} else {
-						errors.add(Policy.Severity.Warning, "Duplicate sandbox keyword allow-pointer-lock", index);
-					}
-					break;
-				case "allow-popups":
-					if (!this.allowPopups) {
-						this.allowPopups = true;
-					} else {
-						errors.add(Policy.Severity.Warning, "Duplicate sandbox keyword allow-popups", index);
-					}
-					break;
-				case "allow-popups-to-escape-sandbox":
-					if (!this.allowPopupsToEscapeSandbox) {
-						this.allowPopupsToEscapeSandbox = true;
-					} else {
-						errors.add(Policy.Severity.Warning, "Duplicate sandbox keyword allow-popups-to-escape-sandbox", index);
-					}
-					break;
-				case "allow-presentation":
-					if (!this.allowPresentation) {
-						this.allowPresentation = true;
-					} else {
-						errors.add(Policy.Severity.Warning, "Duplicate sandbox keyword allow-presentation", index);
-					}
-					break;
-				case "allow-same-origin":
-					if (!this.allowSameOrigin) {
-						this.allowSameOrigin = true;
-					} else {
-						errors.add(Policy.Severity.Warning, "Duplicate sandbox keyword allow-same-origin", index);
-					}
-					break;
-				case "allow-scripts":
-					if (!this.allowScripts) {
-						this.allowScripts = true;
-					} else {
-						errors.add(Policy.Severity.Warning, "Duplicate sandbox keyword allow-scripts", index);
-					}
-					break;
-				case "allow-storage-access-by-user-activation":
-					if (!this.allowStorageAccessByUserActivation) {
-						this.allowStorageAccessByUserActivation = true;
-					} else {
-						errors.add(Policy.Severity.Warning, "Duplicate sandbox keyword allow-storage-access-by-user-activation", index);
-					}
-					break;
-				case "allow-top-navigation":
-					if (!this.allowTopNavigation) {
-						this.allowTopNavigation = true;
-					} else {
-						errors.add(Policy.Severity.Warning, "Duplicate sandbox keyword allow-top-navigation", index);
-					}
-					break;
-				case "allow-top-navigation-by-user-activation":
-					if (!this.allowTopNavigationByUserActivation) {
-						this.allowTopNavigationByUserActivation = true;
-					} else {
-						errors.add(Policy.Severity.Warning, "Duplicate sandbox keyword allow-top-navigation-by-user-activation", index);
-					}
-					break;
-				default:
-					if (token.startsWith("'")) {
-						errors.add(Policy.Severity.Error, "Unrecognized sandbox keyword " + token + " - note that sandbox keywords do not have \"'\"s", index);
-					} else {
-						errors.add(Policy.Severity.Error, "Unrecognized sandbox keyword " + token, index);
-					}
+			Keyword keyword = Keyword.fromString(token.toLowerCase(Locale.ENGLISH));
+			if (keyword == null) {
+				if (token.startsWith("'")) {
+					errors.add(Policy.Severity.Error, "Unrecognized sandbox keyword " + token + " - note that sandbox keywords do not have \"'\"s", index);
+				} else {
+					errors.add(Policy.Severity.Error, "Unrecognized sandbox keyword " + token, index);
+				}
+			} else if ((this.flags & keyword.bit) == 0) {
+				this.flags |= keyword.bit;
+			} else {
+				errors.add(Policy.Severity.Warning, "Duplicate sandbox keyword " + keyword.repr, index);
 			}
 			++index;
 		}
 	}
 
 
-	public boolean allowDownloads() {
-		return this.allowDownloads;
+	// The keywords present, as a mask of Keyword bits
+	public int flags() {
+		return this.flags;
 	}
 
-	public void setAllowDownloads(boolean allowDownloads) {
-		if (this.allowDownloads == allowDownloads) {
+	@Nonnull
+	public EnumSet<Keyword> keywords() {
+		return toSet(this.flags);
+	}
+
+	public boolean allows(@Nonnull Keyword keyword) {
+		return (this.flags & keyword.bit) != 0;
+	}
+
+	// Whether every keyword in `mask` is present
+	public boolean allowsAll(int mask) {
+		return (this.flags & mask) == mask;
+	}
+
+	public void setAllows(@Nonnull Keyword keyword, boolean allows) {
+		if (this.allows(keyword) == allows) {
 			return;
 		}
-		if (allowDownloads) {
-			this.addValue(ALLOW_DOWNLOADS);
+		if (allows) {
+			this.addValue(keyword.repr);
+			this.flags |= keyword.bit;
 		} else {
-			this.removeValueIgnoreCase(ALLOW_DOWNLOADS);
+			this.removeValueIgnoreCase(keyword.repr);
+			this.flags &= ~keyword.bit;
+		}
+	}
+
+	public static int toMask(@Nonnull Collection<Keyword> keywords) {
+		int mask = 0;
+		for (Keyword keyword : keywords) {
+			mask |= keyword.bit;
+		}
+		return mask;
+	}
+
+	// Bits which are not those of keywords, as in NOT_SANDBOXED, are ignored
+	@Nonnull
+	public static EnumSet<Keyword> toSet(int mask) {
+		EnumSet<Keyword> keywords = EnumSet.noneOf(Keyword.class);
+		for (Keyword keyword : Keyword.values()) {
+			if ((mask & keyword.bit) != 0) {
+				keywords.add(keyword);
+			}
 		}
-		this.allowDownloads = allowDownloads;
+		return keywords;
+	}
+
+	public boolean allowDownloads() {
+		return this.allows(Keyword.AllowDownloads);
+	}
+
+	public void setAllowDownloads(boolean allowDownloads) {
+		this.setAllows(Keyword.AllowDownloads, allowDownloads);
 	}
 
 
 	public boolean allowForms() {
-		return this.allowForms;
+		return this.allows(Keyword.AllowForms);
 	}
 
 	public void setAllowForms(boolean allowForms) {
-		if (this.allowForms == allowForms) {
-			return;
-		}
-		if (allowForms) {
-			this.addValue("allow-forms");
-		} else {
-			this.removeValueIgnoreCase("allow-forms");
-		}
-		this.allowForms = allowForms;
+		this.setAllows(Keyword.AllowForms, allowForms);
 	}
 
 
 	public boolean allowModals() {
-		return this.allowModals;
+		return this.allows(Keyword.AllowModals);
 	}
 
 	public void setAllowModals(boolean allowModals) {
-		if (this.allowModals == allowModals) {
-			return;
-		}
-		if (allowModals) {
-			this.addValue("allow-modals");
-		} else {
-			this.removeValueIgnoreCase("allow-modals");
-		}
-		this.allowModals = allowModals;
+		this.setAllows(Keyword.AllowModals, allowModals);
 	}
 
 
 	public boolean allowOrientationLock() {
-		return this.allowOrientationLock;
+		return this.allows(Keyword.AllowOrientationLock);
 	}
 
 	public void setAllowOrientationLock(boolean allowOrientationLock) {
-		if (this.allowOrientationLock == allowOrientationLock) {
-			return;
-		}
-		if (allowOrientationLock) {
-			this.addValue("allow-orientation-lock");
-		} else {
-			this.removeValueIgnoreCase("allow-orientation-lock");
-		}
-		this.allowOrientationLock = allowOrientationLock;
+		this.setAllows(Keyword.AllowOrientationLock, allowOrientationLock);
 	}
 
 
 	public boolean allowPointerLock() {
-		return this.allowPointerLock;
+		return this.allows(Keyword.AllowPointerLock);
 	}
 
 	public void setAllowPointerLock(boolean allowPointerLock) {
-		if (this.allowPointerLock == allowPointerLock) {
-			return;
-		}
-		if (allowPointerLock) {
-			this.addValue("allow-pointer-lock");
-		} else {
-			this.removeValueIgnoreCase("allow-pointer-lock");
-		}
-		this.allowPointerLock = allowPointerLock;
+		this.setAllows(Keyword.AllowPointerLock, allowPointerLock);
 	}
 
 
 	public boolean allowPopups() {
-		return this.allowPopups;
+		return this.allows(Keyword.AllowPopups);
 	}
 
 	public void setAllowPopups(boolean allowPopups) {
-		if (this.allowPopups == allowPopups) {
-			return;
-		}
-		if (allowPopups) {
-			this.addValue("allow-popups");
-		} else {
-			this.removeValueIgnoreCase("allow-popups");
-		}
-		this.allowPopups = allowPopups;
+		this.setAllows(Keyword.AllowPopups, allowPopups);
 	}
 
 
 	public boolean allowPopupsToEscapeSandbox() {
-		return this.allowPopupsToEscapeSandbox;
+		return this.allows(Keyword.AllowPopupsToEscapeSandbox);
 	}
 
 	public void setAllowPopupsToEscapeSandbox(boolean allowPopupsToEscapeSandbox) {
-		if (this.allowPopupsToEscapeSandbox == allowPopupsToEscapeSandbox) {
-			return;
-		}
-		if (allowPopupsToEscapeSandbox) {
-			this.addValue("allow-popups-to-escape-sandbox");
-		} else {
-			this.removeValueIgnoreCase("allow-popups-to-escape-sandbox");
-		}
-		this.allowPopupsToEscapeSandbox = allowPopupsToEscapeSandbox;
+		this.setAllows(Keyword.AllowPopupsToEscapeSandbox, allowPopupsToEscapeSandbox);
 	}
 
 
 	public boolean allowPresentation() {
-		return this.allowPresentation;
+		return this.allows(Keyword.AllowPresentation);
 	}
 
 	public void setAllowPresentation(boolean allowPresentation) {
-		if (this.allowPresentation == allowPresentation) {
-			return;
-		}
-		if (allowPresentation) {
-			this.addValue("allow-presentation");
-		} else {
-			this.removeValueIgnoreCase("allow-presentation");
-		}
-		this.allowPresentation = allowPresentation;
+		this.setAllows(Keyword.AllowPresentation, allowPresentation);
 	}
 
 
 	public boolean allowSameOrigin() {
-		return this.allowSameOrigin;
+		return this.allows(Keyword.AllowSameOrigin);
 	}
 
 	public void setAllowSameOrigin(boolean allowSameOrigin) {
-		if (this.allowSameOrigin == allowSameOrigin) {
-			return;
-		}
-		if (allowSameOrigin) {
-			this.addValue("allow-same-origin");
-		} else {
-			this.removeValueIgnoreCase("allow-same-origin");
-		}
-		this.allowSameOrigin = allowSameOrigin;
+		this.setAllows(Keyword.AllowSameOrigin, allowSameOrigin);
 	}
 
 
 	public boolean allowScripts() {
-		return this.allowScripts;
+		return this.allows(Keyword.AllowScripts);
 	}
 
 	public void setAllowScripts(boolean allowScripts) {
-		if (this.allowScripts == allowScripts) {
-			return;
-		}
-		if (allowScripts) {
-			this.addValue("allow-scripts");
-		} else {
-			this.removeValueIgnoreCase("allow-scripts");
-		}
-		this.allowScripts = allowScripts;
+		this.setAllows(Keyword.AllowScripts, allowScripts);
 	}
 
 
 	public boolean allowStorageAccessByUserActivation() {
-		return this.allowStorageAccessByUserActivation;
+		return this.allows(Keyword.AllowStorageAccessByUserActivation);
 	}
 
 	public void setAllowStorageAccessByUserActivation(boolean allowStorageAccessByUserActivation) {
-		if (this.allowStorageAccessByUserActivation == allowStorageAccessByUserActivation) {
-			return;
-		}
-		if (allowStorageAccessByUserActivation) {
-			this.addValue("allow-storage-access-by-user-activation");
-		} else {
-			this.removeValueIgnoreCase("allow-storage-access-by-user-activation");
-		}
-		this.allowStorageAccessByUserActivation = allowStorageAccessByUserActivation;
+		this.setAllows(Keyword.AllowStorageAccessByUserActivation, allowStorageAccessByUserActivation);
 	}
 
 
 	public boolean allowTopNavigation() {
-		return this.allowTopNavigation;
+		return this.allows(Keyword.AllowTopNavigation);
 	}
 
 	public void setAllowTopNavigation(boolean allowTopNavigation) {
-		if (this.allowTopNavigation == allowTopNavigation) {
-			return;
-		}
-		if (allowTopNavigation) {
-			this.addValue("allow-top-navigation");
-		} else {
-			this.removeValueIgnoreCase("allow-top-navigation");
-		}
-		this.allowTopNavigation = allowTopNavigation;
+		this.setAllows(Keyword.AllowTopNavigation, allowTopNavigation);
 	}
 
 
 	public boolean allowTopNavigationByUserActivation() {
-		return this.allowTopNavigationByUserActivation;
+		return this.allows(Keyword.AllowTopNavigationByUserActivation);
 	}
 
 	public void setAllowTopNavigationByUserActivation(boolean allowTopNavigationByUserActivation) {
-		if (this.allowTopNavigationByUserActivation == allowTopNavigationByUserActivation) {
-			return;
-		}
-		if (allowTopNavigationByUserActivation) {
-			this.addValue("allow-top-navigation-by-user-activation");
-		} else {
-			this.removeValueIgnoreCase("allow-top-navigation-by-user-activation");
-		}
-		this.allowTopNavigationByUserActivation = allowTopNavigationByUserActivation;
+		this.setAllows(Keyword.AllowTopNavigationByUserActivation, allowTopNavigationByUserActivation);
 	}
 }
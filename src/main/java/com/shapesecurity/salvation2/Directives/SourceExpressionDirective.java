@@ -1,10 +1,11 @@
 package com.shapesecurity.salvation2.Directives;
 
+import com.shapesecurity.salvation2.IndexedValueList;
 import com.shapesecurity.salvation2.Policy;
 import com.shapesecurity.salvation2.Values.Hash;
 import com.shapesecurity.salvation2.Values.Nonce;
 
-import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
@@ -25,8 +26,8 @@ public class SourceExpressionDirective extends HostSourceDirective {
 	private boolean unsafeAllowRedirects = false;
 
 	// In practice, these are probably small enough for Lists to be faster than LinkedHashSets
-	private List<Nonce> nonces = new ArrayList<>();
-	private List<Hash> hashes = new ArrayList<>();
+	private IndexedValueList<Nonce> nonces = newSourceList();
+	private IndexedValueList<Hash> hashes = newSourceList();
 
 
 	public SourceExpressionDirective(List<String> values, DirectiveErrorConsumer errors) {
@@ -120,8 +121,49 @@ public class SourceExpressionDirective extends HostSourceDirective {
 		}
 	}
 
+	@Override
+	protected boolean isRecognizedValue(String token, String lowcaseToken) {
+		switch (lowcaseToken) {
+			case UNSAFE_INLINE:
+			case UNSAFE_EVAL:
+			case STRICT_DYNAMIC:
+			case UNSAFE_HASHES:
+			case REPORT_SAMPLE:
+			case UNSAFE_ALLOW_REDIRECTS:
+				return true;
+			case "'unsafe-redirect'":
+			case "'unsafe-hashed-attributes'":
+				return false;
+			default:
+				if (lowcaseToken.startsWith("'nonce-")) {
+					return Nonce.parseNonce(token).isPresent();
+				} else if (lowcaseToken.startsWith("'sha")) {
+					return Hash.parseHash(token).isPresent();
+				}
+				return super.isRecognizedValue(token, lowcaseToken);
+		}
+	}
+
+	// Nonces and hashes are case-sensitive after their prefix, so they are identified by what they parse to
+	@Override
+	protected Object valueKey(String value) {
+		String lowcaseValue = value.toLowerCase(Locale.ENGLISH);
+		if (lowcaseValue.startsWith("'nonce-")) {
+			Optional<Nonce> nonce = Nonce.parseNonce(value);
+			if (nonce.isPresent()) {
+				return nonce.get();
+			}
+		} else if (lowcaseValue.startsWith("'sha")) {
+			Optional<Hash> hash = Hash.parseHash(value);
+			if (hash.isPresent()) {
+				return hash.get();
+			}
+		}
+		return super.valueKey(value);
+	}
+
 	private boolean _addNonce(Nonce nonce, int index, DirectiveErrorConsumer errors) {
-		if (this.nonces.contains(nonce)) {
+		if (this.nonces.containsKey(nonce)) {
 			errors.add(Policy.Severity.Warning, "Duplicate nonce " + nonce.toString(), index);
 			return false;
 		} else {
@@ -131,23 +173,26 @@ public class SourceExpressionDirective extends HostSourceDirective {
 	}
 
 	private boolean _addHash(Hash hash, int index, DirectiveErrorConsumer errors) {
-		if (this.hashes.contains(hash)) {
+		if (this.hashes.containsKey(hash)) {
 			errors.add(Policy.Severity.Warning, "Duplicate hash " + hash.toString(), index);
 			return false;
 		} else {
-			if (hash.base64ValuePart.length() != hash.algorithm.length) {
-				errors.add(Policy.Severity.Warning, "Wrong length for " + hash.algorithm.toString() + ": expected " + hash.algorithm.length + ", got " + hash.base64ValuePart.length(), index);
-			}
-
-			if (hash.base64ValuePart.contains("_") || hash.base64ValuePart.contains("-")) {
-				errors.add(Policy.Severity.Warning, "'_' and '-' in hashes can never match actual elements", index);
-			}
-
+			checkHash(hash, index, errors);
 			this.hashes.add(hash);
 			return true;
 		}
 	}
 
+	private static void checkHash(Hash hash, int index, DirectiveErrorConsumer errors) {
+		if (hash.base64ValuePart.length() != hash.algorithm.length) {
+			errors.add(Policy.Severity.Warning, "Wrong length for " + hash.algorithm.toString() + ": expected " + hash.algorithm.length + ", got " + hash.base64ValuePart.length(), index);
+		}
+
+		if (hash.base64ValuePart.contains("_") || hash.base64ValuePart.contains("-")) {
+			errors.add(Policy.Severity.Warning, "'_' and '-' in hashes can never match actual elements", index);
+		}
+	}
+
 
 
 	// Accessors
@@ -264,18 +309,19 @@ public class SourceExpressionDirective extends HostSourceDirective {
 	}
 
 	public void addNonce(Nonce nonce, ManipulationErrorConsumer errors) {
+		this.enforceMutable();
 		if (this._addNonce(nonce, -1, wrapManipulationErrorConsumer(errors))) {
 			this.addValue(nonce.toString());
 		}
 	}
 
 	public boolean removeNonce(Nonce nonce) {
-		if (!this.nonces.contains(nonce)) {
+		this.enforceMutable();
+		if (this.nonces.removeKey(nonce) == 0) {
 			return false;
 		}
-		this.nonces.remove(nonce);
-		// we can't just "removeValue" or "removeValueIgnoreCase" because the `nonce-` part is case-insensitive but the remainder is case-sensitive
-		this.removeValuesMatching(nonce, Nonce::parseNonce);
+		// we can't just "removeValueIgnoreCase" because the `nonce-` part is case-insensitive but the remainder is case-sensitive
+		this.removeValuesWithKey(nonce);
 		return true;
 	}
 
@@ -284,18 +330,40 @@ public class SourceExpressionDirective extends HostSourceDirective {
 	}
 
 	public void addHash(Hash hash, ManipulationErrorConsumer errors) {
+		this.enforceMutable();
 		if (this._addHash(hash, -1, wrapManipulationErrorConsumer(errors))) {
 			this.addValue(hash.toString());
 		}
 	}
 
+	// Equivalent to calling addHash for each of `hashes`, but without addValue's per-value checks and invalidation
+	public void addHashes(Collection<Hash> hashes, ManipulationErrorConsumer errors) {
+		this.enforceMutable();
+		DirectiveErrorConsumer wrapped = wrapManipulationErrorConsumer(errors);
+		boolean added = false;
+		for (Hash hash : hashes) {
+			if (!this._addHash(hash, -1, wrapped)) {
+				continue;
+			}
+			if (!added) {
+				this.removeNone();
+			}
+			// Hashes only ever contain base64 characters, so this skips addValue's checks
+			this.values.add(hash.toString());
+			added = true;
+		}
+		if (added) {
+			this.valuesChanged();
+		}
+	}
+
 	public boolean removeHash(Hash hash) {
-		if (!this.hashes.contains(hash)) {
+		this.enforceMutable();
+		if (this.hashes.removeKey(hash) == 0) {
 			return false;
 		}
-		this.hashes.remove(hash);
-		// we can't just "removeValue" or "removeValueIgnoreCase" because the `sha256-` part is case-insensitive but the remainder is case-sensitive
-		this.removeValuesMatching(hash, Hash::parseHash);
+		// we can't just "removeValueIgnoreCase" because the `sha256-` part is case-insensitive but the remainder is case-sensitive
+		this.removeValuesWithKey(hash);
 		return true;
 	}
 }
@@ -0,0 +1,240 @@
+package com.shapesecurity.salvation2;
+
+import javax.annotation.Nonnull;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.function.Function;
+
+// Values in order, indexed by what they mean (their "key"). For a directive's values, these are the values spelled as they were written,
+// keyed by Directive.valueKey; for its parsed sources, the sources themselves, keyed by equality.
+// This makes finding and removing every copy of a value take time proportional to the number of copies, not the length of the list.
+// Removal leaves holes, which are compacted away once they make up half of the list. Reading never changes the list itself: while there
+// are holes, reads by position go through a dense copy, made on the first such read after each change. Directives are shared between
+// policies and threads, and serialized from any of them, so this matters.
+public final class IndexedValueList<T> extends AbstractList<T> {
+	private static final int INITIAL_CAPACITY = 4;
+
+	// Lists of parsed sources build their index once they reach this size, so that adding to them does not take quadratic time
+	private static final int INDEX_THRESHOLD = 8;
+
+	@Nonnull
+	private final Function<? super T, Object> keyOf;
+	private final int indexThreshold;
+
+	// Holes are nulls. `keys` and `next` are only meaningful once `index` has been built.
+	@Nonnull
+	private Object[] slots = new Object[INITIAL_CAPACITY];
+	@Nonnull
+	private Object[] keys = new Object[INITIAL_CAPACITY];
+	// The next slot with the same key, or -1
+	@Nonnull
+	private int[] next = new int[INITIAL_CAPACITY];
+	private int used = 0;
+	private int size = 0;
+
+	// See `indexThreshold`; lists of values are only indexed on first removal, since most directives are parsed, serialized, and
+	// discarded without ever being edited
+	private HashMap<Object, Positions> index = null;
+
+	// The values without holes, while there are holes; null when there are none, or when it has not been made since the last change
+	private volatile Object[] dense = null;
+
+	IndexedValueList(@Nonnull Function<? super T, Object> keyOf) {
+		this(keyOf, Integer.MAX_VALUE);
+	}
+
+	private IndexedValueList(@Nonnull Function<? super T, Object> keyOf, int indexThreshold) {
+		this.keyOf = keyOf;
+		this.indexThreshold = indexThreshold;
+	}
+
+	// A list keyed by the values themselves, as for parsed sources
+	@Nonnull
+	static <T> IndexedValueList<T> byValue() {
+		return new IndexedValueList<>(value -> value, INDEX_THRESHOLD);
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public T get(int i) {
+		if (i < 0 || i >= this.size) {
+			throw new IndexOutOfBoundsException("index " + i + " but size " + this.size);
+		}
+		if (this.used == this.size) {
+			return (T) this.slots[i];
+		}
+		Object[] dense = this.dense;
+		if (dense == null) {
+			// Made from state reads never change, so readers which race to make it make the same thing
+			dense = new Object[this.size];
+			int to = 0;
+			for (int from = 0; from < this.used; ++from) {
+				if (this.slots[from] != null) {
+					dense[to] = this.slots[from];
+					++to;
+				}
+			}
+			this.dense = dense;
+		}
+		return (T) dense[i];
+	}
+
+	@Override
+	public int size() {
+		return this.size;
+	}
+
+	@Override
+	public boolean add(@Nonnull T value) {
+		if (this.used == this.slots.length) {
+			int capacity = this.used * 2;
+			this.slots = Arrays.copyOf(this.slots, capacity);
+			this.keys = Arrays.copyOf(this.keys, capacity);
+			this.next = Arrays.copyOf(this.next, capacity);
+		}
+		this.slots[this.used] = value;
+		++this.used;
+		++this.size;
+		if (this.index != null) {
+			this.link(this.used - 1, this.keyOf.apply(value));
+		} else if (this.used >= this.indexThreshold) {
+			this.index();
+		}
+		this.dense = null;
+		++this.modCount;
+		return true;
+	}
+
+	@Override
+	public void clear() {
+		Arrays.fill(this.slots, 0, this.used, null);
+		Arrays.fill(this.keys, 0, this.used, null);
+		this.used = 0;
+		this.size = 0;
+		if (this.index != null) {
+			this.index.clear();
+		}
+		this.dense = null;
+		++this.modCount;
+	}
+
+	// Whether any value has the given key. This takes constant time for indexed lists, and otherwise is a scan, which is only cheap for
+	// lists of parsed sources, which are short until they are indexed.
+	public boolean containsKey(@Nonnull Object key) {
+		if (this.index != null) {
+			return this.index.containsKey(key);
+		}
+		// Without an index there are no holes
+		for (int i = 0; i < this.used; ++i) {
+			if (this.keyOf.apply(this.slotAt(i)).equals(key)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// Removes every value with the given key, returning how many there were
+	public int removeKey(@Nonnull Object key) {
+		Positions positions = this.index().remove(key);
+		if (positions == null) {
+			return 0;
+		}
+		int removed = 0;
+		for (int i = positions.first; i != -1; i = this.next[i]) {
+			this.slots[i] = null;
+			this.keys[i] = null;
+			++removed;
+		}
+		this.size -= removed;
+		this.dense = null;
+		++this.modCount;
+		if (this.used - this.size > this.used / 2) {
+			this.compact();
+		}
+		return removed;
+	}
+
+	@SuppressWarnings("unchecked")
+	private T slotAt(int i) {
+		return (T) this.slots[i];
+	}
+
+	private HashMap<Object, Positions> index() {
+		if (this.index == null) {
+			this.index = new HashMap<>();
+			for (int i = 0; i < this.used; ++i) {
+				if (this.slots[i] != null) {
+					this.link(i, this.keyOf.apply(this.slotAt(i)));
+				}
+			}
+		}
+		return this.index;
+	}
+
+	private void link(int slot, Object key) {
+		this.keys[slot] = key;
+		this.next[slot] = -1;
+		Positions positions = this.index.get(key);
+		if (positions == null) {
+			this.index.put(key, new Positions(slot));
+		} else {
+			this.next[positions.last] = slot;
+			positions.last = slot;
+		}
+	}
+
+	// Only called once there is an index. Slots before the first hole stay where they are; the rest move down, and the links into them
+	// are updated through `moved`, rather than the whole index being rebuilt. Since at least half the slots are holes, this takes
+	// amortized constant time per removed value.
+	private void compact() {
+		int first = 0;
+		while (first < this.used && this.slots[first] != null) {
+			++first;
+		}
+		// moved[i - first] is where slot i goes
+		int[] moved = new int[this.used - first];
+		int to = first;
+		for (int from = first; from < this.used; ++from) {
+			moved[from - first] = this.slots[from] == null ? -1 : to++;
+		}
+		for (int i = 0; i < first; ++i) {
+			if (this.next[i] >= first) {
+				this.next[i] = moved[this.next[i] - first];
+			}
+		}
+		for (int from = first; from < this.used; ++from) {
+			if (this.slots[from] == null) {
+				continue;
+			}
+			int target = moved[from - first];
+			int link = this.next[from];
+			this.slots[target] = this.slots[from];
+			this.keys[target] = this.keys[from];
+			// links always point to later slots, so a surviving slot's link is a surviving slot at or after `first`
+			this.next[target] = link == -1 ? -1 : moved[link - first];
+		}
+		Arrays.fill(this.slots, to, this.used, null);
+		Arrays.fill(this.keys, to, this.used, null);
+		this.used = to;
+		for (Positions positions : this.index.values()) {
+			if (positions.first >= first) {
+				positions.first = moved[positions.first - first];
+			}
+			if (positions.last >= first) {
+				positions.last = moved[positions.last - first];
+			}
+		}
+		this.dense = null;
+	}
+
+	private static final class Positions {
+		int first;
+		int last;
+
+		Positions(int slot) {
+			this.first = slot;
+			this.last = slot;
+		}
+	}
+}
@@ -0,0 +1,141 @@
+package com.shapesecurity.salvation2;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+import javax.annotation.Nonnull;
+import java.time.Duration;
+
+// Records Java Flight Recorder events for parses, template compilations, and queries which take at least a threshold, so that tail
+// latency in a recording can be attributed to the policies causing it. Install it with Policy.setMetrics, alongside other metrics
+// using SalvationMetrics.combine if need be. Needs a JVM with JFR (Java 11, or 8u262 and later); nothing else in Salvation depends on it.
+//
+// The events are created once the operation is over, so their durations are in the `elapsed` field, not JFR's own `duration`, and
+// JFR's `threshold` setting does not apply to them; use the thresholds here. Events can still be turned off in the recording's settings.
+public final class JfrMetrics implements SalvationMetrics {
+	// Longer policies are cut short in events; recordings are kept in memory, and policies can be very long
+	static final int MAX_POLICY_LENGTH = 2048;
+
+	private final long parseThresholdNanos;
+	private final long compileThresholdNanos;
+	private final long queryThresholdNanos;
+
+	// Thresholds suited to finding pathologically slow policies among ordinary ones
+	public JfrMetrics() {
+		this(Duration.ofMillis(1), Duration.ofMillis(1), Duration.ofNanos(100_000));
+	}
+
+	public JfrMetrics(@Nonnull Duration parseThreshold, @Nonnull Duration compileThreshold, @Nonnull Duration queryThreshold) {
+		this.parseThresholdNanos = parseThreshold.toNanos();
+		this.compileThresholdNanos = compileThreshold.toNanos();
+		this.queryThresholdNanos = queryThreshold.toNanos();
+	}
+
+	@Override
+	public void policyParsed(@Nonnull Policy policy, int directiveCount, long durationNanos) {
+		if (durationNanos < this.parseThresholdNanos) {
+			return;
+		}
+		ParseEvent event = new ParseEvent();
+		if (event.isEnabled()) {
+			event.policy = describe(policy);
+			event.directiveCount = directiveCount;
+			event.elapsed = durationNanos;
+			event.commit();
+		}
+	}
+
+	@Override
+	public void templateCompiled(@Nonnull Policy policy, @Nonnull PolicyTemplate template, long durationNanos) {
+		if (durationNanos < this.compileThresholdNanos) {
+			return;
+		}
+		CompileEvent event = new CompileEvent();
+		if (event.isEnabled()) {
+			event.policy = describe(policy);
+			event.placeholderCount = template.placeholderCount();
+			event.elapsed = durationNanos;
+			event.commit();
+		}
+	}
+
+	@Override
+	public void queryAnswered(@Nonnull Policy policy, @Nonnull FetchDirectiveKind effectiveDirective, boolean allowed, long durationNanos) {
+		if (durationNanos < this.queryThresholdNanos) {
+			return;
+		}
+		QueryEvent event = new QueryEvent();
+		if (event.isEnabled()) {
+			event.policy = describe(policy);
+			event.effectiveDirective = effectiveDirective.repr;
+			event.allowed = allowed;
+			event.sourceCount = policy.getGoverningDirectiveForEffectiveDirective(effectiveDirective).map(d -> d.getValues().size()).orElse(0);
+			event.elapsed = durationNanos;
+			event.commit();
+		}
+	}
+
+	private static String describe(Policy policy) {
+		String serialized = policy.toString();
+		return serialized.length() <= MAX_POLICY_LENGTH ? serialized : serialized.substring(0, MAX_POLICY_LENGTH) + "...";
+	}
+
+	@Name("com.shapesecurity.salvation2.PolicyParse")
+	@Label("CSP Parse")
+	@Category("Salvation")
+	@Description("A call to Policy.parseSerializedCSP which took at least the configured threshold")
+	static final class ParseEvent extends Event {
+		@Label("Policy")
+		String policy;
+
+		@Label("Directives")
+		int directiveCount;
+
+		@Label("Elapsed")
+		@Timespan(Timespan.NANOSECONDS)
+		long elapsed;
+	}
+
+	@Name("com.shapesecurity.salvation2.TemplateCompile")
+	@Label("CSP Template Compile")
+	@Category("Salvation")
+	@Description("A call to PolicyTemplate.compile which took at least the configured threshold")
+	static final class CompileEvent extends Event {
+		@Label("Policy")
+		String policy;
+
+		@Label("Placeholders")
+		int placeholderCount;
+
+		@Label("Elapsed")
+		@Timespan(Timespan.NANOSECONDS)
+		long elapsed;
+	}
+
+	@Name("com.shapesecurity.salvation2.PolicyQuery")
+	@Label("CSP Query")
+	@Category("Salvation")
+	@Description("A check of a fetch or inline content against a policy which took at least the configured threshold")
+	static final class QueryEvent extends Event {
+		@Label("Policy")
+		String policy;
+
+		@Label("Effective Directive")
+		String effectiveDirective;
+
+		@Label("Allowed")
+		boolean allowed;
+
+		@Label("Source Expressions")
+		@Description("The number of values in the directive which governed the query")
+		int sourceCount;
+
+		@Label("Elapsed")
+		@Timespan(Timespan.NANOSECONDS)
+		long elapsed;
+	}
+}
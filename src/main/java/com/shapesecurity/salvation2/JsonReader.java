@@ -0,0 +1,370 @@
+package com.shapesecurity.salvation2;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.io.Reader;
+
+// A pull parser for JSON (https://www.rfc-editor.org/rfc/rfc8259), reading a token at a time so that arbitrarily long streams of
+// reports or log entries can be processed in constant memory. Any number of top-level values may follow one another, separated by
+// whitespace, which covers both single documents and newline-delimited JSON.
+// Input is assumed hostile: strings longer than the limit and nesting deeper than the limit are errors rather than memory exhaustion.
+final class JsonReader {
+	enum Token {
+		BeginObject,
+		EndObject,
+		BeginArray,
+		EndArray,
+		Name,
+		String,
+		Number,
+		Boolean,
+		Null,
+		End,
+	}
+
+	static final int DEFAULT_MAX_STRING_LENGTH = 1 << 16;
+	static final int MAX_DEPTH = 64;
+
+	private static final int TOP = 0;
+	private static final int EMPTY_OBJECT = 1;
+	private static final int NONEMPTY_OBJECT = 2;
+	private static final int DANGLING_NAME = 3;
+	private static final int EMPTY_ARRAY = 4;
+	private static final int NONEMPTY_ARRAY = 5;
+
+	@Nonnull
+	private final Reader in;
+	private final int maxStringLength;
+	private final char[] buffer = new char[8192];
+	private int position = 0;
+	private int limit = 0;
+	// For error messages
+	private long offset = 0;
+
+	private final int[] scopes = new int[MAX_DEPTH + 1];
+	private int depth = 0;
+
+	private Token peeked = null;
+	// The text of a peeked name, string, number, or boolean
+	private String peekedText = null;
+	private final StringBuilder text = new StringBuilder();
+
+	JsonReader(@Nonnull Reader in) {
+		this(in, DEFAULT_MAX_STRING_LENGTH);
+	}
+
+	JsonReader(@Nonnull Reader in, int maxStringLength) {
+		this.in = in;
+		this.maxStringLength = maxStringLength;
+		this.scopes[0] = TOP;
+	}
+
+	@Nonnull
+	Token peek() throws IOException {
+		if (this.peeked != null) {
+			return this.peeked;
+		}
+		int c = this.nextNonWhitespace();
+		switch (this.scopes[this.depth]) {
+			case TOP:
+				if (c == -1) {
+					return this.peeked = Token.End;
+				}
+				return this.peekValue(c);
+			case EMPTY_ARRAY:
+				if (c == ']') {
+					return this.peeked = Token.EndArray;
+				}
+				this.scopes[this.depth] = NONEMPTY_ARRAY;
+				return this.peekValue(c);
+			case NONEMPTY_ARRAY:
+				if (c == ']') {
+					return this.peeked = Token.EndArray;
+				}
+				if (c != ',') {
+					throw this.error("expected ',' or ']'");
+				}
+				return this.peekValue(this.nextNonWhitespace());
+			case EMPTY_OBJECT:
+				if (c == '}') {
+					return this.peeked = Token.EndObject;
+				}
+				return this.peekName(c);
+			case NONEMPTY_OBJECT:
+				if (c == '}') {
+					return this.peeked = Token.EndObject;
+				}
+				if (c != ',') {
+					throw this.error("expected ',' or '}'");
+				}
+				return this.peekName(this.nextNonWhitespace());
+			case DANGLING_NAME:
+				if (c != ':') {
+					throw this.error("expected ':'");
+				}
+				this.scopes[this.depth] = NONEMPTY_OBJECT;
+				return this.peekValue(this.nextNonWhitespace());
+			default:
+				throw new IllegalStateException("unknown scope " + this.scopes[this.depth]);
+		}
+	}
+
+	// Whether the current object or array has another member
+	boolean hasNext() throws IOException {
+		Token token = this.peek();
+		return token != Token.EndObject && token != Token.EndArray && token != Token.End;
+	}
+
+	void beginObject() throws IOException {
+		this.expect(Token.BeginObject);
+		this.push(EMPTY_OBJECT);
+	}
+
+	void endObject() throws IOException {
+		this.expect(Token.EndObject);
+		--this.depth;
+	}
+
+	void beginArray() throws IOException {
+		this.expect(Token.BeginArray);
+		this.push(EMPTY_ARRAY);
+	}
+
+	void endArray() throws IOException {
+		this.expect(Token.EndArray);
+		--this.depth;
+	}
+
+	@Nonnull
+	String nextName() throws IOException {
+		this.expect(Token.Name);
+		this.scopes[this.depth] = DANGLING_NAME;
+		return this.peekedText;
+	}
+
+	// Numbers and booleans are returned as written, since the callers of this class only ever need them as text or as longs
+	@Nonnull
+	String nextString() throws IOException {
+		Token token = this.peek();
+		if (token != Token.String && token != Token.Number && token != Token.Boolean) {
+			throw this.error("expected a string but found " + token);
+		}
+		this.peeked = null;
+		return this.peekedText;
+	}
+
+	// Skips the next value, including everything nested in it, or the next member if positioned at a name
+	void skipValue() throws IOException {
+		int nested = 0;
+		do {
+			Token token = this.peek();
+			switch (token) {
+				case BeginObject:
+					this.beginObject();
+					++nested;
+					break;
+				case BeginArray:
+					this.beginArray();
+					++nested;
+					break;
+				case EndObject:
+					this.endObject();
+					--nested;
+					break;
+				case EndArray:
+					this.endArray();
+					--nested;
+					break;
+				case Name:
+					this.nextName();
+					if (nested == 0) {
+						// skipping a member, not just its name
+						this.skipValue();
+						return;
+					}
+					break;
+				case End:
+					throw this.error("unexpected end of input");
+				default:
+					this.peeked = null;
+					break;
+			}
+		} while (nested > 0);
+	}
+
+	private void expect(Token expected) throws IOException {
+		Token token = this.peek();
+		if (token != expected) {
+			throw this.error("expected " + expected + " but found " + token);
+		}
+		this.peeked = null;
+	}
+
+	private void push(int scope) throws IOException {
+		if (this.depth == MAX_DEPTH) {
+			throw this.error("nested more than " + MAX_DEPTH + " deep");
+		}
+		this.scopes[++this.depth] = scope;
+	}
+
+	private Token peekName(int c) throws IOException {
+		if (c != '"') {
+			throw this.error("expected a name");
+		}
+		this.peekedText = this.readString();
+		return this.peeked = Token.Name;
+	}
+
+	private Token peekValue(int c) throws IOException {
+		switch (c) {
+			case '{':
+				return this.peeked = Token.BeginObject;
+			case '[':
+				return this.peeked = Token.BeginArray;
+			case '"':
+				this.peekedText = this.readString();
+				return this.peeked = Token.String;
+			case 't':
+				this.readLiteral("true");
+				return this.peeked = Token.Boolean;
+			case 'f':
+				this.readLiteral("false");
+				return this.peeked = Token.Boolean;
+			case 'n':
+				this.readLiteral("null");
+				return this.peeked = Token.Null;
+			case -1:
+				throw this.error("unexpected end of input");
+			default:
+				if (c == '-' || c >= '0' && c <= '9') {
+					this.peekedText = this.readNumber((char) c);
+					return this.peeked = Token.Number;
+				}
+				throw this.error("unexpected character '" + (char) c + "'");
+		}
+	}
+
+	private void readLiteral(String literal) throws IOException {
+		for (int i = 1; i < literal.length(); ++i) {
+			if (this.read() != literal.charAt(i)) {
+				throw this.error("expected " + literal);
+			}
+		}
+		this.peekedText = literal;
+	}
+
+	// Lenient about the form of numbers; they are only ever passed on as text or parsed by Long.parseLong
+	private String readNumber(char first) throws IOException {
+		this.text.setLength(0);
+		this.text.append(first);
+		while (true) {
+			int c = this.peekChar();
+			if (c >= '0' && c <= '9' || c == '.' || c == 'e' || c == 'E' || c == '+' || c == '-') {
+				this.text.append((char) this.read());
+				if (this.text.length() > this.maxStringLength) {
+					throw this.error("number longer than " + this.maxStringLength + " characters");
+				}
+			} else {
+				return this.text.toString();
+			}
+		}
+	}
+
+	// The opening quote has already been read
+	private String readString() throws IOException {
+		this.text.setLength(0);
+		while (true) {
+			int c = this.read();
+			if (c == '"') {
+				return this.text.toString();
+			}
+			if (c == -1) {
+				throw this.error("unterminated string");
+			}
+			if (c < 0x20) {
+				throw this.error("unescaped control character in string");
+			}
+			if (c == '\\') {
+				c = this.read();
+				switch (c) {
+					case '"':
+					case '\\':
+					case '/':
+						break;
+					case 'b':
+						c = '\b';
+						break;
+					case 'f':
+						c = '\f';
+						break;
+					case 'n':
+						c = '\n';
+						break;
+					case 'r':
+						c = '\r';
+						break;
+					case 't':
+						c = '\t';
+						break;
+					case 'u':
+						c = 0;
+						for (int i = 0; i < 4; ++i) {
+							int digit = Character.digit(this.read(), 16);
+							if (digit == -1) {
+								throw this.error("invalid \\u escape");
+							}
+							c = c << 4 | digit;
+						}
+						break;
+					default:
+						throw this.error("invalid escape");
+				}
+			}
+			if (this.text.length() == this.maxStringLength) {
+				throw this.error("string longer than " + this.maxStringLength + " characters");
+			}
+			this.text.append((char) c);
+		}
+	}
+
+	private int nextNonWhitespace() throws IOException {
+		while (true) {
+			int c = this.read();
+			if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+				return c;
+			}
+		}
+	}
+
+	private int peekChar() throws IOException {
+		if (this.position == this.limit && !this.fill()) {
+			return -1;
+		}
+		return this.buffer[this.position];
+	}
+
+	private int read() throws IOException {
+		if (this.position == this.limit && !this.fill()) {
+			return -1;
+		}
+		++this.offset;
+		return this.buffer[this.position++];
+	}
+
+	private boolean fill() throws IOException {
+		int read;
+		do {
+			read = this.in.read(this.buffer, 0, this.buffer.length);
+		} while (read == 0);
+		if (read == -1) {
+			return false;
+		}
+		this.position = 0;
+		this.limit = read;
+		return true;
+	}
+
+	private IOException error(String message) {
+		return new IOException("Malformed JSON at character " + this.offset + ": " + message);
+	}
+}
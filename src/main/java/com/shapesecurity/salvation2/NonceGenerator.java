@@ -0,0 +1,152 @@
+package com.shapesecurity.salvation2;
+
+import com.shapesecurity.salvation2.Values.Nonce;
+
+import javax.annotation.Nonnull;
+import java.nio.charset.StandardCharsets;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.function.Supplier;
+
+// Issues nonces for https://w3c.github.io/webappsec-csp/#security-nonces quickly enough to use one per response.
+// Each thread gets its own SecureRandom, so threads never contend for entropy, and draws random bytes from it in batches.
+// Nonces are base64-encoded straight into bytes; `render` writes one into a PolicyTemplate's output without any intermediate String.
+public final class NonceGenerator {
+	// 128 bits, as https://w3c.github.io/webappsec-csp/#security-nonces recommends
+	public static final int DEFAULT_NONCE_BYTES = 16;
+
+	private static final int NONCES_PER_BATCH = 64;
+
+	private static final byte[] BASE64_ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes(StandardCharsets.US_ASCII);
+
+	private final int nonceBytes;
+	private final int nonceLength;
+	private final ThreadLocal<State> state;
+
+	public NonceGenerator() {
+		this(DEFAULT_NONCE_BYTES, NonceGenerator::defaultEntropySource);
+	}
+
+	// `entropySource` is called once per thread which uses this generator
+	public NonceGenerator(int nonceBytes, @Nonnull Supplier<SecureRandom> entropySource) {
+		if (nonceBytes < 1) {
+			throw new IllegalArgumentException("nonces must have at least one byte of entropy");
+		}
+		this.nonceBytes = nonceBytes;
+		this.nonceLength = 4 * ((nonceBytes + 2) / 3);
+		this.state = ThreadLocal.withInitial(() -> new State(entropySource.get(), nonceBytes, this.nonceLength));
+	}
+
+	// The length of each nonce's base64 value, in characters and so also in bytes
+	public int nonceLength() {
+		return this.nonceLength;
+	}
+
+	@Nonnull
+	public Nonce nextNonce() {
+		State state = this.state.get();
+		this.nextNonce(state, state.scratch, 0);
+		// Encoded just above, so there is nothing to parse or check
+		return Nonce.ofValidatedBase64(new String(state.scratch, 0, this.nonceLength, StandardCharsets.US_ASCII));
+	}
+
+	// Writes a fresh nonce's base64 value into `out`, returning the number of bytes written
+	public int nextNonce(@Nonnull byte[] out, int offset) {
+		if (offset < 0 || offset > out.length - this.nonceLength) {
+			throw new IndexOutOfBoundsException("need " + this.nonceLength + " bytes at offset " + offset + " but the array has length " + out.length);
+		}
+		this.nextNonce(this.state.get(), out, offset);
+		return this.nonceLength;
+	}
+
+	private void nextNonce(State state, byte[] out, int offset) {
+		if (state.used == state.entropy.length) {
+			state.random.nextBytes(state.entropy);
+			state.used = 0;
+		}
+		encodeBase64(state.entropy, state.used, this.nonceBytes, out, offset);
+		state.used += this.nonceBytes;
+	}
+
+	// Renders `template` with a fresh nonce, returning the header and the nonce together
+	@Nonnull
+	public RenderedPolicy render(@Nonnull PolicyTemplate template) {
+		State state = this.state.get();
+		this.nextNonce(state, state.scratch, 0);
+		byte[] header = new byte[template.renderedLength(this.nonceLength)];
+		template.render(state.scratch, this.nonceLength, header, 0);
+		return new RenderedPolicy(header, template.firstPlaceholderOffset(), this.nonceLength);
+	}
+
+	private static void encodeBase64(byte[] in, int inOffset, int inLength, byte[] out, int outOffset) {
+		int i = inOffset;
+		int end = inOffset + inLength;
+		int o = outOffset;
+		while (end - i >= 3) {
+			int bits = (in[i] & 0xff) << 16 | (in[i + 1] & 0xff) << 8 | in[i + 2] & 0xff;
+			out[o] = BASE64_ALPHABET[bits >>> 18];
+			out[o + 1] = BASE64_ALPHABET[bits >>> 12 & 0x3f];
+			out[o + 2] = BASE64_ALPHABET[bits >>> 6 & 0x3f];
+			out[o + 3] = BASE64_ALPHABET[bits & 0x3f];
+			i += 3;
+			o += 4;
+		}
+		if (end - i == 1) {
+			int bits = (in[i] & 0xff) << 16;
+			out[o] = BASE64_ALPHABET[bits >>> 18];
+			out[o + 1] = BASE64_ALPHABET[bits >>> 12 & 0x3f];
+			out[o + 2] = '=';
+			out[o + 3] = '=';
+		} else if (end - i == 2) {
+			int bits = (in[i] & 0xff) << 16 | (in[i + 1] & 0xff) << 8;
+			out[o] = BASE64_ALPHABET[bits >>> 18];
+			out[o + 1] = BASE64_ALPHABET[bits >>> 12 & 0x3f];
+			out[o + 2] = BASE64_ALPHABET[bits >>> 6 & 0x3f];
+			out[o + 3] = '=';
+		}
+	}
+
+	// A DRBG where there is one (Java 9+), since it does not share state between instances the way NativePRNG does
+	private static SecureRandom defaultEntropySource() {
+		try {
+			return SecureRandom.getInstance("DRBG");
+		} catch (NoSuchAlgorithmException e) {
+			return new SecureRandom();
+		}
+	}
+
+	private static final class State {
+		final SecureRandom random;
+		final byte[] entropy;
+		// starts out "used up", so that the first nonce triggers the first batch
+		int used;
+		final byte[] scratch;
+
+		State(SecureRandom random, int nonceBytes, int nonceLength) {
+			this.random = random;
+			this.entropy = new byte[nonceBytes * NONCES_PER_BATCH];
+			this.used = this.entropy.length;
+			this.scratch = new byte[nonceLength];
+		}
+	}
+
+	public static final class RenderedPolicy {
+		// The serialized policy, ready to be sent as a header
+		@Nonnull
+		public final byte[] header;
+		private final int nonceOffset;
+		private final int nonceLength;
+
+		RenderedPolicy(@Nonnull byte[] header, int nonceOffset, int nonceLength) {
+			this.header = header;
+			this.nonceOffset = nonceOffset;
+			this.nonceLength = nonceLength;
+		}
+
+		// The nonce's base64 value, for the `nonce` attributes of the page's elements
+		@Nonnull
+		public String nonce() {
+			return new String(this.header, this.nonceOffset, this.nonceLength, StandardCharsets.US_ASCII);
+		}
+	}
+}
@@ -0,0 +1,93 @@
+package com.shapesecurity.salvation2;
+
+import com.shapesecurity.salvation2.URLs.URI;
+import com.shapesecurity.salvation2.URLs.URLWithScheme;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Optional;
+
+// The parts of an origin which source-list matching depends on, computed once per origin rather than once per query.
+// This deliberately holds nothing derived from a policy, so that one Policy can be shared by any number of origins.
+final class Origin {
+	@Nonnull
+	final URLWithScheme url;
+	@Nonnull
+	final String scheme;
+	@Nullable
+	final String host;
+	final int port;
+
+	// https://w3c.github.io/webappsec-csp/#match-url-to-source-list step 4.2: an origin on its scheme's default port is also 'self' for URLs on theirs
+	final boolean hasDefaultPort;
+
+	// 'self' only admits http: and ws: URLs when the origin itself is http:
+	final boolean selfAdmitsInsecure;
+
+	// `*` admits the network schemes, plus the origin's own scheme. This is that scheme, or null if it is already a network scheme.
+	@Nullable
+	final String starExtraScheme;
+
+	// The URL schemes a host-source without a scheme admits, per https://w3c.github.io/webappsec-csp/#scheme-part-match
+	@Nonnull
+	final String[] hostSourceSchemes;
+
+	Origin(@Nonnull URLWithScheme url) {
+		this.url = url;
+		this.scheme = url.scheme;
+		this.host = url.host;
+		this.port = url.port == null ? Constants.NO_PORT : url.port;
+		this.hasDefaultPort = url.port != null && url.port == URI.defaultPortForProtocol(this.scheme);
+		this.selfAdmitsInsecure = this.scheme.equals("http");
+		this.starExtraScheme = isNetworkScheme(this.scheme) ? null : this.scheme;
+		switch (this.scheme) {
+			case "http":
+				this.hostSourceSchemes = new String[] { "http", "https" };
+				break;
+			case "ws":
+				this.hostSourceSchemes = new String[] { "ws", "wss", "http", "https" };
+				break;
+			case "wss":
+				this.hostSourceSchemes = new String[] { "wss", "https" };
+				break;
+			default:
+				this.hostSourceSchemes = new String[] { this.scheme };
+				break;
+		}
+	}
+
+	@Nullable
+	static Origin of(@Nonnull Optional<URLWithScheme> origin) {
+		return origin.isPresent() ? new Origin(origin.get()) : null;
+	}
+
+	boolean starAdmitsScheme(@Nonnull String urlScheme) {
+		return isNetworkScheme(urlScheme) || urlScheme.equals(this.starExtraScheme);
+	}
+
+	boolean hostSourceAdmitsScheme(@Nonnull String urlScheme) {
+		for (String scheme : this.hostSourceSchemes) {
+			if (scheme.equals(urlScheme)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// https://w3c.github.io/webappsec-csp/#match-url-to-source-list step 4.2
+	boolean isSelf(@Nonnull String urlScheme, @Nullable CharSequence urlHost, int urlPort) {
+		if (this.host == null ? urlHost != null : urlHost == null || !this.host.contentEquals(urlHost)) {
+			return false;
+		}
+		if (this.port != urlPort && !(this.hasDefaultPort && urlPort == URI.defaultPortForProtocol(urlScheme))) {
+			return false;
+		}
+		return urlScheme.equals("https") || urlScheme.equals("wss") || this.selfAdmitsInsecure && (urlScheme.equals("http") || urlScheme.equals("ws"));
+	}
+
+	// https://fetch.spec.whatwg.org/#network-scheme
+	// Note that "ws" and "wss" are _not_ network schemes
+	private static boolean isNetworkScheme(@Nonnull String scheme) {
+		return scheme.equals("ftp") || scheme.equals("http") || scheme.equals("https");
+	}
+}
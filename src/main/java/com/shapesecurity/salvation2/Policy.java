@@ -7,15 +7,20 @@ import com.shapesecurity.salvation2.Directives.ReportUriDirective;
 import com.shapesecurity.salvation2.Directives.SandboxDirective;
 import com.shapesecurity.salvation2.Directives.SourceExpressionDirective;
 import com.shapesecurity.salvation2.URLs.GUID;
+import com.shapesecurity.salvation2.URLs.MutableURL;
 import com.shapesecurity.salvation2.URLs.URI;
 import com.shapesecurity.salvation2.URLs.URLWithScheme;
 import com.shapesecurity.salvation2.Values.Hash;
 import com.shapesecurity.salvation2.Values.Host;
 import com.shapesecurity.salvation2.Values.MediaType;
+import com.shapesecurity.salvation2.Values.Nonce;
 import com.shapesecurity.salvation2.Values.RFC7230Token;
 import com.shapesecurity.salvation2.Values.Scheme;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -23,11 +28,17 @@ import java.util.ArrayList;
 import java.util.Base64;
 import java.util.Collections;
 import java.util.EnumMap;
-import java.util.Iterator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
-import java.util.Objects;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -67,13 +78,86 @@ public class Policy {
 	@Nonnull
 	private final EnumMap<FetchDirectiveKind, SourceExpressionDirective> fetchDirectives = new EnumMap<>(FetchDirectiveKind.class);
 
+	// Null whenever this policy or any of its directives has changed since it was last serialized
+	@Nullable
+	private Serialized serialized = null;
+
+	// Constants, so that checking the sandbox on the query path is a field read and a mask
+	private static final int SANDBOX_ALLOW_SCRIPTS = SandboxDirective.Keyword.AllowScripts.bit;
+	private static final int SANDBOX_ALLOW_FORMS = SandboxDirective.Keyword.AllowForms.bit;
+
+	private static final BiFunction<List<String>, Directive.DirectiveErrorConsumer, Directive> PLAIN_DIRECTIVE = (values, errors) -> new Directive(values);
+
+	// See setMetrics. Every parse and query reads this once; while it is null, that read and a branch are all instrumentation costs.
+	@Nullable
+	private static volatile SalvationMetrics metrics = null;
+
+	// See countSourceHits
+	@Nullable
+	private volatile SourceHitCounter hitCounter = null;
+
 	private Policy() {
 		// pass
 	}
 
+	// Reports every parse and query, on every thread, to `metrics`, or to nothing if it is null
+	public static void setMetrics(@Nullable SalvationMetrics metrics) {
+		Policy.metrics = metrics;
+	}
+
+	@Nonnull
+	public static Optional<SalvationMetrics> getMetrics() {
+		return Optional.ofNullable(metrics);
+	}
+
+	// For reporting from elsewhere in the package; see the `metrics` field
+	@Nullable
+	static SalvationMetrics metrics() {
+		return metrics;
+	}
+
+	// Starts counting how often each source expression allows a query against this policy, and returns the counts. Calling this again
+	// returns the same counter. Counting freezes the policy's directives, as Policy.derive does, so that the counts keep referring to
+	// the sources they were counted for. Directives which `edit` adds or replaces afterwards are not counted.
+	// Until this is called, queries pay only a null check for it.
+	@Nonnull
+	public synchronized SourceHitCounter countSourceHits() {
+		if (this.hitCounter == null) {
+			for (NamedDirective directive : this.directives) {
+				directive.directive.shared = true;
+			}
+			this.hitCounter = new SourceHitCounter(this);
+		}
+		return this.hitCounter;
+	}
+
+	// Tries each host-source list's sources in order of how often they have matched, rather than as written, so that on skewed traffic
+	// the common hosts are found after a shorter scan. Query results and serialization are unaffected. Like countSourceHits, this
+	// freezes the policy's directives. The order is kept on the directives, so policies which share them (see `derive`) share it too.
+	// While source hits are being counted, sources are tried as written, so that the counts say which source decided each query.
+	public void adaptHostSourceOrder() {
+		for (NamedDirective directive : this.directives) {
+			directive.directive.shared = true;
+		}
+		this.forEachEffectiveDirective((name, directive) -> {
+			if (directive instanceof HostSourceDirective && directive.adaptiveOrder == null) {
+				int hostCount = ((HostSourceDirective) directive).getHosts().size();
+				if (hostCount >= AdaptiveSourceOrder.MIN_HOSTS) {
+					directive.adaptiveOrder = new AdaptiveSourceOrder(hostCount);
+				}
+			}
+		});
+	}
+
 	// https://w3c.github.io/webappsec-csp/#parse-serialized-policy-list
 	@Nonnull
 	public static PolicyList parseSerializedCSPList(String serialized, PolicyListErrorConsumer policyListErrorConsumer) {
+		return parseSerializedCSPList(serialized, policyListErrorConsumer, null);
+	}
+
+	// As above, but reusing directives from (and adding them to) `cache`. Directives from the cache cannot be modified.
+	@Nonnull
+	public static PolicyList parseSerializedCSPList(String serialized, PolicyListErrorConsumer policyListErrorConsumer, @Nullable DirectiveCache cache) {
 		// "A serialized CSP list is an ASCII string"
 		enforceAscii(serialized);
 
@@ -86,7 +170,7 @@ public class Policy {
 
 		// https://infra.spec.whatwg.org/#split-on-commas
 		for (String token : serialized.split(",")) {
-			Policy policy = parseSerializedCSP(token, policyErrorConsumer);
+			Policy policy = parseSerializedCSP(token, policyErrorConsumer, cache);
 			if (policy.directives.isEmpty()) {
 				++index[0];
 				continue;
@@ -102,6 +186,12 @@ public class Policy {
 	// https://w3c.github.io/webappsec-csp/#parse-serialized-policy
 	@Nonnull
 	public static Policy parseSerializedCSP(String serialized, PolicyErrorConsumer policyErrorConsumer) {
+		return parseSerializedCSP(serialized, policyErrorConsumer, null);
+	}
+
+	// As above, but reusing directives from (and adding them to) `cache`. Directives from the cache cannot be modified.
+	@Nonnull
+	public static Policy parseSerializedCSP(String serialized, PolicyErrorConsumer policyErrorConsumer, @Nullable DirectiveCache cache) {
 		// "A serialized CSP is an ASCII string", and browsers do in fact reject CSPs which contain non-ASCII characters
 		enforceAscii(serialized);
 		if (serialized.contains(",")) {
@@ -109,8 +199,15 @@ public class Policy {
 			throw new IllegalArgumentException("Serialized CSPs cannot contain commas - you may have wanted parseSerializedCSPList");
 		}
 
+		SalvationMetrics metrics = Policy.metrics;
+		long start = startTiming(metrics);
+
 		int[] index = { 0 }; // java's lambdas are dumb
+		String[] currentName = { null };
 		Directive.DirectiveErrorConsumer directiveErrorConsumer = (Severity severity, String message, int valueIndex) -> {
+			if (metrics != null) {
+				metrics.parseError(severity, currentName[0], message);
+			}
 			policyErrorConsumer.add(severity, message, index[0], valueIndex);
 		};
 
@@ -131,11 +228,16 @@ public class Policy {
 
 			List<String> directiveValues = Utils.splitOnAsciiWhitespace(remainingToken);
 
-			policy.add(directiveName, directiveValues, directiveErrorConsumer);
+			checkDirectiveName(directiveName);
+			currentName[0] = directiveName;
+			policy.addNamedDirective(directiveName, policy.createDirective(directiveName, directiveValues, directiveErrorConsumer, cache));
 
 			++index[0];
 		}
 
+		if (metrics != null) {
+			metrics.policyParsed(policy, policy.directives.size(), System.nanoTime() - start);
+		}
 		return policy;
 	}
 
@@ -144,7 +246,15 @@ public class Policy {
 
 
 	// We do not provide a generic method for updating an existing directive in-place. Just remove the existing one and add it back.
+	// To make many changes at once, use `edit`.
 	public Directive add(String name, List<String> values, Directive.DirectiveErrorConsumer directiveErrorConsumer) {
+		checkDirectiveName(name);
+		Directive newDirective = this.createDirective(name, values, directiveErrorConsumer, null);
+		this.addNamedDirective(name, newDirective);
+		return newDirective;
+	}
+
+	private static void checkDirectiveName(String name) {
 		enforceAscii(name);
 
 		// the parser will never hit these errors by construction, but use of the manipulation APIs can
@@ -154,14 +264,17 @@ public class Policy {
 		if (name.isEmpty()) {
 			throw new IllegalArgumentException("directive names must not be empty");
 		}
+	}
 
+	// Builds the directive and, if it is the first of its name, records it in the typed fields. It is not added to `directives`.
+	private Directive createDirective(String name, List<String> values, Directive.DirectiveErrorConsumer directiveErrorConsumer, @Nullable DirectiveCache cache) {
 		boolean wasDupe = false;
 		Directive newDirective;
 		String lowcaseDirectiveName = name.toLowerCase(Locale.ENGLISH);
 		switch (lowcaseDirectiveName) {
 			case "base-uri": {
 				// https://w3c.github.io/webappsec-csp/#directive-base-uri
-				SourceExpressionDirective thisDirective = new SourceExpressionDirective(values, directiveErrorConsumer);
+				SourceExpressionDirective thisDirective = construct(cache, lowcaseDirectiveName, values, directiveErrorConsumer, SourceExpressionDirective::new);
 				if (this.baseUri == null) {
 					this.baseUri = thisDirective;
 				} else {
@@ -180,12 +293,12 @@ public class Policy {
 				} else {
 					wasDupe = true;
 				}
-				newDirective = new Directive(values);
+				newDirective = construct(cache, lowcaseDirectiveName, values, directiveErrorConsumer, PLAIN_DIRECTIVE);
 				break;
 			}
 			case "form-action": {
 				// https://w3c.github.io/webappsec-csp/#directive-form-action
-				SourceExpressionDirective thisDirective = new SourceExpressionDirective(values, directiveErrorConsumer);
+				SourceExpressionDirective thisDirective = construct(cache, lowcaseDirectiveName, values, directiveErrorConsumer, SourceExpressionDirective::new);
 				if (this.formAction == null) {
 					this.formAction = thisDirective;
 				} else {
@@ -197,7 +310,7 @@ public class Policy {
 			case "frame-ancestors": {
 				// https://w3c.github.io/webappsec-csp/#directive-frame-ancestors
 				// TODO contemplate warning for paths, which are always ignored: frame-ancestors only matches against origins: https://w3c.github.io/webappsec-csp/#frame-ancestors-navigation-response
-				FrameAncestorsDirective thisDirective = new FrameAncestorsDirective(values, directiveErrorConsumer);
+				FrameAncestorsDirective thisDirective = construct(cache, lowcaseDirectiveName, values, directiveErrorConsumer, FrameAncestorsDirective::new);
 				if (this.frameAncestors == null) {
 					this.frameAncestors = thisDirective;
 				} else {
@@ -210,7 +323,7 @@ public class Policy {
 				// https://w3c.github.io/webappsec-csp/#directive-navigate-to
 				// For some ungodly reason "navigate-to" is a list of source expressions while "frame-ancestors" is not
 				// There is no logic here
-				SourceExpressionDirective thisDirective = new SourceExpressionDirective(values, directiveErrorConsumer);
+				SourceExpressionDirective thisDirective = construct(cache, lowcaseDirectiveName, values, directiveErrorConsumer, SourceExpressionDirective::new);
 				if (this.navigateTo == null) {
 					this.navigateTo = thisDirective;
 				} else {
@@ -221,7 +334,7 @@ public class Policy {
 			}
 			case "plugin-types": {
 				// https://w3c.github.io/webappsec-csp/#directive-plugin-types
-				PluginTypesDirective thisDirective = new PluginTypesDirective(values, directiveErrorConsumer);
+				PluginTypesDirective thisDirective = construct(cache, lowcaseDirectiveName, values, directiveErrorConsumer, PluginTypesDirective::new);
 				if (this.pluginTypes == null) {
 					this.pluginTypes = thisDirective;
 				} else {
@@ -249,14 +362,14 @@ public class Policy {
 				} else {
 					wasDupe = true;
 				}
-				newDirective = new Directive(values);
+				newDirective = construct(cache, lowcaseDirectiveName, values, directiveErrorConsumer, PLAIN_DIRECTIVE);
 				break;
 			}
 			case "report-uri": {
 				// https://w3c.github.io/webappsec-csp/#directive-report-uri
 				directiveErrorConsumer.add(Severity.Warning,"The report-uri directive has been deprecated in favor of the new report-to directive", -1);
 
-				ReportUriDirective thisDirective = new ReportUriDirective(values, directiveErrorConsumer);
+				ReportUriDirective thisDirective = construct(cache, lowcaseDirectiveName, values, directiveErrorConsumer, ReportUriDirective::new);
 				if (this.reportUri == null) {
 					this.reportUri = thisDirective;
 				} else {
@@ -267,7 +380,7 @@ public class Policy {
 			}
 			case "sandbox": {
 				// https://w3c.github.io/webappsec-csp/#directive-sandbox
-				SandboxDirective thisDirective = new SandboxDirective(values, directiveErrorConsumer);
+				SandboxDirective thisDirective = construct(cache, lowcaseDirectiveName, values, directiveErrorConsumer, SandboxDirective::new);
 				if (this.sandbox == null) {
 					this.sandbox = thisDirective;
 				} else {
@@ -286,18 +399,18 @@ public class Policy {
 				} else {
 					wasDupe = true;
 				}
-				newDirective = new Directive(values);
+				newDirective = construct(cache, lowcaseDirectiveName, values, directiveErrorConsumer, PLAIN_DIRECTIVE);
 				break;
 			}
 			default: {
 				if (!Directive.IS_DIRECTIVE_NAME.test(name)) {
 					directiveErrorConsumer.add(Severity.Error, "Directive name " + name + " contains characters outside the range ALPHA / DIGIT / \"-\"", -1);
-					newDirective = new Directive(values);
+					newDirective = construct(cache, lowcaseDirectiveName, values, directiveErrorConsumer, PLAIN_DIRECTIVE);
 					break;
 				}
 				FetchDirectiveKind fetchDirectiveKind = FetchDirectiveKind.fromString(lowcaseDirectiveName);
 				if (fetchDirectiveKind != null) {
-					SourceExpressionDirective thisDirective = new SourceExpressionDirective(values, directiveErrorConsumer);
+					SourceExpressionDirective thisDirective = construct(cache, lowcaseDirectiveName, values, directiveErrorConsumer, SourceExpressionDirective::new);
 					if (this.fetchDirectives.containsKey(fetchDirectiveKind)) {
 						wasDupe = true;
 					} else {
@@ -307,12 +420,11 @@ public class Policy {
 					break;
 				}
 				directiveErrorConsumer.add(Severity.Warning, "Unrecognized directive " + lowcaseDirectiveName, -1);
-				newDirective = new Directive(values);
+				newDirective = construct(cache, lowcaseDirectiveName, values, directiveErrorConsumer, PLAIN_DIRECTIVE);
 				break;
 			}
 		}
 
-		this.directives.add(new NamedDirective(name, newDirective));
 		if (wasDupe) {
 			directiveErrorConsumer.add(Severity.Warning, "Duplicate directive " + lowcaseDirectiveName, -1);
 		}
@@ -336,6 +448,36 @@ public class Policy {
 			return false;
 		}
 		this.directives = copy;
+		this.invalidateSerialization();
+		this.forgetDirective(lowcaseName);
+		return true;
+	}
+
+	private static <T extends Directive> T construct(@Nullable DirectiveCache cache, String lowcaseName, List<String> values, Directive.DirectiveErrorConsumer directiveErrorConsumer, BiFunction<List<String>, Directive.DirectiveErrorConsumer, T> constructor) {
+		if (cache == null) {
+			return constructor.apply(values, directiveErrorConsumer);
+		}
+		String key = DirectiveCache.key(lowcaseName, values);
+		Directive cached = cache.get(key);
+		if (cached != null) {
+			// The key includes the name, which determines the directive's class
+			@SuppressWarnings("unchecked")
+			T directive = (T) cached;
+			return directive;
+		}
+		boolean[] sawError = { false };
+		T directive = constructor.apply(values, (severity, message, valueIndex) -> {
+			sawError[0] = true;
+			directiveErrorConsumer.add(severity, message, valueIndex);
+		});
+		if (!sawError[0]) {
+			cache.put(key, directive);
+		}
+		return directive;
+	}
+
+	// Clears the typed field for a directive name, once no directive of that name is left
+	private void forgetDirective(String lowcaseName) {
 		switch (lowcaseName) {
 			case "base-uri": {
 				this.baseUri = null;
@@ -385,25 +527,356 @@ public class Policy {
 				break;
 			}
 		}
-		return true;
 	}
 
+	// Applies all the changes `edits` makes to the editor at once, rebuilding the directive list a single time rather than once per change.
+	// The result is the same as making each change in turn with `add` and `remove`. Errors in the new directives are reported after all
+	// changes have been applied, with their index in the resulting policy. If `edits` throws, the policy is left unchanged.
+	public void edit(@Nonnull Consumer<Editor> edits, @Nonnull PolicyErrorConsumer policyErrorConsumer) {
+		this.apply(this.collectEdits(edits), policyErrorConsumer);
+	}
+
+	// Like `edit`, but leaves this policy alone and returns a new one. The new policy shares every directive the edits do not touch with
+	// this one, so deriving many variations of one policy costs memory in proportion to the changes, not to the size of the policy.
+	// Shared directives cannot be modified (through either policy); doing so throws IllegalStateException. Use `edit` or `derive` to
+	// replace them instead.
+	@Nonnull
+	public Policy derive(@Nonnull Consumer<Editor> edits, @Nonnull PolicyErrorConsumer policyErrorConsumer) {
+		Editor editor = this.collectEdits(edits);
+		for (Editor.PendingDirective pending : editor.directives) {
+			if (pending.existing != null && !pending.removed) {
+				pending.existing.directive.shared = true;
+			}
+		}
+
+		Policy derived = new Policy();
+		derived.baseUri = this.baseUri;
+		derived.blockAllMixedContent = this.blockAllMixedContent;
+		derived.formAction = this.formAction;
+		derived.frameAncestors = this.frameAncestors;
+		derived.navigateTo = this.navigateTo;
+		derived.pluginTypes = this.pluginTypes;
+		derived.reportTo = this.reportTo;
+		derived.reportUri = this.reportUri;
+		derived.sandbox = this.sandbox;
+		derived.upgradeInsecureRequests = this.upgradeInsecureRequests;
+		derived.fetchDirectives.putAll(this.fetchDirectives);
+		derived.apply(editor, policyErrorConsumer);
+		return derived;
+	}
+
+	private Editor collectEdits(Consumer<Editor> edits) {
+		Editor editor = new Editor(this.directives);
+		try {
+			edits.accept(editor);
+		} finally {
+			editor.closed = true;
+		}
+		return editor;
+	}
+
+	// The typed fields must agree with the directives the editor started from, except for those of the names it replaced
+	private void apply(Editor editor, PolicyErrorConsumer policyErrorConsumer) {
+		for (String lowcaseName : editor.replacedNames) {
+			this.forgetDirective(lowcaseName);
+		}
+		List<Runnable> errors = new ArrayList<>();
+		ArrayList<NamedDirective> rebuilt = new ArrayList<>(editor.directives.size());
+		for (Editor.PendingDirective pending : editor.directives) {
+			if (pending.removed) {
+				continue;
+			}
+			if (pending.existing != null) {
+				rebuilt.add(pending.existing);
+				continue;
+			}
+			int directiveIndex = rebuilt.size();
+			Directive directive = this.createDirective(pending.name, pending.values, (severity, message, valueIndex) -> {
+				errors.add(() -> policyErrorConsumer.add(severity, message, directiveIndex, valueIndex));
+			}, null);
+			directive.owner = this;
+			rebuilt.add(new NamedDirective(pending.name, directive));
+		}
+		this.directives = rebuilt;
+		this.invalidateSerialization();
+
+		for (Runnable error : errors) {
+			error.run();
+		}
+	}
+
+
+	private void addNamedDirective(String name, Directive directive) {
+		// Shared directives never change, and pointing them at one of the policies sharing them would keep that policy alive (e.g. from a DirectiveCache)
+		if (!directive.shared) {
+			directive.owner = this;
+		}
+		this.directives.add(new NamedDirective(name, directive));
+		this.invalidateSerialization();
+	}
+
+
+	// Serialization
+
+
+	void invalidateSerialization() {
+		this.serialized = null;
+	}
+
+	@Nonnull
+	private Serialized serialized() {
+		Serialized serialized = this.serialized;
+		if (serialized == null) {
+			int length = 0;
+			for (NamedDirective directive : this.directives) {
+				length += directive.name.length() + 2;
+				for (String value : directive.directive.values) {
+					length += value.length() + 1;
+				}
+			}
+			StringBuilder out = new StringBuilder(length);
+			boolean first = true;
+			for (NamedDirective directive : this.directives) {
+				if (!first) {
+					out.append("; "); // The whitespace is not strictly necessary but is probably valuable
+				}
+				first = false;
+				out.append(directive.name);
+				for (String value : directive.directive.values) {
+					out.append(' ');
+					out.append(value);
+				}
+			}
+			serialized = new Serialized(out.toString());
+			this.serialized = serialized;
+		}
+		return serialized;
+	}
 
 	@Override
 	public String toString() {
-		StringBuilder out = new StringBuilder();
-		boolean first = true;
+		return this.serialized().text;
+	}
+
+	// Policies are always ASCII, so this is also their length in bytes
+	public int serializedLength() {
+		return this.serialized().ascii.length;
+	}
+
+	// A fresh copy, which the caller is free to modify
+	@Nonnull
+	public byte[] toAsciiBytes() {
+		return this.serialized().ascii.clone();
+	}
+
+	public void writeTo(@Nonnull Appendable out) throws IOException {
+		out.append(this.serialized().text);
+	}
+
+	// Returns the number of bytes written. Throws IndexOutOfBoundsException, having written nothing, if they do not fit.
+	public int writeTo(@Nonnull byte[] out, int offset) {
+		byte[] ascii = this.serialized().ascii;
+		System.arraycopy(ascii, 0, out, offset, ascii.length);
+		return ascii.length;
+	}
+
+	// Throws BufferOverflowException, having written nothing, if there is not enough space remaining in `out`
+	public void writeTo(@Nonnull ByteBuffer out) {
+		out.put(this.serialized().ascii);
+	}
+
+	// The serialized policy in both forms, computed together so that neither needs to be re-encoded from the other on each use.
+	// The fields are final so that a Serialized can be shared between threads without synchronization.
+	private static final class Serialized {
+		@Nonnull
+		final String text;
+		@Nonnull
+		final byte[] ascii;
+
+		Serialized(@Nonnull String text) {
+			this.text = text;
+			this.ascii = text.getBytes(StandardCharsets.US_ASCII);
+		}
+	}
+
+	// Canonicalization
+
+
+	// Returns a new policy with the same meaning as this one, written in a normal form: each directive appears once (the first
+	// occurrence, which is the only one with any effect) under its lowercase name, directives are sorted by name, keywords are
+	// lowercase, values are deduplicated and sorted, and default ports are elided where that does not change what a host-source matches.
+	// Values and directives which this library does not understand are kept as they are, since a browser may understand them.
+	// Two policies with the same canonical form are enforced identically, so its fingerprint is suitable as a cache key.
+	@Nonnull
+	public Policy canonicalize() {
+		return parseSerializedCSP(this.toCanonicalString(), PolicyErrorConsumer.ignored);
+	}
+
+	// A 128-bit digest of the canonical form. This depends only on the canonical form, not on the JVM or process.
+	@Nonnull
+	public PolicyFingerprint fingerprint() {
+		return PolicyFingerprint.of(this.toCanonicalString());
+	}
+
+	// Calls `consumer` with the lowercase name of each directive which takes effect (the first of each name), in order.
+	// Directives with invalid names are skipped, since they can never take effect.
+	void forEachEffectiveDirective(BiConsumer<String, Directive> consumer) {
+		List<String> seenNames = new ArrayList<>();
 		for (NamedDirective directive : this.directives) {
-			if (!first) {
-				out.append("; "); // The whitespace is not strictly necessary but is probably valuable
+			if (seenNames.contains(directive.lowcaseName)) {
+				continue;
+			}
+			seenNames.add(directive.lowcaseName);
+			if (Directive.IS_DIRECTIVE_NAME.test(directive.name)) {
+				consumer.accept(directive.lowcaseName, directive.directive);
+			}
+		}
+	}
+
+	@Nonnull
+	String toCanonicalString() {
+		List<String> canonicalDirectives = new ArrayList<>();
+		this.forEachEffectiveDirective((name, directive) -> canonicalDirectives.add(this.canonicalizeDirective(name, directive)));
+		Collections.sort(canonicalDirectives);
+		return String.join("; ", canonicalDirectives);
+	}
+
+	@Nonnull
+	private String canonicalizeDirective(String name, Directive directive) {
+		switch (name) {
+			case "base-uri":
+				return canonicalizeSourceList(name, this.baseUri);
+			case "block-all-mixed-content":
+			case "upgrade-insecure-requests":
+				// these ignore their values
+				return name;
+			case "form-action":
+				return canonicalizeSourceList(name, this.formAction);
+			case "frame-ancestors":
+				return canonicalizeSourceList(name, this.frameAncestors);
+			case "navigate-to":
+				return canonicalizeSourceList(name, this.navigateTo);
+			case "plugin-types": {
+				TreeSet<String> values = new TreeSet<>();
+				for (String value : directive.getValues()) {
+					Optional<MediaType> type = MediaType.parseMediaType(value);
+					values.add(type.isPresent() ? type.get().toString() : value);
+				}
+				return join(name, values);
+			}
+			case "report-uri": {
+				// Duplicate report-uris are not redundant: each one is sent a report
+				List<String> values = new ArrayList<>(this.reportUri.getUris());
+				Collections.sort(values);
+				return join(name, values);
+			}
+			case "sandbox": {
+				// Sandbox keywords are ASCII-case-insensitive
+				TreeSet<String> values = new TreeSet<>();
+				for (String value : directive.getValues()) {
+					values.add(value.toLowerCase(Locale.ENGLISH));
+				}
+				return join(name, values);
+			}
+			default: {
+				FetchDirectiveKind fetchDirectiveKind = FetchDirectiveKind.fromString(name);
+				if (fetchDirectiveKind != null) {
+					return canonicalizeSourceList(name, this.fetchDirectives.get(fetchDirectiveKind));
+				}
+				return join(name, directive.getValues());
+			}
+		}
+	}
+
+	private static String canonicalizeSourceList(String name, HostSourceDirective directive) {
+		TreeSet<String> values = new TreeSet<>(directive.getUnrecognizedValues());
+		if (directive.star()) {
+			values.add("*");
+		}
+		if (directive.self()) {
+			values.add("'self'");
+		}
+		for (Scheme scheme : directive.getSchemes()) {
+			values.add(scheme.toString());
+		}
+		for (Host host : directive.getHosts()) {
+			values.add(hostSourceToString(host));
+		}
+		if (directive instanceof SourceExpressionDirective) {
+			SourceExpressionDirective sourceExpressionDirective = (SourceExpressionDirective) directive;
+			if (sourceExpressionDirective.unsafeInline()) {
+				values.add("'unsafe-inline'");
+			}
+			if (sourceExpressionDirective.unsafeEval()) {
+				values.add("'unsafe-eval'");
+			}
+			if (sourceExpressionDirective.strictDynamic()) {
+				values.add("'strict-dynamic'");
+			}
+			if (sourceExpressionDirective.unsafeHashes()) {
+				values.add("'unsafe-hashes'");
+			}
+			if (sourceExpressionDirective.reportSample()) {
+				values.add("'report-sample'");
 			}
-			first = false;
-			out.append(directive.name);
-			for (String value : directive.directive.getValues()) {
-				out.append(' ');
-				out.append(value);
+			if (sourceExpressionDirective.unsafeAllowRedirects()) {
+				values.add("'unsafe-allow-redirects'");
+			}
+			// Nonces and hashes keep their case and base64 alphabet, which are significant
+			for (Nonce nonce : sourceExpressionDirective.getNonces()) {
+				values.add(nonce.toString());
+			}
+			for (Hash hash : sourceExpressionDirective.getHashes()) {
+				values.add(hash.toString());
+			}
+		}
+		if (values.isEmpty()) {
+			// An empty list and 'none' both match nothing
+			return name + " 'none'";
+		}
+		return join(name, values);
+	}
+
+	// Host.toString elides any port which is the default for the host-source's scheme. But `http://a.com` also matches
+	// `https://a.com` on port 443 while `http://a.com:80` does not, so here the port is only elided when every scheme the
+	// host-source admits has that port as its default.
+	@Nonnull
+	static String hostSourceToString(@Nonnull Host host) {
+		StringBuilder out = new StringBuilder();
+		if (host.scheme != null) {
+			out.append(host.scheme).append("://");
+		}
+		out.append(host.host);
+		if (host.port == Constants.WILDCARD_PORT) {
+			out.append(":*");
+		} else if (host.port != Constants.EMPTY_PORT && !isRedundantPort(host)) {
+			out.append(':').append(host.port);
+		}
+		if (host.path != null) {
+			out.append(host.path);
+		}
+		return out.toString();
+	}
+
+	private static boolean isRedundantPort(Host host) {
+		if (host.scheme == null) {
+			// the schemes this admits depend on the origin
+			return false;
+		}
+		for (String scheme : new String[] { host.scheme, "http", "https", "ws", "wss" }) {
+			if (schemePartMatches(host.scheme, scheme) && URI.defaultPortForProtocol(scheme) != host.port) {
+				return false;
 			}
 		}
+		return true;
+	}
+
+	private static String join(String name, Iterable<String> values) {
+		StringBuilder out = new StringBuilder(name);
+		for (String value : values) {
+			out.append(' ');
+			out.append(value);
+		}
 		return out.toString();
 	}
 
@@ -429,7 +902,7 @@ public class Policy {
 				return;
 			}
 			this.blockAllMixedContent = true;
-			this.directives.add(new NamedDirective("block-all-mixed-content", new Directive(Collections.emptyList())));
+			this.addNamedDirective("block-all-mixed-content", new Directive(Collections.emptyList()));
 		}
 	}
 
@@ -461,17 +934,20 @@ public class Policy {
 
 		// We can't switch on `this.reportTo` being non-null because it can also be null if the directive exists but was malformed
 		boolean found = false;
-		for (NamedDirective directive : this.directives) {
-			if (directive.lowcaseName.equals("report-to")) {
-				directive.directive.values = new ArrayList<>();
-				// using addValue gives us its sanity checks
-				directive.directive.addValue(token.value);
+		for (int i = 0; i < this.directives.size(); ++i) {
+			NamedDirective existing = this.directives.get(i);
+			if (existing.lowcaseName.equals("report-to")) {
+				// Replaced rather than changed in place, since it may be shared with other policies (see `derive`)
+				Directive directive = new Directive(Collections.singletonList(token.value));
+				directive.owner = this;
+				this.directives.set(i, new NamedDirective(existing.name, directive));
+				this.invalidateSerialization();
 				found = true;
 				break;
 			}
 		}
 		if (!found) {
-			this.directives.add(new NamedDirective("report-to", new Directive(Collections.singletonList(token.value))));
+			this.addNamedDirective("report-to", new Directive(Collections.singletonList(token.value)));
 		}
 		this.reportTo = token;
 	}
@@ -484,6 +960,11 @@ public class Policy {
 		return Optional.ofNullable(this.sandbox);
 	}
 
+	// The sandbox keywords as a mask of SandboxDirective.Keyword bits, or SandboxDirective.NOT_SANDBOXED
+	int sandboxFlags() {
+		return this.sandbox == null ? SandboxDirective.NOT_SANDBOXED : this.sandbox.flags();
+	}
+
 	public boolean upgradeInsecureRequests() {
 		return this.upgradeInsecureRequests;
 	}
@@ -499,7 +980,7 @@ public class Policy {
 				return;
 			}
 			this.upgradeInsecureRequests = true;
-			this.directives.add(new NamedDirective("upgrade-insecure-requests", new Directive(Collections.emptyList())));
+			this.addNamedDirective("upgrade-insecure-requests", new Directive(Collections.emptyList()));
 		}
 	}
 
@@ -520,17 +1001,27 @@ public class Policy {
 	https://w3c.github.io/webappsec-csp/#script-post-request
 	 */
 	public boolean allowsExternalScript(Optional<String> nonce, Optional<String> integrity, Optional<URLWithScheme> scriptUrl, Optional<Boolean> parserInserted, Optional<URLWithScheme> origin) {
-		if (this.sandbox != null && !this.sandbox.allowScripts()) {
+		return this.allowsExternalScript(nonce, integrity, toMutableURL(scriptUrl), parserInserted, Origin.of(origin));
+	}
+
+	boolean allowsExternalScript(Optional<String> nonce, Optional<String> integrity, @Nullable MutableURL scriptUrl, Optional<Boolean> parserInserted, @Nullable Origin origin) {
+		SalvationMetrics metrics = Policy.metrics;
+		long start = startTiming(metrics);
+		return reportQuery(metrics, FetchDirectiveKind.ScriptSrcElem, start, this.externalScriptAllowed(nonce, integrity, scriptUrl, parserInserted, origin));
+	}
+
+	private boolean externalScriptAllowed(Optional<String> nonce, Optional<String> integrity, @Nullable MutableURL scriptUrl, Optional<Boolean> parserInserted, @Nullable Origin origin) {
+		if ((this.sandboxFlags() & SANDBOX_ALLOW_SCRIPTS) == 0) {
 			return false;
 		}
 		// Effective directive is "script-src-elem" per https://w3c.github.io/webappsec-csp/#effective-directive-for-a-request
-		SourceExpressionDirective directive = getGoverningDirectiveForEffectiveDirective(FetchDirectiveKind.ScriptSrcElem).orElse(null);
+		SourceExpressionDirective directive = governingDirective(FetchDirectiveKind.ScriptSrcElem);
 		if (directive == null) {
 			return true;
 		}
 		if (nonce.isPresent()) {
 			String actualNonce = nonce.get();
-			if (actualNonce.length() > 0 && directive.getNonces().stream().anyMatch(n -> n.base64ValuePart.equals(actualNonce))) {
+			if (actualNonce.length() > 0 && this.matchesNonce(directive, actualNonce)) {
 				return true;
 			}
 		}
@@ -544,10 +1035,15 @@ public class Policy {
 				if (!parsedIntegritySource.isPresent()) {
 					continue;
 				}
-				if (!directive.getHashes().contains(parsedIntegritySource.get())) {
+				int hashIndex = directive.getHashes().indexOf(parsedIntegritySource.get());
+				if (hashIndex == -1) {
 					bypassDueToIntegrityMatch = false;
 					break;
 				}
+				SourceHitCounter counter = this.hitCounter;
+				if (counter != null) {
+					counter.recordHash(directive, hashIndex);
+				}
 				atLeastOneValidIntegrity = true;
 			}
 			if (atLeastOneValidIntegrity && bypassDueToIntegrityMatch) {
@@ -557,34 +1053,36 @@ public class Policy {
 		if (directive.strictDynamic()) {
 			return !parserInserted.orElse(true); // if not the parameter is not supplied, we have to assume the worst case
 		}
-		if (scriptUrl.isPresent()) {
-			return doesUrlMatchSourceListInOrigin(scriptUrl.get(), directive, origin);
+		if (scriptUrl != null) {
+			return this.matches(scriptUrl, directive, origin);
 		}
 		return false;
 	}
 
 	// https://w3c.github.io/webappsec-csp/#script-src-elem-inline
 	public boolean allowsInlineScript(Optional<String> nonce, Optional<String> source, Optional<Boolean> parserInserted) {
-		if (this.sandbox != null && !this.sandbox.allowScripts()) {
-			return false;
-		}
-		return doesElementMatchSourceListForTypeAndSource(InlineType.Script, nonce, source, parserInserted);
+		SalvationMetrics metrics = Policy.metrics;
+		long start = startTiming(metrics);
+		boolean allowed = (this.sandboxFlags() & SANDBOX_ALLOW_SCRIPTS) != 0 && doesElementMatchSourceListForTypeAndSource(InlineType.Script, nonce, source, parserInserted);
+		return reportQuery(metrics, FetchDirectiveKind.ScriptSrcElem, start, allowed);
 	}
 
 	// https://w3c.github.io/webappsec-csp/#script-src-attr-inline
 	public boolean allowsScriptAsAttribute(Optional<String> source) {
-		if (this.sandbox != null && !this.sandbox.allowScripts()) {
-			return false;
-		}
-		return doesElementMatchSourceListForTypeAndSource(InlineType.ScriptAttribute, Optional.empty(), source, Optional.empty());
+		SalvationMetrics metrics = Policy.metrics;
+		long start = startTiming(metrics);
+		boolean allowed = (this.sandboxFlags() & SANDBOX_ALLOW_SCRIPTS) != 0 && doesElementMatchSourceListForTypeAndSource(InlineType.ScriptAttribute, Optional.empty(), source, Optional.empty());
+		return reportQuery(metrics, FetchDirectiveKind.ScriptSrcAttr, start, allowed);
 	}
 
 	// https://w3c.github.io/webappsec-csp/#can-compile-strings
 	public boolean allowsEval() {
+		SalvationMetrics metrics = Policy.metrics;
+		long start = startTiming(metrics);
 		// This is done in prose, not in a table
 		FetchDirectiveKind governingDirective = this.fetchDirectives.containsKey(FetchDirectiveKind.ScriptSrc) ? FetchDirectiveKind.ScriptSrc : FetchDirectiveKind.DefaultSrc;
 		SourceExpressionDirective sourceList = this.fetchDirectives.get(governingDirective);
-		return sourceList == null || sourceList.unsafeEval();
+		return reportQuery(metrics, FetchDirectiveKind.ScriptSrc, start, sourceList == null || sourceList.unsafeEval());
 	}
 
 	// https://w3c.github.io/webappsec-csp/#navigate-to-pre-navigate
@@ -594,34 +1092,38 @@ public class Policy {
 	// Note: it is nonsensical to provide redirectedTo if redirected is Optional.of(false)
 	// Note: this also does not handle `javascript:` navigation; there's an explicit API for that
 	public boolean allowsNavigation(Optional<URLWithScheme> to, Optional<Boolean> redirected, Optional<URLWithScheme> redirectedTo, Optional<URLWithScheme> origin) {
+		return this.allowsNavigation(toMutableURL(to), redirected, toMutableURL(redirectedTo), Origin.of(origin));
+	}
+
+	boolean allowsNavigation(@Nullable MutableURL to, Optional<Boolean> redirected, @Nullable MutableURL redirectedTo, @Nullable Origin origin) {
 		if (this.navigateTo == null) {
 			return true;
 		}
 		if (this.navigateTo.unsafeAllowRedirects()) {
 			// if unsafe-allow-redirects is present, check `to` in non-redirect or maybe-non-redirect cases
 			if (!redirected.orElse(false)) {
-				if (!to.isPresent()) {
+				if (to == null) {
 					return false;
 				}
-				if (!doesUrlMatchSourceListInOrigin(to.get(), navigateTo, origin)) {
+				if (!this.matches(to, navigateTo, origin)) {
 					return false;
 				}
 			}
 			// if unsafe-allow-redirects is present, check `redirectedTo` in redirect or maybe-redirect cases
 			if (redirected.orElse(true)) {
-				if (!redirectedTo.isPresent()) {
+				if (redirectedTo == null) {
 					return false;
 				}
-				if (!doesUrlMatchSourceListInOrigin(redirectedTo.get(), navigateTo, origin)) {
+				if (!this.matches(redirectedTo, navigateTo, origin)) {
 					return false;
 				}
 			}
 		} else {
 			// if unsafe-allow-redirects is absent, always and only check `to`
-			if (!to.isPresent()) {
+			if (to == null) {
 				return false;
 			}
-			if (!doesUrlMatchSourceListInOrigin(to.get(), navigateTo, origin)) {
+			if (!this.matches(to, navigateTo, origin)) {
 				return false;
 			}
 		}
@@ -632,14 +1134,18 @@ public class Policy {
 	// https://w3c.github.io/webappsec-csp/#navigate-to-navigation-response
 	// Note: it is nonsensical to provide redirectedTo if redirected is Optional.of(false)
 	public boolean allowsFormAction(Optional<URLWithScheme> to, Optional<Boolean> redirected, Optional<URLWithScheme> redirectedTo, Optional<URLWithScheme> origin) {
-		if (this.sandbox != null && !this.sandbox.allowForms()) {
+		return this.allowsFormAction(toMutableURL(to), redirected, toMutableURL(redirectedTo), Origin.of(origin));
+	}
+
+	boolean allowsFormAction(@Nullable MutableURL to, Optional<Boolean> redirected, @Nullable MutableURL redirectedTo, @Nullable Origin origin) {
+		if ((this.sandboxFlags() & SANDBOX_ALLOW_FORMS) == 0) {
 			return false;
 		}
 		if (this.formAction != null) {
-			if (!to.isPresent()) {
+			if (to == null) {
 				return false;
 			}
-			if (!doesUrlMatchSourceListInOrigin(to.get(), this.formAction, origin)) {
+			if (!this.matches(to, this.formAction, origin)) {
 				return false;
 			}
 			return true;
@@ -651,160 +1157,186 @@ public class Policy {
 
 	// NB: the hashes (for unsafe-hashes) are supposed to include the javascript: part, per spec
 	public boolean allowsJavascriptUrlNavigation(Optional<String> source, Optional<URLWithScheme> origin) {
-		return this.allowsNavigation(Optional.of(new GUID("javascript", source.orElse(""))), Optional.of(false), Optional.empty(), origin)
+		return this.allowsNavigation(new MutableURL().set(new GUID("javascript", source.orElse(""))), Optional.of(false), null, Origin.of(origin))
 				&& this.doesElementMatchSourceListForTypeAndSource(InlineType.Navigation, Optional.empty(), source.map(s -> "javascript:" + s), Optional.of(false));
 	}
 
 	public boolean allowsExternalStyle(Optional<String> nonce, Optional<URLWithScheme> styleUrl, Optional<URLWithScheme> origin) {
+		return this.allowsExternalStyle(nonce, toMutableURL(styleUrl), Origin.of(origin));
+	}
+
+	boolean allowsExternalStyle(Optional<String> nonce, @Nullable MutableURL styleUrl, @Nullable Origin origin) {
+		SalvationMetrics metrics = Policy.metrics;
+		long start = startTiming(metrics);
+		return reportQuery(metrics, FetchDirectiveKind.StyleSrcElem, start, this.externalStyleAllowed(nonce, styleUrl, origin));
+	}
+
+	private boolean externalStyleAllowed(Optional<String> nonce, @Nullable MutableURL styleUrl, @Nullable Origin origin) {
 		// Effective directive is "script-src-elem" per https://w3c.github.io/webappsec-csp/#effective-directive-for-a-request
-		SourceExpressionDirective directive = getGoverningDirectiveForEffectiveDirective(FetchDirectiveKind.StyleSrcElem).orElse(null);
+		SourceExpressionDirective directive = governingDirective(FetchDirectiveKind.StyleSrcElem);
 		if (directive == null) {
 			return true;
 		}
 		if (nonce.isPresent()) {
 			String actualNonce = nonce.get();
-			if (actualNonce.length() > 0 && directive.getNonces().stream().anyMatch(n -> n.base64ValuePart.equals(actualNonce))) {
+			if (actualNonce.length() > 0 && this.matchesNonce(directive, actualNonce)) {
 				return true;
 			}
 		}
 		// integrity is not used: https://github.com/w3c/webappsec-csp/issues/430
-		if (styleUrl.isPresent()) {
-			return doesUrlMatchSourceListInOrigin(styleUrl.get(), directive, origin);
+		if (styleUrl != null) {
+			return this.matches(styleUrl, directive, origin);
 		}
 		return false;
 	}
 
 	public boolean allowsInlineStyle(Optional<String> nonce, Optional<String> source) {
-		return doesElementMatchSourceListForTypeAndSource(InlineType.Style, nonce, source, Optional.empty());
+		SalvationMetrics metrics = Policy.metrics;
+		long start = startTiming(metrics);
+		return reportQuery(metrics, FetchDirectiveKind.StyleSrcElem, start, doesElementMatchSourceListForTypeAndSource(InlineType.Style, nonce, source, Optional.empty()));
 	}
 
 	public boolean allowsStyleAsAttribute(Optional<String> source) {
-		return doesElementMatchSourceListForTypeAndSource(InlineType.StyleAttribute, Optional.empty(), source, Optional.empty());
+		SalvationMetrics metrics = Policy.metrics;
+		long start = startTiming(metrics);
+		return reportQuery(metrics, FetchDirectiveKind.StyleSrcAttr, start, doesElementMatchSourceListForTypeAndSource(InlineType.StyleAttribute, Optional.empty(), source, Optional.empty()));
 	}
 
 	public boolean allowsFrame(Optional<URLWithScheme> source, Optional<URLWithScheme> origin) {
-		SourceExpressionDirective sourceList = getGoverningDirectiveForEffectiveDirective(FetchDirectiveKind.FrameSrc).orElse(null);
-		if (sourceList == null) {
-			return true;
-		}
-		if (!source.isPresent()) {
-			return false;
-		}
-		return doesUrlMatchSourceListInOrigin(source.get(), sourceList, origin);
+		return this.allowsFrame(toMutableURL(source), Origin.of(origin));
+	}
+
+	boolean allowsFrame(@Nullable MutableURL source, @Nullable Origin origin) {
+		return this.allowsFetch(FetchDirectiveKind.FrameSrc, source, origin);
 	}
 
 	public boolean allowsFrameAncestor(Optional<URLWithScheme> source, Optional<URLWithScheme> origin) {
+		return this.allowsFrameAncestor(toMutableURL(source), Origin.of(origin));
+	}
+
+	boolean allowsFrameAncestor(@Nullable MutableURL source, @Nullable Origin origin) {
 		if (this.frameAncestors == null) {
 			return true;
 		}
-		if (!source.isPresent()) {
+		if (source == null) {
 			return false;
 		}
-		return doesUrlMatchSourceListInOrigin(source.get(), frameAncestors, origin);
+		return this.matches(source, frameAncestors, origin);
 	}
 
 
 	// This assumes that a `ws:` or `wss:` URL is being used with `new WebSocket` specifically
 	public boolean allowsConnection(Optional<URLWithScheme> source, Optional<URLWithScheme> origin) {
-		SourceExpressionDirective sourceList = getGoverningDirectiveForEffectiveDirective(FetchDirectiveKind.ConnectSrc).orElse(null);
+		return this.allowsConnection(toMutableURL(source), Origin.of(origin));
+	}
+
+	boolean allowsConnection(@Nullable MutableURL source, @Nullable Origin origin) {
+		SalvationMetrics metrics = Policy.metrics;
+		long start = startTiming(metrics);
+		return reportQuery(metrics, FetchDirectiveKind.ConnectSrc, start, this.connectionAllowed(source, origin));
+	}
+
+	private boolean connectionAllowed(@Nullable MutableURL source, @Nullable Origin origin) {
+		SourceExpressionDirective sourceList = governingDirective(FetchDirectiveKind.ConnectSrc);
 		if (sourceList == null) {
 			return true;
 		}
-		if (!source.isPresent()) {
+		if (source == null) {
 			return false;
 		}
+		return this.matches(connectionScheme(source), source.host(), source.port(), source.path(), sourceList, origin);
+	}
+
+	private static String connectionScheme(MutableURL source) {
 		// See https://fetch.spec.whatwg.org/#concept-websocket-establish
 		// Also browsers don't implement this; see https://github.com/w3c/webappsec-csp/issues/429
-		URLWithScheme actualSource = source.get();
-		String scheme = actualSource.scheme;
-		URLWithScheme usedSource = actualSource;
-		if (actualSource instanceof URI) {
+		String scheme = source.scheme();
+		if (source.host() != null) {
 			if (scheme.equals("ws")) {
-				usedSource = new URI("http", actualSource.host, actualSource.port, actualSource.path);
+				return "http";
 			} else if (scheme.equals("wss")) {
-				usedSource = new URI("https", actualSource.host, actualSource.port, actualSource.path);
+				return "https";
 			}
 		}
-
-		return doesUrlMatchSourceListInOrigin(usedSource, sourceList, origin);
+		return scheme;
 	}
 
 	public boolean allowsFont(Optional<URLWithScheme> source, Optional<URLWithScheme> origin) {
-		SourceExpressionDirective sourceList = getGoverningDirectiveForEffectiveDirective(FetchDirectiveKind.FontSrc).orElse(null);
-		if (sourceList == null) {
-			return true;
-		}
-		if (!source.isPresent()) {
-			return false;
-		}
-		return doesUrlMatchSourceListInOrigin(source.get(), sourceList, origin);
+		return this.allowsFont(toMutableURL(source), Origin.of(origin));
+	}
+
+	boolean allowsFont(@Nullable MutableURL source, @Nullable Origin origin) {
+		return this.allowsFetch(FetchDirectiveKind.FontSrc, source, origin);
 	}
 
 	public boolean allowsImage(Optional<URLWithScheme> source, Optional<URLWithScheme> origin) {
-		SourceExpressionDirective sourceList = getGoverningDirectiveForEffectiveDirective(FetchDirectiveKind.ImgSrc).orElse(null);
-		if (sourceList == null) {
-			return true;
-		}
-		if (!source.isPresent()) {
-			return false;
-		}
-		return doesUrlMatchSourceListInOrigin(source.get(), sourceList, origin);
+		return this.allowsImage(toMutableURL(source), Origin.of(origin));
+	}
+
+	boolean allowsImage(@Nullable MutableURL source, @Nullable Origin origin) {
+		return this.allowsFetch(FetchDirectiveKind.ImgSrc, source, origin);
 	}
 
 	public boolean allowsApplicationManifest(Optional<URLWithScheme> source, Optional<URLWithScheme> origin) {
-		SourceExpressionDirective sourceList = getGoverningDirectiveForEffectiveDirective(FetchDirectiveKind.ManifestSrc).orElse(null);
-		if (sourceList == null) {
-			return true;
-		}
-		if (!source.isPresent()) {
-			return false;
-		}
-		return doesUrlMatchSourceListInOrigin(source.get(), sourceList, origin);
+		return this.allowsApplicationManifest(toMutableURL(source), Origin.of(origin));
+	}
+
+	boolean allowsApplicationManifest(@Nullable MutableURL source, @Nullable Origin origin) {
+		return this.allowsFetch(FetchDirectiveKind.ManifestSrc, source, origin);
 	}
 
 	public boolean allowsMedia(Optional<URLWithScheme> source, Optional<URLWithScheme> origin) {
-		SourceExpressionDirective sourceList = getGoverningDirectiveForEffectiveDirective(FetchDirectiveKind.MediaSrc).orElse(null);
-		if (sourceList == null) {
-			return true;
-		}
-		if (!source.isPresent()) {
-			return false;
-		}
-		return doesUrlMatchSourceListInOrigin(source.get(), sourceList, origin);
+		return this.allowsMedia(toMutableURL(source), Origin.of(origin));
+	}
+
+	boolean allowsMedia(@Nullable MutableURL source, @Nullable Origin origin) {
+		return this.allowsFetch(FetchDirectiveKind.MediaSrc, source, origin);
 	}
 
 	public boolean allowsObject(Optional<URLWithScheme> source, Optional<URLWithScheme> origin) {
-		SourceExpressionDirective sourceList = getGoverningDirectiveForEffectiveDirective(FetchDirectiveKind.ObjectSrc).orElse(null);
-		if (sourceList == null) {
-			return true;
-		}
-		if (!source.isPresent()) {
-			return false;
-		}
-		return doesUrlMatchSourceListInOrigin(source.get(), sourceList, origin);
+		return this.allowsObject(toMutableURL(source), Origin.of(origin));
+	}
+
+	boolean allowsObject(@Nullable MutableURL source, @Nullable Origin origin) {
+		return this.allowsFetch(FetchDirectiveKind.ObjectSrc, source, origin);
 	}
 
 	// Not actually spec'd properly; see https://github.com/whatwg/fetch/issues/1008
 	public boolean allowsPrefetch(Optional<URLWithScheme> source, Optional<URLWithScheme> origin) {
-		SourceExpressionDirective sourceList = getGoverningDirectiveForEffectiveDirective(FetchDirectiveKind.PrefetchSrc).orElse(null);
-		if (sourceList == null) {
-			return true;
-		}
-		if (!source.isPresent()) {
-			return false;
-		}
-		return doesUrlMatchSourceListInOrigin(source.get(), sourceList, origin);
+		return this.allowsPrefetch(toMutableURL(source), Origin.of(origin));
+	}
+
+	boolean allowsPrefetch(@Nullable MutableURL source, @Nullable Origin origin) {
+		return this.allowsFetch(FetchDirectiveKind.PrefetchSrc, source, origin);
 	}
 
 	public boolean allowsWorker(Optional<URLWithScheme> source, Optional<URLWithScheme> origin) {
-		SourceExpressionDirective sourceList = getGoverningDirectiveForEffectiveDirective(FetchDirectiveKind.WorkerSrc).orElse(null);
-		if (sourceList == null) {
-			return true;
-		}
-		if (!source.isPresent()) {
-			return false;
+		return this.allowsWorker(toMutableURL(source), Origin.of(origin));
+	}
+
+	boolean allowsWorker(@Nullable MutableURL source, @Nullable Origin origin) {
+		return this.allowsFetch(FetchDirectiveKind.WorkerSrc, source, origin);
+	}
+
+	// The check for fetches whose effective directive is `kind` and which have no special cases
+	private boolean allowsFetch(FetchDirectiveKind kind, @Nullable MutableURL source, @Nullable Origin origin) {
+		SalvationMetrics metrics = Policy.metrics;
+		long start = startTiming(metrics);
+		SourceExpressionDirective sourceList = governingDirective(kind);
+		boolean allowed = sourceList == null || source != null && this.matches(source, sourceList, origin);
+		return reportQuery(metrics, kind, start, allowed);
+	}
+
+	static long startTiming(@Nullable SalvationMetrics metrics) {
+		return metrics == null ? 0 : System.nanoTime();
+	}
+
+	// Returns `allowed`, having first reported it if metrics are on
+	private boolean reportQuery(@Nullable SalvationMetrics metrics, FetchDirectiveKind kind, long start, boolean allowed) {
+		if (metrics != null) {
+			metrics.queryAnswered(this, kind, allowed, System.nanoTime() - start);
 		}
-		return doesUrlMatchSourceListInOrigin(source.get(), sourceList, origin);
+		return allowed;
 	}
 
 	public boolean allowsPlugin(Optional<MediaType> mediaType) {
@@ -818,15 +1350,44 @@ public class Policy {
 	}
 
 
+	// Which directive decides whether `url` may be fetched as `effectiveDirective`, and which of its source expressions, if any, allows it.
+	// This considers only the URL: for image, font, frame, and other fetches with no special cases, `allowed` agrees with the allows* method,
+	// but for scripts and styles it does not account for nonces, integrity, 'strict-dynamic', or sandboxing.
+	// Throws IllegalArgumentException for default-src and child-src, which are never the effective directive.
+	@Nonnull
+	public SourceMatch matchUrl(FetchDirectiveKind effectiveDirective, Optional<URLWithScheme> url, Optional<URLWithScheme> origin) {
+		return SourceMatch.decode(this.matchUrl(effectiveDirective, toMutableURL(url), Origin.of(origin)));
+	}
+
+	// As above, encoded as described in SourceMatch
+	int matchUrl(FetchDirectiveKind effectiveDirective, @Nullable MutableURL url, @Nullable Origin origin) {
+		for (FetchDirectiveKind candidate : FetchDirectiveKind.getFetchDirectiveFallbackList(effectiveDirective)) {
+			SourceExpressionDirective list = this.fetchDirectives.get(candidate);
+			if (list != null) {
+				if (url == null) {
+					return SourceMatch.withGoverningDirective(SourceMatch.NO_MATCH, candidate);
+				}
+				String scheme = effectiveDirective == FetchDirectiveKind.ConnectSrc ? connectionScheme(url) : url.scheme();
+				return SourceMatch.withGoverningDirective(matchUrlInSourceList(scheme, url.host(), url.port(), url.path(), list, origin), candidate);
+			}
+		}
+		return SourceMatch.NO_DIRECTIVE;
+	}
+
 	// https://w3c.github.io/webappsec-csp/#should-directive-execute
 	public Optional<SourceExpressionDirective> getGoverningDirectiveForEffectiveDirective(FetchDirectiveKind kind) {
+		return Optional.ofNullable(this.governingDirective(kind));
+	}
+
+	@Nullable
+	SourceExpressionDirective governingDirective(FetchDirectiveKind kind) {
 		for (FetchDirectiveKind candidate : FetchDirectiveKind.getFetchDirectiveFallbackList(kind)) {
 			SourceExpressionDirective list = this.fetchDirectives.get(candidate);
 			if (list != null) {
-				return Optional.of(list);
+				return list;
 			}
 		}
-		return Optional.empty();
+		return null;
 	}
 
 	// https://w3c.github.io/webappsec-csp/#directive-inline-check
@@ -850,7 +1411,7 @@ public class Policy {
 	// Note: this assumes the element is nonceable. See https://w3c.github.io/webappsec-csp/#is-element-nonceable
 	// https://w3c.github.io/webappsec-csp/#match-element-to-source-list
 	private boolean doesElementMatchSourceListForTypeAndSource(InlineType type, Optional<String> nonce, Optional<String> source, Optional<Boolean> parserInserted) {
-		SourceExpressionDirective directive = getGoverningDirectiveForEffectiveDirective(type.effectiveDirective).orElse(null);
+		SourceExpressionDirective directive = governingDirective(type.effectiveDirective);
 		if (directive == null) {
 			return true;
 		}
@@ -863,7 +1424,7 @@ public class Policy {
 		}
 		if (nonce.isPresent()) {
 			String actualNonce = nonce.get();
-			if (actualNonce.length() > 0 && directive.getNonces().stream().anyMatch(n -> n.base64ValuePart.equals(actualNonce))) {
+			if (actualNonce.length() > 0 && this.matchesNonce(directive, actualNonce)) {
 				return true;
 			}
 		}
@@ -874,35 +1435,39 @@ public class Policy {
 			String actualSha384 = null;
 			String actualSha512 = null;
 			try {
-				for (Hash hash : directive.getHashes()) {
+				List<Hash> hashes = directive.getHashes();
+				for (int i = 0; i < hashes.size(); ++i) {
+					Hash hash = hashes.get(i);
+					String actual;
 					switch (hash.algorithm) {
 						case SHA256:
 							if (actualSha256 == null) {
 								actualSha256 = base64encoder.encodeToString(MessageDigest.getInstance("SHA-256").digest(actualSource));
 							}
-							if (actualSha256.equals(normalizeBase64Url(hash.base64ValuePart))) {
-								return true;
-							}
+							actual = actualSha256;
 							break;
 						case SHA384:
 							if (actualSha384 == null) {
 								actualSha384 = base64encoder.encodeToString(MessageDigest.getInstance("SHA-384").digest(actualSource));
 							}
-							if (actualSha384.equals(normalizeBase64Url(hash.base64ValuePart))) {
-								return true;
-							}
+							actual = actualSha384;
 							break;
 						case SHA512:
 							if (actualSha512 == null) {
 								actualSha512 = base64encoder.encodeToString(MessageDigest.getInstance("SHA-512").digest(actualSource));
 							}
-							if (actualSha512.equals(normalizeBase64Url(hash.base64ValuePart))) {
-								return true;
-							}
+							actual = actualSha512;
 							break;
 						default:
 							throw new IllegalArgumentException("Unknown hash algorithm " + hash.algorithm);
 					}
+					if (actual.equals(normalizeBase64Url(hash.base64ValuePart))) {
+						SourceHitCounter counter = this.hitCounter;
+						if (counter != null) {
+							counter.recordHash(directive, i);
+						}
+						return true;
+					}
 				}
 			} catch (NoSuchAlgorithmException e) {
 				throw new RuntimeException(e);
@@ -919,68 +1484,116 @@ public class Policy {
 		return input.replace('-', '+').replace('_', '/');
 	}
 
+	// Like doesUrlMatchSourceListInOrigin, but counts the match if this policy is counting source hits, and otherwise uses any adaptive host order
+	private boolean matches(MutableURL url, HostSourceDirective list, @Nullable Origin origin) {
+		return this.matches(url.scheme(), url.host(), url.port(), url.path(), list, origin);
+	}
+
+	private boolean matches(String urlScheme, @Nullable CharSequence urlHost, int urlPort, CharSequence urlPath, HostSourceDirective list, @Nullable Origin origin) {
+		SourceHitCounter counter = this.hitCounter;
+		int match = matchUrlInSourceList(urlScheme, urlHost, urlPort, urlPath, list, origin, counter == null ? ((Directive) list).adaptiveOrder : null);
+		if (match == SourceMatch.NO_MATCH) {
+			return false;
+		}
+		if (counter != null) {
+			counter.recordUrlMatch(list, match);
+		}
+		return true;
+	}
+
+	private boolean matchesNonce(SourceExpressionDirective directive, String actualNonce) {
+		List<Nonce> nonces = directive.getNonces();
+		for (int i = 0; i < nonces.size(); ++i) {
+			if (nonces.get(i).base64ValuePart.equals(actualNonce)) {
+				SourceHitCounter counter = this.hitCounter;
+				if (counter != null) {
+					counter.recordNonce(directive, i);
+				}
+				return true;
+			}
+		}
+		return false;
+	}
+
 	// https://w3c.github.io/webappsec-csp/#match-url-to-source-list
 	public static boolean doesUrlMatchSourceListInOrigin(URLWithScheme url, HostSourceDirective list, Optional<URLWithScheme> origin) {
-		String urlScheme = url.scheme;
+		return doesUrlMatchSourceListInOrigin(url.scheme, url.host, url.port == null ? Constants.NO_PORT : url.port, url.path, list, Origin.of(origin));
+	}
+
+	static boolean doesUrlMatchSourceListInOrigin(MutableURL url, HostSourceDirective list, @Nullable Origin origin) {
+		return doesUrlMatchSourceListInOrigin(url.scheme(), url.host(), url.port(), url.path(), list, origin);
+	}
+
+	static boolean doesUrlMatchSourceListInOrigin(String urlScheme, @Nullable CharSequence urlHost, int urlPort, CharSequence urlPath, HostSourceDirective list, @Nullable Origin origin) {
+		return matchUrlInSourceList(urlScheme, urlHost, urlPort, urlPath, list, origin) != SourceMatch.NO_MATCH;
+	}
+
+	// This is the hot path for querying, so it takes the URL in pieces and does not allocate.
+	// Returns SourceMatch.NO_MATCH, or the first source expression which matched, encoded as by SourceMatch.sourceMatch.
+	static int matchUrlInSourceList(String urlScheme, @Nullable CharSequence urlHost, int urlPort, CharSequence urlPath, HostSourceDirective list, @Nullable Origin origin) {
+		return matchUrlInSourceList(urlScheme, urlHost, urlPort, urlPath, list, origin, null);
+	}
+
+	// With a non-null `hostOrder`, host-sources are tried in that order, so when several match, the one reported may not be the first as written
+	static int matchUrlInSourceList(String urlScheme, @Nullable CharSequence urlHost, int urlPort, CharSequence urlPath, HostSourceDirective list, @Nullable Origin origin, @Nullable AdaptiveSourceOrder hostOrder) {
 		if (list.star()) {
-			// https://fetch.spec.whatwg.org/#network-scheme
-			// Note that "ws" and "wss" are _not_ network schemes
-			if (Objects.equals(urlScheme, "ftp") || Objects.equals(urlScheme, "http") || Objects.equals(urlScheme, "https")) {
-				return true;
-			}
-			if (origin.isPresent() && Objects.equals(urlScheme, origin.get().scheme)) {
-				return true;
+			if (origin == null) {
+				// https://fetch.spec.whatwg.org/#network-scheme
+				// Note that "ws" and "wss" are _not_ network schemes
+				if (urlScheme.equals("ftp") || urlScheme.equals("http") || urlScheme.equals("https")) {
+					return SourceMatch.sourceMatch(SourceMatch.Source.Star, 0);
+				}
+			} else if (origin.starAdmitsScheme(urlScheme)) {
+				return SourceMatch.sourceMatch(SourceMatch.Source.Star, 0);
 			}
 		}
-		for (Scheme scheme : list.getSchemes()) {
-			if (schemePartMatches(scheme.value, urlScheme)) {
-				return true;
+		List<Scheme> schemes = list.getSchemes();
+		for (int i = 0; i < schemes.size(); ++i) {
+			if (schemePartMatches(schemes.get(i).value, urlScheme)) {
+				return SourceMatch.sourceMatch(SourceMatch.Source.Scheme, i);
 			}
 		}
-		for (Host expression : list.getHosts()) {
-			String scheme = expression.scheme;
-			if (scheme != null) {
-				if (!schemePartMatches(scheme, urlScheme)) {
+		if (urlHost != null) {
+			List<Host> hosts = list.getHosts();
+			int[] order = hostOrder == null ? null : hostOrder.order();
+			for (int n = 0; n < hosts.size(); ++n) {
+				int i = order == null ? n : order[n];
+				Host expression = hosts.get(i);
+				String scheme = expression.scheme;
+				if (scheme != null) {
+					if (!schemePartMatches(scheme, urlScheme)) {
+						continue;
+					}
+				} else {
+					if (origin == null || !origin.hostSourceAdmitsScheme(urlScheme)) {
+						continue;
+					}
+				}
+				if (!hostPartMatches(expression.host, urlHost)) {
 					continue;
 				}
-			} else {
-				if (!origin.isPresent() || !schemePartMatches(origin.get().scheme, urlScheme)) {
+				if (!portPartMatches(expression.port, urlPort, urlScheme)) {
 					continue;
 				}
+				if (!pathPartMatches(expression.path, urlPath)) {
+					continue;
+				}
+				if (hostOrder != null) {
+					hostOrder.hit(i);
+				}
+				return SourceMatch.sourceMatch(SourceMatch.Source.Host, i);
 			}
-			if (url.host == null) {
-				continue;
-			}
-			if (!hostPartMatches(expression.host, url.host)) {
-				continue;
-			}
-			// url.port is non-null whenever url.host is
-			if (!portPartMatches(expression.port, url.port, urlScheme)) {
-				continue;
-			}
-			if (!pathPartMatches(expression.path, url.path)) {
-				continue;
-			}
-			return true;
 		}
 		if (list.self()) {
-			if (origin.isPresent()) {
-				URLWithScheme actualOrigin = origin.get();
-				String originScheme = actualOrigin.scheme;
-				if (
-						Objects.equals(actualOrigin.host, url.host)
-						&& (Objects.equals(actualOrigin.port, url.port) || Objects.equals(actualOrigin.port, URI.defaultPortForProtocol(originScheme)) && Objects.equals(url.port, URI.defaultPortForProtocol(urlScheme)))
-						&& (urlScheme.equals("https") || urlScheme.equals("wss") || originScheme.equals("http") && (urlScheme.equals("http") || urlScheme.equals("ws")))
-				) {
-					return true;
-				}
+			if (origin != null && origin.isSelf(urlScheme, urlHost, urlPort)) {
+				return SourceMatch.sourceMatch(SourceMatch.Source.Self, 0);
 			}
 		}
-		return false;
+		return SourceMatch.NO_MATCH;
 	}
 
 	// https://w3c.github.io/webappsec-csp/#scheme-part-match
-	private static boolean schemePartMatches(String A, String B) {
+	static boolean schemePartMatches(String A, String B) {
 		// Assumes inputs are already lowcased
 		return A.equals(B)
 				|| A.equals("http") && B.equals("https")
@@ -989,21 +1602,40 @@ public class Policy {
 	}
 
 	// https://w3c.github.io/webappsec-csp/#host-part-match
-	private static boolean hostPartMatches(String A, String B) {
+	static boolean hostPartMatches(String A, CharSequence B) {
 		if (A.startsWith("*")) {
-			String remaining = A.substring(1);
-			return B.toLowerCase(Locale.ENGLISH).endsWith(remaining.toLowerCase(Locale.ENGLISH));
+			// i.e. B ends with A without its leading `*`
+			int suffixLength = A.length() - 1;
+			return B.length() >= suffixLength && regionEqualsIgnoreAsciiCase(A, 1, B, B.length() - suffixLength, suffixLength);
 		}
 
-		if (!A.equalsIgnoreCase(B)) {
+		if (A.length() != B.length() || !regionEqualsIgnoreAsciiCase(A, 0, B, 0, A.length())) {
 			return false;
 		}
 
-		Matcher IPv4Matcher = Constants.IPv4address.matcher(A);
-		Matcher IPv6Matcher = Constants.IPv6addressWithOptionalBracket.matcher(A);
-		Matcher IPv6LoopbackMatcher = Constants.IPV6loopback.matcher(A);
-		if ((IPv4Matcher.find() && !A.equals("127.0.0.1")) || IPv6Matcher.find() || IPv6LoopbackMatcher.find()) {
-			return false;
+		// Host-sources can't contain `:` (or `[`), so only the IPv4 check can ever apply to them; checking first saves running the patterns for ordinary hosts
+		if (isIPv4Candidate(A)) {
+			Matcher IPv4Matcher = Constants.IPv4address.matcher(A);
+			if (IPv4Matcher.find() && !A.equals("127.0.0.1")) {
+				return false;
+			}
+		}
+		if (A.indexOf(':') != -1) {
+			Matcher IPv6Matcher = Constants.IPv6addressWithOptionalBracket.matcher(A);
+			Matcher IPv6LoopbackMatcher = Constants.IPV6loopback.matcher(A);
+			if (IPv6Matcher.find() || IPv6LoopbackMatcher.find()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean isIPv4Candidate(String host) {
+		for (int i = 0; i < host.length(); ++i) {
+			char c = host.charAt(i);
+			if (c != '.' && (c < '0' || c > '9')) {
+				return false;
+			}
 		}
 		return true;
 	}
@@ -1026,7 +1658,7 @@ public class Policy {
 	}
 
 	// https://w3c.github.io/webappsec-csp/#path-part-match
-	private static boolean pathPartMatches(String pathA, String pathB) {
+	static boolean pathPartMatches(String pathA, CharSequence pathB) {
 		if (pathA == null) pathA = "";
 		if (pathB == null) pathB = "";
 
@@ -1034,43 +1666,116 @@ public class Policy {
 			return true;
 		}
 
-		if (pathA.equals("/") && pathB.isEmpty()) {
+		if (pathA.equals("/") && pathB.length() == 0) {
 			return true;
 		}
 
 		boolean exactMatch = !pathA.endsWith("/");
 
-		List<String> pathListA = Utils.strictlySplit(pathA, '/');
-		List<String> pathListB = Utils.strictlySplit(pathB, '/');
+		// These are the sizes of the lists produced by strictly splitting each path on `/`
+		int pathListASize = count(pathA, '/') + 1;
+		int pathListBSize = count(pathB, '/') + 1;
 
-		if (pathListA.size() > pathListB.size()) {
+		if (pathListASize > pathListBSize) {
 			return false;
 		}
 
-		if (exactMatch && pathListA.size() != pathListB.size()) {
+		if (exactMatch && pathListASize != pathListBSize) {
 			return false;
 		}
 
 		if (!exactMatch) {
-			pathListA.remove(pathListA.size() - 1);
+			--pathListASize;
+		}
+
+		// Walk the segments of both paths in step, rather than materializing the lists
+		int startA = 0;
+		int startB = 0;
+		for (int i = 0; i < pathListASize; ++i) {
+			int endA = indexOf(pathA, '/', startA);
+			int endB = indexOf(pathB, '/', startB);
+			if (!pathSegmentsMatch(pathA, startA, endA, pathB, startB, endB)) {
+				return false;
+			}
+			startA = endA + 1;
+			startB = endB + 1;
+		}
+		return true;
+	}
+
+	private static boolean pathSegmentsMatch(String a, int startA, int endA, CharSequence b, int startB, int endB) {
+		if (!needsDecoding(a, startA, endA) && !needsDecoding(b, startB, endB)) {
+			// Decoding is the identity on these, so we can compare them directly
+			return endA - startA == endB - startB && regionEquals(a, startA, b, startB, endA - startA);
+		}
+		String decodedA = Utils.decodeString(a.substring(startA, endA));
+		String decodedB = Utils.decodeString(b.subSequence(startB, endB).toString());
+		return decodedA.equals(decodedB);
+	}
+
+	// Whether Utils.decodeString would change this region
+	private static boolean needsDecoding(CharSequence s, int start, int end) {
+		for (int i = start; i < end; ++i) {
+			char c = s.charAt(i);
+			if (c == '%' || c == '+') {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static int count(CharSequence s, char c) {
+		int count = 0;
+		for (int i = 0; i < s.length(); ++i) {
+			if (s.charAt(i) == c) {
+				++count;
+			}
+		}
+		return count;
+	}
+
+	// Like String.indexOf, but returning the length rather than -1 when the character is absent
+	private static int indexOf(CharSequence s, char c, int from) {
+		for (int i = from; i < s.length(); ++i) {
+			if (s.charAt(i) == c) {
+				return i;
+			}
 		}
+		return s.length();
+	}
 
-		Iterator<String> it1 = pathListA.iterator();
-		Iterator<String> it2 = pathListB.iterator();
+	private static boolean regionEquals(CharSequence a, int startA, CharSequence b, int startB, int length) {
+		for (int i = 0; i < length; ++i) {
+			if (a.charAt(startA + i) != b.charAt(startB + i)) {
+				return false;
+			}
+		}
+		return true;
+	}
 
-		while (it1.hasNext()) {
-			String a = Utils.decodeString(it1.next());
-			String b = Utils.decodeString(it2.next());
-			if (!a.equals(b)) {
+	private static boolean regionEqualsIgnoreAsciiCase(CharSequence a, int startA, CharSequence b, int startB, int length) {
+		for (int i = 0; i < length; ++i) {
+			char x = a.charAt(startA + i);
+			char y = b.charAt(startB + i);
+			if (x != y && toLowerAscii(x) != toLowerAscii(y)) {
 				return false;
 			}
 		}
 		return true;
 	}
 
+	private static char toLowerAscii(char c) {
+		return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+	}
+
 
 	// Utilities and helper classes
 
+	@Nullable
+	private static MutableURL toMutableURL(Optional<URLWithScheme> url) {
+		return url.isPresent() ? new MutableURL().set(url.get()) : null;
+	}
+
 	static void enforceAscii(String s) {
 		if (!StandardCharsets.US_ASCII.newEncoder().canEncode(s)) {
 			throw new IllegalArgumentException("string is not ascii: \"" + s + "\"");
@@ -1100,6 +1805,102 @@ public class Policy {
 	}
 
 
+	// Collects changes for `Policy.edit`. Each method takes constant time (amortized), except for the one-off cost of creating the editor.
+	// Names and values are checked as they are given, so that applying the changes cannot fail partway.
+	public static final class Editor {
+		private final List<PendingDirective> directives = new ArrayList<>();
+		private final Map<String, List<PendingDirective>> byName = new HashMap<>();
+		// Names none of whose existing directives will survive, and so whose typed fields must be recomputed
+		private final Set<String> replacedNames = new HashSet<>();
+		private boolean closed = false;
+
+		private Editor(List<NamedDirective> existing) {
+			for (NamedDirective directive : existing) {
+				this.append(new PendingDirective(directive, directive.name, null));
+			}
+		}
+
+		public void add(@Nonnull String name, @Nonnull List<String> values) {
+			this.checkOpen();
+			this.append(new PendingDirective(null, name, checkValues(name, values)));
+		}
+
+		// Note that this removes all directives matching this name, including ones added earlier in this edit.
+		// Returns true if at least one directive was removed.
+		public boolean remove(@Nonnull String name) {
+			this.checkOpen();
+			String lowcaseName = name.toLowerCase(Locale.ENGLISH);
+			List<PendingDirective> matching = this.byName.remove(lowcaseName);
+			if (matching == null) {
+				return false;
+			}
+			for (PendingDirective pending : matching) {
+				pending.removed = true;
+			}
+			this.replacedNames.add(lowcaseName);
+			return true;
+		}
+
+		// Gives the first directive matching this name the new values, keeping its position, and removes the others.
+		// If there is no such directive, this is the same as `add`.
+		public void replace(@Nonnull String name, @Nonnull List<String> values) {
+			this.checkOpen();
+			List<String> checked = checkValues(name, values);
+			String lowcaseName = name.toLowerCase(Locale.ENGLISH);
+			List<PendingDirective> matching = this.byName.get(lowcaseName);
+			if (matching == null) {
+				this.append(new PendingDirective(null, name, checked));
+				return;
+			}
+			PendingDirective first = matching.get(0);
+			for (int i = 1; i < matching.size(); ++i) {
+				matching.get(i).removed = true;
+			}
+			matching.subList(1, matching.size()).clear();
+			first.existing = null;
+			first.name = name;
+			first.values = checked;
+			this.replacedNames.add(lowcaseName);
+		}
+
+		private void append(PendingDirective pending) {
+			this.directives.add(pending);
+			this.byName.computeIfAbsent(pending.name.toLowerCase(Locale.ENGLISH), k -> new ArrayList<>(1)).add(pending);
+		}
+
+		private void checkOpen() {
+			if (this.closed) {
+				throw new IllegalStateException("editors cannot be used once their edit has been applied");
+			}
+		}
+
+		private static List<String> checkValues(String name, List<String> values) {
+			checkDirectiveName(name);
+			List<String> copy = new ArrayList<>(values);
+			for (String value : copy) {
+				Directive.checkValue(value);
+			}
+			return copy;
+		}
+
+		private static final class PendingDirective {
+			// Non-null for a directive already in the policy which is being kept as it is
+			@Nullable
+			NamedDirective existing;
+			@Nonnull
+			String name;
+			@Nullable
+			List<String> values;
+			boolean removed = false;
+
+			PendingDirective(@Nullable NamedDirective existing, @Nonnull String name, @Nullable List<String> values) {
+				this.existing = existing;
+				this.name = name;
+				this.values = values;
+			}
+		}
+	}
+
 	private static class NamedDirective {
 		final String name;
 		final Directive directive;
@@ -0,0 +1,629 @@
+package com.shapesecurity.salvation2;
+
+import com.shapesecurity.salvation2.Directives.SandboxDirective;
+import com.shapesecurity.salvation2.Directives.SourceExpressionDirective;
+import com.shapesecurity.salvation2.URLs.URI;
+import com.shapesecurity.salvation2.URLs.URLWithScheme;
+import com.shapesecurity.salvation2.Values.Hash;
+import com.shapesecurity.salvation2.Values.Host;
+import com.shapesecurity.salvation2.Values.Nonce;
+import com.shapesecurity.salvation2.Values.Scheme;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+// Compares what two versions of a policy allow in one origin, symbolically rather than by trying URLs.
+// For each effective fetch directive, each source expression of the governing source list stands for a class of URLs: a scheme, a host
+// (exact, `*.` wildcard, any host, or anything at all including URLs without hosts), a port (exact or any), and a path (exact, prefix, or
+// any), exactly as schemePartMatches, hostPartMatches, portPartMatches, and pathPartMatches match them. In each of those parts, a pattern
+// is contained in a union of patterns only if it is contained in one of them, and so the same holds for whole classes. A class of the new
+// policy therefore allows something new unless a single class of the old policy contains it, and what it newly allows is exactly that
+// class less the classes of the old policy which overlap it. Classes are indexed by host, so a comparison takes time roughly linear in the
+// size of the policies plus the size of the result.
+// Keywords, nonces, and hashes are compared for the directives they matter to, along with what inline content and eval each policy allows.
+public final class PolicyDiff {
+	// The effective directives which govern URLs. script-src-elem is for parser-inserted scripts without a matching nonce or integrity;
+	// connect-src is as matched, where ws: and wss: URLs with hosts count as http: and https:.
+	private static final FetchDirectiveKind[] URL_KINDS = {
+		FetchDirectiveKind.ConnectSrc,
+		FetchDirectiveKind.FontSrc,
+		FetchDirectiveKind.FrameSrc,
+		FetchDirectiveKind.ImgSrc,
+		FetchDirectiveKind.ManifestSrc,
+		FetchDirectiveKind.MediaSrc,
+		FetchDirectiveKind.ObjectSrc,
+		FetchDirectiveKind.PrefetchSrc,
+		FetchDirectiveKind.ScriptSrcElem,
+		FetchDirectiveKind.StyleSrcElem,
+		FetchDirectiveKind.WorkerSrc
+	};
+
+	// The effective directives for which keywords, nonces, and hashes mean anything; script-src is the one for eval
+	private static final FetchDirectiveKind[] KEYWORD_KINDS = {
+		FetchDirectiveKind.ScriptSrc,
+		FetchDirectiveKind.ScriptSrcAttr,
+		FetchDirectiveKind.ScriptSrcElem,
+		FetchDirectiveKind.StyleSrcAttr,
+		FetchDirectiveKind.StyleSrcElem
+	};
+
+	public enum Change {
+		NewlyAllowed,
+		NewlyBlocked
+	}
+
+	public enum InlineKind {
+		Script(FetchDirectiveKind.ScriptSrcElem),
+		ScriptAttribute(FetchDirectiveKind.ScriptSrcAttr),
+		Style(FetchDirectiveKind.StyleSrcElem),
+		StyleAttribute(FetchDirectiveKind.StyleSrcAttr),
+		Eval(FetchDirectiveKind.ScriptSrc);
+
+		@Nonnull
+		public final FetchDirectiveKind effectiveDirective;
+
+		InlineKind(@Nonnull FetchDirectiveKind effectiveDirective) {
+			this.effectiveDirective = effectiveDirective;
+		}
+	}
+
+	public enum InlineBehavior {
+		Blocked,
+		// Only content with a listed nonce or hash
+		Restricted,
+		Unrestricted
+	}
+
+	@Nonnull
+	public final List<UrlChange> urls;
+	@Nonnull
+	public final List<SourceChange> sources;
+	@Nonnull
+	public final List<InlineChange> inline;
+
+	private PolicyDiff(@Nonnull List<UrlChange> urls, @Nonnull List<SourceChange> sources, @Nonnull List<InlineChange> inline) {
+		this.urls = Collections.unmodifiableList(urls);
+		this.sources = Collections.unmodifiableList(sources);
+		this.inline = Collections.unmodifiableList(inline);
+	}
+
+	// `origin` is the origin of the documents the policies apply to, which 'self', `*`, and host-sources without schemes depend on
+	@Nonnull
+	public static PolicyDiff compare(@Nonnull Policy before, @Nonnull Policy after, @Nonnull URLWithScheme origin) {
+		Origin parsedOrigin = new Origin(origin);
+		List<UrlChange> urls = new ArrayList<>();
+		for (FetchDirectiveKind kind : URL_KINDS) {
+			SourceExpressionDirective was = before.governingDirective(kind);
+			SourceExpressionDirective is = after.governingDirective(kind);
+			if (was == is && blocksScripts(before) == blocksScripts(after)) {
+				// e.g. shared by a derived policy
+				continue;
+			}
+			List<UrlClass> wasClasses = classes(kind, before, was, parsedOrigin);
+			List<UrlClass> isClasses = classes(kind, after, is, parsedOrigin);
+			ClassIndex wasIndex = new ClassIndex(wasClasses);
+			ClassIndex isIndex = new ClassIndex(isClasses);
+			difference(kind, Change.NewlyAllowed, isIndex, wasIndex, urls);
+			difference(kind, Change.NewlyBlocked, wasIndex, isIndex, urls);
+		}
+
+		List<SourceChange> sources = new ArrayList<>();
+		for (FetchDirectiveKind kind : KEYWORD_KINDS) {
+			Set<String> was = keywords(kind, before.governingDirective(kind));
+			Set<String> is = keywords(kind, after.governingDirective(kind));
+			for (String value : was) {
+				if (!is.contains(value)) {
+					sources.add(new SourceChange(kind, value, false));
+				}
+			}
+			for (String value : is) {
+				if (!was.contains(value)) {
+					sources.add(new SourceChange(kind, value, true));
+				}
+			}
+		}
+
+		List<InlineChange> inline = new ArrayList<>();
+		for (InlineKind kind : InlineKind.values()) {
+			InlineBehavior was = inlineBehavior(kind, before);
+			InlineBehavior is = inlineBehavior(kind, after);
+			if (was != is) {
+				inline.add(new InlineChange(kind, was, is));
+			}
+		}
+		return new PolicyDiff(urls, sources, inline);
+	}
+
+	public boolean isEmpty() {
+		return this.urls.isEmpty() && this.sources.isEmpty() && this.inline.isEmpty();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder out = new StringBuilder();
+		for (UrlChange change : this.urls) {
+			out.append(change).append('\n');
+		}
+		for (SourceChange change : this.sources) {
+			out.append(change).append('\n');
+		}
+		for (InlineChange change : this.inline) {
+			out.append(change).append('\n');
+		}
+		return out.toString();
+	}
+
+	// A set of URLs, as one source expression matches them
+	public static final class UrlClass {
+		// Null for any scheme, which only a missing directive allows
+		@Nullable
+		public final String scheme;
+		// An exact host, `*.` followed by a domain, `*` for any host, or null for any URL at all, with or without a host
+		@Nullable
+		public final String host;
+		// Constants.WILDCARD_PORT for any port
+		public final int port;
+		// Empty for any path; ending in `/` for that path and every path under it; otherwise exactly that path
+		@Nonnull
+		public final String path;
+
+		UrlClass(@Nullable String scheme, @Nullable String host, int port, @Nonnull String path) {
+			this.scheme = scheme;
+			this.host = host;
+			this.port = port;
+			this.path = path;
+		}
+
+		// Whether every URL `that` contains, this also contains
+		boolean contains(UrlClass that) {
+			return (this.scheme == null || this.scheme.equals(that.scheme))
+					&& hostContains(this.host, that.host)
+					&& (this.port == Constants.WILDCARD_PORT || this.port == that.port)
+					&& pathContains(this.path, that.path);
+		}
+
+		// The URLs both classes contain, or null if there are none. Patterns of each part either nest or are disjoint.
+		@Nullable
+		UrlClass intersect(UrlClass that) {
+			if (this.scheme != null && that.scheme != null && !this.scheme.equals(that.scheme)) {
+				return null;
+			}
+			String scheme = this.scheme == null ? that.scheme : this.scheme;
+			String host;
+			if (hostContains(this.host, that.host)) {
+				host = that.host;
+			} else if (hostContains(that.host, this.host)) {
+				host = this.host;
+			} else {
+				return null;
+			}
+			int port;
+			if (this.port == Constants.WILDCARD_PORT || this.port == that.port) {
+				port = that.port;
+			} else if (that.port == Constants.WILDCARD_PORT) {
+				port = this.port;
+			} else {
+				return null;
+			}
+			String path;
+			if (pathContains(this.path, that.path)) {
+				path = that.path;
+			} else if (pathContains(that.path, this.path)) {
+				path = this.path;
+			} else {
+				return null;
+			}
+			return new UrlClass(scheme, host, port, path);
+		}
+
+		private static boolean hostContains(@Nullable String a, @Nullable String b) {
+			if (a == null) {
+				return true;
+			}
+			if (b == null) {
+				return false;
+			}
+			if (a.equals("*")) {
+				return true;
+			}
+			if (a.startsWith("*.")) {
+				// also for wildcard `b`, since *.b.example.com ends with .example.com
+				return b.endsWith(a.substring(1));
+			}
+			return a.equals(b);
+		}
+
+		private static boolean pathContains(String a, String b) {
+			if (a.isEmpty()) {
+				return true;
+			}
+			if (b.isEmpty() || !a.endsWith("/") && b.endsWith("/")) {
+				return false;
+			}
+			// prefixes are matched segment by segment, so a longer prefix under `a` matches `a` just as a path would
+			return Policy.pathPartMatches(a, b);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) {
+				return true;
+			}
+			if (!(o instanceof UrlClass)) {
+				return false;
+			}
+			UrlClass that = (UrlClass) o;
+			return this.port == that.port && Objects.equals(this.scheme, that.scheme) && Objects.equals(this.host, that.host) && this.path.equals(that.path);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(this.scheme, this.host, this.port, this.path);
+		}
+
+		@Override
+		public String toString() {
+			if (this.scheme == null) {
+				return "any URL";
+			}
+			if (this.host == null) {
+				return this.scheme + ":";
+			}
+			String port = this.port == Constants.WILDCARD_PORT ? ":*" : this.port == URI.defaultPortForProtocol(this.scheme) ? "" : ":" + this.port;
+			return this.scheme + "://" + this.host + port + this.path;
+		}
+	}
+
+	public static final class UrlChange {
+		@Nonnull
+		public final FetchDirectiveKind effectiveDirective;
+		@Nonnull
+		public final Change change;
+		@Nonnull
+		public final UrlClass urls;
+		// Parts of `urls` which are not changed, since the other policy also allows (or also blocks) them
+		@Nonnull
+		public final List<UrlClass> except;
+
+		UrlChange(@Nonnull FetchDirectiveKind effectiveDirective, @Nonnull Change change, @Nonnull UrlClass urls, @Nonnull List<UrlClass> except) {
+			this.effectiveDirective = effectiveDirective;
+			this.change = change;
+			this.urls = urls;
+			this.except = Collections.unmodifiableList(except);
+		}
+
+		@Override
+		public String toString() {
+			return this.effectiveDirective.repr + (this.change == Change.NewlyAllowed ? " newly allows " : " newly blocks ") + this.urls + (this.except.isEmpty() ? "" : " except " + this.except);
+		}
+	}
+
+	public static final class SourceChange {
+		@Nonnull
+		public final FetchDirectiveKind effectiveDirective;
+		// A keyword, nonce, or hash, as serialized
+		@Nonnull
+		public final String value;
+		public final boolean added;
+
+		SourceChange(@Nonnull FetchDirectiveKind effectiveDirective, @Nonnull String value, boolean added) {
+			this.effectiveDirective = effectiveDirective;
+			this.value = value;
+			this.added = added;
+		}
+
+		@Override
+		public String toString() {
+			return this.effectiveDirective.repr + (this.added ? " adds " : " removes ") + this.value;
+		}
+	}
+
+	public static final class InlineChange {
+		@Nonnull
+		public final InlineKind kind;
+		@Nonnull
+		public final InlineBehavior before;
+		@Nonnull
+		public final InlineBehavior after;
+
+		InlineChange(@Nonnull InlineKind kind, @Nonnull InlineBehavior before, @Nonnull InlineBehavior after) {
+			this.kind = kind;
+			this.before = before;
+			this.after = after;
+		}
+
+		@Override
+		public String toString() {
+			return this.kind + ": " + this.before + " -> " + this.after;
+		}
+	}
+
+	// Reports the classes of `from` which `to` does not contain, skipping those another class of `from` contains (keeping the first of equals)
+	private static void difference(FetchDirectiveKind kind, Change change, ClassIndex from, ClassIndex to, List<UrlChange> out) {
+		List<UrlClass> classes = from.classes;
+		for (int i = 0; i < classes.size(); ++i) {
+			UrlClass urls = classes.get(i);
+			if (from.isRedundant(i) || to.anyContains(urls)) {
+				continue;
+			}
+			List<UrlClass> except = new ArrayList<>();
+			for (int j : to.overlapping(urls)) {
+				UrlClass overlap = urls.intersect(to.classes.get(j));
+				if (overlap != null && !except.contains(overlap)) {
+					except.add(overlap);
+				}
+			}
+			// overlaps contained in other overlaps say nothing more
+			List<UrlClass> minimal = new ArrayList<>(except.size());
+			for (int j = 0; j < except.size(); ++j) {
+				boolean contained = false;
+				for (int k = 0; k < except.size() && !contained; ++k) {
+					contained = k != j && except.get(k).contains(except.get(j));
+				}
+				if (!contained) {
+					minimal.add(except.get(j));
+				}
+			}
+			out.add(new UrlChange(kind, change, urls, minimal));
+		}
+	}
+
+	private static List<UrlClass> classes(FetchDirectiveKind kind, Policy policy, @Nullable SourceExpressionDirective list, Origin origin) {
+		List<UrlClass> classes = new ArrayList<>();
+		if (list == null) {
+			if (kind != FetchDirectiveKind.ScriptSrcElem || !blocksScripts(policy)) {
+				classes.add(new UrlClass(null, null, Constants.WILDCARD_PORT, ""));
+			}
+			return classes;
+		}
+		if (kind == FetchDirectiveKind.ScriptSrcElem && (list.strictDynamic() || blocksScripts(policy))) {
+			// parser-inserted scripts are allowed by nonce or integrity or not at all
+			return classes;
+		}
+		if (list.star()) {
+			for (String scheme : new String[] { "ftp", "http", "https" }) {
+				classes.add(new UrlClass(scheme, null, Constants.WILDCARD_PORT, ""));
+			}
+			if (origin.starExtraScheme != null) {
+				classes.add(new UrlClass(origin.starExtraScheme, null, Constants.WILDCARD_PORT, ""));
+			}
+		}
+		for (Scheme scheme : list.getSchemes()) {
+			for (String matched : schemesMatchedBy(scheme.value)) {
+				classes.add(new UrlClass(matched, null, Constants.WILDCARD_PORT, ""));
+			}
+		}
+		for (Host host : list.getHosts()) {
+			if (!host.host.startsWith("*") && !Policy.hostPartMatches(host.host, host.host)) {
+				// IP addresses other than 127.0.0.1 never match
+				continue;
+			}
+			String path = host.path == null || host.path.equals("/") ? "" : host.path;
+			for (String scheme : host.scheme == null ? origin.hostSourceSchemes : schemesMatchedBy(host.scheme)) {
+				if (kind == FetchDirectiveKind.ConnectSrc && (scheme.equals("ws") || scheme.equals("wss"))) {
+					continue;
+				}
+				int port = host.port == Constants.EMPTY_PORT ? URI.defaultPortForProtocol(scheme) : host.port;
+				classes.add(new UrlClass(scheme, host.host, port, path));
+			}
+		}
+		if (list.self() && origin.host != null) {
+			List<String> schemes = new ArrayList<>();
+			Collections.addAll(schemes, "https", "wss");
+			if (origin.selfAdmitsInsecure) {
+				Collections.addAll(schemes, "http", "ws");
+			}
+			for (String scheme : schemes) {
+				if (kind == FetchDirectiveKind.ConnectSrc && (scheme.equals("ws") || scheme.equals("wss"))) {
+					continue;
+				}
+				classes.add(new UrlClass(scheme, origin.host, origin.port, ""));
+				int defaultPort = URI.defaultPortForProtocol(scheme);
+				if (origin.hasDefaultPort && defaultPort != origin.port) {
+					classes.add(new UrlClass(scheme, origin.host, defaultPort, ""));
+				}
+			}
+		}
+		return classes;
+	}
+
+	// The URL schemes a source expression with `scheme` matches; this must agree with Policy.schemePartMatches
+	private static String[] schemesMatchedBy(String scheme) {
+		switch (scheme) {
+			case "http":
+				return new String[] { "http", "https" };
+			case "ws":
+				return new String[] { "ws", "wss", "http", "https" };
+			case "wss":
+				return new String[] { "wss", "https" };
+			default:
+				return new String[] { scheme };
+		}
+	}
+
+	private static boolean blocksScripts(Policy policy) {
+		return (policy.sandboxFlags() & SandboxDirective.Keyword.AllowScripts.bit) == 0;
+	}
+
+	private static Set<String> keywords(FetchDirectiveKind kind, @Nullable SourceExpressionDirective list) {
+		Set<String> keywords = new LinkedHashSet<>();
+		if (list == null) {
+			return keywords;
+		}
+		if (kind == FetchDirectiveKind.ScriptSrc) {
+			if (list.unsafeEval()) {
+				keywords.add("'unsafe-eval'");
+			}
+			return keywords;
+		}
+		boolean attribute = kind == FetchDirectiveKind.ScriptSrcAttr || kind == FetchDirectiveKind.StyleSrcAttr;
+		if (list.unsafeInline()) {
+			keywords.add("'unsafe-inline'");
+		}
+		if (list.strictDynamic() && (kind == FetchDirectiveKind.ScriptSrcElem || kind == FetchDirectiveKind.ScriptSrcAttr)) {
+			keywords.add("'strict-dynamic'");
+		}
+		if (list.unsafeHashes() && attribute) {
+			keywords.add("'unsafe-hashes'");
+		}
+		if (list.reportSample()) {
+			keywords.add("'report-sample'");
+		}
+		if (!attribute) {
+			for (Nonce nonce : list.getNonces()) {
+				keywords.add(nonce.toString());
+			}
+		}
+		for (Hash hash : list.getHashes()) {
+			keywords.add(hash.toString());
+		}
+		return keywords;
+	}
+
+	// This must agree with Policy.doesElementMatchSourceListForTypeAndSource and Policy.allowsEval
+	private static InlineBehavior inlineBehavior(InlineKind kind, Policy policy) {
+		boolean script = kind == InlineKind.Script || kind == InlineKind.ScriptAttribute;
+		if (script && blocksScripts(policy)) {
+			return InlineBehavior.Blocked;
+		}
+		SourceExpressionDirective list = policy.governingDirective(kind.effectiveDirective);
+		if (list == null) {
+			return InlineBehavior.Unrestricted;
+		}
+		if (kind == InlineKind.Eval) {
+			return list.unsafeEval() ? InlineBehavior.Unrestricted : InlineBehavior.Blocked;
+		}
+		if (list.getNonces().isEmpty() && list.getHashes().isEmpty() && !(script && list.strictDynamic()) && list.unsafeInline()) {
+			return InlineBehavior.Unrestricted;
+		}
+		boolean attribute = kind == InlineKind.ScriptAttribute || kind == InlineKind.StyleAttribute;
+		if (attribute ? !list.getHashes().isEmpty() && list.unsafeHashes() : !list.getNonces().isEmpty() || !list.getHashes().isEmpty()) {
+			return InlineBehavior.Restricted;
+		}
+		return InlineBehavior.Blocked;
+	}
+
+	// The classes of one source list, by host, so that finding those which contain or overlap a class looks only at related hosts
+	private static final class ClassIndex {
+		final List<UrlClass> classes;
+		final Map<String, List<Integer>> exactHosts = new HashMap<>();
+		// By the domain after `*.`
+		final Map<String, List<Integer>> wildcardHosts = new HashMap<>();
+		// Exact and wildcard hosts by their labels in reverse (so com.example.www for www.example.com and for *.www.example.com)
+		final TreeMap<String, List<Integer>> reversedHosts = new TreeMap<>();
+		// Host `*`
+		final List<Integer> anyHost = new ArrayList<>();
+		// No host pattern at all
+		final List<Integer> anything = new ArrayList<>();
+
+		ClassIndex(List<UrlClass> classes) {
+			this.classes = classes;
+			for (int i = 0; i < classes.size(); ++i) {
+				String host = classes.get(i).host;
+				if (host == null) {
+					this.anything.add(i);
+				} else if (host.equals("*")) {
+					this.anyHost.add(i);
+				} else if (host.startsWith("*.")) {
+					this.wildcardHosts.computeIfAbsent(host.substring(2), h -> new ArrayList<>()).add(i);
+					this.reversedHosts.computeIfAbsent(reverse(host.substring(2)), h -> new ArrayList<>()).add(i);
+				} else {
+					this.exactHosts.computeIfAbsent(host, h -> new ArrayList<>()).add(i);
+					this.reversedHosts.computeIfAbsent(reverse(host), h -> new ArrayList<>()).add(i);
+				}
+			}
+		}
+
+		boolean anyContains(UrlClass urls) {
+			for (int i : this.containing(urls)) {
+				if (this.classes.get(i).contains(urls)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		// Whether another class of this list makes class `i` redundant
+		boolean isRedundant(int i) {
+			UrlClass urls = this.classes.get(i);
+			for (int j : this.containing(urls)) {
+				UrlClass other = this.classes.get(j);
+				if (j != i && other.contains(urls) && (j < i || !urls.contains(other))) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		// Candidates for classes which overlap `urls`, in order
+		Set<Integer> overlapping(UrlClass urls) {
+			Set<Integer> candidates = this.containing(urls);
+			if (urls.host == null || urls.host.equals("*")) {
+				for (int i = 0; i < this.classes.size(); ++i) {
+					candidates.add(i);
+				}
+			} else if (urls.host.startsWith("*.")) {
+				String prefix = reverse(urls.host.substring(2)) + ".";
+				for (List<Integer> indices : this.reversedHosts.subMap(prefix, prefix.substring(0, prefix.length() - 1) + "/").values()) {
+					candidates.addAll(indices);
+				}
+			}
+			return candidates;
+		}
+
+		// Candidates for classes which contain `urls`, in order
+		Set<Integer> containing(UrlClass urls) {
+			Set<Integer> candidates = new TreeSet<>(this.anything);
+			String host = urls.host;
+			if (host == null) {
+				return candidates;
+			}
+			candidates.addAll(this.anyHost);
+			if (host.equals("*")) {
+				return candidates;
+			}
+			String domain;
+			if (host.startsWith("*.")) {
+				domain = host.substring(2);
+			} else {
+				addAll(candidates, this.exactHosts.get(host));
+				int dot = host.indexOf('.');
+				domain = dot == -1 ? null : host.substring(dot + 1);
+			}
+			while (domain != null) {
+				addAll(candidates, this.wildcardHosts.get(domain));
+				int dot = domain.indexOf('.');
+				domain = dot == -1 ? null : domain.substring(dot + 1);
+			}
+			return candidates;
+		}
+
+		private static void addAll(Set<Integer> candidates, @Nullable List<Integer> indices) {
+			if (indices != null) {
+				candidates.addAll(indices);
+			}
+		}
+
+		private static String reverse(String host) {
+			String[] labels = host.split("\\.", -1);
+			StringBuilder out = new StringBuilder(host.length());
+			for (int i = labels.length - 1; i >= 0; --i) {
+				out.append(labels[i]);
+				if (i > 0) {
+					out.append('.');
+				}
+			}
+			return out.toString();
+		}
+	}
+}
@@ -0,0 +1,90 @@
+package com.shapesecurity.salvation2;
+
+import javax.annotation.Nonnull;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+// The first 128 bits of the SHA-256 of a canonical serialization, so it is the same on every JVM and in every process.
+// A cryptographic hash is used (rather than something faster) because policies may come from parties who would like to collide with each other.
+public final class PolicyFingerprint {
+	public final long high;
+	public final long low;
+
+	public PolicyFingerprint(long high, long low) {
+		this.high = high;
+		this.low = low;
+	}
+
+	@Nonnull
+	static PolicyFingerprint of(@Nonnull String canonical) {
+		byte[] digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256").digest(canonical.getBytes(StandardCharsets.US_ASCII));
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+		return new PolicyFingerprint(toLong(digest, 0), toLong(digest, 8));
+	}
+
+	// 32 lowercase hex digits
+	@Nonnull
+	public static PolicyFingerprint fromString(@Nonnull String hex) {
+		if (hex.length() != 32) {
+			throw new IllegalArgumentException("fingerprints are 32 hex digits");
+		}
+		try {
+			return new PolicyFingerprint(Long.parseUnsignedLong(hex.substring(0, 16), 16), Long.parseUnsignedLong(hex.substring(16), 16));
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("fingerprints are 32 hex digits", e);
+		}
+	}
+
+	@Nonnull
+	public byte[] toByteArray() {
+		byte[] bytes = new byte[16];
+		for (int i = 0; i < 8; ++i) {
+			bytes[i] = (byte) (this.high >>> (56 - 8 * i));
+			bytes[8 + i] = (byte) (this.low >>> (56 - 8 * i));
+		}
+		return bytes;
+	}
+
+	private static long toLong(byte[] bytes, int offset) {
+		long value = 0;
+		for (int i = offset; i < offset + 8; ++i) {
+			value = (value << 8) | (bytes[i] & 0xff);
+		}
+		return value;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) return true;
+		if (o == null || getClass() != o.getClass()) return false;
+		PolicyFingerprint that = (PolicyFingerprint) o;
+		return this.high == that.high && this.low == that.low;
+	}
+
+	@Override
+	public int hashCode() {
+		// the bits are already uniformly distributed
+		return (int) this.low;
+	}
+
+	@Override
+	public String toString() {
+		String high = Long.toHexString(this.high);
+		String low = Long.toHexString(this.low);
+		StringBuilder out = new StringBuilder(32);
+		for (int i = high.length(); i < 16; ++i) {
+			out.append('0');
+		}
+		out.append(high);
+		for (int i = low.length(); i < 16; ++i) {
+			out.append('0');
+		}
+		out.append(low);
+		return out.toString();
+	}
+}
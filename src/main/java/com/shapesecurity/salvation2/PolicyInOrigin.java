@@ -1,5 +1,6 @@
 package com.shapesecurity.salvation2;
 
+import com.shapesecurity.salvation2.URLs.MutableURL;
 import com.shapesecurity.salvation2.URLs.URLWithScheme;
 
 import java.util.Optional;
@@ -8,53 +9,101 @@ public class PolicyInOrigin {
 	public final Policy policy;
 	public final URLWithScheme origin;
 
+	// Everything about the origin which matching needs is worked out here, once, rather than on every query.
+	// Nothing is derived from the policy, so creating one of these for each of many origins sharing a Policy is cheap.
+	private final Origin precomputedOrigin;
+
 	public PolicyInOrigin(Policy policy, URLWithScheme origin) {
 		this.policy = policy;
 		this.origin = origin;
+		this.precomputedOrigin = new Origin(origin);
 	}
 
 
 
 	// Low-level querying
 
+	// Each of these accepts a MutableURL as well as a URLWithScheme. Parsing URLs into a reused MutableURL (see MutableURL.forCurrentThread)
+	// and querying with that does not allocate per URL.
+
 	public boolean allowsScriptFromSource(URLWithScheme url) {
-		return this.policy.allowsExternalScript(Optional.empty(), Optional.empty(), Optional.of(url), Optional.empty(), Optional.of(this.origin));
+		return this.allowsScriptFromSource(new MutableURL().set(url));
+	}
+
+	public boolean allowsScriptFromSource(MutableURL url) {
+		return this.policy.allowsExternalScript(Optional.empty(), Optional.empty(), url, Optional.empty(), this.precomputedOrigin);
 	}
 
 	public boolean allowsStyleFromSource(URLWithScheme url) {
-		return this.policy.allowsExternalStyle(Optional.empty(), Optional.of(url), Optional.of(this.origin));
+		return this.allowsStyleFromSource(new MutableURL().set(url));
+	}
+
+	public boolean allowsStyleFromSource(MutableURL url) {
+		return this.policy.allowsExternalStyle(Optional.empty(), url, this.precomputedOrigin);
 	}
 
 	public boolean allowsImageFromSource(URLWithScheme url) {
-		return this.policy.allowsImage(Optional.of(url), Optional.of(this.origin));
+		return this.allowsImageFromSource(new MutableURL().set(url));
+	}
+
+	public boolean allowsImageFromSource(MutableURL url) {
+		return this.policy.allowsImage(url, this.precomputedOrigin);
 	}
 
 	public boolean allowsFrameFromSource(URLWithScheme url) {
-		return this.policy.allowsFrame(Optional.of(url), Optional.of(this.origin));
+		return this.allowsFrameFromSource(new MutableURL().set(url));
+	}
+
+	public boolean allowsFrameFromSource(MutableURL url) {
+		return this.policy.allowsFrame(url, this.precomputedOrigin);
 	}
 
 	public boolean allowsWorkerFromSource(URLWithScheme url) {
-		return this.policy.allowsWorker(Optional.of(url), Optional.of(this.origin));
+		return this.allowsWorkerFromSource(new MutableURL().set(url));
+	}
+
+	public boolean allowsWorkerFromSource(MutableURL url) {
+		return this.policy.allowsWorker(url, this.precomputedOrigin);
 	}
 
 	public boolean allowsFontFromSource(URLWithScheme url) {
-		return this.policy.allowsFont(Optional.of(url), Optional.of(this.origin));
+		return this.allowsFontFromSource(new MutableURL().set(url));
+	}
+
+	public boolean allowsFontFromSource(MutableURL url) {
+		return this.policy.allowsFont(url, this.precomputedOrigin);
 	}
 
 	public boolean allowsObjectFromSource(URLWithScheme url) {
-		return this.policy.allowsObject(Optional.of(url), Optional.of(this.origin));
+		return this.allowsObjectFromSource(new MutableURL().set(url));
+	}
+
+	public boolean allowsObjectFromSource(MutableURL url) {
+		return this.policy.allowsObject(url, this.precomputedOrigin);
 	}
 
 	public boolean allowsMediaFromSource(URLWithScheme url) {
-		return this.policy.allowsMedia(Optional.of(url), Optional.of(this.origin));
+		return this.allowsMediaFromSource(new MutableURL().set(url));
+	}
+
+	public boolean allowsMediaFromSource(MutableURL url) {
+		return this.policy.allowsMedia(url, this.precomputedOrigin);
 	}
 
 	public boolean allowsManifestFromSource(URLWithScheme url) {
-		return this.policy.allowsApplicationManifest(Optional.of(url), Optional.of(this.origin));
+		return this.allowsManifestFromSource(new MutableURL().set(url));
+	}
+
+	public boolean allowsManifestFromSource(MutableURL url) {
+		return this.policy.allowsApplicationManifest(url, this.precomputedOrigin);
 	}
 
 	public boolean allowsPrefetchFromSource(URLWithScheme url) {
-		return this.policy.allowsPrefetch(Optional.of(url), Optional.of(this.origin));
+		return this.allowsPrefetchFromSource(new MutableURL().set(url));
+	}
+
+	public boolean allowsPrefetchFromSource(MutableURL url) {
+		return this.policy.allowsPrefetch(url, this.precomputedOrigin);
 	}
 
 	public boolean allowsUnsafeInlineScript() {
@@ -66,19 +115,45 @@ public class PolicyInOrigin {
 	}
 
 	public boolean allowsConnection(URLWithScheme url) {
-		return this.policy.allowsConnection(Optional.of(url), Optional.of(this.origin));
+		return this.allowsConnection(new MutableURL().set(url));
+	}
+
+	public boolean allowsConnection(MutableURL url) {
+		return this.policy.allowsConnection(url, this.precomputedOrigin);
 	}
 
 	public boolean allowsNavigation(URLWithScheme url) {
-		return this.policy.allowsNavigation(Optional.of(url), Optional.empty(), Optional.empty(), Optional.of(this.origin));
+		return this.allowsNavigation(new MutableURL().set(url));
+	}
+
+	public boolean allowsNavigation(MutableURL url) {
+		return this.policy.allowsNavigation(url, Optional.empty(), null, this.precomputedOrigin);
 	}
 
 	public boolean allowsFrameAncestor(URLWithScheme url) {
-		return this.policy.allowsFrameAncestor(Optional.of(url), Optional.of(this.origin));
+		return this.allowsFrameAncestor(new MutableURL().set(url));
+	}
+
+	public boolean allowsFrameAncestor(MutableURL url) {
+		return this.policy.allowsFrameAncestor(url, this.precomputedOrigin);
 	}
 
 	public boolean allowsFormAction(URLWithScheme url) {
-		return this.policy.allowsFormAction(Optional.of(url), Optional.empty(), Optional.empty(), Optional.of(this.origin));
+		return this.allowsFormAction(new MutableURL().set(url));
+	}
+
+	public boolean allowsFormAction(MutableURL url) {
+		return this.policy.allowsFormAction(url, Optional.empty(), null, this.precomputedOrigin);
+	}
+
+	// See Policy.matchUrl
+	public SourceMatch matchUrl(FetchDirectiveKind effectiveDirective, URLWithScheme url) {
+		return SourceMatch.decode(this.matchUrlEncoded(effectiveDirective, new MutableURL().set(url)));
+	}
+
+	// As above, but without allocating; decode the result with SourceMatch's static methods
+	public int matchUrlEncoded(FetchDirectiveKind effectiveDirective, MutableURL url) {
+		return this.policy.matchUrl(effectiveDirective, url, this.precomputedOrigin);
 	}
 
 
@@ -0,0 +1,269 @@
+package com.shapesecurity.salvation2;
+
+import com.shapesecurity.salvation2.Directives.SourceExpressionDirective;
+import com.shapesecurity.salvation2.URLs.URI;
+import com.shapesecurity.salvation2.URLs.URLWithScheme;
+import com.shapesecurity.salvation2.Values.Hash;
+import com.shapesecurity.salvation2.Values.Host;
+import com.shapesecurity.salvation2.Values.Scheme;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+// Learns a policy from traffic: feed it the loads an application makes, and it keeps the smallest policy it can that allows all of them,
+// starting from default-src 'none'. Same-origin loads become 'self'; other loads become host-sources without paths. Once enough
+// subdomains of one domain are seen, they are replaced by a `*.domain` wildcard, and once enough hosts of one scheme are seen, by the
+// scheme itself. Inline content is allowed by hash, until there are too many hashes, when it becomes 'unsafe-inline'.
+// These limits also bound the memory used, however long the stream. Any number of threads can observe at once, and `toPolicy` can be
+// called at any time; each directive is learned independently, so loads of different kinds do not contend.
+public final class PolicyLearner {
+	public static final int DEFAULT_WILDCARD_THRESHOLD = 4;
+	public static final int DEFAULT_SCHEME_THRESHOLD = 64;
+	public static final int DEFAULT_MAX_HASHES = 64;
+
+	// Nothing generalizes distinct schemes, so past this many in one directive, as scheme-sources or host-sources, loads of new schemes are
+	// dropped rather than learned
+	private static final int MAX_SCHEMES = 16;
+
+	private final int wildcardThreshold;
+	private final int schemeThreshold;
+	private final int maxHashes;
+	// Indexed by FetchDirectiveKind ordinal, so that observing never modifies a shared map
+	private final Sources[] sources = new Sources[FetchDirectiveKind.values().length];
+	private final LongAdder dropped = new LongAdder();
+
+	public PolicyLearner() {
+		this(DEFAULT_WILDCARD_THRESHOLD, DEFAULT_SCHEME_THRESHOLD, DEFAULT_MAX_HASHES);
+	}
+
+	// `wildcardThreshold` distinct subdomains of a domain become `*.domain`; more than `schemeThreshold` host-sources for one scheme
+	// become that scheme; more than `maxHashes` hashes become 'unsafe-inline'
+	public PolicyLearner(int wildcardThreshold, int schemeThreshold, int maxHashes) {
+		if (wildcardThreshold < 2) {
+			throw new IllegalArgumentException("wildcardThreshold must be at least 2");
+		}
+		if (schemeThreshold < 1 || maxHashes < 0) {
+			throw new IllegalArgumentException("schemeThreshold must be positive and maxHashes must not be negative");
+		}
+		this.wildcardThreshold = wildcardThreshold;
+		this.schemeThreshold = schemeThreshold;
+		this.maxHashes = maxHashes;
+		for (int i = 0; i < this.sources.length; ++i) {
+			this.sources[i] = new Sources();
+		}
+	}
+
+	// Records that a document at `origin` loaded `url` as governed by `kind`, which must be the directive a browser would check first
+	// (e.g. ScriptSrcElem for a <script src>), not DefaultSrc or ChildSrc, which are only fallbacks
+	public void observe(@Nonnull URLWithScheme origin, @Nonnull FetchDirectiveKind kind, @Nonnull URLWithScheme url) {
+		Sources sources = this.sourcesFor(kind);
+		synchronized (sources) {
+			sources.observed = true;
+			if (url.host == null) {
+				// data:, blob:, etc
+				this.addScheme(sources, url.scheme);
+				return;
+			}
+			int port = normalizedPort(url);
+			if (url.scheme.equals(origin.scheme) && url.host.equals(origin.host) && port == normalizedPort(origin)) {
+				sources.self = true;
+				return;
+			}
+			if (sources.schemes.contains(url.scheme)) {
+				return;
+			}
+			List<HostEntry> hosts = sources.hosts.get(url.scheme);
+			if (hosts == null) {
+				if (sources.schemeCount() >= MAX_SCHEMES) {
+					this.dropped.increment();
+					return;
+				}
+				hosts = new ArrayList<>();
+				sources.hosts.put(url.scheme, hosts);
+			}
+			for (HostEntry entry : hosts) {
+				if (entry.covers(url.host, port)) {
+					return;
+				}
+			}
+			this.addHost(hosts, url.host, port);
+			if (hosts.size() > this.schemeThreshold) {
+				sources.hosts.remove(url.scheme);
+				this.addScheme(sources, url.scheme);
+			}
+		}
+	}
+
+	// Records inline content with the given hash, governed by `kind`: ScriptSrcElem or StyleSrcElem for <script> and <style> elements,
+	// ScriptSrcAttr or StyleSrcAttr for event handlers and style attributes
+	public void observeInline(@Nonnull FetchDirectiveKind kind, @Nonnull Hash hash) {
+		Sources sources = this.sourcesFor(kind);
+		synchronized (sources) {
+			sources.observed = true;
+			if (sources.unsafeInline) {
+				return;
+			}
+			sources.hashes.add(hash);
+			if (sources.hashes.size() > this.maxHashes) {
+				sources.hashes.clear();
+				sources.unsafeInline = true;
+			}
+		}
+	}
+
+	// Loads which could not be learned, because their directive already had loads of too many other schemes
+	public long dropped() {
+		return this.dropped.sum();
+	}
+
+	// A new policy allowing everything observed so far: default-src 'none', then one directive for each kind which was observed
+	@Nonnull
+	public Policy toPolicy() {
+		Policy policy = Policy.parseSerializedCSP("default-src 'none'", Policy.PolicyErrorConsumer.ignored);
+		for (FetchDirectiveKind kind : FetchDirectiveKind.values()) {
+			Sources sources = this.sources[kind.ordinal()];
+			synchronized (sources) {
+				if (!sources.observed) {
+					continue;
+				}
+				SourceExpressionDirective directive = (SourceExpressionDirective) policy.add(kind.repr, Collections.singletonList("'none'"), Directive.DirectiveErrorConsumer.ignored);
+				directive.setSelf(sources.self);
+				for (String scheme : sources.schemes) {
+					directive.addScheme(Scheme.parseScheme(scheme + ":").get(), Directive.ManipulationErrorConsumer.ignored);
+				}
+				for (Map.Entry<String, List<HostEntry>> entry : sources.hosts.entrySet()) {
+					for (HostEntry host : entry.getValue()) {
+						directive.addHost(Host.parseHost(host.toString(entry.getKey())).get(), Directive.ManipulationErrorConsumer.ignored);
+					}
+				}
+				if (!sources.hashes.isEmpty()) {
+					directive.addHashes(sources.hashes, Directive.ManipulationErrorConsumer.ignored);
+					// https://w3c.github.io/webappsec-csp/#match-element-to-source-list: attributes only match hashes with 'unsafe-hashes'
+					if (kind == FetchDirectiveKind.ScriptSrcAttr || kind == FetchDirectiveKind.StyleSrcAttr) {
+						directive.setUnsafeHashes(true);
+					}
+				}
+				directive.setUnsafeInline(sources.unsafeInline);
+			}
+		}
+		return policy;
+	}
+
+	private Sources sourcesFor(FetchDirectiveKind kind) {
+		if (kind == FetchDirectiveKind.DefaultSrc || kind == FetchDirectiveKind.ChildSrc) {
+			throw new IllegalArgumentException(kind.repr + " is never the directive which governs a load");
+		}
+		return this.sources[kind.ordinal()];
+	}
+
+	private void addScheme(Sources sources, String scheme) {
+		if (sources.schemes.contains(scheme)) {
+			return;
+		}
+		if (sources.schemeCount() >= MAX_SCHEMES) {
+			this.dropped.increment();
+			return;
+		}
+		sources.schemes.add(scheme);
+	}
+
+	// Adds `host`, which no entry covers yet, replacing it and its siblings with a wildcard if there are now enough of them
+	private void addHost(List<HostEntry> hosts, String host, int port) {
+		String parent = parentDomain(host);
+		if (parent != null) {
+			String suffix = "." + parent;
+			int siblings = 0;
+			for (HostEntry entry : hosts) {
+				if (!entry.wildcard && entry.port == port && entry.host.endsWith(suffix)) {
+					++siblings;
+				}
+			}
+			if (siblings + 1 >= this.wildcardThreshold) {
+				// this also drops narrower wildcards, like *.a.example.com for *.example.com
+				Iterator<HostEntry> iterator = hosts.iterator();
+				while (iterator.hasNext()) {
+					HostEntry entry = iterator.next();
+					if (entry.port == port && entry.host.endsWith(suffix)) {
+						iterator.remove();
+					}
+				}
+				hosts.add(new HostEntry(parent, port, true));
+				return;
+			}
+		}
+		hosts.add(new HostEntry(host, port, false));
+	}
+
+	// The domain a `*.` wildcard for `host` would name, or null if there should not be one: for IP addresses, top-level domains, and
+	// what look like second-level country domains such as co.uk, whose subdomains belong to unrelated parties. Without a public suffix
+	// list this is a heuristic, which is why wildcards need several subdomains before they are learned.
+	static String parentDomain(String host) {
+		if (host.startsWith("[") || host.chars().allMatch(c -> c == '.' || c >= '0' && c <= '9')) {
+			return null;
+		}
+		int dot = host.indexOf('.');
+		if (dot == -1) {
+			return null;
+		}
+		String parent = host.substring(dot + 1);
+		int lastDot = parent.lastIndexOf('.');
+		if (lastDot == -1) {
+			return null;
+		}
+		if (parent.indexOf('.') == lastDot && parent.length() - lastDot - 1 == 2 && lastDot <= 3) {
+			return null;
+		}
+		return parent;
+	}
+
+	private static int normalizedPort(URLWithScheme url) {
+		return url.port == null || url.port == URI.defaultPortForProtocol(url.scheme) ? Constants.EMPTY_PORT : url.port;
+	}
+
+	private static final class Sources {
+		boolean observed = false;
+		boolean self = false;
+		boolean unsafeInline = false;
+		final Set<String> schemes = new LinkedHashSet<>();
+		// Host-sources by scheme, for schemes not in `schemes`
+		final Map<String, List<HostEntry>> hosts = new LinkedHashMap<>();
+		final Set<Hash> hashes = new LinkedHashSet<>();
+
+		// Distinct schemes learned, whether as scheme-sources or as host-sources
+		int schemeCount() {
+			return this.schemes.size() + this.hosts.size();
+		}
+	}
+
+	private static final class HostEntry {
+		// Without the `*.` for wildcards
+		final String host;
+		final int port;
+		final boolean wildcard;
+
+		HostEntry(String host, int port, boolean wildcard) {
+			this.host = host;
+			this.port = port;
+			this.wildcard = wildcard;
+		}
+
+		boolean covers(String host, int port) {
+			if (this.port != port) {
+				return false;
+			}
+			return this.wildcard ? host.endsWith("." + this.host) : host.equals(this.host);
+		}
+
+		String toString(String scheme) {
+			return scheme + "://" + (this.wildcard ? "*." : "") + this.host + (this.port == Constants.EMPTY_PORT ? "" : ":" + this.port);
+		}
+	}
+}
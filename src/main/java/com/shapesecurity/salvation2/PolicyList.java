@@ -1,17 +1,75 @@
 package com.shapesecurity.salvation2;
 
+import com.shapesecurity.salvation2.Directives.SandboxDirective;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Optional;
+import java.util.TreeSet;
 
 public class PolicyList {
+	private static final byte[] SEPARATOR = { ',', ' ' };
+
 	public final List<Policy> policies;
 
 	public PolicyList(List<Policy> policies) {
 		this.policies = policies;
 	}
 
+	// Every policy in a list is enforced, so their order does not matter and repeating one changes nothing.
+	// The canonical list holds each distinct canonical policy once, sorted; policies which are empty once canonicalized are dropped.
+	@Nonnull
+	public PolicyList canonicalize() {
+		List<Policy> canonical = new ArrayList<>();
+		for (String policy : this.canonicalPolicies()) {
+			canonical.add(Policy.parseSerializedCSP(policy, Policy.PolicyErrorConsumer.ignored));
+		}
+		return new PolicyList(canonical);
+	}
+
+	@Nonnull
+	public PolicyFingerprint fingerprint() {
+		return PolicyFingerprint.of(String.join(", ", this.canonicalPolicies()));
+	}
+
+	private TreeSet<String> canonicalPolicies() {
+		TreeSet<String> canonical = new TreeSet<>();
+		for (Policy policy : this.policies) {
+			String serialized = policy.toCanonicalString();
+			if (!serialized.isEmpty()) {
+				canonical.add(serialized);
+			}
+		}
+		return canonical;
+	}
+
+	// Every policy's sandbox applies, so a document may only do what all of them allow: the intersection of their keywords.
+	// Returns a mask of SandboxDirective.Keyword bits, or SandboxDirective.NOT_SANDBOXED if no policy has a sandbox directive.
+	public int effectiveSandboxFlags() {
+		int flags = SandboxDirective.NOT_SANDBOXED;
+		for (Policy policy : this.policies) {
+			flags &= policy.sandboxFlags();
+		}
+		return flags;
+	}
+
+	// The keywords of the effective sandbox, or empty if the document is not sandboxed
+	@Nonnull
+	public Optional<EnumSet<SandboxDirective.Keyword>> effectiveSandbox() {
+		int flags = this.effectiveSandboxFlags();
+		return flags == SandboxDirective.NOT_SANDBOXED ? Optional.empty() : Optional.of(SandboxDirective.toSet(flags));
+	}
+
+	// Policies cache their own serializations, so these only need to copy them out
+
 	@Override
 	public String toString() {
-		StringBuilder out = new StringBuilder();
+		StringBuilder out = new StringBuilder(this.serializedLength());
 		boolean first = true;
 		for (Policy policy : this.policies) {
 			if (!first) {
@@ -22,4 +80,65 @@ public class PolicyList {
 		}
 		return out.toString();
 	}
+
+	// Policy lists are always ASCII, so this is also their length in bytes
+	public int serializedLength() {
+		int length = 0;
+		for (Policy policy : this.policies) {
+			length += policy.serializedLength();
+		}
+		return this.policies.isEmpty() ? 0 : length + SEPARATOR.length * (this.policies.size() - 1);
+	}
+
+	@Nonnull
+	public byte[] toAsciiBytes() {
+		byte[] out = new byte[this.serializedLength()];
+		this.writeTo(out, 0);
+		return out;
+	}
+
+	public void writeTo(@Nonnull Appendable out) throws IOException {
+		boolean first = true;
+		for (Policy policy : this.policies) {
+			if (!first) {
+				out.append(", ");
+			}
+			first = false;
+			policy.writeTo(out);
+		}
+	}
+
+	// Returns the number of bytes written. Throws IndexOutOfBoundsException, having written nothing, if they do not fit.
+	public int writeTo(@Nonnull byte[] out, int offset) {
+		int length = this.serializedLength();
+		if (offset < 0 || offset > out.length - length) {
+			throw new IndexOutOfBoundsException("need " + length + " bytes at offset " + offset + " but the array has length " + out.length);
+		}
+		int position = offset;
+		boolean first = true;
+		for (Policy policy : this.policies) {
+			if (!first) {
+				System.arraycopy(SEPARATOR, 0, out, position, SEPARATOR.length);
+				position += SEPARATOR.length;
+			}
+			first = false;
+			position += policy.writeTo(out, position);
+		}
+		return length;
+	}
+
+	// Throws BufferOverflowException, having written nothing, if there is not enough space remaining in `out`
+	public void writeTo(@Nonnull ByteBuffer out) {
+		if (out.remaining() < this.serializedLength()) {
+			throw new BufferOverflowException();
+		}
+		boolean first = true;
+		for (Policy policy : this.policies) {
+			if (!first) {
+				out.put(SEPARATOR);
+			}
+			first = false;
+			policy.writeTo(out);
+		}
+	}
 }
@@ -0,0 +1,287 @@
+package com.shapesecurity.salvation2;
+
+import com.shapesecurity.salvation2.Directives.HostSourceDirective;
+import com.shapesecurity.salvation2.Values.Hash;
+import com.shapesecurity.salvation2.Values.Host;
+import com.shapesecurity.salvation2.Values.MediaType;
+import com.shapesecurity.salvation2.Values.Nonce;
+import com.shapesecurity.salvation2.Values.Scheme;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+// Rewrites a policy into a smaller one which is enforced identically. It:
+// - drops duplicate directives and directives with invalid names, neither of which have any effect
+// - drops duplicate values, 'none' when combined with other values, and values of directives which ignore them
+// - drops host-sources and scheme-sources which only match URLs which some other value in the same list also matches
+// - drops fetch directives which are identical to the directive each request they govern would fall back to
+// - elides ports which are the default for every scheme a host-source admits
+// Values and directives which this library does not recognize are kept, since browsers may recognize them. Unlike canonicalization,
+// the order of directives and values is preserved.
+public final class PolicyOptimizer {
+	private PolicyOptimizer() {
+		// pass
+	}
+
+	@Nonnull
+	public static Result optimize(@Nonnull Policy policy) {
+		return optimize(policy, Integer.MAX_VALUE);
+	}
+
+	// `byteBudget` is the size the serialized policy ought to fit in. The optimizer never changes what a policy means, so it
+	// cannot promise to meet the budget; check Result.withinBudget.
+	@Nonnull
+	public static Result optimize(@Nonnull Policy policy, int byteBudget) {
+		if (byteBudget < 0) {
+			throw new IllegalArgumentException("byte budget must not be negative");
+		}
+
+		Map<String, List<String>> directives = new LinkedHashMap<>();
+		policy.forEachEffectiveDirective((name, directive) -> directives.put(name, optimizeValues(name, directive)));
+		removeRedundantFetchDirectives(directives);
+
+		List<String> serialized = new ArrayList<>(directives.size());
+		for (Map.Entry<String, List<String>> directive : directives.entrySet()) {
+			StringBuilder out = new StringBuilder(directive.getKey());
+			for (String value : directive.getValue()) {
+				out.append(' ').append(value);
+			}
+			serialized.add(out.toString());
+		}
+		Policy optimized = Policy.parseSerializedCSP(String.join("; ", serialized), Policy.PolicyErrorConsumer.ignored);
+
+		// Policies are ASCII, so their length in characters is their length in bytes
+		return new Result(optimized, policy.toString().length(), optimized.toString().length(), byteBudget);
+	}
+
+	private static List<String> optimizeValues(String name, Directive directive) {
+		if (directive instanceof HostSourceDirective) {
+			return optimizeSourceList((HostSourceDirective) directive);
+		}
+		switch (name) {
+			case "block-all-mixed-content":
+			case "upgrade-insecure-requests":
+				// these ignore their values
+				return Collections.emptyList();
+			case "plugin-types": {
+				List<String> values = new ArrayList<>();
+				Set<String> seen = new HashSet<>();
+				for (String value : directive.getValues()) {
+					Optional<MediaType> type = MediaType.parseMediaType(value);
+					String optimized = type.isPresent() ? type.get().toString() : value;
+					if (seen.add(optimized)) {
+						values.add(optimized);
+					}
+				}
+				return values;
+			}
+			case "sandbox": {
+				List<String> values = new ArrayList<>();
+				Set<String> seen = new HashSet<>();
+				for (String value : directive.getValues()) {
+					String optimized = value.toLowerCase(Locale.ENGLISH);
+					if (seen.add(optimized)) {
+						values.add(optimized);
+					}
+				}
+				return values;
+			}
+			default:
+				// This includes report-uri, for which duplicates are meaningful
+				return directive.getValues();
+		}
+	}
+
+	private static List<String> optimizeSourceList(HostSourceDirective directive) {
+		Set<String> unrecognized = new HashSet<>(directive.getUnrecognizedValues());
+		List<String> values = new ArrayList<>();
+		Set<String> seen = new HashSet<>();
+		for (String value : directive.getValues()) {
+			String lowcaseValue = value.toLowerCase(Locale.ENGLISH);
+			String optimized;
+			if (unrecognized.contains(value)) {
+				optimized = value;
+			} else if (lowcaseValue.equals("'none'")) {
+				continue;
+			} else if (lowcaseValue.equals("*")) {
+				optimized = lowcaseValue;
+			} else if (lowcaseValue.startsWith("'nonce-")) {
+				optimized = Nonce.parseNonce(value).get().toString();
+			} else if (lowcaseValue.startsWith("'sha")) {
+				optimized = Hash.parseHash(value).get().toString();
+			} else if (lowcaseValue.startsWith("'")) {
+				// 'self' and the other keywords
+				optimized = lowcaseValue;
+			} else {
+				Optional<Scheme> scheme = Scheme.parseScheme(value);
+				if (scheme.isPresent()) {
+					if (isSubsumed(scheme.get(), directive)) {
+						continue;
+					}
+					optimized = scheme.get().toString();
+				} else {
+					Host host = Host.parseHost(value).get();
+					if (isSubsumed(host, directive)) {
+						continue;
+					}
+					optimized = Policy.hostSourceToString(host);
+				}
+			}
+			if (seen.add(optimized)) {
+				values.add(optimized);
+			}
+		}
+		if (values.isEmpty() && !directive.getValues().isEmpty()) {
+			// An empty list would be shorter and mean the same thing, but 'none' is what the spec asks for
+			values.add("'none'");
+		}
+		return values;
+	}
+
+	private static boolean isSubsumed(Scheme scheme, HostSourceDirective directive) {
+		if (directive.star() && isNetworkScheme(scheme.value)) {
+			return true;
+		}
+		for (Scheme other : directive.getSchemes()) {
+			if (!other.equals(scheme) && Policy.schemePartMatches(other.value, scheme.value)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean isSubsumed(Host host, HostSourceDirective directive) {
+		// A host-source without a scheme admits whatever schemes the origin implies, which `*` and scheme-sources may not cover
+		if (host.scheme != null) {
+			if (directive.star() && isNetworkScheme(host.scheme)) {
+				return true;
+			}
+			for (Scheme scheme : directive.getSchemes()) {
+				if (Policy.schemePartMatches(scheme.value, host.scheme)) {
+					return true;
+				}
+			}
+		}
+		List<Host> hosts = directive.getHosts();
+		int index = hosts.indexOf(host);
+		for (int i = 0; i < hosts.size(); ++i) {
+			Host other = hosts.get(i);
+			// if two host-sources match exactly the same URLs, keep the first
+			if (i != index && subsumes(other, host) && (i < index || !subsumes(host, other))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// Whether every URL `b` matches is also matched by `a`, per https://w3c.github.io/webappsec-csp/#match-url-to-source-expression
+	// This errs towards answering false.
+	private static boolean subsumes(Host a, Host b) {
+		if (a.scheme == null ? b.scheme != null : b.scheme == null || !Policy.schemePartMatches(a.scheme, b.scheme)) {
+			return false;
+		}
+		if (!a.host.equals(b.host) && !(a.host.startsWith("*") && b.host.endsWith(a.host.substring(1)))) {
+			return false;
+		}
+		if (a.port != Constants.WILDCARD_PORT && a.port != b.port) {
+			return false;
+		}
+		if (a.path == null || a.path.isEmpty()) {
+			return true;
+		}
+		if (b.path == null) {
+			return false;
+		}
+		// A path ending in `/` matches any path which has it as a prefix, segment by segment; any other path matches only itself
+		return a.path.endsWith("/") ? b.path.startsWith(a.path) : a.path.equals(b.path);
+	}
+
+	// https://fetch.spec.whatwg.org/#network-scheme
+	private static boolean isNetworkScheme(String scheme) {
+		return scheme.equals("ftp") || scheme.equals("http") || scheme.equals("https");
+	}
+
+	// A fetch directive is redundant if, for every kind of request it governs, the directive that request would fall back to
+	// without it has the same values. Directives which govern nothing (like child-src when both frame-src and worker-src are
+	// present) are left alone, since browsers implementing older versions of CSP may still use them.
+	private static void removeRedundantFetchDirectives(Map<String, List<String>> directives) {
+		EnumMap<FetchDirectiveKind, Set<String>> fetchDirectives = new EnumMap<>(FetchDirectiveKind.class);
+		for (Map.Entry<String, List<String>> directive : directives.entrySet()) {
+			FetchDirectiveKind kind = FetchDirectiveKind.fromString(directive.getKey());
+			if (kind != null) {
+				fetchDirectives.put(kind, new HashSet<>(directive.getValue()));
+			}
+		}
+
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (FetchDirectiveKind kind : new ArrayList<>(fetchDirectives.keySet())) {
+				if (kind != FetchDirectiveKind.DefaultSrc && isRedundant(kind, fetchDirectives)) {
+					fetchDirectives.remove(kind);
+					directives.remove(kind.repr);
+					changed = true;
+				}
+			}
+		}
+	}
+
+	private static boolean isRedundant(FetchDirectiveKind candidate, EnumMap<FetchDirectiveKind, Set<String>> fetchDirectives) {
+		boolean governsAnything = false;
+		for (FetchDirectiveKind effective : FetchDirectiveKind.values()) {
+			if (effective == FetchDirectiveKind.DefaultSrc || effective == FetchDirectiveKind.ChildSrc) {
+				// these are never effective directives, only fallbacks
+				continue;
+			}
+			FetchDirectiveKind[] fallbacks = FetchDirectiveKind.getFetchDirectiveFallbackList(effective);
+			int governing = 0;
+			while (governing < fallbacks.length && !fetchDirectives.containsKey(fallbacks[governing])) {
+				++governing;
+			}
+			if (governing == fallbacks.length || fallbacks[governing] != candidate) {
+				continue;
+			}
+			int next = governing + 1;
+			while (next < fallbacks.length && !fetchDirectives.containsKey(fallbacks[next])) {
+				++next;
+			}
+			if (next == fallbacks.length || !fetchDirectives.get(fallbacks[next]).equals(fetchDirectives.get(candidate))) {
+				return false;
+			}
+			governsAnything = true;
+		}
+		return governsAnything;
+	}
+
+	public static final class Result {
+		@Nonnull
+		public final Policy policy;
+		public final int originalBytes;
+		public final int optimizedBytes;
+		public final int byteBudget;
+
+		private Result(@Nonnull Policy policy, int originalBytes, int optimizedBytes, int byteBudget) {
+			this.policy = policy;
+			this.originalBytes = originalBytes;
+			this.optimizedBytes = optimizedBytes;
+			this.byteBudget = byteBudget;
+		}
+
+		public int bytesSaved() {
+			return this.originalBytes - this.optimizedBytes;
+		}
+
+		public boolean withinBudget() {
+			return this.optimizedBytes <= this.byteBudget;
+		}
+	}
+}
@@ -0,0 +1,328 @@
+package com.shapesecurity.salvation2;
+
+import com.shapesecurity.salvation2.URLs.MutableURL;
+import com.shapesecurity.salvation2.URLs.URLWithScheme;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+// Replays a log of resource loads against a policy, or a list of policies all enforced at once, to find out which loads it would block
+// before it is deployed. The log is read as a stream and simulated in batches across a pool of threads, so logs of any length run in
+// bounded memory and as fast as there are cores. See ResourceLoad for the log formats.
+public final class PolicySimulator {
+	private static final int BATCH_SIZE = 1024;
+
+	@Nonnull
+	private final List<Policy> policies;
+
+	public PolicySimulator(@Nonnull Policy policy) {
+		this(new PolicyList(Collections.singletonList(policy)));
+	}
+
+	public PolicySimulator(@Nonnull PolicyList policies) {
+		this.policies = new ArrayList<>(policies.policies);
+	}
+
+	@Nonnull
+	public Result simulate(@Nonnull Path log, int threads, @Nonnull Consumer<ViolationReport> violations) throws IOException {
+		try (Reader in = Files.newBufferedReader(log, StandardCharsets.UTF_8)) {
+			return this.simulate(in, threads, violations);
+		}
+	}
+
+	// Simulates every load in `log` on `threads` threads, calling `violations` with the report a browser would send for each load each
+	// policy blocks. `violations` is called from all of the threads at once, in no particular order, and so must be thread-safe.
+	// The policies must not be modified while this runs. Throws IOException if the log is JSON and malformed; unreadable lines and
+	// records are counted in Result.skipped instead, since one bad line in a billion should not spoil the rest.
+	@Nonnull
+	public Result simulate(@Nonnull Reader log, int threads, @Nonnull Consumer<ViolationReport> violations) throws IOException {
+		if (threads < 1) {
+			throw new IllegalArgumentException("need at least one thread");
+		}
+		Counts counts = new Counts();
+		ExecutorService pool = Executors.newFixedThreadPool(threads, runnable -> {
+			Thread thread = new Thread(runnable, "salvation-simulator");
+			thread.setDaemon(true);
+			return thread;
+		});
+		Batcher batcher = new Batcher(pool, threads, counts, violations);
+		try {
+			BufferedReader in = log instanceof BufferedReader ? (BufferedReader) log : new BufferedReader(log);
+			int first = peekNonWhitespace(in);
+			if (first == '{' || first == '[') {
+				ResourceLoad.parseJson(in, batcher::add, counts.skipped::increment);
+			} else {
+				String line;
+				while ((line = in.readLine()) != null) {
+					if (line.isEmpty() || line.startsWith("#")) {
+						continue;
+					}
+					Optional<ResourceLoad> load = ResourceLoad.parseLine(line);
+					if (load.isPresent()) {
+						batcher.add(load.get());
+					} else {
+						counts.skipped.increment();
+					}
+				}
+			}
+			batcher.flush();
+		} finally {
+			pool.shutdown();
+		}
+		try {
+			while (!pool.awaitTermination(1, TimeUnit.MINUTES)) {
+				// pass
+			}
+		} catch (InterruptedException e) {
+			pool.shutdownNow();
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted while simulating", e);
+		}
+		batcher.rethrowFailure();
+		return counts.result();
+	}
+
+	private static int peekNonWhitespace(BufferedReader in) throws IOException {
+		while (true) {
+			in.mark(1);
+			int c = in.read();
+			if (c == -1) {
+				return c;
+			}
+			if (!Character.isWhitespace(c)) {
+				in.reset();
+				return c;
+			}
+		}
+	}
+
+	public static final class Result {
+		public final long loads;
+		// Loads which at least one policy blocked
+		public final long blocked;
+		// Log lines or records which could not be simulated, e.g. because their type or URL could not be understood
+		public final long skipped;
+		// Blocked loads by effective directive, as in violation reports, for the directives which blocked any
+		@Nonnull
+		public final Map<String, Long> blockedByDirective;
+
+		Result(long loads, long blocked, long skipped, @Nonnull Map<String, Long> blockedByDirective) {
+			this.loads = loads;
+			this.blocked = blocked;
+			this.skipped = skipped;
+			this.blockedByDirective = blockedByDirective;
+		}
+
+		@Override
+		public String toString() {
+			return this.blocked + " of " + this.loads + " loads blocked (" + this.skipped + " skipped): " + this.blockedByDirective;
+		}
+	}
+
+	private static final class Counts {
+		final LongAdder loads = new LongAdder();
+		final LongAdder blocked = new LongAdder();
+		final LongAdder skipped = new LongAdder();
+		// Filled in up front, so that counting never modifies the map
+		final ConcurrentHashMap<String, LongAdder> byDirective = new ConcurrentHashMap<>();
+
+		Counts() {
+			for (ResourceLoad.Type type : ResourceLoad.Type.values()) {
+				this.byDirective.computeIfAbsent(type.effectiveDirective, d -> new LongAdder());
+			}
+		}
+
+		Result result() {
+			Map<String, Long> byDirective = new TreeMap<>();
+			for (Map.Entry<String, LongAdder> entry : this.byDirective.entrySet()) {
+				long count = entry.getValue().sum();
+				if (count > 0) {
+					byDirective.put(entry.getKey(), count);
+				}
+			}
+			return new Result(this.loads.sum(), this.blocked.sum(), this.skipped.sum(), Collections.unmodifiableMap(byDirective));
+		}
+	}
+
+	// Collects loads into batches and hands them to the pool, waiting whenever enough batches are already queued or running
+	private final class Batcher {
+		final ExecutorService pool;
+		final Semaphore inFlight;
+		final Counts counts;
+		final Consumer<ViolationReport> violations;
+		final AtomicReference<Throwable> failure = new AtomicReference<>();
+		final ThreadLocal<Worker> workers = ThreadLocal.withInitial(Worker::new);
+		List<ResourceLoad> batch = new ArrayList<>(BATCH_SIZE);
+
+		Batcher(ExecutorService pool, int threads, Counts counts, Consumer<ViolationReport> violations) {
+			this.pool = pool;
+			this.inFlight = new Semaphore(2 * threads);
+			this.counts = counts;
+			this.violations = violations;
+		}
+
+		void add(ResourceLoad load) {
+			this.batch.add(load);
+			if (this.batch.size() == BATCH_SIZE) {
+				this.flush();
+			}
+		}
+
+		void flush() {
+			if (this.batch.isEmpty()) {
+				return;
+			}
+			this.rethrowFailure();
+			List<ResourceLoad> batch = this.batch;
+			this.batch = new ArrayList<>(BATCH_SIZE);
+			this.inFlight.acquireUninterruptibly();
+			this.pool.execute(() -> {
+				try {
+					Worker worker = this.workers.get();
+					for (ResourceLoad load : batch) {
+						worker.simulate(load, this.counts, this.violations);
+					}
+				} catch (Throwable t) {
+					this.failure.compareAndSet(null, t);
+				} finally {
+					this.inFlight.release();
+				}
+			});
+		}
+
+		void rethrowFailure() {
+			Throwable t = this.failure.get();
+			if (t instanceof RuntimeException) {
+				throw (RuntimeException) t;
+			}
+			if (t instanceof Error) {
+				throw (Error) t;
+			}
+			if (t != null) {
+				throw new RuntimeException(t);
+			}
+		}
+	}
+
+	// Per-thread state, so that simulating a load allocates as little as possible: the URL is parsed in place, and the origin is reused
+	// while consecutive loads come from the same document, as they do in most logs
+	private final class Worker {
+		final MutableURL url = new MutableURL();
+		String lastDocument = null;
+		Origin lastOrigin = null;
+
+		void simulate(ResourceLoad load, Counts counts, Consumer<ViolationReport> violations) {
+			if (!load.document.equals(this.lastDocument)) {
+				Optional<URLWithScheme> document = Utils.parseUrl(load.document);
+				if (!document.isPresent()) {
+					counts.skipped.increment();
+					return;
+				}
+				this.lastDocument = load.document;
+				this.lastOrigin = new Origin(document.get());
+			}
+			MutableURL url = null;
+			if (load.type.hasUrl()) {
+				if (load.url == null || !this.parse(load.url)) {
+					counts.skipped.increment();
+					return;
+				}
+				url = this.url;
+			}
+			counts.loads.increment();
+			boolean blocked = false;
+			for (Policy policy : PolicySimulator.this.policies) {
+				if (!allows(policy, load, url, this.lastOrigin)) {
+					blocked = true;
+					String blockedUri = load.type == ResourceLoad.Type.Eval ? "eval" : url == null ? "inline" : load.url;
+					violations.accept(ViolationReport.simulated(load.document, blockedUri, load.type.effectiveDirective, policy, load.source));
+				}
+			}
+			if (blocked) {
+				counts.blocked.increment();
+				counts.byDirective.get(load.type.effectiveDirective).increment();
+			}
+		}
+
+		private boolean parse(String url) {
+			if (this.url.parse(url)) {
+				return true;
+			}
+			// data:, blob:, etc
+			Optional<URLWithScheme> parsed = Utils.parseUrl(url);
+			if (!parsed.isPresent()) {
+				return false;
+			}
+			this.url.set(parsed.get());
+			return true;
+		}
+	}
+
+	private static boolean allows(Policy policy, ResourceLoad load, @Nullable MutableURL url, Origin origin) {
+		Optional<String> nonce = Optional.ofNullable(load.nonce);
+		Optional<String> source = Optional.ofNullable(load.source);
+		Optional<Boolean> parserInserted = Optional.ofNullable(load.parserInserted);
+		switch (load.type) {
+			case Script:
+				return policy.allowsExternalScript(nonce, Optional.ofNullable(load.integrity), url, parserInserted, origin);
+			case Style:
+				return policy.allowsExternalStyle(nonce, url, origin);
+			case Image:
+				return policy.allowsImage(url, origin);
+			case Font:
+				return policy.allowsFont(url, origin);
+			case Connect:
+				return policy.allowsConnection(url, origin);
+			case Frame:
+				return policy.allowsFrame(url, origin);
+			case Media:
+				return policy.allowsMedia(url, origin);
+			case Object:
+				return policy.allowsObject(url, origin);
+			case Manifest:
+				return policy.allowsApplicationManifest(url, origin);
+			case Worker:
+				return policy.allowsWorker(url, origin);
+			case Prefetch:
+				return policy.allowsPrefetch(url, origin);
+			case InlineScript:
+				return policy.allowsInlineScript(nonce, source, parserInserted);
+			case InlineStyle:
+				return policy.allowsInlineStyle(nonce, source);
+			case ScriptAttribute:
+				return policy.allowsScriptAsAttribute(source);
+			case StyleAttribute:
+				return policy.allowsStyleAsAttribute(source);
+			case Eval:
+				return policy.allowsEval();
+			case Form:
+				return policy.allowsFormAction(url, Optional.of(false), null, origin);
+			case Navigation:
+				return policy.allowsNavigation(url, Optional.of(false), null, origin);
+			case FrameAncestor:
+				return policy.allowsFrameAncestor(url, origin);
+			default:
+				throw new IllegalArgumentException("Unknown load type " + load.type);
+		}
+	}
+}
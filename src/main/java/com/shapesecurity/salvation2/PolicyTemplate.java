@@ -0,0 +1,150 @@
+package com.shapesecurity.salvation2;
+
+import com.shapesecurity.salvation2.Values.Nonce;
+
+import javax.annotation.Nonnull;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+// A policy serialized ahead of time, with holes where a nonce goes, so that rendering it for a response is just copying bytes.
+// Build the policy as usual, putting PLACEHOLDER wherever each response's nonce should appear (typically in script-src and style-src),
+// then compile it. The template is a snapshot: later changes to the policy do not affect it. Templates are immutable and thread-safe.
+public final class PolicyTemplate {
+	// Note that this is a perfectly valid nonce, so a policy containing it can be built and inspected like any other
+	@Nonnull
+	public static final Nonce PLACEHOLDER = Nonce.parseNonce("'nonce-salvation-template-placeholder'").get();
+
+	private static final String NONCE_PREFIX = "'nonce-";
+
+	// The constant parts of the header, between which the nonce's base64 value is spliced. There is one more of these than there are placeholders.
+	@Nonnull
+	private final byte[][] segments;
+	private final int constantLength;
+
+	private PolicyTemplate(@Nonnull byte[][] segments) {
+		this.segments = segments;
+		int length = 0;
+		for (byte[] segment : segments) {
+			length += segment.length;
+		}
+		this.constantLength = length;
+	}
+
+	// Throws IllegalArgumentException if `policy` does not contain PLACEHOLDER
+	@Nonnull
+	public static PolicyTemplate compile(@Nonnull Policy policy) {
+		SalvationMetrics metrics = Policy.metrics();
+		long start = Policy.startTiming(metrics);
+		String serialized = policy.toString();
+		String placeholderValue = PLACEHOLDER.base64ValuePart;
+		List<byte[]> segments = new ArrayList<>();
+		int segmentStart = 0;
+		int i = 0;
+		while (i < serialized.length()) {
+			// Values are always separated from what precedes them by a space and followed by a space, a `;`, or the end
+			int tokenEnd = i;
+			while (tokenEnd < serialized.length() && serialized.charAt(tokenEnd) != ' ' && serialized.charAt(tokenEnd) != ';') {
+				++tokenEnd;
+			}
+			int valueStart = i + NONCE_PREFIX.length();
+			if (tokenEnd - i == NONCE_PREFIX.length() + placeholderValue.length() + 1
+					&& serialized.regionMatches(true, i, NONCE_PREFIX, 0, NONCE_PREFIX.length())
+					&& serialized.regionMatches(valueStart, placeholderValue, 0, placeholderValue.length())
+					&& serialized.charAt(tokenEnd - 1) == '\'') {
+				segments.add(serialized.substring(segmentStart, valueStart).getBytes(StandardCharsets.US_ASCII));
+				segmentStart = valueStart + placeholderValue.length();
+			}
+			i = tokenEnd + 1;
+		}
+		if (segments.isEmpty()) {
+			throw new IllegalArgumentException("The policy does not contain " + PLACEHOLDER);
+		}
+		segments.add(serialized.substring(segmentStart).getBytes(StandardCharsets.US_ASCII));
+		PolicyTemplate template = new PolicyTemplate(segments.toArray(new byte[0][]));
+		if (metrics != null) {
+			metrics.templateCompiled(policy, template, System.nanoTime() - start);
+		}
+		return template;
+	}
+
+	public int placeholderCount() {
+		return this.segments.length - 1;
+	}
+
+	// Where the first nonce starts in rendered output
+	int firstPlaceholderOffset() {
+		return this.segments[0].length;
+	}
+
+	// In bytes, which is also in characters, since headers are ASCII
+	public int renderedLength(int nonceLength) {
+		return this.constantLength + nonceLength * this.placeholderCount();
+	}
+
+	@Nonnull
+	public byte[] render(@Nonnull Nonce nonce) {
+		byte[] out = new byte[this.renderedLength(nonce.base64ValuePart.length())];
+		this.render(nonce, out, 0);
+		return out;
+	}
+
+	// Returns the number of bytes written. Throws IndexOutOfBoundsException, having written nothing, if they do not fit.
+	public int render(@Nonnull Nonce nonce, @Nonnull byte[] out, int offset) {
+		String value = nonce.base64ValuePart;
+		int length = this.renderedLength(value.length());
+		if (offset < 0 || offset > out.length - length) {
+			throw new IndexOutOfBoundsException("need " + length + " bytes at offset " + offset + " but the array has length " + out.length);
+		}
+		int position = offset;
+		for (int i = 0; i < this.segments.length; ++i) {
+			if (i > 0) {
+				// Nonce values are base64, and so ASCII
+				for (int j = 0; j < value.length(); ++j) {
+					out[position++] = (byte) value.charAt(j);
+				}
+			}
+			byte[] segment = this.segments[i];
+			System.arraycopy(segment, 0, out, position, segment.length);
+			position += segment.length;
+		}
+		return length;
+	}
+
+	// For NonceGenerator, which writes the nonce's base64 value straight into bytes. `out` must have room.
+	void render(@Nonnull byte[] nonce, int nonceLength, @Nonnull byte[] out, int offset) {
+		int position = offset;
+		for (int i = 0; i < this.segments.length; ++i) {
+			if (i > 0) {
+				System.arraycopy(nonce, 0, out, position, nonceLength);
+				position += nonceLength;
+			}
+			byte[] segment = this.segments[i];
+			System.arraycopy(segment, 0, out, position, segment.length);
+			position += segment.length;
+		}
+	}
+
+	// Throws BufferOverflowException, having written nothing, if there is not enough space remaining in `out`
+	public void render(@Nonnull Nonce nonce, @Nonnull ByteBuffer out) {
+		String value = nonce.base64ValuePart;
+		if (out.remaining() < this.renderedLength(value.length())) {
+			throw new BufferOverflowException();
+		}
+		for (int i = 0; i < this.segments.length; ++i) {
+			if (i > 0) {
+				for (int j = 0; j < value.length(); ++j) {
+					out.put((byte) value.charAt(j));
+				}
+			}
+			out.put(this.segments[i]);
+		}
+	}
+
+	@Nonnull
+	public String renderToString(@Nonnull Nonce nonce) {
+		return new String(this.render(nonce), StandardCharsets.US_ASCII);
+	}
+}
@@ -0,0 +1,123 @@
+package com.shapesecurity.salvation2;
+
+import com.sun.net.httpserver.HttpServer;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Map;
+
+// Writes a StripedMetrics in the Prometheus text exposition format:
+// https://prometheus.io/docs/instrumenting/exposition_formats/#text-based-format
+// Durations are exported in seconds, as Prometheus prefers. Use `serve` for a standalone endpoint, or `scrape` to add these to another.
+public final class PrometheusExporter {
+	public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+	@Nonnull
+	private final StripedMetrics metrics;
+
+	public PrometheusExporter(@Nonnull StripedMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	@Nonnull
+	public String scrape() {
+		StringBuilder out = new StringBuilder();
+		try {
+			this.writeTo(out);
+		} catch (IOException e) {
+			// StringBuilders do not throw
+			throw new RuntimeException(e);
+		}
+		return out.toString();
+	}
+
+	public void writeTo(@Nonnull Appendable out) throws IOException {
+		header(out, "salvation_policies_parsed_total", "counter", "Policies parsed");
+		sample(out, "salvation_policies_parsed_total", "", this.metrics.policiesParsed());
+		header(out, "salvation_directives_parsed_total", "counter", "Directives parsed, including duplicates");
+		sample(out, "salvation_directives_parsed_total", "", this.metrics.directivesParsed());
+		header(out, "salvation_parse_duration_seconds", "histogram", "Time taken to parse each policy");
+		histogram(out, "salvation_parse_duration_seconds", "", this.metrics.parseLatency());
+
+		header(out, "salvation_template_compile_duration_seconds", "histogram", "Time taken to compile each policy template");
+		histogram(out, "salvation_template_compile_duration_seconds", "", this.metrics.compileLatency());
+
+		header(out, "salvation_parse_errors_total", "counter", "Problems reported while parsing, by severity and directive");
+		for (Policy.Severity severity : Policy.Severity.values()) {
+			for (Map.Entry<String, Long> entry : this.metrics.parseErrors(severity).entrySet()) {
+				String labels = "severity=\"" + severity.name().toLowerCase(Locale.ENGLISH) + "\",directive=\"" + escape(entry.getKey()) + "\"";
+				sample(out, "salvation_parse_errors_total", labels, entry.getValue());
+			}
+		}
+
+		header(out, "salvation_queries_total", "counter", "Queries answered, by effective directive and verdict");
+		for (FetchDirectiveKind kind : FetchDirectiveKind.values()) {
+			sample(out, "salvation_queries_total", "directive=\"" + kind.repr + "\",verdict=\"allowed\"", this.metrics.allowed(kind));
+			sample(out, "salvation_queries_total", "directive=\"" + kind.repr + "\",verdict=\"denied\"", this.metrics.denied(kind));
+		}
+		header(out, "salvation_query_duration_seconds", "histogram", "Time taken to answer each query, by effective directive");
+		for (FetchDirectiveKind kind : FetchDirectiveKind.values()) {
+			StripedMetrics.LatencyHistogram latency = this.metrics.queryLatency(kind);
+			// Most policies are only ever asked about a few kinds of fetch; leave out the histograms for the rest
+			if (latency.count() > 0) {
+				histogram(out, "salvation_query_duration_seconds", "directive=\"" + kind.repr + "\"", latency);
+			}
+		}
+	}
+
+	// Serves the metrics at `/metrics` on `address` from a background thread, until the returned server is stopped
+	@Nonnull
+	public HttpServer serve(@Nonnull InetSocketAddress address) throws IOException {
+		HttpServer server = HttpServer.create(address, 0);
+		server.createContext("/metrics", exchange -> {
+			byte[] body = this.scrape().getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+		});
+		server.start();
+		return server;
+	}
+
+	private static void header(Appendable out, String name, String type, String help) throws IOException {
+		out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+
+	private static void sample(Appendable out, String name, String labels, long value) throws IOException {
+		out.append(name);
+		if (!labels.isEmpty()) {
+			out.append('{').append(labels).append('}');
+		}
+		out.append(' ').append(Long.toString(value)).append('\n');
+	}
+
+	private static void histogram(Appendable out, String name, String labels, StripedMetrics.LatencyHistogram histogram) throws IOException {
+		String separator = labels.isEmpty() ? "" : ",";
+		long cumulative = 0;
+		for (int i = 0; i < StripedMetrics.LatencyHistogram.BOUNDED_BUCKETS; ++i) {
+			cumulative += histogram.bucketCount(i);
+			String le = Double.toString(StripedMetrics.LatencyHistogram.upperBoundNanos(i) / 1e9);
+			sample(out, name + "_bucket", labels + separator + "le=\"" + le + "\"", cumulative);
+		}
+		cumulative += histogram.bucketCount(StripedMetrics.LatencyHistogram.BOUNDED_BUCKETS);
+		sample(out, name + "_bucket", labels + separator + "le=\"+Inf\"", cumulative);
+		out.append(name).append("_sum");
+		if (!labels.isEmpty()) {
+			out.append('{').append(labels).append('}');
+		}
+		out.append(' ').append(Double.toString(histogram.sumNanos() / 1e9)).append('\n');
+		sample(out, name + "_count", labels, cumulative);
+	}
+
+	// https://prometheus.io/docs/instrumenting/exposition_formats/#comments-help-text-and-type-information
+	private static String escape(String labelValue) {
+		return labelValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+}
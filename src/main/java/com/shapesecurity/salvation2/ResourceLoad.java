@@ -0,0 +1,296 @@
+package com.shapesecurity.salvation2;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Consumer;
+
+// One recorded resource load (or inline script, eval, form submission, etc), as replayed by PolicySimulator
+public final class ResourceLoad {
+	// What was loaded, and so which allows* method decides it
+	public enum Type {
+		Script("script", "script-src-elem"),
+		Style("style", "style-src-elem"),
+		Image("image", "img-src"),
+		Font("font", "font-src"),
+		Connect("connect", "connect-src"),
+		Frame("frame", "frame-src"),
+		Media("media", "media-src"),
+		Object("object", "object-src"),
+		Manifest("manifest", "manifest-src"),
+		Worker("worker", "worker-src"),
+		Prefetch("prefetch", "prefetch-src"),
+		InlineScript("inline-script", "script-src-elem"),
+		InlineStyle("inline-style", "style-src-elem"),
+		ScriptAttribute("script-attribute", "script-src-attr"),
+		StyleAttribute("style-attribute", "style-src-attr"),
+		Eval("eval", "script-src"),
+		Form("form", "form-action"),
+		Navigation("navigation", "navigate-to"),
+		// The document was framed by the URL
+		FrameAncestor("frame-ancestor", "frame-ancestors");
+
+		public final String repr;
+		// As it would appear in a violation report
+		public final String effectiveDirective;
+
+		Type(String repr, String effectiveDirective) {
+			this.repr = repr;
+			this.effectiveDirective = effectiveDirective;
+		}
+
+		// returns null if not matched
+		@Nullable
+		public static Type fromString(String name) {
+			for (Type type : values()) {
+				if (type.repr.equals(name)) {
+					return type;
+				}
+			}
+			return null;
+		}
+
+		boolean hasUrl() {
+			return this != InlineScript && this != InlineStyle && this != ScriptAttribute && this != StyleAttribute && this != Eval;
+		}
+	}
+
+	@Nonnull
+	public final Type type;
+	// The page, whose origin is the one 'self' refers to
+	@Nonnull
+	public final String document;
+	// Null for inline content and eval
+	@Nullable
+	public final String url;
+	@Nullable
+	public final String nonce;
+	@Nullable
+	public final String integrity;
+	@Nullable
+	public final Boolean parserInserted;
+	// Inline content, for matching hashes
+	@Nullable
+	public final String source;
+
+	public ResourceLoad(@Nonnull Type type, @Nonnull String document, @Nullable String url, @Nullable String nonce, @Nullable String integrity, @Nullable Boolean parserInserted, @Nullable String source) {
+		this.type = type;
+		this.document = document;
+		this.url = url;
+		this.nonce = nonce;
+		this.integrity = integrity;
+		this.parserInserted = parserInserted;
+		this.source = source;
+	}
+
+	// Parses one line of the line-based log format:
+	//     type TAB document-url TAB resource-url [TAB key=value]...
+	// where type is a Type's repr, resource-url is "-" for inline content and eval, and the keys are nonce, integrity, parser-inserted
+	// (true or false), and source. Values cannot contain tabs or newlines. Returns empty for malformed lines.
+	@Nonnull
+	static Optional<ResourceLoad> parseLine(@Nonnull String line) {
+		String[] fields = line.split("\t", -1);
+		if (fields.length < 3) {
+			return Optional.empty();
+		}
+		Type type = Type.fromString(fields[0].trim().toLowerCase(Locale.ENGLISH));
+		if (type == null) {
+			return Optional.empty();
+		}
+		String url = fields[2].equals("-") ? null : fields[2];
+		Map<String, String> extra = new HashMap<>();
+		for (int i = 3; i < fields.length; ++i) {
+			int equals = fields[i].indexOf('=');
+			if (equals == -1) {
+				return Optional.empty();
+			}
+			extra.put(fields[i].substring(0, equals), fields[i].substring(equals + 1));
+		}
+		String parserInserted = extra.get("parser-inserted");
+		return Optional.of(new ResourceLoad(type, fields[1], url, extra.get("nonce"), extra.get("integrity"), parserInserted == null ? null : Boolean.valueOf(parserInserted), extra.get("source")));
+	}
+
+	// Reads loads from JSON: either a HAR file (http://www.softwareishard.com/blog/har-12-spec/), whose entries' Chrome-specific
+	// _resourceType says what each was and whose pages' titles are their URLs (as Chrome writes them), or any number of flat records like
+	//     {"type": "script", "document": "https://a.com/", "url": "https://b.com/x.js", "nonce": "...", "integrity": "...", "parserInserted": true, "source": "..."}
+	// as an array or one after another. `skipped` is called for each HAR entry or record which cannot be simulated.
+	// A HAR's pages must come before its entries, as browsers write them, since entries only refer to their page by id.
+	static void parseJson(@Nonnull Reader in, @Nonnull Consumer<ResourceLoad> loads, @Nonnull Runnable skipped) throws IOException {
+		JsonReader json = new JsonReader(in);
+		while (json.peek() != JsonReader.Token.End) {
+			readJson(json, loads, skipped);
+		}
+	}
+
+	private static void readJson(JsonReader json, Consumer<ResourceLoad> loads, Runnable skipped) throws IOException {
+		if (json.peek() == JsonReader.Token.BeginArray) {
+			json.beginArray();
+			while (json.hasNext()) {
+				readJson(json, loads, skipped);
+			}
+			json.endArray();
+			return;
+		}
+		if (json.peek() != JsonReader.Token.BeginObject) {
+			json.skipValue();
+			skipped.run();
+			return;
+		}
+		Map<String, String> fields = new HashMap<>();
+		json.beginObject();
+		while (json.hasNext()) {
+			String name = json.nextName();
+			if (name.equals("log") && json.peek() == JsonReader.Token.BeginObject) {
+				readHarLog(json, loads, skipped);
+				json.endObject();
+				return;
+			}
+			fields.put(name, readString(json));
+		}
+		json.endObject();
+		Type type = fields.get("type") == null ? null : Type.fromString(fields.get("type").toLowerCase(Locale.ENGLISH));
+		String document = fields.get("document");
+		String url = fields.get("url");
+		if (type == null || document == null || type.hasUrl() && url == null) {
+			skipped.run();
+			return;
+		}
+		String parserInserted = fields.get("parserInserted");
+		loads.accept(new ResourceLoad(type, document, url, fields.get("nonce"), fields.get("integrity"), parserInserted == null ? null : Boolean.valueOf(parserInserted), fields.get("source")));
+	}
+
+	// Called with the reader at the value of "log"; reads the rest of the enclosing object too, leaving only its end
+	private static void readHarLog(JsonReader json, Consumer<ResourceLoad> loads, Runnable skipped) throws IOException {
+		Map<String, String> pages = new HashMap<>();
+		json.beginObject();
+		while (json.hasNext()) {
+			String name = json.nextName();
+			if (name.equals("pages") && json.peek() == JsonReader.Token.BeginArray) {
+				json.beginArray();
+				while (json.hasNext()) {
+					Map<String, String> page = readFlatObject(json);
+					if (page.get("id") != null && page.get("title") != null) {
+						pages.put(page.get("id"), page.get("title"));
+					}
+				}
+				json.endArray();
+			} else if (name.equals("entries") && json.peek() == JsonReader.Token.BeginArray) {
+				json.beginArray();
+				while (json.hasNext()) {
+					readHarEntry(json, pages, loads, skipped);
+				}
+				json.endArray();
+			} else {
+				json.skipValue();
+			}
+		}
+		json.endObject();
+		// the rest of the enclosing object is irrelevant
+		while (json.hasNext()) {
+			json.skipValue();
+		}
+	}
+
+	private static void readHarEntry(JsonReader json, Map<String, String> pages, Consumer<ResourceLoad> loads, Runnable skipped) throws IOException {
+		if (json.peek() != JsonReader.Token.BeginObject) {
+			json.skipValue();
+			skipped.run();
+			return;
+		}
+		String pageref = null;
+		String resourceType = null;
+		String url = null;
+		json.beginObject();
+		while (json.hasNext()) {
+			switch (json.nextName()) {
+				case "pageref":
+					pageref = readString(json);
+					break;
+				case "_resourceType":
+					resourceType = readString(json);
+					break;
+				case "request":
+					url = readFlatObject(json).get("url");
+					break;
+				default:
+					json.skipValue();
+					break;
+			}
+		}
+		json.endObject();
+		String document = pageref == null ? null : pages.get(pageref);
+		Type type = resourceType == null ? null : harType(resourceType.toLowerCase(Locale.ENGLISH));
+		if (document == null || type == null || url == null) {
+			skipped.run();
+			return;
+		}
+		loads.accept(new ResourceLoad(type, document, url, null, null, null, null));
+	}
+
+	// Chrome's resource types: https://chromedevtools.github.io/devtools-protocol/tot/Network/#type-ResourceType
+	@Nullable
+	private static Type harType(String resourceType) {
+		switch (resourceType) {
+			case "script":
+				return Type.Script;
+			case "stylesheet":
+				return Type.Style;
+			case "image":
+				return Type.Image;
+			case "font":
+				return Type.Font;
+			case "media":
+			case "texttrack":
+				return Type.Media;
+			case "manifest":
+				return Type.Manifest;
+			case "prefetch":
+				return Type.Prefetch;
+			case "xhr":
+			case "fetch":
+			case "websocket":
+			case "eventsource":
+			case "ping":
+				return Type.Connect;
+			default:
+				// including "document", the page itself, which the policy does not govern
+				return null;
+		}
+	}
+
+	// Reads an object's string, number, and boolean members, skipping the rest
+	private static Map<String, String> readFlatObject(JsonReader json) throws IOException {
+		Map<String, String> fields = new HashMap<>();
+		if (json.peek() != JsonReader.Token.BeginObject) {
+			json.skipValue();
+			return fields;
+		}
+		json.beginObject();
+		while (json.hasNext()) {
+			String name = json.nextName();
+			fields.put(name, readString(json));
+		}
+		json.endObject();
+		return fields;
+	}
+
+	@Nullable
+	private static String readString(JsonReader json) throws IOException {
+		JsonReader.Token token = json.peek();
+		if (token == JsonReader.Token.String || token == JsonReader.Token.Number || token == JsonReader.Token.Boolean) {
+			return json.nextString();
+		}
+		json.skipValue();
+		return null;
+	}
+
+	@Override
+	public String toString() {
+		return this.type.repr + " " + (this.url == null ? "-" : this.url) + " on " + this.document;
+	}
+}
@@ -0,0 +1,65 @@
+package com.shapesecurity.salvation2;
+
+import javax.annotation.Nonnull;
+
+// Told about every policy parsed, template compiled, and query answered, once installed with Policy.setMetrics. StripedMetrics and
+// JfrMetrics are ready-made ones; `combine` reports to several at once.
+// Methods are called on the parsing or querying thread, as part of the operation being reported, so they must be fast and thread-safe.
+// Anything derived from the policy they are given (its serialization, say) should only be worked out when it is actually wanted.
+//
+// Queries are reported under their effective directive (https://w3c.github.io/webappsec-csp/#effective-directive-for-a-request),
+// whichever directive the policy actually falls back to; eval is reported under script-src. Checks against directives which are not
+// fetch directives (navigate-to, form-action, frame-ancestors, and plugin-types) are not reported.
+public interface SalvationMetrics {
+	// Once per call to Policy.parseSerializedCSP, and so once per policy when parsing a list; `directiveCount` includes duplicates
+	default void policyParsed(@Nonnull Policy policy, int directiveCount, long durationNanos) {
+		// pass
+	}
+
+	// `directiveName` is spelled as in the policy, and `message` is what the PolicyErrorConsumer is given
+	default void parseError(@Nonnull Policy.Severity severity, @Nonnull String directiveName, @Nonnull String message) {
+		// pass
+	}
+
+	default void templateCompiled(@Nonnull Policy policy, @Nonnull PolicyTemplate template, long durationNanos) {
+		// pass
+	}
+
+	default void queryAnswered(@Nonnull Policy policy, @Nonnull FetchDirectiveKind effectiveDirective, boolean allowed, long durationNanos) {
+		// pass
+	}
+
+	@Nonnull
+	static SalvationMetrics combine(@Nonnull SalvationMetrics... all) {
+		SalvationMetrics[] copy = all.clone();
+		return new SalvationMetrics() {
+			@Override
+			public void policyParsed(@Nonnull Policy policy, int directiveCount, long durationNanos) {
+				for (SalvationMetrics metrics : copy) {
+					metrics.policyParsed(policy, directiveCount, durationNanos);
+				}
+			}
+
+			@Override
+			public void parseError(@Nonnull Policy.Severity severity, @Nonnull String directiveName, @Nonnull String message) {
+				for (SalvationMetrics metrics : copy) {
+					metrics.parseError(severity, directiveName, message);
+				}
+			}
+
+			@Override
+			public void templateCompiled(@Nonnull Policy policy, @Nonnull PolicyTemplate template, long durationNanos) {
+				for (SalvationMetrics metrics : copy) {
+					metrics.templateCompiled(policy, template, durationNanos);
+				}
+			}
+
+			@Override
+			public void queryAnswered(@Nonnull Policy policy, @Nonnull FetchDirectiveKind effectiveDirective, boolean allowed, long durationNanos) {
+				for (SalvationMetrics metrics : copy) {
+					metrics.queryAnswered(policy, effectiveDirective, allowed, durationNanos);
+				}
+			}
+		};
+	}
+}
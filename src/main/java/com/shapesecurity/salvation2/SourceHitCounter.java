@@ -0,0 +1,225 @@
+package com.shapesecurity.salvation2;
+
+import com.shapesecurity.salvation2.Directives.HostSourceDirective;
+import com.shapesecurity.salvation2.Directives.SourceExpressionDirective;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+// Counts, for each source expression in a policy, how many queries it allowed, so that sources which real traffic never uses can be found
+// and removed. Get one from Policy.countSourceHits. Counting is safe from many threads at once, and each count is a LongAdder so that
+// they do not contend.
+//
+// Only the first source expression to match a URL is counted, as that is the one which allowed it; a source which is only ever
+// shadowed by an earlier one counts as unused, since removing it would change nothing. Hashes are counted whenever they match a
+// script's integrity metadata, even if some other integrity value then fails to, so they are never reported unused while they are in use.
+public final class SourceHitCounter {
+	// Only written during construction
+	private final IdentityHashMap<Directive, DirectiveCounts> byDirective = new IdentityHashMap<>();
+	private final List<DirectiveCounts> inOrder = new ArrayList<>();
+
+	SourceHitCounter(Policy policy) {
+		// Duplicate directives are never consulted, so there is nothing to count for them
+		policy.forEachEffectiveDirective((name, directive) -> {
+			if (directive instanceof HostSourceDirective) {
+				DirectiveCounts counts = new DirectiveCounts(name, (HostSourceDirective) directive);
+				this.byDirective.put(directive, counts);
+				this.inOrder.add(counts);
+			}
+		});
+	}
+
+	// `match` is as returned by Policy.matchUrlInSourceList, and not SourceMatch.NO_MATCH
+	void recordUrlMatch(HostSourceDirective directive, int match) {
+		DirectiveCounts counts = this.byDirective.get(directive);
+		if (counts == null) {
+			return;
+		}
+		SourceMatch.Source source = SourceMatch.source(match);
+		if (source == null) {
+			return;
+		}
+		switch (source) {
+			case Star:
+				counts.star.increment();
+				break;
+			case Self:
+				counts.self.increment();
+				break;
+			case Scheme:
+				increment(counts.schemes, SourceMatch.index(match));
+				break;
+			case Host:
+				increment(counts.hosts, SourceMatch.index(match));
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown source " + source);
+		}
+	}
+
+	void recordNonce(SourceExpressionDirective directive, int index) {
+		DirectiveCounts counts = this.byDirective.get(directive);
+		if (counts != null) {
+			increment(counts.nonces, index);
+		}
+	}
+
+	void recordHash(SourceExpressionDirective directive, int index) {
+		DirectiveCounts counts = this.byDirective.get(directive);
+		if (counts != null) {
+			increment(counts.hashes, index);
+		}
+	}
+
+	private static void increment(LongAdder[] adders, int index) {
+		// Directives are frozen while counting, so this always holds; but a miscount is better than a failed query
+		if (index < adders.length) {
+			adders[index].increment();
+		}
+	}
+
+	// Every counted source expression: by directive, in the order they appear in the policy, and then *, 'self', schemes, hosts, nonces, and hashes
+	@Nonnull
+	public List<SourceHits> hits() {
+		List<SourceHits> hits = new ArrayList<>();
+		for (DirectiveCounts counts : this.inOrder) {
+			counts.addTo(hits);
+		}
+		return Collections.unmodifiableList(hits);
+	}
+
+	@Nonnull
+	public List<SourceHits> neverHit() {
+		return this.hitsBetween(0, 1);
+	}
+
+	// Source expressions which have been hit, but fewer than `threshold` times
+	@Nonnull
+	public List<SourceHits> rarelyHit(long threshold) {
+		return this.hitsBetween(1, threshold);
+	}
+
+	private List<SourceHits> hitsBetween(long atLeast, long fewerThan) {
+		List<SourceHits> result = new ArrayList<>();
+		for (SourceHits hits : this.hits()) {
+			if (hits.hits >= atLeast && hits.hits < fewerThan) {
+				result.add(hits);
+			}
+		}
+		return Collections.unmodifiableList(result);
+	}
+
+	// A readable summary of the never-hit and rarely-hit sources of each directive which has any, one directive per line
+	@Nonnull
+	public String report(long rarelyHitThreshold) {
+		StringBuilder report = new StringBuilder();
+		for (DirectiveCounts counts : this.inOrder) {
+			List<SourceHits> hits = new ArrayList<>();
+			counts.addTo(hits);
+			StringBuilder never = new StringBuilder();
+			StringBuilder rarely = new StringBuilder();
+			for (SourceHits source : hits) {
+				if (source.hits == 0) {
+					never.append(never.length() == 0 ? "" : " ").append(source.source);
+				} else if (source.hits < rarelyHitThreshold) {
+					rarely.append(rarely.length() == 0 ? "" : " ").append(source.source).append(" (").append(source.hits).append(')');
+				}
+			}
+			if (never.length() == 0 && rarely.length() == 0) {
+				continue;
+			}
+			report.append(counts.name).append(':');
+			if (never.length() > 0) {
+				report.append(" never hit: ").append(never).append(';');
+			}
+			if (rarely.length() > 0) {
+				report.append(" hit fewer than ").append(rarelyHitThreshold).append(" times: ").append(rarely).append(';');
+			}
+			report.setLength(report.length() - 1);
+			report.append('\n');
+		}
+		return report.toString();
+	}
+
+	public static final class SourceHits {
+		// Lowercase
+		@Nonnull
+		public final String directive;
+		// As serialized by the corresponding value class, e.g. Host.toString
+		@Nonnull
+		public final String source;
+		public final long hits;
+
+		SourceHits(@Nonnull String directive, @Nonnull String source, long hits) {
+			this.directive = directive;
+			this.source = source;
+			this.hits = hits;
+		}
+
+		@Override
+		public String toString() {
+			return this.directive + " " + this.source + ": " + this.hits;
+		}
+	}
+
+	private static final class DirectiveCounts {
+		final String name;
+		final HostSourceDirective directive;
+		final LongAdder star = new LongAdder();
+		final LongAdder self = new LongAdder();
+		final LongAdder[] schemes;
+		final LongAdder[] hosts;
+		final LongAdder[] nonces;
+		final LongAdder[] hashes;
+
+		DirectiveCounts(String name, HostSourceDirective directive) {
+			this.name = name;
+			this.directive = directive;
+			this.schemes = adders(directive.getSchemes().size());
+			this.hosts = adders(directive.getHosts().size());
+			if (directive instanceof SourceExpressionDirective) {
+				this.nonces = adders(((SourceExpressionDirective) directive).getNonces().size());
+				this.hashes = adders(((SourceExpressionDirective) directive).getHashes().size());
+			} else {
+				this.nonces = adders(0);
+				this.hashes = adders(0);
+			}
+		}
+
+		private static LongAdder[] adders(int count) {
+			LongAdder[] adders = new LongAdder[count];
+			for (int i = 0; i < count; ++i) {
+				adders[i] = new LongAdder();
+			}
+			return adders;
+		}
+
+		void addTo(List<SourceHits> hits) {
+			if (this.directive.star()) {
+				hits.add(new SourceHits(this.name, "*", this.star.sum()));
+			}
+			if (this.directive.self()) {
+				hits.add(new SourceHits(this.name, "'self'", this.self.sum()));
+			}
+			for (int i = 0; i < this.schemes.length; ++i) {
+				hits.add(new SourceHits(this.name, this.directive.getSchemes().get(i).toString(), this.schemes[i].sum()));
+			}
+			for (int i = 0; i < this.hosts.length; ++i) {
+				hits.add(new SourceHits(this.name, this.directive.getHosts().get(i).toString(), this.hosts[i].sum()));
+			}
+			if (this.directive instanceof SourceExpressionDirective) {
+				SourceExpressionDirective sourceExpressions = (SourceExpressionDirective) this.directive;
+				for (int i = 0; i < this.nonces.length; ++i) {
+					hits.add(new SourceHits(this.name, sourceExpressions.getNonces().get(i).toString(), this.nonces[i].sum()));
+				}
+				for (int i = 0; i < this.hashes.length; ++i) {
+					hits.add(new SourceHits(this.name, sourceExpressions.getHashes().get(i).toString(), this.hashes[i].sum()));
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,105 @@
+package com.shapesecurity.salvation2;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+// Why a URL was or was not allowed by a policy: which directive governed the fetch and, if the URL matched it, which source expression
+// matched first. https://w3c.github.io/webappsec-csp/#match-url-to-source-list only calls for a boolean; this is worked out in the same pass.
+//
+// Matches are also available encoded as a single int, which is what Policy works with internally and what
+// PolicyInOrigin.matchUrlEncoded returns, so that attributing every query does not allocate. The static methods here decode them.
+public final class SourceMatch {
+	public enum Source {
+		Star,
+		// `index` is into the directive's getSchemes()
+		Scheme,
+		// `index` is into the directive's getHosts()
+		Host,
+		Self,
+	}
+
+	// Encoded layout: bits 0-21 the index, 22-23 the source, 24-28 the governing directive's ordinal plus one (zero if there is none),
+	// and bit 29 set if the URL matched
+	private static final int INDEX_BITS = 22;
+	private static final int INDEX_MASK = (1 << INDEX_BITS) - 1;
+	private static final int SOURCE_SHIFT = INDEX_BITS;
+	private static final int GOVERNING_SHIFT = SOURCE_SHIFT + 2;
+	private static final int MATCHED = 1 << (GOVERNING_SHIFT + 5);
+
+	private static final FetchDirectiveKind[] KINDS = FetchDirectiveKind.values();
+	private static final Source[] SOURCES = Source.values();
+
+	// The encoded result for a fetch which no directive governs, and which is therefore allowed
+	public static final int NO_DIRECTIVE = 0;
+
+	// The result of matching against a single source list when nothing matched; see Policy.matchUrlInSourceList
+	static final int NO_MATCH = -1;
+
+	// Whether the fetch was allowed: either no directive governed it, or the URL matched the one which did
+	public final boolean allowed;
+	// Null if no directive governed the fetch
+	@Nullable
+	public final FetchDirectiveKind governingDirective;
+	// Null unless the URL matched
+	@Nullable
+	public final Source source;
+	// -1 unless source is Scheme or Host
+	public final int index;
+
+	private SourceMatch(boolean allowed, @Nullable FetchDirectiveKind governingDirective, @Nullable Source source, int index) {
+		this.allowed = allowed;
+		this.governingDirective = governingDirective;
+		this.source = source;
+		this.index = index;
+	}
+
+	@Nonnull
+	public static SourceMatch decode(int encoded) {
+		return new SourceMatch(allowed(encoded), governingDirective(encoded), source(encoded), index(encoded));
+	}
+
+	public static boolean allowed(int encoded) {
+		return encoded == NO_DIRECTIVE || (encoded & MATCHED) != 0;
+	}
+
+	@Nullable
+	public static FetchDirectiveKind governingDirective(int encoded) {
+		int governing = encoded >>> GOVERNING_SHIFT & 0x1f;
+		return governing == 0 ? null : KINDS[governing - 1];
+	}
+
+	@Nullable
+	public static Source source(int encoded) {
+		return (encoded & MATCHED) == 0 ? null : SOURCES[encoded >>> SOURCE_SHIFT & 0x3];
+	}
+
+	public static int index(int encoded) {
+		Source source = source(encoded);
+		return source == Source.Scheme || source == Source.Host ? encoded & INDEX_MASK : -1;
+	}
+
+	// For Policy.matchUrlInSourceList; `index` is ignored for Star and Self
+	static int sourceMatch(Source source, int index) {
+		if (index > INDEX_MASK) {
+			throw new IllegalStateException("source lists of more than " + INDEX_MASK + " schemes or hosts are not supported");
+		}
+		return MATCHED | source.ordinal() << SOURCE_SHIFT | (source == Source.Scheme || source == Source.Host ? index : 0);
+	}
+
+	// Combines the result of matching against a source list (or NO_MATCH) with the directive it came from
+	static int withGoverningDirective(int sourceMatch, @Nonnull FetchDirectiveKind governingDirective) {
+		int governing = (governingDirective.ordinal() + 1) << GOVERNING_SHIFT;
+		return sourceMatch == NO_MATCH ? governing : sourceMatch | governing;
+	}
+
+	@Override
+	public String toString() {
+		if (this.governingDirective == null) {
+			return "allowed: no directive";
+		}
+		if (!this.allowed) {
+			return "blocked by " + this.governingDirective.repr;
+		}
+		return "allowed by " + this.governingDirective.repr + " " + this.source + (this.index == -1 ? "" : " " + this.index);
+	}
+}
@@ -0,0 +1,163 @@
+package com.shapesecurity.salvation2;
+
+import javax.annotation.Nonnull;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// Counts parses, parse errors, template compilations, and allowed and denied queries, and keeps histograms of how long each took.
+// Every counter is a LongAdder, which spreads increments from different threads across cells, so that threads querying at the same
+// time do not contend. Reading is correspondingly slower and not atomic across counters, which is fine for metrics.
+public final class StripedMetrics implements SalvationMetrics {
+	// Errors are counted per severity and directive. Directive names come from the policies, which may make up any number of them,
+	// so past this many distinct names per severity the rest are counted together under OTHER_DIRECTIVES.
+	private static final int MAX_DIRECTIVE_NAMES = 128;
+
+	public static final String OTHER_DIRECTIVES = "other";
+
+	private final LongAdder policiesParsed = new LongAdder();
+	private final LongAdder directivesParsed = new LongAdder();
+	private final LatencyHistogram parseLatency = new LatencyHistogram();
+	private final LatencyHistogram compileLatency = new LatencyHistogram();
+	private final EnumMap<Policy.Severity, ConcurrentHashMap<String, LongAdder>> errors = new EnumMap<>(Policy.Severity.class);
+	private final LongAdder[] allowed = new LongAdder[FetchDirectiveKind.values().length];
+	private final LongAdder[] denied = new LongAdder[FetchDirectiveKind.values().length];
+	private final LatencyHistogram[] queryLatency = new LatencyHistogram[FetchDirectiveKind.values().length];
+
+	public StripedMetrics() {
+		for (Policy.Severity severity : Policy.Severity.values()) {
+			this.errors.put(severity, new ConcurrentHashMap<>());
+		}
+		for (int i = 0; i < this.allowed.length; ++i) {
+			this.allowed[i] = new LongAdder();
+			this.denied[i] = new LongAdder();
+			this.queryLatency[i] = new LatencyHistogram();
+		}
+	}
+
+	@Override
+	public void policyParsed(@Nonnull Policy policy, int directiveCount, long durationNanos) {
+		this.policiesParsed.increment();
+		this.directivesParsed.add(directiveCount);
+		this.parseLatency.record(durationNanos);
+	}
+
+	@Override
+	public void parseError(@Nonnull Policy.Severity severity, @Nonnull String directiveName, @Nonnull String message) {
+		ConcurrentHashMap<String, LongAdder> counts = this.errors.get(severity);
+		String name = directiveName.toLowerCase(Locale.ENGLISH);
+		LongAdder count = counts.get(name);
+		if (count == null) {
+			if (counts.size() >= MAX_DIRECTIVE_NAMES) {
+				name = OTHER_DIRECTIVES;
+			}
+			count = counts.computeIfAbsent(name, k -> new LongAdder());
+		}
+		count.increment();
+	}
+
+	@Override
+	public void templateCompiled(@Nonnull Policy policy, @Nonnull PolicyTemplate template, long durationNanos) {
+		this.compileLatency.record(durationNanos);
+	}
+
+	@Override
+	public void queryAnswered(@Nonnull Policy policy, @Nonnull FetchDirectiveKind effectiveDirective, boolean allowed, long durationNanos) {
+		int i = effectiveDirective.ordinal();
+		(allowed ? this.allowed : this.denied)[i].increment();
+		this.queryLatency[i].record(durationNanos);
+	}
+
+	public long policiesParsed() {
+		return this.policiesParsed.sum();
+	}
+
+	public long directivesParsed() {
+		return this.directivesParsed.sum();
+	}
+
+	@Nonnull
+	public LatencyHistogram parseLatency() {
+		return this.parseLatency;
+	}
+
+	// Of PolicyTemplate.compile; its count is the number of templates compiled
+	@Nonnull
+	public LatencyHistogram compileLatency() {
+		return this.compileLatency;
+	}
+
+	// By lowercased directive name, in order
+	@Nonnull
+	public Map<String, Long> parseErrors(@Nonnull Policy.Severity severity) {
+		Map<String, Long> result = new TreeMap<>();
+		for (Map.Entry<String, LongAdder> entry : this.errors.get(severity).entrySet()) {
+			result.put(entry.getKey(), entry.getValue().sum());
+		}
+		return result;
+	}
+
+	public long allowed(@Nonnull FetchDirectiveKind effectiveDirective) {
+		return this.allowed[effectiveDirective.ordinal()].sum();
+	}
+
+	public long denied(@Nonnull FetchDirectiveKind effectiveDirective) {
+		return this.denied[effectiveDirective.ordinal()].sum();
+	}
+
+	@Nonnull
+	public LatencyHistogram queryLatency(@Nonnull FetchDirectiveKind effectiveDirective) {
+		return this.queryLatency[effectiveDirective.ordinal()];
+	}
+
+	// Durations bucketed by powers of two, from 256ns up to about a second, plus a final bucket for anything longer.
+	public static final class LatencyHistogram {
+		private static final int SMALLEST_BOUND_BITS = 8;
+
+		// Not counting the final, unbounded, bucket
+		public static final int BOUNDED_BUCKETS = 23;
+
+		private final LongAdder[] buckets = new LongAdder[BOUNDED_BUCKETS + 1];
+		private final LongAdder sumNanos = new LongAdder();
+
+		LatencyHistogram() {
+			for (int i = 0; i < this.buckets.length; ++i) {
+				this.buckets[i] = new LongAdder();
+			}
+		}
+
+		void record(long nanos) {
+			// Bucket i holds durations in (upperBoundNanos(i - 1), upperBoundNanos(i)]
+			int bucket = nanos <= 1L << SMALLEST_BOUND_BITS ? 0 : 64 - Long.numberOfLeadingZeros(nanos - 1) - SMALLEST_BOUND_BITS;
+			this.buckets[Math.min(bucket, BOUNDED_BUCKETS)].increment();
+			this.sumNanos.add(nanos);
+		}
+
+		public static long upperBoundNanos(int bucket) {
+			if (bucket < 0 || bucket >= BOUNDED_BUCKETS) {
+				throw new IllegalArgumentException("bucket " + bucket + " has no upper bound");
+			}
+			return 1L << (bucket + SMALLEST_BOUND_BITS);
+		}
+
+		// The number of durations in bucket `bucket` alone; bucket BOUNDED_BUCKETS holds everything longer than the last bound
+		public long bucketCount(int bucket) {
+			return this.buckets[bucket].sum();
+		}
+
+		public long count() {
+			long count = 0;
+			for (LongAdder bucket : this.buckets) {
+				count += bucket.sum();
+			}
+			return count;
+		}
+
+		public long sumNanos() {
+			return this.sumNanos.sum();
+		}
+	}
+}
@@ -0,0 +1,326 @@
+package com.shapesecurity.salvation2.URLs;
+
+import com.shapesecurity.salvation2.Constants;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+// A URL which can be overwritten in place, so that querying a policy for many URLs need not allocate anything per URL.
+// The usual pattern is to hold one per thread (see `forCurrentThread`), `parse` each URL into it, and pass it to PolicyInOrigin.
+// Its host and path are views which are only valid until the next `parse` or `set`; use `toURLWithScheme` to keep a URL around.
+public final class MutableURL {
+	private static final ThreadLocal<MutableURL> PER_THREAD = ThreadLocal.withInitial(MutableURL::new);
+
+	// Schemes which are common enough that parsing them should not allocate
+	private static final String[] KNOWN_SCHEMES = { "http", "https", "ws", "wss", "ftp", "file", "data", "blob", "filesystem", "javascript", "about", "mailto", "gopher" };
+
+	@Nonnull
+	private String scheme = "";
+	@Nullable
+	private CharSequence host = null;
+	private int port = Constants.NO_PORT;
+	@Nonnull
+	private CharSequence path = "";
+
+	// Allocated on first use, since URLs which only ever `set` from a URLWithScheme never need them
+	private StringBuilder hostBuffer;
+	private StringBuilder pathBuffer;
+
+	// Remembers the last scheme outside KNOWN_SCHEMES, so a stream of URLs with some other scheme doesn't allocate for each
+	private String lastUnknownScheme = null;
+
+	public MutableURL() {
+		// pass
+	}
+
+	// The instance belonging to the calling thread. Callers must not hold on to it across calls into code which might also use it.
+	@Nonnull
+	public static MutableURL forCurrentThread() {
+		return PER_THREAD.get();
+	}
+
+	@Nonnull
+	public String scheme() {
+		return this.scheme;
+	}
+
+	// Lowercase; null for URLs without a host, like GUIDs
+	@Nullable
+	public CharSequence host() {
+		return this.host;
+	}
+
+	// Constants.NO_PORT for URLs without a host; Constants.EMPTY_PORT for URLs whose scheme has no default port
+	public int port() {
+		return this.port;
+	}
+
+	@Nonnull
+	public CharSequence path() {
+		return this.path;
+	}
+
+	// Points this at the parts of `url`, without copying them
+	@Nonnull
+	public MutableURL set(@Nonnull URLWithScheme url) {
+		this.scheme = url.scheme;
+		this.host = url.host;
+		this.port = url.port == null ? Constants.NO_PORT : url.port;
+		this.path = url.path;
+		return this;
+	}
+
+	public boolean parse(@Nonnull CharSequence input) {
+		return this.parse(input, 0, input.length());
+	}
+
+	// Accepts the grammar of Constants.hostSourcePattern with a mandatory scheme, without using regular expressions.
+	// Ports which overflow an int are rejected. Returns false, leaving this URL unchanged, if `input` does not match.
+	public boolean parse(@Nonnull CharSequence input, int start, int end) {
+		if (start < 0 || end > input.length() || start > end) {
+			throw new IndexOutOfBoundsException("bad region [" + start + ", " + end + ") of input of length " + input.length());
+		}
+
+		// scheme: https://tools.ietf.org/html/rfc3986#section-3.1
+		int i = start;
+		if (i == end || !isAlpha(input.charAt(i))) {
+			return false;
+		}
+		++i;
+		while (i < end && isSchemeChar(input.charAt(i))) {
+			++i;
+		}
+		int schemeEnd = i;
+		if (end - i < 3 || input.charAt(i) != ':' || input.charAt(i + 1) != '/' || input.charAt(i + 2) != '/') {
+			return false;
+		}
+		i += 3;
+
+		// host-part: https://w3c.github.io/webappsec-csp/#grammardef-host-part
+		int hostStart = i;
+		if (i < end && input.charAt(i) == '*') {
+			++i;
+			if (i < end && input.charAt(i) == '.') {
+				++i;
+				i = scanLabels(input, i, end);
+				if (i == -1) {
+					return false;
+				}
+			}
+		} else {
+			i = scanLabels(input, i, end);
+			if (i == -1) {
+				return false;
+			}
+		}
+		int hostEnd = i;
+
+		// port-part: https://w3c.github.io/webappsec-csp/#grammardef-port-part
+		int parsedPort = Constants.EMPTY_PORT;
+		boolean hasPort = i < end && input.charAt(i) == ':';
+		if (hasPort) {
+			++i;
+			if (i < end && input.charAt(i) == '*') {
+				++i;
+				parsedPort = Constants.WILDCARD_PORT;
+			} else {
+				int portStart = i;
+				long value = 0;
+				while (i < end && isDigit(input.charAt(i))) {
+					value = value * 10 + (input.charAt(i) - '0');
+					if (value > Integer.MAX_VALUE) {
+						return false;
+					}
+					++i;
+				}
+				if (i == portStart) {
+					return false;
+				}
+				parsedPort = (int) value;
+			}
+		}
+
+		// path-part: https://w3c.github.io/webappsec-csp/#grammardef-path-part
+		int pathStart = i;
+		while (i < end) {
+			char c = input.charAt(i);
+			if (i == pathStart && c != '/') {
+				break;
+			}
+			if (c == '%') {
+				if (end - i < 3 || !isHexDigit(input.charAt(i + 1)) || !isHexDigit(input.charAt(i + 2))) {
+					return false;
+				}
+				i += 3;
+			} else if (c == '/' || isPathChar(c)) {
+				++i;
+			} else {
+				break;
+			}
+		}
+		int pathEnd = i;
+
+		// query and fragment, which are ignored
+		if (i < end && input.charAt(i) == '?') {
+			while (i < end && input.charAt(i) != '#') {
+				++i;
+			}
+		}
+		if (i < end && input.charAt(i) == '#') {
+			++i;
+			while (i < end && !isLineTerminator(input.charAt(i))) {
+				++i;
+			}
+		}
+		if (i != end && !isFinalLineTerminator(input, i, end)) {
+			return false;
+		}
+
+		this.scheme = this.lowercaseScheme(input, start, schemeEnd);
+		if (this.hostBuffer == null) {
+			this.hostBuffer = new StringBuilder(hostEnd - hostStart);
+			this.pathBuffer = new StringBuilder(pathEnd - pathStart);
+		}
+		this.hostBuffer.setLength(0);
+		for (int j = hostStart; j < hostEnd; ++j) {
+			this.hostBuffer.append(toLowerAscii(input.charAt(j)));
+		}
+		this.host = this.hostBuffer;
+		this.port = hasPort ? parsedPort : URI.defaultPortForProtocol(this.scheme);
+		this.pathBuffer.setLength(0);
+		this.pathBuffer.append(input, pathStart, pathEnd);
+		this.path = this.pathBuffer;
+		return true;
+	}
+
+	// Copies this into a URI or GUID which is independent of any further changes to this
+	@Nonnull
+	public URLWithScheme toURLWithScheme() {
+		if (this.host == null) {
+			return new GUID(this.scheme, this.path.toString());
+		}
+		return new URI(this.scheme, this.host.toString(), this.port, this.path.toString());
+	}
+
+	@Override
+	public String toString() {
+		if (this.host == null) {
+			return this.scheme + ":" + this.path;
+		}
+		return this.scheme + "://" + this.host + (this.port == URI.defaultPortForProtocol(this.scheme) ? "" : ":" + (this.port == Constants.WILDCARD_PORT ? "*" : this.port)) + this.path;
+	}
+
+	@Nonnull
+	private String lowercaseScheme(CharSequence input, int start, int end) {
+		for (String known : KNOWN_SCHEMES) {
+			if (equalsIgnoreAsciiCase(known, input, start, end)) {
+				return known;
+			}
+		}
+		if (this.lastUnknownScheme != null && equalsIgnoreAsciiCase(this.lastUnknownScheme, input, start, end)) {
+			return this.lastUnknownScheme;
+		}
+		char[] chars = new char[end - start];
+		for (int j = start; j < end; ++j) {
+			chars[j - start] = toLowerAscii(input.charAt(j));
+		}
+		this.lastUnknownScheme = new String(chars);
+		return this.lastUnknownScheme;
+	}
+
+	// `[a-zA-Z0-9-]+(?:\.[a-zA-Z0-9-]+)*`, returning the index after the match or -1 if there is none
+	private static int scanLabels(CharSequence input, int i, int end) {
+		while (true) {
+			int labelStart = i;
+			while (i < end && isLabelChar(input.charAt(i))) {
+				++i;
+			}
+			if (i == labelStart) {
+				return -1;
+			}
+			if (i < end && input.charAt(i) == '.') {
+				++i;
+			} else {
+				return i;
+			}
+		}
+	}
+
+	private static boolean equalsIgnoreAsciiCase(String lowercase, CharSequence input, int start, int end) {
+		if (lowercase.length() != end - start) {
+			return false;
+		}
+		for (int j = start; j < end; ++j) {
+			if (toLowerAscii(input.charAt(j)) != lowercase.charAt(j - start)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static char toLowerAscii(char c) {
+		return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+	}
+
+	private static boolean isAlpha(char c) {
+		return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z';
+	}
+
+	private static boolean isDigit(char c) {
+		return c >= '0' && c <= '9';
+	}
+
+	private static boolean isHexDigit(char c) {
+		return isDigit(c) || c >= 'a' && c <= 'f' || c >= 'A' && c <= 'F';
+	}
+
+	private static boolean isSchemeChar(char c) {
+		return isAlpha(c) || isDigit(c) || c == '+' || c == '-' || c == '.';
+	}
+
+	private static boolean isLabelChar(char c) {
+		return isAlpha(c) || isDigit(c) || c == '-';
+	}
+
+	// pchar, less pct-encoded: https://tools.ietf.org/html/rfc3986#section-3.3
+	private static boolean isPathChar(char c) {
+		if (isAlpha(c) || isDigit(c)) {
+			return true;
+		}
+		switch (c) {
+			case '-':
+			case '.':
+			case '_':
+			case '~':
+			case '!':
+			case '$':
+			case '&':
+			case '\'':
+			case '(':
+			case ')':
+			case '*':
+			case '+':
+			case ',':
+			case ';':
+			case '=':
+			case ':':
+			case '@':
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	// The characters which `.` does not match in a java.util.regex.Pattern
+	private static boolean isLineTerminator(char c) {
+		return c == '\n' || c == '\r' || c == (char) 0x85 || c == (char) 0x2028 || c == (char) 0x2029;
+	}
+
+	// Whether [i, end) is a single line terminator, which a java.util.regex.Pattern's `$` permits before the end of input
+	private static boolean isFinalLineTerminator(CharSequence input, int i, int end) {
+		if (end - i == 2) {
+			return input.charAt(i) == '\r' && input.charAt(i + 1) == '\n';
+		}
+		return end - i == 1 && isLineTerminator(input.charAt(i));
+	}
+}
@@ -3,9 +3,7 @@ package com.shapesecurity.salvation2.URLs;
 import com.shapesecurity.salvation2.Constants;
 
 import javax.annotation.Nonnull;
-import java.util.Locale;
 import java.util.Optional;
-import java.util.regex.Matcher;
 
 public class URI extends URLWithScheme {
 
@@ -15,28 +13,11 @@ public class URI extends URLWithScheme {
 
 	@Nonnull
 	public static Optional<URI> parseURI(@Nonnull String uri) {
-		Matcher matcher = Constants.hostSourcePattern.matcher(uri);
-		if (!matcher.find()) {
+		MutableURL parsed = new MutableURL();
+		if (!parsed.parse(uri)) {
 			return Optional.empty();
 		}
-		String scheme = matcher.group(1);
-		if (scheme == null) {
-			return Optional.empty();
-		}
-		scheme = scheme.substring(0, scheme.length() - 3);
-		String portString = matcher.group(3);
-		int port;
-		if (portString == null) {
-			port = URI.defaultPortForProtocol(scheme.toLowerCase(Locale.ENGLISH));
-		} else {
-			port = portString.equals(":*") ? Constants.WILDCARD_PORT : Integer.parseInt(portString.substring(1));
-		}
-		String host = matcher.group(2);
-		String path = matcher.group(4);
-		if (path == null) {
-			path = "";
-		}
-		return Optional.of(new URI(scheme, host, port, path));
+		return Optional.of((URI) parsed.toURLWithScheme());
 	}
 
 	// http://www.w3.org/TR/url/#default-port
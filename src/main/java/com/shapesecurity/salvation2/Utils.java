@@ -1,10 +1,15 @@
 package com.shapesecurity.salvation2;
 
+import com.shapesecurity.salvation2.URLs.GUID;
+import com.shapesecurity.salvation2.URLs.URI;
+import com.shapesecurity.salvation2.URLs.URLWithScheme;
+
 import javax.annotation.Nonnull;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Optional;
 import java.util.function.Predicate;
 import java.util.regex.Pattern;
 
@@ -44,6 +49,16 @@ public class Utils {
 			return s;
 		}
 	}
+
+	// As a URI where possible, and otherwise as a GUID (data:, blob:, etc), for URLs from outside sources such as reports and logs
+	static Optional<URLWithScheme> parseUrl(@Nonnull String url) {
+		String trimmed = url.trim();
+		Optional<URI> uri = URI.parseURI(trimmed);
+		if (uri.isPresent()) {
+			return Optional.of(uri.get());
+		}
+		return GUID.parseGUID(trimmed).map(guid -> guid);
+	}
 	
 	private Utils() {
 		// Utility class
@@ -3,9 +3,16 @@ package com.shapesecurity.salvation2.Values;
 import com.shapesecurity.salvation2.Utils;
 
 import javax.annotation.Nonnull;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.List;
 import java.util.Locale;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.stream.Collectors;
 
 public class Hash {
 	@Nonnull
@@ -44,6 +51,30 @@ public class Hash {
 		return Optional.empty();
 	}
 
+	// The hash-source which allows an inline script or style with exactly this content. Per
+	// https://w3c.github.io/webappsec-csp/#match-element-to-source-list the digest is of the UTF-8 encoding of the element's text.
+	@Nonnull
+	public static Hash digest(@Nonnull Algorithm algorithm, @Nonnull String inlineSource) {
+		return digest(algorithm, inlineSource.getBytes(StandardCharsets.UTF_8));
+	}
+
+	@Nonnull
+	public static Hash digest(@Nonnull Algorithm algorithm, @Nonnull byte[] content) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance(algorithm.jcaName);
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+		return new Hash(algorithm, Base64.getEncoder().encodeToString(digest.digest(content)));
+	}
+
+	// Digests the sources in parallel. The result is in the same order as `inlineSources`.
+	@Nonnull
+	public static List<Hash> digestAll(@Nonnull Algorithm algorithm, @Nonnull Collection<String> inlineSources) {
+		return inlineSources.parallelStream().map(source -> digest(algorithm, source)).collect(Collectors.toList());
+	}
+
 	@Override
 	public String toString() {
 		return "'" + this.algorithm.toString() + "-" + this.base64ValuePart + "'";
@@ -64,9 +95,9 @@ public class Hash {
 	}
 
 	public enum Algorithm {
-		SHA256("sha256", 44),
-		SHA384("sha384", 64),
-		SHA512("sha512", 88);
+		SHA256("sha256", 44, "SHA-256"),
+		SHA384("sha384", 64, "SHA-384"),
+		SHA512("sha512", 88, "SHA-512");
 
 		@Nonnull
 		private final String value;
@@ -74,10 +105,14 @@ public class Hash {
 		@Nonnull
 		public final int length;
 
+		@Nonnull
+		private final String jcaName;
+
 
-		Algorithm(@Nonnull String value, int length) {
+		Algorithm(@Nonnull String value, int length, @Nonnull String jcaName) {
 			this.value = value;
 			this.length = length;
+			this.jcaName = jcaName;
 		}
 
 		@Override
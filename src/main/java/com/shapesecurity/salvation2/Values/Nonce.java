@@ -27,6 +27,12 @@ public class Nonce {
 		return Optional.empty();
 	}
 
+	// For values already known to match the base64-value grammar, such as those NonceGenerator encodes; this does not check them
+	@Nonnull
+	public static Nonce ofValidatedBase64(@Nonnull String base64ValuePart) {
+		return new Nonce(base64ValuePart);
+	}
+
 	@Override
 	public String toString() {
 		return "'nonce-" + base64ValuePart + "'";
@@ -0,0 +1,469 @@
+package com.shapesecurity.salvation2;
+
+import com.shapesecurity.salvation2.URLs.GUID;
+import com.shapesecurity.salvation2.URLs.URI;
+import com.shapesecurity.salvation2.URLs.URLWithScheme;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.function.Consumer;
+
+// A CSP violation report, as sent to a policy's report-uri (https://w3c.github.io/webappsec-csp/#deprecated-serialize-violation) or
+// report-to endpoint (https://w3c.github.io/webappsec-csp/#reporting). The raw fields are kept as sent, since they are untrusted and
+// browsers disagree about them; the accessors below normalize them using this library's own URL and directive parsing.
+public final class ViolationReport {
+	// Values browsers send for blocked-uri in place of a URL
+	private static final String[] BLOCKED_URI_KEYWORDS = { "inline", "eval", "wasm-eval", "trusted-types-policy", "trusted-types-sink" };
+
+	@Nullable
+	public final String documentUri;
+	@Nullable
+	public final String referrer;
+	@Nullable
+	public final String blockedUri;
+	@Nullable
+	public final String effectiveDirective;
+	@Nullable
+	public final String violatedDirective;
+	@Nullable
+	public final String originalPolicy;
+	// "enforce" or "report"
+	@Nullable
+	public final String disposition;
+	@Nullable
+	public final String sourceFile;
+	@Nullable
+	public final String sample;
+	// -1 where not sent
+	public final long statusCode;
+	public final long lineNumber;
+	public final long columnNumber;
+	// How long before delivery the violation happened, for reports sent through the Reporting API; otherwise 0
+	public final long ageMillis;
+
+	private ViolationReport(Builder builder) {
+		this.documentUri = builder.documentUri;
+		this.referrer = builder.referrer;
+		this.blockedUri = builder.blockedUri;
+		this.effectiveDirective = builder.effectiveDirective;
+		this.violatedDirective = builder.violatedDirective;
+		this.originalPolicy = builder.originalPolicy;
+		this.disposition = builder.disposition;
+		this.sourceFile = builder.sourceFile;
+		this.sample = builder.sample;
+		this.statusCode = builder.statusCode;
+		this.lineNumber = builder.lineNumber;
+		this.columnNumber = builder.columnNumber;
+		this.ageMillis = builder.ageMillis;
+	}
+
+	// The report a browser would send for a violation of `policy`, for PolicySimulator
+	@Nonnull
+	static ViolationReport simulated(@Nonnull String documentUri, @Nonnull String blockedUri, @Nonnull String effectiveDirective, @Nonnull Policy policy, @Nullable String sample) {
+		Builder builder = new Builder();
+		builder.documentUri = documentUri;
+		builder.blockedUri = blockedUri;
+		builder.effectiveDirective = effectiveDirective;
+		builder.violatedDirective = effectiveDirective;
+		builder.originalPolicy = policy.toString();
+		builder.disposition = "enforce";
+		// Browsers send at most the first 40 characters of inline content
+		builder.sample = sample == null ? null : sample.substring(0, Math.min(40, sample.length()));
+		return new ViolationReport(builder);
+	}
+
+	// Reads every report in `in`, in either format, calling `consumer` with each as soon as it has been read. `in` may hold a single
+	// report, an array of them (as the Reporting API sends), or any number of either one after another (as in a newline-delimited log).
+	// Reporting API reports of types other than "csp-violation" are skipped. Throws IOException if `in` is not JSON.
+	public static void parse(@Nonnull Reader in, @Nonnull Consumer<ViolationReport> consumer) throws IOException {
+		JsonReader json = new JsonReader(in);
+		while (json.peek() != JsonReader.Token.End) {
+			readReports(json, consumer);
+		}
+	}
+
+	@Nonnull
+	public static List<ViolationReport> parse(@Nonnull String json) {
+		List<ViolationReport> reports = new ArrayList<>();
+		try {
+			parse(new StringReader(json), reports::add);
+		} catch (IOException e) {
+			throw new IllegalArgumentException(e.getMessage(), e);
+		}
+		return reports;
+	}
+
+	private static void readReports(JsonReader json, Consumer<ViolationReport> consumer) throws IOException {
+		if (json.peek() == JsonReader.Token.BeginArray) {
+			json.beginArray();
+			while (json.hasNext()) {
+				readReports(json, consumer);
+			}
+			json.endArray();
+			return;
+		}
+		if (json.peek() != JsonReader.Token.BeginObject) {
+			json.skipValue();
+			return;
+		}
+		Builder builder = new Builder();
+		boolean isViolation = false;
+		String type = null;
+		json.beginObject();
+		while (json.hasNext()) {
+			String name = json.nextName();
+			switch (name) {
+				case "csp-report":
+					// report-uri
+					isViolation = readBody(json, builder);
+					break;
+				case "body":
+					// report-to
+					isViolation = readBody(json, builder);
+					break;
+				case "type":
+					type = readString(json);
+					break;
+				case "age":
+					builder.ageMillis = readLong(json, 0);
+					break;
+				default:
+					json.skipValue();
+					break;
+			}
+		}
+		json.endObject();
+		if (isViolation && (type == null || type.equals("csp-violation"))) {
+			consumer.accept(new ViolationReport(builder));
+		}
+	}
+
+	// Returns false if the body is not an object
+	private static boolean readBody(JsonReader json, Builder builder) throws IOException {
+		if (json.peek() != JsonReader.Token.BeginObject) {
+			json.skipValue();
+			return false;
+		}
+		json.beginObject();
+		while (json.hasNext()) {
+			// report-uri reports use kebab-case and Reporting API reports use camelCase
+			switch (json.nextName()) {
+				case "document-uri":
+				case "documentURL":
+					builder.documentUri = readString(json);
+					break;
+				case "referrer":
+					builder.referrer = readString(json);
+					break;
+				case "blocked-uri":
+				case "blockedURL":
+					builder.blockedUri = readString(json);
+					break;
+				case "effective-directive":
+				case "effectiveDirective":
+					builder.effectiveDirective = readString(json);
+					break;
+				case "violated-directive":
+					builder.violatedDirective = readString(json);
+					break;
+				case "original-policy":
+				case "originalPolicy":
+					builder.originalPolicy = readString(json);
+					break;
+				case "disposition":
+					builder.disposition = readString(json);
+					break;
+				case "source-file":
+				case "sourceFile":
+					builder.sourceFile = readString(json);
+					break;
+				case "script-sample":
+				case "sample":
+					builder.sample = readString(json);
+					break;
+				case "status-code":
+				case "statusCode":
+					builder.statusCode = readLong(json, -1);
+					break;
+				case "line-number":
+				case "lineNumber":
+					builder.lineNumber = readLong(json, -1);
+					break;
+				case "column-number":
+				case "columnNumber":
+					builder.columnNumber = readLong(json, -1);
+					break;
+				default:
+					json.skipValue();
+					break;
+			}
+		}
+		json.endObject();
+		return true;
+	}
+
+	// Values of the wrong type are treated as absent rather than rejecting the whole stream, since senders are not all careful
+	@Nullable
+	private static String readString(JsonReader json) throws IOException {
+		JsonReader.Token token = json.peek();
+		if (token == JsonReader.Token.String || token == JsonReader.Token.Number || token == JsonReader.Token.Boolean) {
+			return json.nextString();
+		}
+		json.skipValue();
+		return null;
+	}
+
+	private static long readLong(JsonReader json, long absent) throws IOException {
+		String value = readString(json);
+		if (value == null) {
+			return absent;
+		}
+		try {
+			return Long.parseLong(value);
+		} catch (NumberFormatException e) {
+			return absent;
+		}
+	}
+
+	// The lowercase name of the directive which was violated: the effective directive, or for older browsers, which send only the
+	// violated directive, its name. Empty if neither was sent.
+	@Nonnull
+	public String directive() {
+		String directive = this.effectiveDirective;
+		if (directive == null || directive.isEmpty()) {
+			directive = this.violatedDirective == null ? "" : this.violatedDirective.trim();
+			int space = directive.indexOf(' ');
+			if (space != -1) {
+				directive = directive.substring(0, space);
+			}
+		}
+		return directive.toLowerCase(Locale.ENGLISH);
+	}
+
+	// The effective directive as a fetch directive, if it is one. Older browsers report script-src and style-src where newer ones report
+	// script-src-elem and style-src-elem, so those are taken to mean the latter; default-src and child-src are never effective directives.
+	@Nonnull
+	public Optional<FetchDirectiveKind> fetchDirective() {
+		FetchDirectiveKind kind = FetchDirectiveKind.fromString(this.directive());
+		if (kind == null || kind == FetchDirectiveKind.DefaultSrc || kind == FetchDirectiveKind.ChildSrc) {
+			return Optional.empty();
+		}
+		if (kind == FetchDirectiveKind.ScriptSrc) {
+			return Optional.of(FetchDirectiveKind.ScriptSrcElem);
+		}
+		if (kind == FetchDirectiveKind.StyleSrc) {
+			return Optional.of(FetchDirectiveKind.StyleSrcElem);
+		}
+		return Optional.of(kind);
+	}
+
+	@Nonnull
+	public Optional<URLWithScheme> blockedUrl() {
+		if (this.blockedUri == null) {
+			return Optional.empty();
+		}
+		String keyword = this.blockedKeyword();
+		if (keyword == null) {
+			return Utils.parseUrl(this.blockedUri);
+		}
+		if (keyword.endsWith(":")) {
+			// a bare scheme is still enough to evaluate a policy against
+			return Optional.of(new GUID(keyword.substring(0, keyword.length() - 1), ""));
+		}
+		return Optional.empty();
+	}
+
+	@Nonnull
+	public Optional<URLWithScheme> documentUrl() {
+		return this.documentUri == null ? Optional.empty() : Utils.parseUrl(this.documentUri);
+	}
+
+	// What was blocked, in a form suitable for grouping reports: one of the keywords browsers send instead of a URL ("inline", "eval", etc),
+	// a URL without its query or fragment, a bare scheme for URLs without hosts (as browsers report data: and blob: URLs), or
+	// failing those the value as sent. Empty if nothing was sent.
+	@Nonnull
+	public String blockedResource() {
+		if (this.blockedUri == null) {
+			return "";
+		}
+		String keyword = this.blockedKeyword();
+		if (keyword != null) {
+			return keyword;
+		}
+		Optional<URLWithScheme> url = Utils.parseUrl(this.blockedUri);
+		return url.isPresent() ? describe(url.get()) : this.blockedUri;
+	}
+
+	// The origin of the document the violation happened in, serialized, or empty if it was not sent or could not be parsed
+	@Nonnull
+	public String documentOrigin() {
+		Optional<URLWithScheme> url = this.documentUrl();
+		if (!url.isPresent() || url.get().host == null) {
+			return "";
+		}
+		return origin(url.get());
+	}
+
+	@Nullable
+	private String blockedKeyword() {
+		String lowcase = this.blockedUri.trim().toLowerCase(Locale.ENGLISH);
+		// Older browsers send an empty blocked-uri for inline violations, and some send "self"
+		if (lowcase.isEmpty()) {
+			return "inline";
+		}
+		for (String keyword : BLOCKED_URI_KEYWORDS) {
+			if (lowcase.equals(keyword)) {
+				return keyword;
+			}
+		}
+		if (lowcase.equals("self")) {
+			return "self";
+		}
+		// Older browsers send just the scheme for data:, blob:, etc
+		if (lowcase.equals("data") || lowcase.equals("blob") || lowcase.equals("filesystem")) {
+			return lowcase + ":";
+		}
+		return null;
+	}
+
+	private static String describe(URLWithScheme url) {
+		if (url.host == null) {
+			return url.scheme + ":";
+		}
+		return origin(url) + url.path;
+	}
+
+	private static String origin(URLWithScheme url) {
+		String origin = url.scheme + "://" + url.host;
+		if (url.port != null && url.port != Constants.EMPTY_PORT && url.port != URI.defaultPortForProtocol(url.scheme)) {
+			origin += ":" + url.port;
+		}
+		return origin;
+	}
+
+	// A 64-bit hash of every field which distinguishes one violation from another, for recognizing duplicate reports. The age is left out,
+	// since a retried report is the same violation sent later, and so are the fields which only report-uri reports have (referrer and
+	// violated-directive, which is used only as a fallback for the effective directive), so that the report-uri and report-to copies of
+	// one violation match.
+	long identity() {
+		long hash = 0xcbf29ce484222325L;
+		String[] fields = { this.documentUri, this.blockedUri, this.directive(), this.originalPolicy, this.disposition, this.sourceFile, this.sample };
+		for (String field : fields) {
+			hash = fnv1a(hash, field == null ? "\0" : field);
+			hash = fnv1a(hash, "\n");
+		}
+		return ((hash * 31 + this.statusCode) * 31 + this.lineNumber) * 31 + this.columnNumber;
+	}
+
+	// https://datatracker.ietf.org/doc/html/draft-eastlake-fnv
+	private static long fnv1a(long hash, String value) {
+		for (int i = 0; i < value.length(); ++i) {
+			hash = (hash ^ value.charAt(i)) * 0x100000001b3L;
+		}
+		return hash;
+	}
+
+	// Whether `policy` would still block what this report says was blocked
+	public enum Verdict {
+		Blocked,
+		Allowed,
+		// The report does not say enough, or concerns a directive this library does not evaluate (e.g. trusted-types)
+		Unknown,
+	}
+
+	// Asks `policy` about what this report says was blocked. A report whose violation the current policy allows is stale: it was
+	// caused by an older policy, or by a policy which has since been fixed. Since reports do not include nonces, integrity metadata,
+	// or full inline sources, nonce- and hash-based allowances cannot be taken into account; so an inline violation is Allowed only if
+	// the policy allows all inline content of its kind.
+	@Nonnull
+	public Verdict reevaluate(@Nonnull Policy policy) {
+		String directive = this.directive();
+		Optional<URLWithScheme> origin = this.documentUrl();
+		String keyword = this.blockedUri == null ? null : this.blockedKeyword();
+		Optional<URLWithScheme> url = this.blockedUrl();
+		if ("eval".equals(keyword) || "wasm-eval".equals(keyword)) {
+			return verdict(policy.allowsEval());
+		}
+		if ("inline".equals(keyword)) {
+			switch (directive) {
+				case "script-src":
+				case "script-src-elem":
+					return verdict(policy.allowsInlineScript(Optional.empty(), Optional.empty(), Optional.empty()));
+				case "script-src-attr":
+					return verdict(policy.allowsScriptAsAttribute(Optional.empty()));
+				case "style-src":
+				case "style-src-elem":
+					return verdict(policy.allowsInlineStyle(Optional.empty(), Optional.empty()));
+				case "style-src-attr":
+					return verdict(policy.allowsStyleAsAttribute(Optional.empty()));
+				default:
+					return Verdict.Unknown;
+			}
+		}
+		if (!url.isPresent()) {
+			return Verdict.Unknown;
+		}
+		switch (directive) {
+			case "frame-ancestors":
+				return verdict(policy.allowsFrameAncestor(url, origin));
+			case "form-action":
+				return verdict(policy.allowsFormAction(url, Optional.empty(), Optional.empty(), origin));
+			case "navigate-to":
+				return verdict(policy.allowsNavigation(url, Optional.empty(), Optional.empty(), origin));
+			default:
+				break;
+		}
+		Optional<FetchDirectiveKind> kind = this.fetchDirective();
+		if (!kind.isPresent()) {
+			return Verdict.Unknown;
+		}
+		switch (kind.get()) {
+			case ScriptSrcElem:
+				return verdict(policy.allowsExternalScript(Optional.empty(), Optional.empty(), url, Optional.empty(), origin));
+			case StyleSrcElem:
+				return verdict(policy.allowsExternalStyle(Optional.empty(), url, origin));
+			case ScriptSrcAttr:
+			case StyleSrcAttr:
+				return Verdict.Unknown;
+			default:
+				return verdict(policy.matchUrl(kind.get(), url, origin).allowed);
+		}
+	}
+
+	// Whether `policy` allows what this report says was blocked; see `reevaluate`
+	public boolean isStale(@Nonnull Policy policy) {
+		return this.reevaluate(policy) == Verdict.Allowed;
+	}
+
+	private static Verdict verdict(boolean allowed) {
+		return allowed ? Verdict.Allowed : Verdict.Blocked;
+	}
+
+	@Override
+	public String toString() {
+		return this.directive() + " blocked " + this.blockedResource() + " on " + this.documentUri;
+	}
+
+	private static final class Builder {
+		String documentUri;
+		String referrer;
+		String blockedUri;
+		String effectiveDirective;
+		String violatedDirective;
+		String originalPolicy;
+		String disposition;
+		String sourceFile;
+		String sample;
+		long statusCode = -1;
+		long lineNumber = -1;
+		long columnNumber = -1;
+		long ageMillis = 0;
+	}
+}
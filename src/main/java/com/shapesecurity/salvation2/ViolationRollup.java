@@ -0,0 +1,241 @@
+package com.shapesecurity.salvation2;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// Counts violation reports in fixed windows of time, grouped by what was violated: the directive, the normalized blocked resource,
+// the origin of the document, and the disposition. Reports which differ only in details (the page's path, the line number, etc)
+// collapse into one count, which is what makes millions of reports an hour readable. Duplicates, as browsers send when they retry or
+// when a policy has both report-uri and report-to, are counted once; see ViolationReport.identity.
+// Windows come from the reports' ages, which anyone can send, so reports older than a maximum age, or older than what has already been
+// evicted, are dropped rather than given windows of their own.
+// Any number of threads can add reports at once. Counts are LongAdders, so threads do not contend on popular groups; reading a
+// window while reports are being added to it sees some consistent-enough recent state, which is fine for monitoring.
+public final class ViolationRollup {
+	// Groups come from the reports, which anyone can send, so once a window has as many groups as its limit allows, the rest are counted together
+	public static final String OTHER = "other";
+
+	// How many reports per group, on average, each window remembers in order to recognize duplicates. Past that, duplicates are counted.
+	private static final int REMEMBERED_REPORTS_PER_GROUP = 16;
+
+	// Browsers deliver Reporting API reports within a minute or so, and retry for not much longer
+	public static final Duration DEFAULT_MAX_AGE = Duration.ofMinutes(15);
+
+	private final long windowMillis;
+	private final int maxGroupsPerWindow;
+	private final long maxAgeMillis;
+	private final ConcurrentHashMap<Long, Window> windows = new ConcurrentHashMap<>();
+	private final LongAdder dropped = new LongAdder();
+	private volatile long evictedBefore = Long.MIN_VALUE;
+
+	public ViolationRollup(@Nonnull Duration window, int maxGroupsPerWindow) {
+		this(window, maxGroupsPerWindow, DEFAULT_MAX_AGE);
+	}
+
+	// Reports older than `maxAge` when received are dropped, so that at most about maxAge / window windows are open at once
+	public ViolationRollup(@Nonnull Duration window, int maxGroupsPerWindow, @Nonnull Duration maxAge) {
+		if (window.toMillis() < 1) {
+			throw new IllegalArgumentException("windows must be at least a millisecond long");
+		}
+		if (maxGroupsPerWindow < 1) {
+			throw new IllegalArgumentException("windows must hold at least one group");
+		}
+		if (maxAge.isNegative()) {
+			throw new IllegalArgumentException("maxAge must not be negative");
+		}
+		this.windowMillis = window.toMillis();
+		this.maxGroupsPerWindow = maxGroupsPerWindow;
+		this.maxAgeMillis = maxAge.toMillis();
+	}
+
+	// Counts `report` in the window containing the time of the violation, which is `receivedAt` less the report's age.
+	// Returns false if it duplicates a report already counted in that window, or was dropped for being too old.
+	public boolean add(@Nonnull ViolationReport report, @Nonnull Instant receivedAt) {
+		long ageMillis = Math.max(0, report.ageMillis);
+		long occurredAt = receivedAt.toEpochMilli() - ageMillis;
+		if (ageMillis > this.maxAgeMillis || occurredAt < this.evictedBefore) {
+			this.dropped.increment();
+			return false;
+		}
+		long start = Math.floorDiv(occurredAt, this.windowMillis) * this.windowMillis;
+		Window window = this.windows.get(start);
+		if (window == null) {
+			window = this.windows.computeIfAbsent(start, Window::new);
+		}
+		if (!window.firstTimeSeen(report.identity(), this.maxGroupsPerWindow * REMEMBERED_REPORTS_PER_GROUP)) {
+			window.duplicates.increment();
+			return false;
+		}
+		window.add(new Group(report.directive(), report.blockedResource(), report.documentOrigin(), report.disposition == null ? "" : report.disposition), this.maxGroupsPerWindow);
+		// evictBefore may have run since the check above, and either removed this window after the report was counted, or removed it
+		// before, in which case computeIfAbsent made it again. Either way, the report counts as dropped, and the window must not stay.
+		// evictBefore sets evictedBefore before removing windows, so any eviction this missed will remove the window itself.
+		if (occurredAt < this.evictedBefore) {
+			this.windows.remove(start, window);
+			this.dropped.increment();
+			return false;
+		}
+		return true;
+	}
+
+	// Drops every window which ends at or before `time`, to bound memory. Reports of violations before then are dropped from now on.
+	public void evictBefore(@Nonnull Instant time) {
+		long cutoff = time.toEpochMilli();
+		// The start of the earliest window kept
+		long kept = Math.floorDiv(cutoff, this.windowMillis) * this.windowMillis;
+		synchronized (this) {
+			if (kept > this.evictedBefore) {
+				this.evictedBefore = kept;
+			}
+		}
+		this.windows.keySet().removeIf(start -> start + this.windowMillis <= cutoff);
+	}
+
+	// Reports which were dropped for being too old
+	public long dropped() {
+		return this.dropped.sum();
+	}
+
+	// The windows which have reports, earliest first
+	@Nonnull
+	public List<WindowSnapshot> snapshot() {
+		List<WindowSnapshot> snapshots = new ArrayList<>();
+		for (Window window : this.windows.values()) {
+			snapshots.add(window.snapshot(this.windowMillis));
+		}
+		snapshots.sort((a, b) -> a.start.compareTo(b.start));
+		return Collections.unmodifiableList(snapshots);
+	}
+
+	public static final class WindowSnapshot {
+		@Nonnull
+		public final Instant start;
+		@Nonnull
+		public final Instant end;
+		// Not including duplicates
+		public final long reports;
+		public final long duplicates;
+		// Most reports first
+		@Nonnull
+		public final List<GroupCount> groups;
+
+		WindowSnapshot(@Nonnull Instant start, @Nonnull Instant end, long reports, long duplicates, @Nonnull List<GroupCount> groups) {
+			this.start = start;
+			this.end = end;
+			this.reports = reports;
+			this.duplicates = duplicates;
+			this.groups = groups;
+		}
+	}
+
+	public static final class GroupCount {
+		// Lowercase; see ViolationReport.directive. OTHER for the overflow group.
+		@Nonnull
+		public final String directive;
+		// See ViolationReport.blockedResource
+		@Nonnull
+		public final String blockedResource;
+		@Nonnull
+		public final String documentOrigin;
+		@Nonnull
+		public final String disposition;
+		public final long reports;
+
+		GroupCount(@Nonnull Group group, long reports) {
+			this.directive = group.directive;
+			this.blockedResource = group.blockedResource;
+			this.documentOrigin = group.documentOrigin;
+			this.disposition = group.disposition;
+			this.reports = reports;
+		}
+
+		@Override
+		public String toString() {
+			return this.directive + " " + this.blockedResource + " on " + this.documentOrigin + " (" + this.disposition + "): " + this.reports;
+		}
+	}
+
+	private static final class Window {
+		private static final Group OVERFLOW = new Group(OTHER, OTHER, OTHER, OTHER);
+
+		final long start;
+		final LongAdder reports = new LongAdder();
+		final LongAdder duplicates = new LongAdder();
+		final ConcurrentHashMap<Group, LongAdder> groups = new ConcurrentHashMap<>();
+		final Set<Long> seen = ConcurrentHashMap.newKeySet();
+
+		Window(long start) {
+			this.start = start;
+		}
+
+		boolean firstTimeSeen(long identity, int maxRemembered) {
+			if (this.seen.size() >= maxRemembered) {
+				return !this.seen.contains(identity);
+			}
+			return this.seen.add(identity);
+		}
+
+		void add(Group group, int maxGroups) {
+			this.reports.increment();
+			LongAdder count = this.groups.get(group);
+			if (count == null) {
+				// One place is kept for OVERFLOW. The limit is approximate under concurrency, which is fine: it exists to bound memory, not to be exact.
+				count = this.groups.computeIfAbsent(this.groups.size() >= maxGroups - 1 ? OVERFLOW : group, g -> new LongAdder());
+			}
+			count.increment();
+		}
+
+		WindowSnapshot snapshot(long windowMillis) {
+			List<GroupCount> counts = new ArrayList<>();
+			for (Map.Entry<Group, LongAdder> entry : this.groups.entrySet()) {
+				counts.add(new GroupCount(entry.getKey(), entry.getValue().sum()));
+			}
+			counts.sort((a, b) -> Long.compare(b.reports, a.reports));
+			return new WindowSnapshot(Instant.ofEpochMilli(this.start), Instant.ofEpochMilli(this.start + windowMillis), this.reports.sum(), this.duplicates.sum(), Collections.unmodifiableList(counts));
+		}
+	}
+
+	private static final class Group {
+		final String directive;
+		final String blockedResource;
+		final String documentOrigin;
+		final String disposition;
+
+		Group(String directive, String blockedResource, String documentOrigin, String disposition) {
+			this.directive = directive;
+			this.blockedResource = blockedResource;
+			this.documentOrigin = documentOrigin;
+			this.disposition = disposition;
+		}
+
+		@Override
+		public boolean equals(@Nullable Object o) {
+			if (this == o) {
+				return true;
+			}
+			if (!(o instanceof Group)) {
+				return false;
+			}
+			Group that = (Group) o;
+			return this.directive.equals(that.directive)
+					&& this.blockedResource.equals(that.blockedResource)
+					&& this.documentOrigin.equals(that.documentOrigin)
+					&& this.disposition.equals(that.disposition);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(this.directive, this.blockedResource, this.documentOrigin, this.disposition);
+		}
+	}
+}
@@ -0,0 +1,84 @@
+package com.shapesecurity.salvation2;
+
+import com.shapesecurity.salvation2.URLs.URI;
+import com.shapesecurity.salvation2.URLs.URLWithScheme;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AdaptiveSourceOrderTest extends TestBase {
+	private static final Optional<URLWithScheme> ORIGIN = Optional.of(URI.parseURI("https://example.com").get());
+
+	@Test
+	public void testReorder() {
+		AdaptiveSourceOrder order = new AdaptiveSourceOrder(5);
+		assertArrayEquals(new int[]{ 0, 1, 2, 3, 4 }, order.order());
+		for (int i = 0; i < AdaptiveSourceOrder.REORDER_INTERVAL - 3; ++i) {
+			order.hit(3);
+		}
+		order.hit(1);
+		order.hit(1);
+		assertArrayEquals(new int[]{ 0, 1, 2, 3, 4 }, order.order());
+		order.hit(4);
+		// ties, including sources never hit, stay in declaration order
+		assertArrayEquals(new int[]{ 3, 1, 4, 0, 2 }, order.order());
+
+		// old hits decay, so the order follows traffic
+		for (int i = 0; i < AdaptiveSourceOrder.REORDER_INTERVAL; ++i) {
+			order.hit(2);
+		}
+		assertArrayEquals(new int[]{ 2, 3, 1, 0, 4 }, order.order());
+	}
+
+	@Test
+	public void testResultsAndSerializationUnchanged() {
+		String text = "img-src a.com b.com *.c.com https://d.com/x/ e.com:8080 'self'; script-src 'nonce-abc' a.com b.com c.com d.com; style-src a.com";
+		Policy adapted = Policy.parseSerializedCSP(text, throwIfPolicyError);
+		Policy plain = Policy.parseSerializedCSP(text, throwIfPolicyError);
+		adapted.adaptHostSourceOrder();
+		assertEquals(text, adapted.toString());
+		assertTrue(orderOf(adapted, FetchDirectiveKind.ImgSrc) != null);
+		// too short to be worth it
+		assertNull(orderOf(adapted, FetchDirectiveKind.StyleSrc));
+
+		String[] urls = { "https://e.com:8080/", "https://x.c.com/", "https://d.com/x/y", "https://d.com/y", "http://a.com", "https://example.com/", "https://z.com/" };
+		for (int round = 0; round < 3 * AdaptiveSourceOrder.REORDER_INTERVAL; ++round) {
+			// skewed towards hosts late in the list
+			String u = urls[round % 5 == 0 ? round % urls.length : 0];
+			Optional<URLWithScheme> url = Optional.of(URI.parseURI(u).get());
+			assertEquals(u, plain.allowsImage(url, ORIGIN), adapted.allowsImage(url, ORIGIN));
+			assertEquals(u, plain.allowsExternalScript(Optional.empty(), Optional.empty(), url, Optional.empty(), ORIGIN), adapted.allowsExternalScript(Optional.empty(), Optional.empty(), url, Optional.empty(), ORIGIN));
+		}
+		assertEquals(4, orderOf(adapted, FetchDirectiveKind.ImgSrc).order()[0]);
+		assertEquals(text, adapted.toString());
+
+		// which source decided is still reported as written
+		assertEquals(1, adapted.matchUrl(FetchDirectiveKind.ImgSrc, Optional.of(URI.parseURI("https://b.com/").get()), ORIGIN).index);
+	}
+
+	@Test
+	public void testFrozen() {
+		Policy policy = Policy.parseSerializedCSP("img-src a.com b.com c.com d.com", throwIfPolicyError);
+		policy.adaptHostSourceOrder();
+		try {
+			policy.getFetchDirective(FetchDirectiveKind.ImgSrc).get().removeHost(policy.getFetchDirective(FetchDirectiveKind.ImgSrc).get().getHosts().get(0));
+			fail();
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		assertEquals(Arrays.asList("a.com", "b.com", "c.com", "d.com"), policy.getFetchDirective(FetchDirectiveKind.ImgSrc).get().getHosts().stream().map(Object::toString).collect(Collectors.toList()));
+	}
+
+	private static AdaptiveSourceOrder orderOf(Policy policy, FetchDirectiveKind kind) {
+		Directive directive = policy.getFetchDirective(kind).get();
+		return directive.adaptiveOrder;
+	}
+}
@@ -0,0 +1,185 @@
+package com.shapesecurity.salvation2;
+
+import com.shapesecurity.salvation2.URLs.GUID;
+import com.shapesecurity.salvation2.URLs.MutableURL;
+import com.shapesecurity.salvation2.URLs.URI;
+import com.shapesecurity.salvation2.URLs.URLWithScheme;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.function.ToIntFunction;
+
+import static org.junit.Assert.fail;
+
+// Guards the number of bytes allocated by operations which run once per request, against the budgets in allocation-budgets.properties.
+// Each operation is warmed up first, so that what is measured is what the JIT-compiled code allocates, and then measured as the least
+// allocated over a few runs, since the counters occasionally pick up allocation which is not the operation's own.
+// If an intended change needs more, raise the budget in the same commit, so that the increase is reviewed.
+public class AllocationBudgetTest extends TestBase {
+	// Rounds over the whole corpus before measuring. Queries are cheap enough to warm up for longer, which gives escape analysis more
+	// chance to remove the few small objects each allocates before it is compiled.
+	private static final int PARSE_WARMUP_ROUNDS = 20;
+	private static final int QUERY_WARMUP_ROUNDS = 300;
+	private static final int MEASURED_RUNS = 5;
+
+	private static com.sun.management.ThreadMXBean threads;
+	private static Properties budgets;
+	private static List<String> serializedPolicies;
+	private static List<PolicyInOrigin> policies;
+	private static List<URLWithScheme> urls;
+	private static List<MutableURL> mutableUrls;
+
+	@BeforeClass
+	public static void setUp() throws IOException {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+		threads = (com.sun.management.ThreadMXBean) bean;
+		Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+		threads.setThreadAllocatedMemoryEnabled(true);
+
+		budgets = new Properties();
+		try (InputStream in = AllocationBudgetTest.class.getResourceAsStream("/allocation-budgets.properties")) {
+			budgets.load(in);
+		}
+
+		serializedPolicies = new ArrayList<>();
+		policies = new ArrayList<>();
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(AllocationBudgetTest.class.getResourceAsStream("/csp.txt"), StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String host = line.substring(0, line.indexOf(':'));
+				URLWithScheme origin = URI.parseURI("https://" + host).get();
+				for (Policy policy : Policy.parseSerializedCSPList(line.substring(host.length() + 1), Policy.PolicyListErrorConsumer.ignored).policies) {
+					serializedPolicies.add(policy.toString());
+					policies.add(new PolicyInOrigin(policy, origin));
+				}
+			}
+		}
+
+		urls = new ArrayList<>();
+		urls.add(URI.parseURI("https://example.com/a/b").get());
+		urls.add(URI.parseURI("http://example.com").get());
+		urls.add(URI.parseURI("https://www.google-analytics.com/ga.js").get());
+		urls.add(URI.parseURI("wss://example.com").get());
+		urls.add(URI.parseURI("http://127.0.0.1:8080/").get());
+		urls.add(new GUID("data", "image/png"));
+		mutableUrls = new ArrayList<>();
+		for (URLWithScheme url : urls) {
+			mutableUrls.add(new MutableURL().set(url));
+		}
+	}
+
+	@Test
+	public void testParse() {
+		checkEach("parse", PARSE_WARMUP_ROUNDS, serializedPolicies, String::length, policy -> Policy.parseSerializedCSP(policy, Policy.PolicyErrorConsumer.ignored));
+	}
+
+	@Test
+	public void testSerialize() {
+		List<Policy> fresh = new ArrayList<>();
+		for (String policy : serializedPolicies) {
+			fresh.add(Policy.parseSerializedCSP(policy, Policy.PolicyErrorConsumer.ignored));
+		}
+		checkEach("serialize", PARSE_WARMUP_ROUNDS, fresh, policy -> policy.toString().length(), policy -> {
+			policy.invalidateSerialization();
+			policy.toString();
+		});
+		// Once serialized, a policy's string is kept until it changes
+		checkEach("serialize.cached", PARSE_WARMUP_ROUNDS, fresh, policy -> 0, Policy::toString);
+	}
+
+	@Test
+	public void testQueryMutableURL() {
+		checkEach("query.mutableUrl", QUERY_WARMUP_ROUNDS, policies, policy -> 0, policy -> {
+			for (MutableURL url : mutableUrls) {
+				policy.allowsScriptFromSource(url);
+				policy.allowsStyleFromSource(url);
+				policy.allowsImageFromSource(url);
+				policy.allowsFrameFromSource(url);
+				policy.allowsWorkerFromSource(url);
+				policy.allowsFontFromSource(url);
+				policy.allowsObjectFromSource(url);
+				policy.allowsMediaFromSource(url);
+				policy.allowsManifestFromSource(url);
+				policy.allowsPrefetchFromSource(url);
+				policy.allowsConnection(url);
+				policy.allowsNavigation(url);
+				policy.allowsFrameAncestor(url);
+				policy.allowsFormAction(url);
+			}
+			policy.allowsUnsafeInlineScript();
+			policy.allowsUnsafeInlineStyle();
+		});
+	}
+
+	@Test
+	public void testQueryURLWithScheme() {
+		checkEach("query.url", QUERY_WARMUP_ROUNDS, policies, policy -> 0, policy -> {
+			for (URLWithScheme url : urls) {
+				policy.allowsScriptFromSource(url);
+				policy.allowsImageFromSource(url);
+				policy.allowsConnection(url);
+			}
+		});
+	}
+
+	// Each budget is `<name>.fixed` bytes plus `<name>.perChar` bytes for each character of the operation's input or output (see `size`)
+	private static <T> void checkEach(String name, int warmupRounds, List<T> subjects, ToIntFunction<T> size, Operation<T> operation) {
+		long fixed = budget(name + ".fixed");
+		double perChar = Double.parseDouble(budgets.getProperty(name + ".perChar", "0"));
+
+		for (int round = 0; round < warmupRounds; ++round) {
+			for (T subject : subjects) {
+				operation.run(subject);
+			}
+		}
+
+		long overhead = measure(null, subject -> {});
+		StringBuilder failures = new StringBuilder();
+		for (T subject : subjects) {
+			long allocated = Math.max(0, measure(subject, operation) - overhead);
+			long limit = fixed + (long) Math.ceil(perChar * size.applyAsInt(subject));
+			if (allocated > limit) {
+				failures.append('\n').append(allocated).append(" > ").append(limit).append(" bytes: ").append(subject instanceof PolicyInOrigin ? ((PolicyInOrigin) subject).policy : subject);
+			}
+		}
+		if (failures.length() > 0) {
+			fail(name + " exceeded its allocation budget:" + failures);
+		}
+	}
+
+	private static <T> long measure(T subject, Operation<T> operation) {
+		long thread = Thread.currentThread().getId();
+		long least = Long.MAX_VALUE;
+		for (int run = 0; run < MEASURED_RUNS; ++run) {
+			long before = threads.getThreadAllocatedBytes(thread);
+			operation.run(subject);
+			long after = threads.getThreadAllocatedBytes(thread);
+			least = Math.min(least, after - before);
+		}
+		return least;
+	}
+
+	private static long budget(String key) {
+		String value = budgets.getProperty(key);
+		if (value == null) {
+			throw new IllegalStateException("allocation-budgets.properties has no " + key);
+		}
+		return Long.parseLong(value);
+	}
+
+	@FunctionalInterface
+	private interface Operation<T> {
+		void run(T subject);
+	}
+}
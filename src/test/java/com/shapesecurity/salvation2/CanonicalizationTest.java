@@ -0,0 +1,87 @@
+package com.shapesecurity.salvation2;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+public class CanonicalizationTest extends TestBase {
+	@Test
+	public void testCanonicalForm() {
+		canonicalizesTo("", "");
+		canonicalizesTo("DEFAULT-SRC 'SELF'", "default-src 'self'");
+		canonicalizesTo("script-src b a; default-src a", "default-src a; script-src a b");
+		canonicalizesTo("script-src a A a", "script-src a");
+		canonicalizesTo("script-src a; script-src b", "script-src a");
+		canonicalizesTo("img-src https://a.com:443 http://b.com:80 wss://c.com:443 d.com:80 e.com:*", "img-src d.com:80 e.com:* http://b.com:80 https://a.com wss://c.com");
+		canonicalizesTo("img-src HTTPS: Data: 'Unsafe-Inline'", "img-src 'unsafe-inline' data: https:");
+		canonicalizesTo("script-src 'nonce-AbC=' 'SHA256-AbCd' 'nonce-AbC='", "script-src 'nonce-AbC=' 'sha256-AbCd'");
+		canonicalizesTo("script-src", "script-src 'none'");
+		canonicalizesTo("script-src 'none' a", "script-src a");
+		canonicalizesTo("script-src 'wasm-unsafe-eval' 'unsafe-redirect' 'unsafe-redirect'", "script-src 'unsafe-redirect' 'wasm-unsafe-eval'");
+		canonicalizesTo("sandbox ALLOW-SCRIPTS allow-forms allow-scripts Allow-Something-New", "sandbox allow-forms allow-scripts allow-something-new");
+		canonicalizesTo("plugin-types Text/Plain application/pdf", "plugin-types application/pdf text/plain");
+		canonicalizesTo("report-uri /b /a /b", "report-uri /a /b /b");
+		canonicalizesTo("report-to a b", "report-to a b");
+		canonicalizesTo("upgrade-insecure-requests a; Block-All-Mixed-Content", "block-all-mixed-content; upgrade-insecure-requests");
+		canonicalizesTo("Trusted-Types B a; trusted-types c; a_b c", "trusted-types B a");
+	}
+
+	@Test
+	public void testFingerprint() {
+		PolicyFingerprint a = fingerprint("default-src 'self' https://example.com:443; script-src 'NONCE-abc=' 'unsafe-inline'");
+		PolicyFingerprint b = fingerprint("SCRIPT-SRC 'unsafe-inline' 'nonce-abc=' 'unsafe-inline'; default-src https://EXAMPLE.com 'self'");
+		assertEquals(a, b);
+		assertEquals(a.hashCode(), b.hashCode());
+		assertEquals(a, PolicyFingerprint.fromString(a.toString()));
+		assertEquals(32, a.toString().length());
+
+		// Stable across versions of the JVM and runs of the process
+		assertEquals("e3b0c44298fc1c149afbf4c8996fb924", fingerprint("").toString());
+
+		assertNotEquals(a, fingerprint("default-src 'self' https://example.com:443; script-src 'nonce-ABC=' 'unsafe-inline'"));
+		assertNotEquals(a, fingerprint("default-src 'self' https://example.com:8443; script-src 'nonce-abc=' 'unsafe-inline'"));
+		assertNotEquals(fingerprint("script-src a"), fingerprint("script-src a; default-src a"));
+		assertNotEquals(fingerprint("report-uri /a"), fingerprint("report-uri /a /a"));
+	}
+
+	@Test
+	public void testList() {
+		PolicyList list = Policy.parseSerializedCSPList("script-src B A, default-src 'none', script-src a b, a_b c", Policy.PolicyListErrorConsumer.ignored);
+		assertEquals("default-src 'none', script-src a b", list.canonicalize().toString());
+		assertEquals(
+			Policy.parseSerializedCSPList("default-src 'NONE', SCRIPT-SRC b a", throwIfPolicyListError).fingerprint(),
+			list.fingerprint()
+		);
+		assertNotEquals(Policy.parseSerializedCSPList("default-src 'none'", throwIfPolicyListError).fingerprint(), list.fingerprint());
+	}
+
+	@Test
+	public void testCorpusIsIdempotent() throws IOException {
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(CanonicalizationTest.class.getResourceAsStream("/csp.txt"), StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String serialized = line.substring(line.indexOf(':') + 1);
+				PolicyList list = Policy.parseSerializedCSPList(serialized, Policy.PolicyListErrorConsumer.ignored);
+				PolicyList canonical = list.canonicalize();
+				assertEquals(line, canonical.toString(), canonical.canonicalize().toString());
+				assertEquals(line, list.fingerprint(), canonical.fingerprint());
+			}
+		}
+	}
+
+	private static PolicyFingerprint fingerprint(String policy) {
+		return Policy.parseSerializedCSP(policy, Policy.PolicyErrorConsumer.ignored).fingerprint();
+	}
+
+	private static void canonicalizesTo(String input, String output) {
+		Policy canonical = Policy.parseSerializedCSP(input, Policy.PolicyErrorConsumer.ignored).canonicalize();
+		assertEquals(output, canonical.toString());
+		assertEquals(output, canonical.canonicalize().toString());
+	}
+}
@@ -0,0 +1,103 @@
+package com.shapesecurity.salvation2;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DirectiveCacheTest extends TestBase {
+	@Test
+	public void testHits() {
+		DirectiveCache cache = new DirectiveCache(100);
+		Policy a = Policy.parseSerializedCSP("img-src * data:; frame-ancestors 'self'; script-src a", throwIfPolicyError, cache);
+		Policy b = Policy.parseSerializedCSP("IMG-SRC * data:; frame-ancestors 'self'; script-src b", throwIfPolicyError, cache);
+		assertEquals(4, cache.misses());
+		assertEquals(2, cache.hits());
+		assertEquals(4, cache.size());
+		assertTrue(a.getFetchDirective(FetchDirectiveKind.ImgSrc).get() == b.getFetchDirective(FetchDirectiveKind.ImgSrc).get());
+		assertTrue(a.frameAncestors().get() == b.frameAncestors().get());
+		assertEquals("IMG-SRC * data:; frame-ancestors 'self'; script-src b", b.toString());
+		// cached directives do not keep the policies which used them alive
+		assertTrue(((Directive) b.getFetchDirective(FetchDirectiveKind.ImgSrc).get()).owner == null);
+
+		// values are case-sensitive
+		Policy c = Policy.parseSerializedCSP("img-src * DATA:", throwIfPolicyError, cache);
+		assertFalse(a.getFetchDirective(FetchDirectiveKind.ImgSrc).get() == c.getFetchDirective(FetchDirectiveKind.ImgSrc).get());
+
+		try {
+			b.getFetchDirective(FetchDirectiveKind.ImgSrc).get().setSelf(true);
+			fail();
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		// policies parsed without a cache are unaffected
+		Policy d = Policy.parseSerializedCSP("img-src * data:", throwIfPolicyError);
+		d.getFetchDirective(FetchDirectiveKind.ImgSrc).get().setSelf(true);
+		assertEquals("img-src * data: 'self'", d.toString());
+	}
+
+	@Test
+	public void testErrorsAreAlwaysReported() {
+		DirectiveCache cache = new DirectiveCache(100);
+		for (int i = 0; i < 2; ++i) {
+			List<PolicyError> observed = new ArrayList<>();
+			Policy.parseSerializedCSP("script-src a a; script-src a a; upgrade-insecure-requests", (severity, message, directiveIndex, valueIndex) -> {
+				observed.add(e(severity, message, directiveIndex, valueIndex));
+			}, cache);
+			assertEquals(3, observed.size());
+			assertEquals(e(Policy.Severity.Warning, "Duplicate host a", 0, 1), observed.get(0));
+			assertEquals(e(Policy.Severity.Warning, "Duplicate directive script-src", 1, -1), observed.get(2));
+		}
+		// only upgrade-insecure-requests was clean
+		assertEquals(1, cache.size());
+		assertEquals(1, cache.hits());
+	}
+
+	@Test
+	public void testBounded() {
+		DirectiveCache cache = new DirectiveCache(20);
+		for (int i = 0; i < 1000; ++i) {
+			Policy.parseSerializedCSP("img-src a" + i + ".com", throwIfPolicyError, cache);
+		}
+		assertTrue(cache.size() <= 20);
+		assertEquals(20, cache.maxEntries());
+		cache.clear();
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void testCorpus() throws IOException {
+		DirectiveCache cache = new DirectiveCache(10000);
+		List<String> lines = new ArrayList<>();
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(DirectiveCacheTest.class.getResourceAsStream("/csp.txt"), StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				lines.add(line.substring(line.indexOf(':') + 1));
+			}
+		}
+		for (int pass = 0; pass < 2; ++pass) {
+			for (String line : lines) {
+				List<String> uncachedErrors = new ArrayList<>();
+				List<String> cachedErrors = new ArrayList<>();
+				PolicyList uncached = Policy.parseSerializedCSPList(line, (severity, message, policyIndex, directiveIndex, valueIndex) -> {
+					uncachedErrors.add(severity + message + policyIndex + directiveIndex + valueIndex);
+				});
+				PolicyList cached = Policy.parseSerializedCSPList(line, (severity, message, policyIndex, directiveIndex, valueIndex) -> {
+					cachedErrors.add(severity + message + policyIndex + directiveIndex + valueIndex);
+				}, cache);
+				assertEquals(line, uncached.toString(), cached.toString());
+				assertEquals(line, uncachedErrors, cachedErrors);
+			}
+		}
+		assertTrue(cache.hits() > cache.misses());
+	}
+}
@@ -15,6 +15,7 @@ import org.junit.Test;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.EnumSet;
 import java.util.List;
 import java.util.function.Function;
 import java.util.function.Supplier;
@@ -454,6 +455,94 @@ public class HighLevelPolicyManipulationTest extends TestBase {
 		});
 	}
 
+	@Test
+	public void testBulkHashes() {
+		// https://w3c.github.io/webappsec-csp/#example-bf7c3e59
+		assertEquals(hash("'sha256-qznLcsROx4GACP2dm0UCKCzCG+HiZ1guq6ZZDob/Tng='"), Hash.digest(Hash.Algorithm.SHA256, "alert('Hello, world.');"));
+		assertEquals(Hash.Algorithm.SHA384.length, Hash.digest(Hash.Algorithm.SHA384, "").base64ValuePart.length());
+		assertEquals(Hash.Algorithm.SHA512.length, Hash.digest(Hash.Algorithm.SHA512, "").base64ValuePart.length());
+
+		List<String> sources = new ArrayList<>();
+		for (int i = 0; i < 10000; ++i) {
+			sources.add("console.log(" + i % 5000 + ");");
+		}
+		List<Hash> digests = Hash.digestAll(Hash.Algorithm.SHA256, sources);
+		assertEquals(sources.size(), digests.size());
+		for (int i = 0; i < sources.size(); i += 997) {
+			assertEquals(Hash.digest(Hash.Algorithm.SHA256, sources.get(i)), digests.get(i));
+		}
+
+		Policy p = Policy.parseSerializedCSP("script-src 'self' 'sha256-asdf'", Policy.PolicyErrorConsumer.ignored);
+		SourceExpressionDirective d = p.getFetchDirective(FetchDirectiveKind.ScriptSrc).get();
+		d.addHashes(hashes("'SHA256-asdf'", "'sha256-ASDF'"), manipulationErrorConsumer);
+		assertErrors(
+			e(Directive.ManipulationErrorConsumer.Severity.Warning, "Duplicate hash 'sha256-asdf'"),
+			e(Directive.ManipulationErrorConsumer.Severity.Warning, "Wrong length for sha256: expected 44, got 4")
+		);
+		assertEquals(hashes("'sha256-asdf'", "'sha256-ASDF'"), d.getHashes());
+		assertEquals("script-src 'self' 'sha256-asdf' 'sha256-ASDF'", p.toString());
+
+		d.addHashes(digests, Directive.ManipulationErrorConsumer.ignored);
+		assertEquals(5002, d.getHashes().size());
+		assertEquals(5003, d.getValues().size());
+		assertEquals(d.getHashes().get(2), digests.get(0));
+		assertTrue(p.toString().endsWith(" " + digests.get(4999)));
+	}
+
+	@Test
+	public void testManyEdits() {
+		Policy p = Policy.parseSerializedCSP("img-src 'SELF' HTTPS://A.com:443/ b.com 'NONE'", Policy.PolicyErrorConsumer.ignored);
+		SourceExpressionDirective d = p.getFetchDirective(FetchDirectiveKind.ImgSrc).get();
+		for (int i = 0; i < 5000; ++i) {
+			d.addHost(host("h" + i + ".com"), throwIfManipulationError);
+		}
+		for (int i = 0; i < 5000; i += 2) {
+			assertTrue(d.removeHost(host("H" + i + ".COM")));
+		}
+		assertEquals(2502, d.getHosts().size());
+		assertEquals(2503, d.getValues().size());
+		assertEquals("'SELF'", d.getValues().get(0));
+		assertEquals("h1.com", d.getValues().get(3));
+		assertEquals("h4999.com", d.getValues().get(2502));
+
+		// every spelling of a host is removed, and the others keep their case
+		assertTrue(d.removeHost(host("https://a.com:443/")));
+		d.setSelf(false);
+		assertTrue(p.toString().startsWith("img-src b.com h1.com h3.com "));
+		for (int i = 1; i < 5000; i += 2) {
+			assertTrue(d.removeHost(host("h" + i + ".com")));
+		}
+		assertTrue(d.removeHost(host("b.com")));
+		assertEquals("img-src 'none'", p.toString());
+		d.addHost(host("c.com"), throwIfManipulationError);
+		assertEquals("img-src c.com", p.toString());
+
+		ReportUriDirective r = Policy.parseSerializedCSP("report-uri /a /A /a /b", Policy.PolicyErrorConsumer.ignored).reportUri().get();
+		assertTrue(r.removeUri("/a"));
+		assertFalse(r.removeUri("/a"));
+		assertEquals(Arrays.asList("/A", "/b"), r.getValues());
+		assertEquals(Arrays.asList("/A", "/b"), r.getUris());
+	}
+
+	// Quadratic edits would take minutes here
+	@Test(timeout = 20000)
+	public void testEditsTakeLinearTime() {
+		Policy p = Policy.parseSerializedCSP("img-src 'self'", throwIfPolicyError);
+		SourceExpressionDirective d = p.getFetchDirective(FetchDirectiveKind.ImgSrc).get();
+		int count = 100000;
+		for (int i = 0; i < count; ++i) {
+			d.addHost(host("h" + i + ".com"), throwIfManipulationError);
+		}
+		// removing from the front, and reading in between, must not make each removal scan the rest
+		for (int i = 0; i < count - 1; ++i) {
+			assertTrue(d.removeHost(host("h" + i + ".com")));
+			if (i % 1000 == 0) {
+				assertEquals(host("h" + (i + 1) + ".com"), d.getHosts().get(0));
+			}
+		}
+		assertEquals("img-src 'self' h" + (count - 1) + ".com", p.toString());
+	}
+
 	@Test
 	public void testFrameAncestorsDirective() {
 		inTurkey(() -> {
@@ -873,6 +962,25 @@ public class HighLevelPolicyManipulationTest extends TestBase {
 		});
 	}
 
+	@Test
+	public void testSandboxFlags() {
+		Policy p = Policy.parseSerializedCSP("sandbox ALLOW-scripts allow-forms", throwIfPolicyError);
+		SandboxDirective d = p.sandbox().get();
+		assertEquals(SandboxDirective.Keyword.AllowScripts.bit | SandboxDirective.Keyword.AllowForms.bit, d.flags());
+		assertEquals(EnumSet.of(SandboxDirective.Keyword.AllowForms, SandboxDirective.Keyword.AllowScripts), d.keywords());
+		assertTrue(d.allowsAll(SandboxDirective.toMask(d.keywords())));
+		assertFalse(d.allowsAll(SandboxDirective.ALL));
+
+		d.setAllows(SandboxDirective.Keyword.AllowPopups, true);
+		assertTrue(d.allowPopups());
+		d.setAllowScripts(false);
+		assertFalse(d.allows(SandboxDirective.Keyword.AllowScripts));
+		assertEquals("sandbox allow-forms allow-popups", p.toString());
+
+		assertEquals(EnumSet.allOf(SandboxDirective.Keyword.class), SandboxDirective.toSet(SandboxDirective.NOT_SANDBOXED));
+		assertEquals(SandboxDirective.Keyword.values().length, Integer.bitCount(SandboxDirective.ALL));
+	}
+
 	@Test
 	public void testReportToDirective() {
 		Policy p = Policy.parseSerializedCSP("", throwIfPolicyError);
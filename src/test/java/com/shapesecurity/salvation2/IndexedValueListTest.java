@@ -0,0 +1,57 @@
+package com.shapesecurity.salvation2;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class IndexedValueListTest extends TestBase {
+	// Checks random edits against a plain list, so that every pattern of holes and compaction is exercised
+	@Test
+	public void testAgreesWithList() {
+		Random random = new Random(0);
+		for (int trial = 0; trial < 50; ++trial) {
+			IndexedValueList<String> list = new IndexedValueList<>(value -> value.toLowerCase(Locale.ENGLISH));
+			List<String> expected = new ArrayList<>();
+			for (int step = 0; step < 500; ++step) {
+				String value = (random.nextBoolean() ? "v" : "V") + random.nextInt(20);
+				if (random.nextInt(3) == 0) {
+					String removedKey = value.toLowerCase(Locale.ENGLISH);
+					int removed = 0;
+					for (int i = expected.size() - 1; i >= 0; --i) {
+						if (expected.get(i).toLowerCase(Locale.ENGLISH).equals(removedKey)) {
+							expected.remove(i);
+							++removed;
+						}
+					}
+					assertEquals(removed, list.removeKey(removedKey));
+				} else {
+					list.add(value);
+					expected.add(value);
+				}
+				if (random.nextInt(5) == 0) {
+					assertEquals(expected, list);
+				}
+				assertEquals(expected.size(), list.size());
+				String key = value.toLowerCase(Locale.ENGLISH);
+				assertEquals(expected.stream().anyMatch(v -> v.toLowerCase(Locale.ENGLISH).equals(key)), list.containsKey(key));
+			}
+			assertEquals(expected, list);
+		}
+
+		IndexedValueList<String> sources = IndexedValueList.byValue();
+		for (int i = 0; i < 20; ++i) {
+			sources.add("s" + i);
+		}
+		assertTrue(sources.containsKey("s19"));
+		assertEquals(1, sources.removeKey("s0"));
+		assertFalse(sources.containsKey("s0"));
+		assertEquals("s1", sources.get(0));
+	}
+}
@@ -0,0 +1,103 @@
+package com.shapesecurity.salvation2;
+
+import com.shapesecurity.salvation2.URLs.URI;
+import com.shapesecurity.salvation2.URLs.URLWithScheme;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class JfrMetricsTest extends TestBase {
+	@After
+	public void tearDown() {
+		Policy.setMetrics(null);
+	}
+
+	@Test
+	public void testEvents() throws IOException {
+		List<RecordedEvent> events = record(new JfrMetrics(Duration.ZERO, Duration.ZERO, Duration.ZERO));
+		List<String> names = events.stream().map(e -> e.getEventType().getName()).collect(Collectors.toList());
+		assertEquals(names.toString(), 5, events.size());
+
+		RecordedEvent parse = events.stream().filter(e -> e.getEventType().getName().equals("com.shapesecurity.salvation2.PolicyParse")).findFirst().get();
+		assertEquals("img-src a b; script-src c", parse.getString("policy"));
+		assertEquals(2, parse.getInt("directiveCount"));
+		assertTrue(parse.getLong("elapsed") > 0);
+
+		List<RecordedEvent> queries = events.stream().filter(e -> e.getEventType().getName().equals("com.shapesecurity.salvation2.PolicyQuery")).collect(Collectors.toList());
+		assertEquals(2, queries.size());
+		assertEquals("img-src", queries.get(0).getString("effectiveDirective"));
+		assertTrue(queries.get(0).getBoolean("allowed"));
+		assertEquals(2, queries.get(0).getInt("sourceCount"));
+		assertEquals("font-src", queries.get(1).getString("effectiveDirective"));
+		assertEquals(0, queries.get(1).getInt("sourceCount"));
+
+		RecordedEvent compile = events.stream().filter(e -> e.getEventType().getName().equals("com.shapesecurity.salvation2.TemplateCompile")).findFirst().get();
+		assertEquals(1, compile.getInt("placeholderCount"));
+	}
+
+	@Test
+	public void testThresholds() throws IOException {
+		List<RecordedEvent> events = record(new JfrMetrics(Duration.ZERO, Duration.ofHours(1), Duration.ofHours(1)));
+		assertEquals(2, events.size());
+		for (RecordedEvent event : events) {
+			assertEquals("com.shapesecurity.salvation2.PolicyParse", event.getEventType().getName());
+		}
+	}
+
+	@Test
+	public void testLongPoliciesAreTruncated() throws IOException {
+		StringBuilder policy = new StringBuilder("img-src");
+		while (policy.length() < JfrMetrics.MAX_POLICY_LENGTH) {
+			policy.append(" a.com");
+		}
+		Policy.setMetrics(new JfrMetrics(Duration.ZERO, Duration.ZERO, Duration.ZERO));
+		List<RecordedEvent> events = recording(() -> Policy.parseSerializedCSP(policy.toString(), Policy.PolicyErrorConsumer.ignored));
+		String recorded = events.get(0).getString("policy");
+		assertEquals(JfrMetrics.MAX_POLICY_LENGTH + 3, recorded.length());
+		assertTrue(recorded.endsWith("..."));
+		assertFalse(policy.toString().equals(recorded));
+	}
+
+	private List<RecordedEvent> record(JfrMetrics metrics) throws IOException {
+		Policy.setMetrics(metrics);
+		return recording(() -> {
+			Policy policy = Policy.parseSerializedCSP("img-src a b; script-src c", throwIfPolicyError);
+			Optional<URLWithScheme> origin = Optional.of(URI.parseURI("https://example.com").get());
+			policy.allowsImage(Optional.of(URI.parseURI("https://a/").get()), origin);
+			policy.allowsFont(Optional.of(URI.parseURI("https://a/").get()), origin);
+			PolicyTemplate.compile(Policy.parseSerializedCSP("script-src 'nonce-salvation-template-placeholder'", throwIfPolicyError));
+		});
+	}
+
+	private static List<RecordedEvent> recording(Runnable body) throws IOException {
+		Path file = Files.createTempFile("salvation", ".jfr");
+		try {
+			try (Recording recording = new Recording()) {
+				recording.enable("com.shapesecurity.salvation2.PolicyParse");
+				recording.enable("com.shapesecurity.salvation2.TemplateCompile");
+				recording.enable("com.shapesecurity.salvation2.PolicyQuery");
+				recording.start();
+				body.run();
+				recording.stop();
+				recording.dump(file);
+			}
+			return RecordingFile.readAllEvents(file);
+		} finally {
+			Files.delete(file);
+		}
+	}
+}
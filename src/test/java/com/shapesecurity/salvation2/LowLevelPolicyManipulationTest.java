@@ -1,15 +1,22 @@
 package com.shapesecurity.salvation2;
 
+import com.shapesecurity.salvation2.Directives.SourceExpressionDirective;
+import com.shapesecurity.salvation2.Values.Hash;
+import com.shapesecurity.salvation2.Values.Host;
+import com.shapesecurity.salvation2.Values.RFC7230Token;
 import org.junit.Test;
 
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class LowLevelPolicyManipulationTest extends TestBase {
 	@Test
@@ -258,6 +265,119 @@ public class LowLevelPolicyManipulationTest extends TestBase {
 		p.add("default-src", Collections.singletonList(";"), Directive.DirectiveErrorConsumer.ignored);
 	}
 
+	@Test
+	public void testEdit() {
+		String original = "default-src 'self'; script-src a; img-src b; SCRIPT-SRC c; sandbox";
+		Policy p = Policy.parseSerializedCSP(original, Policy.PolicyErrorConsumer.ignored);
+		SourceExpressionDirective imgSrc = p.getFetchDirective(FetchDirectiveKind.ImgSrc).get();
+		ArrayList<PolicyError> observedErrors = new ArrayList<>();
+		p.edit(editor -> {
+			editor.add("style-src", Collections.singletonList("d"));
+			assertTrue(editor.remove("Script-Src"));
+			assertFalse(editor.remove("frame-src"));
+			editor.add("script-src", Arrays.asList("e", "e"));
+			editor.replace("default-src", Collections.singletonList("'none'"));
+			editor.add("style-src", Collections.singletonList("f"));
+			editor.replace("sandbox", Collections.singletonList("allow-forms"));
+			editor.add("font-src", Collections.singletonList("g"));
+			editor.remove("font-src");
+			editor.replace("base-uri", Collections.singletonList("'self'"));
+			// none of this has happened yet
+			assertEquals(original, p.toString());
+		}, (severity, message, directiveIndex, valueIndex) -> {
+			observedErrors.add(e(severity, message, directiveIndex, valueIndex));
+		});
+
+		assertEquals("default-src 'none'; img-src b; sandbox allow-forms; style-src d; script-src e e; style-src f; base-uri 'self'", p.toString());
+		assertEquals(Arrays.asList(
+			e(Policy.Severity.Warning, "Duplicate host e", 4, 1),
+			e(Policy.Severity.Warning, "Duplicate directive style-src", 5, -1)
+		), observedErrors);
+
+		// the typed accessors agree with the new directives, and untouched directives are the same objects
+		assertTrue(p.getFetchDirective(FetchDirectiveKind.DefaultSrc).get().getHosts().isEmpty());
+		assertEquals("e", p.getFetchDirective(FetchDirectiveKind.ScriptSrc).get().getHosts().get(0).toString());
+		assertEquals("d", p.getFetchDirective(FetchDirectiveKind.StyleSrc).get().getHosts().get(0).toString());
+		assertFalse(p.getFetchDirective(FetchDirectiveKind.FontSrc).isPresent());
+		assertTrue(p.sandbox().get().allowForms());
+		assertTrue(p.baseUri().get().self());
+		assertTrue(imgSrc == p.getFetchDirective(FetchDirectiveKind.ImgSrc).get());
+		imgSrc.setSelf(true);
+		assertTrue(p.toString().contains("img-src b 'self';"));
+	}
+
+	@Test
+	public void testEditIsAllOrNothing() {
+		Policy p = Policy.parseSerializedCSP("default-src 'self'", throwIfPolicyError);
+		Policy.Editor[] escaped = { null };
+		try {
+			p.edit(editor -> {
+				escaped[0] = editor;
+				editor.remove("default-src");
+				editor.add("img-src", Collections.singletonList(";"));
+			}, throwIfPolicyError);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		assertEquals("default-src 'self'", p.toString());
+		assertTrue(p.getFetchDirective(FetchDirectiveKind.DefaultSrc).isPresent());
+		try {
+			escaped[0].remove("default-src");
+			fail();
+		} catch (IllegalStateException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testDerive() {
+		Policy base = Policy.parseSerializedCSP("default-src 'self'; connect-src 'self'; frame-ancestors 'none'; report-to a", throwIfPolicyError);
+		SourceExpressionDirective defaultSrc = base.getFetchDirective(FetchDirectiveKind.DefaultSrc).get();
+		SourceExpressionDirective connectSrc = base.getFetchDirective(FetchDirectiveKind.ConnectSrc).get();
+
+		Policy tenant = base.derive(editor -> {
+			editor.replace("connect-src", Arrays.asList("'self'", "api.tenant.com"));
+			editor.replace("frame-ancestors", Collections.singletonList("tenant.com"));
+		}, throwIfPolicyError);
+		assertEquals("default-src 'self'; connect-src 'self'; frame-ancestors 'none'; report-to a", base.toString());
+		assertEquals("default-src 'self'; connect-src 'self' api.tenant.com; frame-ancestors tenant.com; report-to a", tenant.toString());
+
+		// unchanged directives are shared, and so frozen; changed ones are not
+		assertTrue(defaultSrc == tenant.getFetchDirective(FetchDirectiveKind.DefaultSrc).get());
+		assertTrue(connectSrc == base.getFetchDirective(FetchDirectiveKind.ConnectSrc).get());
+		assertEquals("tenant.com", tenant.frameAncestors().get().getHosts().get(0).toString());
+		assertEquals(RFC7230Token.parseRFC7230Token("a").get(), tenant.reportTo().get());
+		try {
+			defaultSrc.setUnsafeInline(true);
+			fail();
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		try {
+			defaultSrc.addHost(Host.parseHost("a.com").get(), throwIfManipulationError);
+			fail();
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		assertEquals(Collections.singletonList("'self'"), defaultSrc.getValues());
+		assertTrue(defaultSrc.getHosts().isEmpty());
+		tenant.getFetchDirective(FetchDirectiveKind.ConnectSrc).get().setUnsafeInline(true);
+		connectSrc.setUnsafeEval(true);
+		assertEquals("default-src 'self'; connect-src 'self' 'unsafe-eval'; frame-ancestors 'none'; report-to a", base.toString());
+		assertEquals("default-src 'self'; connect-src 'self' api.tenant.com 'unsafe-inline'; frame-ancestors tenant.com; report-to a", tenant.toString());
+
+		// shared directives can still be replaced wholesale, through either policy
+		tenant.setReportTo(RFC7230Token.parseRFC7230Token("b").get());
+		base.remove("default-src");
+		assertEquals("connect-src 'self' 'unsafe-eval'; frame-ancestors 'none'; report-to a", base.toString());
+		assertEquals("default-src 'self'; connect-src 'self' api.tenant.com 'unsafe-inline'; frame-ancestors tenant.com; report-to b", tenant.toString());
+		assertEquals(RFC7230Token.parseRFC7230Token("a").get(), base.reportTo().get());
+
+		Policy derivedAgain = tenant.derive(editor -> editor.remove("default-src"), throwIfPolicyError);
+		assertFalse(derivedAgain.getFetchDirective(FetchDirectiveKind.DefaultSrc).isPresent());
+		assertTrue(tenant.getFetchDirective(FetchDirectiveKind.DefaultSrc).isPresent());
+	}
 
 	private static void add(Policy p, String name, List<String> values, DirectiveError... errors) {
 		ArrayList<DirectiveError> observedErrors = new ArrayList<>();
@@ -271,4 +391,52 @@ public class LowLevelPolicyManipulationTest extends TestBase {
 		}
 	}
 
+
+	@Test
+	public void testSerializationFollowsChanges() {
+		Policy p = Policy.parseSerializedCSP("default-src 'self'; report-uri /a /b", Policy.PolicyErrorConsumer.ignored);
+		assertEquals("default-src 'self'; report-uri /a /b", p.toString());
+
+		// changes made through directives, rather than the policy, must also be reflected
+		SourceExpressionDirective defaultSrc = p.getFetchDirective(FetchDirectiveKind.DefaultSrc).get();
+		defaultSrc.setUnsafeInline(true);
+		assertEquals("default-src 'self' 'unsafe-inline'; report-uri /a /b", p.toString());
+		defaultSrc.removeHost(Host.parseHost("a.com").get());
+		defaultSrc.addHost(Host.parseHost("a.com").get(), throwIfManipulationError);
+		assertEquals("default-src 'self' 'unsafe-inline' a.com; report-uri /a /b", p.toString());
+		defaultSrc.removeHost(Host.parseHost("A.com").get());
+		defaultSrc.setSelf(false);
+		defaultSrc.setUnsafeInline(false);
+		assertEquals("default-src 'none'; report-uri /a /b", p.toString());
+		p.reportUri().get().removeUri("/a");
+		assertEquals("default-src 'none'; report-uri /b", p.toString());
+
+		p.setReportTo(RFC7230Token.parseRFC7230Token("a").get());
+		p.setUpgradeInsecureRequests(true);
+		assertEquals("default-src 'none'; report-uri /b; report-to a; upgrade-insecure-requests", p.toString());
+		p.setReportTo(RFC7230Token.parseRFC7230Token("b").get());
+		p.remove("report-uri");
+		assertEquals("default-src 'none'; report-to b; upgrade-insecure-requests", p.toString());
+		assertArrayEquals(p.toString().getBytes(StandardCharsets.US_ASCII), p.toAsciiBytes());
+
+		// directives which have been removed no longer affect the policy
+		defaultSrc.setStar(true);
+		p.remove("default-src");
+		assertEquals("report-to b; upgrade-insecure-requests", p.toString());
+	}
+
+	@Test
+	public void testAddHashesReplacesNone() {
+		Hash hash = Hash.parseHash("'sha256-47DEQpj8HBSa+/TImW+5JCeuQeRkm5NMpJWZG3hSuFU='").get();
+		Policy p = Policy.parseSerializedCSP("script-src 'none'; style-src 'none'", throwIfPolicyError);
+		p.getFetchDirective(FetchDirectiveKind.ScriptSrc).get().addHashes(Collections.singletonList(hash), throwIfManipulationError);
+		p.getFetchDirective(FetchDirectiveKind.StyleSrc).get().addHash(hash, throwIfManipulationError);
+		assertEquals("script-src 'sha256-47DEQpj8HBSa+/TImW+5JCeuQeRkm5NMpJWZG3hSuFU='; style-src 'sha256-47DEQpj8HBSa+/TImW+5JCeuQeRkm5NMpJWZG3hSuFU='", p.toString());
+		Policy.parseSerializedCSP(p.toString(), throwIfPolicyError);
+
+		// and adding nothing leaves it
+		p = Policy.parseSerializedCSP("script-src 'none'", throwIfPolicyError);
+		p.getFetchDirective(FetchDirectiveKind.ScriptSrc).get().addHashes(Collections.emptyList(), throwIfManipulationError);
+		assertEquals("script-src 'none'", p.toString());
+	}
 }
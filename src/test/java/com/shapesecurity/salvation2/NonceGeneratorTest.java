@@ -0,0 +1,117 @@
+package com.shapesecurity.salvation2;
+
+import com.shapesecurity.salvation2.Values.Nonce;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class NonceGeneratorTest extends TestBase {
+	@Test
+	public void testNonces() {
+		NonceGenerator generator = new NonceGenerator();
+		assertEquals(24, generator.nonceLength());
+		Set<String> seen = new HashSet<>();
+		// enough to go through several batches
+		for (int i = 0; i < 1000; ++i) {
+			Nonce nonce = generator.nextNonce();
+			assertEquals(NonceGenerator.DEFAULT_NONCE_BYTES, Base64.getDecoder().decode(nonce.base64ValuePart).length);
+			assertTrue(seen.add(nonce.base64ValuePart));
+		}
+
+		byte[] out = new byte[26];
+		assertEquals(24, generator.nextNonce(out, 1));
+		assertTrue(Nonce.parseNonce("'nonce-" + new String(out, 1, 24, StandardCharsets.US_ASCII) + "'").isPresent());
+		try {
+			generator.nextNonce(out, 3);
+			fail();
+		} catch (IndexOutOfBoundsException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testEncoding() {
+		for (int nonceBytes = 1; nonceBytes <= 5; ++nonceBytes) {
+			// SHA1PRNG is deterministic when seeded before first use
+			NonceGenerator generator = new NonceGenerator(nonceBytes, () -> seeded());
+			SecureRandom expected = seeded();
+			byte[] batch = new byte[nonceBytes * 64];
+			expected.nextBytes(batch);
+			for (int i = 0; i < 64; ++i) {
+				byte[] entropy = new byte[nonceBytes];
+				System.arraycopy(batch, i * nonceBytes, entropy, 0, nonceBytes);
+				String value = generator.nextNonce().base64ValuePart;
+				assertEquals(Base64.getEncoder().encodeToString(entropy), value);
+				assertEquals(generator.nonceLength(), value.length());
+			}
+		}
+
+		try {
+			new NonceGenerator(0, SecureRandom::new);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testRender() {
+		Policy policy = Policy.parseSerializedCSP("default-src 'self'; script-src 'strict-dynamic'; style-src 'self'", throwIfPolicyError);
+		policy.getFetchDirective(FetchDirectiveKind.ScriptSrc).get().addNonce(PolicyTemplate.PLACEHOLDER, throwIfManipulationError);
+		policy.getFetchDirective(FetchDirectiveKind.StyleSrc).get().addNonce(PolicyTemplate.PLACEHOLDER, throwIfManipulationError);
+		PolicyTemplate template = PolicyTemplate.compile(policy);
+
+		NonceGenerator generator = new NonceGenerator();
+		NonceGenerator.RenderedPolicy first = generator.render(template);
+		NonceGenerator.RenderedPolicy second = generator.render(template);
+		assertTrue(!first.nonce().equals(second.nonce()));
+
+		Nonce nonce = Nonce.parseNonce("'nonce-" + first.nonce() + "'").get();
+		assertArrayEquals(template.render(nonce), first.header);
+		Policy rendered = Policy.parseSerializedCSP(new String(first.header, StandardCharsets.US_ASCII), throwIfPolicyError);
+		assertTrue(rendered.getFetchDirective(FetchDirectiveKind.ScriptSrc).get().getNonces().contains(nonce));
+	}
+
+	@Test
+	public void testThreads() throws InterruptedException {
+		NonceGenerator generator = new NonceGenerator();
+		Set<String> seen = Collections.synchronizedSet(new HashSet<>());
+		List<Thread> threads = new ArrayList<>();
+		for (int i = 0; i < 4; ++i) {
+			threads.add(new Thread(() -> {
+				for (int j = 0; j < 500; ++j) {
+					seen.add(generator.nextNonce().base64ValuePart);
+				}
+			}));
+		}
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(2000, seen.size());
+	}
+
+	private static SecureRandom seeded() {
+		try {
+			SecureRandom random = SecureRandom.getInstance("SHA1PRNG");
+			random.setSeed(42);
+			return random;
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
@@ -3,10 +3,16 @@ package com.shapesecurity.salvation2;
 import com.shapesecurity.salvation2.Values.Scheme;
 import org.junit.Test;
 
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class ParserTest extends TestBase {
 	@Test
@@ -668,4 +674,57 @@ public class ParserTest extends TestBase {
 		}
 		assertEquals(output, policy.toString());
 	}
+
+	@Test
+	public void testByteOutput() throws IOException {
+		Policy p = Policy.parseSerializedCSP("default-src 'self' ;; img-src *", throwIfPolicyError);
+		String expected = "default-src 'self'; img-src *";
+		assertEquals(expected.length(), p.serializedLength());
+		assertArrayEquals(expected.getBytes(StandardCharsets.US_ASCII), p.toAsciiBytes());
+
+		StringBuilder appended = new StringBuilder("a: ");
+		p.writeTo(appended);
+		assertEquals("a: " + expected, appended.toString());
+
+		byte[] array = new byte[expected.length() + 2];
+		assertEquals(expected.length(), p.writeTo(array, 1));
+		assertEquals(expected, new String(array, 1, expected.length(), StandardCharsets.US_ASCII));
+		try {
+			p.writeTo(array, 3);
+			fail();
+		} catch (IndexOutOfBoundsException e) {
+			// expected
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocate(expected.length());
+		p.writeTo(buffer);
+		assertEquals(0, buffer.remaining());
+		assertArrayEquals(expected.getBytes(StandardCharsets.US_ASCII), buffer.array());
+		try {
+			p.writeTo(buffer);
+			fail();
+		} catch (BufferOverflowException e) {
+			// expected
+		}
+
+		PolicyList list = Policy.parseSerializedCSPList("default-src 'self', , img-src *", throwIfPolicyListError);
+		String expectedList = "default-src 'self', img-src *";
+		assertEquals(expectedList, list.toString());
+		assertEquals(expectedList.length(), list.serializedLength());
+		assertArrayEquals(expectedList.getBytes(StandardCharsets.US_ASCII), list.toAsciiBytes());
+		appended = new StringBuilder();
+		list.writeTo(appended);
+		assertEquals(expectedList, appended.toString());
+		buffer = ByteBuffer.allocate(expectedList.length() + 1);
+		buffer.put((byte) 'x');
+		list.writeTo(buffer);
+		assertEquals("x" + expectedList, new String(buffer.array(), StandardCharsets.US_ASCII));
+		try {
+			list.writeTo(new byte[expectedList.length()], 1);
+			fail();
+		} catch (IndexOutOfBoundsException e) {
+			// expected
+		}
+		assertEquals(0, new PolicyList(new ArrayList<>()).serializedLength());
+	}
 }
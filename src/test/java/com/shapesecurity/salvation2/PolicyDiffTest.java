@@ -0,0 +1,146 @@
+package com.shapesecurity.salvation2;
+
+import com.shapesecurity.salvation2.URLs.GUID;
+import com.shapesecurity.salvation2.URLs.URI;
+import com.shapesecurity.salvation2.URLs.URLWithScheme;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PolicyDiffTest extends TestBase {
+	private static final URLWithScheme ORIGIN = URI.parseURI("https://example.com").get();
+
+	@Test
+	public void testUrlChanges() {
+		Policy before = Policy.parseSerializedCSP("default-src 'self'; script-src 'self' https://cdn.example.com", throwIfPolicyError);
+		Policy after = Policy.parseSerializedCSP("default-src 'self'; script-src 'self' https://*.example.com; img-src *", throwIfPolicyError);
+		assertTrue(PolicyDiff.compare(before, before, ORIGIN).isEmpty());
+
+		PolicyDiff diff = PolicyDiff.compare(before, after, ORIGIN);
+		assertEquals(
+			"img-src newly allows ftp:\n"
+				+ "img-src newly allows http:\n"
+				+ "img-src newly allows https: except [https://example.com]\n"
+				// * does not cover wss:, but 'self' does
+				+ "img-src newly blocks wss://example.com\n"
+				+ "script-src-elem newly allows https://*.example.com except [https://cdn.example.com]\n"
+				// which worker-src falls back to
+				+ "worker-src newly allows https://*.example.com except [https://cdn.example.com]\n",
+			diff.toString()
+		);
+		assertTrue(diff.sources.isEmpty());
+		assertTrue(diff.inline.isEmpty());
+
+		// the new path is narrower, and IP addresses never match
+		diff = PolicyDiff.compare(
+			Policy.parseSerializedCSP("img-src https://a.example.com:* 10.0.0.1", throwIfPolicyError),
+			Policy.parseSerializedCSP("img-src https://a.example.com/x/ https://a.example.com:8080", throwIfPolicyError),
+			ORIGIN
+		);
+		assertEquals("img-src newly blocks https://a.example.com:* except [https://a.example.com/x/, https://a.example.com:8080]\n", diff.toString());
+	}
+
+	@Test
+	public void testKeywordAndInlineChanges() {
+		Policy before = Policy.parseSerializedCSP("script-src 'unsafe-inline'", throwIfPolicyError);
+		Policy after = Policy.parseSerializedCSP("script-src 'nonce-abc' 'unsafe-inline' 'unsafe-eval'", throwIfPolicyError);
+		PolicyDiff diff = PolicyDiff.compare(before, after, ORIGIN);
+		assertTrue(diff.urls.isEmpty());
+		assertEquals(
+			"script-src adds 'unsafe-eval'\n"
+				+ "script-src-elem adds 'nonce-abc'\n"
+				+ "Script: Unrestricted -> Restricted\n"
+				+ "ScriptAttribute: Unrestricted -> Blocked\n"
+				+ "Eval: Blocked -> Unrestricted\n",
+			diff.toString()
+		);
+
+		diff = PolicyDiff.compare(after, Policy.parseSerializedCSP("script-src 'nonce-abc' 'unsafe-inline' 'unsafe-eval'; sandbox", throwIfPolicyError), ORIGIN);
+		assertEquals("Script: Restricted -> Blocked\n", diff.toString());
+	}
+
+	// Checks the diff against the policies themselves, for every URL of a small universe, across random policies
+	@Test
+	public void testAgreesWithMatching() {
+		String[] sources = {
+			"'self'",
+			"*",
+			"https:",
+			"http:",
+			"wss:",
+			"data:",
+			"https://*.example.com",
+			"*.example.com",
+			"a.example.com/x/",
+			"example.com:8080",
+			"https://other.com/x/y",
+			"ws://other.com",
+			"127.0.0.1",
+			"https://*.a.example.com:*",
+			"other.com/x"
+		};
+		List<URLWithScheme> urls = new ArrayList<>();
+		for (String scheme : new String[] { "http", "https", "ws", "wss", "ftp" }) {
+			for (String host : new String[] { "example.com", "a.example.com", "b.a.example.com", "other.com", "127.0.0.1" }) {
+				for (String port : new String[] { "", ":8080" }) {
+					for (String path : new String[] { "/", "/x", "/x/", "/x/y", "/y" }) {
+						urls.add(URI.parseURI(scheme + "://" + host + port + path).get());
+					}
+				}
+			}
+		}
+		urls.add(new GUID("data", "image/png;base64,AAAA"));
+		urls.add(new GUID("blob", "https://example.com/1"));
+
+		Random random = new Random(0);
+		for (int trial = 0; trial < 200; ++trial) {
+			Policy before = randomPolicy(random, sources);
+			Policy after = randomPolicy(random, sources);
+			PolicyDiff diff = PolicyDiff.compare(before, after, ORIGIN);
+			for (URLWithScheme url : urls) {
+				boolean was = before.allowsImage(Optional.of(url), Optional.of(ORIGIN));
+				boolean is = after.allowsImage(Optional.of(url), Optional.of(ORIGIN));
+				String message = before + " -> " + after + ": " + url + "\n" + diff;
+				assertEquals(message, !was && is, isIn(url, diff, PolicyDiff.Change.NewlyAllowed));
+				assertEquals(message, was && !is, isIn(url, diff, PolicyDiff.Change.NewlyBlocked));
+			}
+		}
+	}
+
+	private static Policy randomPolicy(Random random, String[] sources) {
+		if (random.nextInt(10) == 0) {
+			return Policy.parseSerializedCSP("", Policy.PolicyErrorConsumer.ignored);
+		}
+		StringBuilder policy = new StringBuilder("img-src");
+		for (String source : sources) {
+			if (random.nextInt(4) == 0) {
+				policy.append(' ').append(source);
+			}
+		}
+		return Policy.parseSerializedCSP(policy.toString(), Policy.PolicyErrorConsumer.ignored);
+	}
+
+	private static boolean isIn(URLWithScheme url, PolicyDiff diff, PolicyDiff.Change change) {
+		PolicyDiff.UrlClass point = url.host == null
+				? new PolicyDiff.UrlClass(url.scheme, null, Constants.WILDCARD_PORT, "")
+				: new PolicyDiff.UrlClass(url.scheme, url.host, url.port, url.path);
+		boolean in = false;
+		for (PolicyDiff.UrlChange urlChange : diff.urls) {
+			if (urlChange.change != change || urlChange.effectiveDirective != FetchDirectiveKind.ImgSrc || !urlChange.urls.contains(point)) {
+				continue;
+			}
+			boolean excepted = false;
+			for (PolicyDiff.UrlClass except : urlChange.except) {
+				excepted |= except.contains(point);
+			}
+			in |= !excepted;
+		}
+		return in;
+	}
+}
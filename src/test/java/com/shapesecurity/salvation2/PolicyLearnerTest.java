@@ -0,0 +1,137 @@
+package com.shapesecurity.salvation2;
+
+import com.shapesecurity.salvation2.Directives.SourceExpressionDirective;
+import com.shapesecurity.salvation2.URLs.GUID;
+import com.shapesecurity.salvation2.URLs.URI;
+import com.shapesecurity.salvation2.URLs.URLWithScheme;
+import com.shapesecurity.salvation2.Values.Hash;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PolicyLearnerTest extends TestBase {
+	private static final URLWithScheme ORIGIN = URI.parseURI("https://example.com/").get();
+
+	@Test
+	public void testLearn() {
+		PolicyLearner learner = new PolicyLearner(3, 4, 2);
+		assertEquals("default-src 'none'", learner.toPolicy().toString());
+
+		learner.observe(ORIGIN, FetchDirectiveKind.ScriptSrcElem, url("https://example.com/app.js"));
+		learner.observe(ORIGIN, FetchDirectiveKind.ScriptSrcElem, url("https://cdn.example.net/lib.js"));
+		learner.observe(ORIGIN, FetchDirectiveKind.ScriptSrcElem, url("https://cdn.example.net/other.js"));
+		learner.observe(ORIGIN, FetchDirectiveKind.ImgSrc, new GUID("data", "image/png;base64,AAAA"));
+		learner.observe(ORIGIN, FetchDirectiveKind.ImgSrc, url("https://img.example.org:8443/a.png"));
+		learner.observeInline(FetchDirectiveKind.StyleSrcAttr, hash("'sha256-47DEQpj8HBSa+/TImW+5JCeuQeRkm5NMpJWZG3hSuFU='"));
+		assertEquals("default-src 'none'; img-src data: https://img.example.org:8443; script-src-elem 'self' https://cdn.example.net; style-src-attr 'sha256-47DEQpj8HBSa+/TImW+5JCeuQeRkm5NMpJWZG3hSuFU=' 'unsafe-hashes'", learner.toPolicy().toString());
+	}
+
+	@Test
+	public void testLearnInlineOnly() {
+		PolicyLearner learner = new PolicyLearner();
+		learner.observeInline(FetchDirectiveKind.ScriptSrcElem, hash("'sha256-47DEQpj8HBSa+/TImW+5JCeuQeRkm5NMpJWZG3hSuFU='"));
+		learner.observeInline(FetchDirectiveKind.StyleSrcElem, hash("'sha256-47DEQpj8HBSa+/TImW+5JCeuQeRkm5NMpJWZG3hSuFU='"));
+		String policy = learner.toPolicy().toString();
+		assertEquals("default-src 'none'; script-src-elem 'sha256-47DEQpj8HBSa+/TImW+5JCeuQeRkm5NMpJWZG3hSuFU='; style-src-elem 'sha256-47DEQpj8HBSa+/TImW+5JCeuQeRkm5NMpJWZG3hSuFU='", policy);
+		Policy.parseSerializedCSP(policy, throwIfPolicyError);
+	}
+
+	@Test
+	public void testSchemesAreBounded() {
+		PolicyLearner learner = new PolicyLearner();
+		for (int i = 0; i < 100; ++i) {
+			learner.observe(ORIGIN, FetchDirectiveKind.ConnectSrc, url("x" + i + "://h/"));
+		}
+		learner.observe(ORIGIN, FetchDirectiveKind.ConnectSrc, new GUID("data", "a"));
+		// hosts of schemes already learned are still learned
+		learner.observe(ORIGIN, FetchDirectiveKind.ConnectSrc, url("x0://h2/"));
+		assertEquals(85, learner.dropped());
+		SourceExpressionDirective connectSrc = learner.toPolicy().getFetchDirective(FetchDirectiveKind.ConnectSrc).get();
+		assertEquals(17, connectSrc.getHosts().size());
+		assertTrue(connectSrc.getSchemes().isEmpty());
+	}
+
+	@Test
+	public void testGeneralize() {
+		PolicyLearner learner = new PolicyLearner(3, 4, 2);
+		learner.observe(ORIGIN, FetchDirectiveKind.ImgSrc, url("https://a.cdn.com/"));
+		learner.observe(ORIGIN, FetchDirectiveKind.ImgSrc, url("https://b.cdn.com/"));
+		learner.observe(ORIGIN, FetchDirectiveKind.ImgSrc, url("https://c.cdn.com/"));
+		// already covered by the wildcard
+		learner.observe(ORIGIN, FetchDirectiveKind.ImgSrc, url("https://d.cdn.com/"));
+		assertEquals("default-src 'none'; img-src https://*.cdn.com", learner.toPolicy().toString());
+
+		// subdomains of co.uk belong to different people
+		learner.observe(ORIGIN, FetchDirectiveKind.FontSrc, url("https://a.co.uk/"));
+		learner.observe(ORIGIN, FetchDirectiveKind.FontSrc, url("https://b.co.uk/"));
+		learner.observe(ORIGIN, FetchDirectiveKind.FontSrc, url("https://c.co.uk/"));
+		learner.observe(ORIGIN, FetchDirectiveKind.FontSrc, url("http://c.co.uk/"));
+		assertEquals("default-src 'none'; font-src https://a.co.uk https://b.co.uk https://c.co.uk http://c.co.uk; img-src https://*.cdn.com", learner.toPolicy().toString());
+
+		learner.observe(ORIGIN, FetchDirectiveKind.FontSrc, url("https://d.co.uk/"));
+		learner.observe(ORIGIN, FetchDirectiveKind.FontSrc, url("https://e.co.uk/"));
+		assertEquals("default-src 'none'; font-src https: http://c.co.uk; img-src https://*.cdn.com", learner.toPolicy().toString());
+
+		for (int i = 0; i < 3; ++i) {
+			learner.observeInline(FetchDirectiveKind.ScriptSrcElem, hash("'sha256-" + i + "'"));
+		}
+		assertEquals("default-src 'none'; font-src https: http://c.co.uk; img-src https://*.cdn.com; script-src-elem 'unsafe-inline'", learner.toPolicy().toString());
+
+		assertEquals("example.com", PolicyLearner.parentDomain("a.example.com"));
+		assertEquals("bbc.co.uk", PolicyLearner.parentDomain("www.bbc.co.uk"));
+		assertNull(PolicyLearner.parentDomain("example.com"));
+		assertNull(PolicyLearner.parentDomain("10.0.0.1"));
+	}
+
+	@Test
+	public void testLearnedPolicyAllowsTraffic() throws InterruptedException {
+		PolicyLearner learner = new PolicyLearner();
+		List<URLWithScheme> urls = new ArrayList<>();
+		for (int i = 0; i < 200; ++i) {
+			urls.add(url("https://s" + i + ".tenant" + (i % 7) + ".example.net:" + (i % 2 == 0 ? 443 : 8443) + "/x" + i));
+			urls.add(url("http://h" + i + ".io/"));
+		}
+		List<Thread> threads = new ArrayList<>();
+		AtomicInteger next = new AtomicInteger();
+		for (int t = 0; t < 4; ++t) {
+			Thread thread = new Thread(() -> {
+				int i;
+				while ((i = next.getAndIncrement()) < urls.size()) {
+					learner.observe(ORIGIN, FetchDirectiveKind.ConnectSrc, urls.get(i));
+				}
+			});
+			threads.add(thread);
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		Policy policy = learner.toPolicy();
+		for (URLWithScheme url : urls) {
+			assertTrue(url.toString(), policy.allowsConnection(Optional.of(url), Optional.of(ORIGIN)));
+		}
+		assertFalse(policy.allowsImage(Optional.of(urls.get(0)), Optional.of(ORIGIN)));
+		// the http hosts were too many, and the example.net ones generalized to one wildcard per tenant and port
+		SourceExpressionDirective connectSrc = policy.getFetchDirective(FetchDirectiveKind.ConnectSrc).get();
+		assertEquals("[http:]", connectSrc.getSchemes().toString());
+		assertEquals(14, connectSrc.getHosts().size());
+		assertEquals(0, learner.dropped());
+	}
+
+	private static URLWithScheme url(String url) {
+		return URI.parseURI(url).get();
+	}
+
+	private static Hash hash(String hash) {
+		return Hash.parseHash(hash).get();
+	}
+}
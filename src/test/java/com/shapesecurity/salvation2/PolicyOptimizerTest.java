@@ -0,0 +1,141 @@
+package com.shapesecurity.salvation2;
+
+import com.shapesecurity.salvation2.URLs.GUID;
+import com.shapesecurity.salvation2.URLs.URI;
+import com.shapesecurity.salvation2.URLs.URLWithScheme;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PolicyOptimizerTest extends TestBase {
+	@Test
+	public void testDuplicates() {
+		optimizesTo("script-src a A a; SCRIPT-SRC b", "script-src a");
+		optimizesTo("script-src 'none' a 'SELF' 'self'", "script-src a 'self'");
+		optimizesTo("script-src 'NONCE-abc' 'nonce-abc' 'Sha256-abc' 'sha256-abc'", "script-src 'nonce-abc' 'sha256-abc'");
+		optimizesTo("sandbox allow-forms ALLOW-FORMS", "sandbox allow-forms");
+		optimizesTo("plugin-types a/b A/B", "plugin-types a/b");
+		optimizesTo("upgrade-insecure-requests a; block-all-mixed-content", "upgrade-insecure-requests; block-all-mixed-content");
+		optimizesTo("report-uri /a /a", "report-uri /a /a");
+		optimizesTo("script-src", "script-src");
+		optimizesTo("a_b c; img-src a", "img-src a");
+	}
+
+	@Test
+	public void testUnrecognizedValuesAreKept() {
+		optimizesTo("script-src 'wasm-unsafe-eval' a 'wasm-unsafe-eval'", "script-src 'wasm-unsafe-eval' a");
+		optimizesTo("frame-ancestors 'unsafe-inline' *", "frame-ancestors 'unsafe-inline' *");
+		optimizesTo("trusted-types a a; report-to a b", "trusted-types a a; report-to a b");
+		optimizesTo("sandbox allow-forms allow-something-new", "sandbox allow-forms allow-something-new");
+	}
+
+	@Test
+	public void testSubsumedSources() {
+		optimizesTo("img-src * https: http://a.com https://b.com:8080/c ftp://c.com ws://d.com", "img-src * ws://d.com");
+		optimizesTo("img-src * a.com", "img-src * a.com");
+		optimizesTo("img-src https: http: wss:", "img-src http: wss:");
+		optimizesTo("img-src wss: https://a.com ws:", "img-src ws:");
+		optimizesTo("img-src http: https://a.com a.com", "img-src http: a.com");
+		optimizesTo("img-src a.b.com *.b.com c.d.b.com *.d.b.com b.com", "img-src *.b.com b.com");
+		optimizesTo("img-src a.com:8080 a.com:* a.com", "img-src a.com:*");
+		optimizesTo("img-src http://a.com https://a.com wss://a.com", "img-src http://a.com wss://a.com");
+		optimizesTo("img-src a.com/b/c a.com/b/ a.com/b a.com/bc https://a.com/b/", "img-src a.com/b/ a.com/b a.com/bc https://a.com/b/");
+		optimizesTo("img-src a.com/b a.com", "img-src a.com");
+	}
+
+	@Test
+	public void testPorts() {
+		optimizesTo("img-src https://a.com:443 wss://b.com:443 ftp://c.com:21", "img-src https://a.com wss://b.com ftp://c.com");
+		// http://a.com would also match https://a.com:443
+		optimizesTo("img-src http://a.com:80 ws://b.com:80 a.com:443", "img-src http://a.com:80 ws://b.com:80 a.com:443");
+		optimizesTo("img-src https://a.com:443 https://a.com", "img-src https://a.com");
+	}
+
+	@Test
+	public void testFetchDirectiveFallback() {
+		optimizesTo("default-src a b; script-src b a; img-src a", "default-src a b; img-src a");
+		optimizesTo("default-src a; script-src b; script-src-elem b; script-src-attr b", "default-src a; script-src b");
+		optimizesTo("default-src a; script-src-elem a; script-src b", "default-src a; script-src-elem a; script-src b");
+		optimizesTo("script-src a", "script-src a");
+		optimizesTo("default-src a; frame-src a; child-src a", "default-src a");
+		// child-src governs workers here, and falls back to script-src rather than default-src for them
+		optimizesTo("default-src a; child-src a; script-src b", "default-src a; child-src a; script-src b");
+		optimizesTo("default-src a; child-src b; frame-src a; worker-src a", "default-src a; child-src b; frame-src a; worker-src a");
+		optimizesTo("default-src 'self'; base-uri 'self'", "default-src 'self'; base-uri 'self'");
+	}
+
+	@Test
+	public void testBudget() {
+		Policy policy = Policy.parseSerializedCSP("default-src 'SELF' 'self'; script-src 'self'", Policy.PolicyErrorConsumer.ignored);
+		PolicyOptimizer.Result result = PolicyOptimizer.optimize(policy, 20);
+		assertEquals("default-src 'self'", result.policy.toString());
+		assertEquals(policy.toString().length(), result.originalBytes);
+		assertEquals(18, result.optimizedBytes);
+		assertEquals(policy.toString().length() - 18, result.bytesSaved());
+		assertTrue(result.withinBudget());
+
+		assertFalse(PolicyOptimizer.optimize(policy, 17).withinBudget());
+		assertTrue(PolicyOptimizer.optimize(policy).withinBudget());
+	}
+
+	@Test
+	public void testCorpusKeepsMeaning() throws IOException {
+		String[] origins = { "https://example.com", "http://example.com", "ws://example.com", "chrome-extension://abc" };
+		URLWithScheme[] urls = {
+			URI.parseURI("https://example.com/a/b").get(),
+			URI.parseURI("http://example.com").get(),
+			URI.parseURI("https://www.google-analytics.com/ga.js").get(),
+			URI.parseURI("wss://example.com").get(),
+			URI.parseURI("http://127.0.0.1:8080/").get(),
+			URI.parseURI("ftp://example.com").get(),
+			URI.parseURI("chrome-extension://abc/x").get(),
+			new GUID("data", "image/png"),
+			new GUID("blob", "https://example.com/1"),
+		};
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(PolicyOptimizerTest.class.getResourceAsStream("/csp.txt"), StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String host = line.substring(0, line.indexOf(':'));
+				for (Policy policy : Policy.parseSerializedCSPList(line.substring(host.length() + 1), Policy.PolicyListErrorConsumer.ignored).policies) {
+					PolicyOptimizer.Result result = PolicyOptimizer.optimize(policy);
+					assertTrue(line, result.bytesSaved() >= 0);
+					assertEquals(line, result.policy.toString(), PolicyOptimizer.optimize(result.policy).policy.toString());
+
+					String[] allOrigins = { origins[0], origins[1], origins[2], origins[3], "https://" + host };
+					for (String origin : allOrigins) {
+						Optional<URLWithScheme> o = Optional.of(URI.parseURI(origin).get());
+						for (URLWithScheme url : urls) {
+							Optional<URLWithScheme> u = Optional.of(url);
+							String message = line + " / " + origin + " / " + url.scheme + ":" + url.path;
+							assertEquals(message, allowsScript(policy, u, o), allowsScript(result.policy, u, o));
+							assertEquals(message, policy.allowsExternalStyle(Optional.empty(), u, o), result.policy.allowsExternalStyle(Optional.empty(), u, o));
+							assertEquals(message, policy.allowsImage(u, o), result.policy.allowsImage(u, o));
+							assertEquals(message, policy.allowsConnection(u, o), result.policy.allowsConnection(u, o));
+							assertEquals(message, policy.allowsFrame(u, o), result.policy.allowsFrame(u, o));
+							assertEquals(message, policy.allowsWorker(u, o), result.policy.allowsWorker(u, o));
+							assertEquals(message, policy.allowsFrameAncestor(u, o), result.policy.allowsFrameAncestor(u, o));
+						}
+					}
+					assertEquals(line, policy.allowsEval(), result.policy.allowsEval());
+				}
+			}
+		}
+	}
+
+	private static boolean allowsScript(Policy policy, Optional<URLWithScheme> url, Optional<URLWithScheme> origin) {
+		return policy.allowsExternalScript(Optional.empty(), Optional.empty(), url, Optional.empty(), origin);
+	}
+
+	private static void optimizesTo(String input, String output) {
+		Policy optimized = PolicyOptimizer.optimize(Policy.parseSerializedCSP(input, Policy.PolicyErrorConsumer.ignored)).policy;
+		assertEquals(output, optimized.toString());
+	}
+}
@@ -0,0 +1,123 @@
+package com.shapesecurity.salvation2;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class PolicySimulatorTest extends TestBase {
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	private static final String LOG = String.join("\n",
+		"# type\tdocument\turl\textra",
+		"script\thttps://example.com/\thttps://example.com/app.js",
+		"script\thttps://example.com/\thttps://cdn.example.net/lib.js",
+		"script\thttps://example.com/\thttps://evil.com/x.js\tnonce=abc",
+		"image\thttps://example.com/a\tdata:image/png;base64,AAAA",
+		"image\thttps://example.com/a\thttps://img.example.org/1.png",
+		"inline-script\thttps://example.com/\t-\tsource=alert(1)",
+		"inline-style\thttps://example.com/\t-\tsource=b{}",
+		"eval\thttps://example.com/\t-",
+		"connect\thttps://example.com/\twss://example.com/socket",
+		"connect\thttps://example.com/\twss://other.com/socket",
+		"",
+		"bogus\thttps://example.com/\thttps://a.com/",
+		"image\tnot a url\thttps://a.com/",
+		"image\thttps://example.com/"
+	);
+
+	@Test
+	public void testLineLog() throws IOException {
+		Policy policy = Policy.parseSerializedCSP("default-src 'self'; script-src 'self' 'nonce-abc'; img-src *; style-src 'unsafe-inline'", throwIfPolicyError);
+		Path log = this.temporaryFolder.newFile("loads.tsv").toPath();
+		Files.write(log, LOG.getBytes(StandardCharsets.UTF_8));
+
+		List<ViolationReport> violations = Collections.synchronizedList(new ArrayList<>());
+		PolicySimulator.Result result = new PolicySimulator(policy).simulate(log, 4, violations::add);
+		assertEquals(10, result.loads);
+		assertEquals(5, result.blocked);
+		assertEquals(3, result.skipped);
+		Map<String, Long> expected = new TreeMap<>();
+		expected.put("img-src", 1L);
+		expected.put("script-src", 1L);
+		expected.put("script-src-elem", 2L);
+		expected.put("connect-src", 1L);
+		assertEquals(expected, result.blockedByDirective);
+
+		assertEquals(5, violations.size());
+		violations.sort((a, b) -> a.toString().compareTo(b.toString()));
+		assertEquals("[connect-src blocked wss://other.com/socket on https://example.com/, img-src blocked data: on https://example.com/a, "
+				+ "script-src blocked eval on https://example.com/, script-src-elem blocked https://cdn.example.net/lib.js on https://example.com/, "
+				+ "script-src-elem blocked inline on https://example.com/]", violations.toString());
+		for (ViolationReport violation : violations) {
+			assertEquals(policy.toString(), violation.originalPolicy);
+			assertEquals(ViolationReport.Verdict.Blocked, violation.reevaluate(policy));
+		}
+	}
+
+	@Test
+	public void testPolicyListAndThreads() throws IOException {
+		// every policy in a list is enforced
+		PolicyList policies = new PolicyList(Arrays.asList(
+			Policy.parseSerializedCSP("script-src 'self' https://cdn.example.net", throwIfPolicyError),
+			Policy.parseSerializedCSP("script-src https:; img-src 'self'", throwIfPolicyError)
+		));
+		StringBuilder log = new StringBuilder();
+		for (int i = 0; i < 5000; ++i) {
+			log.append("script\thttps://example.com/").append(i % 7).append("\thttps://").append(i % 3 == 0 ? "cdn.example.net" : "example.com").append("/s.js\n");
+			log.append("image\thttps://example.com/\thttp").append(i % 2 == 0 ? "s" : "").append("://example.com/i.png\n");
+		}
+		PolicySimulator simulator = new PolicySimulator(policies);
+		PolicySimulator.Result single = simulator.simulate(new StringReader(log.toString()), 1, v -> { });
+		AtomicLong violations = new AtomicLong();
+		PolicySimulator.Result parallel = simulator.simulate(new StringReader(log.toString()), 8, v -> violations.incrementAndGet());
+		assertEquals(single.toString(), parallel.toString());
+		assertEquals(10000, parallel.loads);
+		// http://example.com is not 'self' for an https: document
+		assertEquals(2500, parallel.blocked);
+		assertEquals(2500, violations.get());
+	}
+
+	@Test
+	public void testJsonLogs() throws IOException {
+		Policy policy = Policy.parseSerializedCSP("default-src 'self'", throwIfPolicyError);
+		PolicySimulator simulator = new PolicySimulator(policy);
+
+		String records = "{\"type\": \"script\", \"document\": \"https://example.com/\", \"url\": \"https://a.com/x.js\"}\n"
+				+ "[{\"type\": \"inline-style\", \"document\": \"https://example.com/\", \"source\": \"b{}\", \"extra\": [1]}, {\"type\": \"image\", \"document\": \"https://example.com/\"}]";
+		PolicySimulator.Result result = simulator.simulate(new StringReader(records), 2, v -> { });
+		assertEquals("2 of 2 loads blocked (1 skipped): {script-src-elem=1, style-src-elem=1}", result.toString());
+
+		String har = "{\"log\": {\"version\": \"1.2\", \"pages\": [{\"id\": \"page_1\", \"title\": \"https://example.com/\"}], \"entries\": ["
+				+ "{\"pageref\": \"page_1\", \"_resourceType\": \"document\", \"request\": {\"method\": \"GET\", \"url\": \"https://example.com/\", \"headers\": []}},"
+				+ "{\"pageref\": \"page_1\", \"_resourceType\": \"stylesheet\", \"request\": {\"url\": \"https://example.com/a.css\"}},"
+				+ "{\"pageref\": \"page_1\", \"_resourceType\": \"xhr\", \"request\": {\"url\": \"https://api.example.com/\"}},"
+				+ "{\"pageref\": \"page_1\", \"_resourceType\": \"image\", \"request\": {\"url\": \"https://example.com/i.png\"}, \"response\": {\"status\": 200}}"
+				+ "]}, \"trailing\": {}}";
+		result = simulator.simulate(new StringReader(har), 2, v -> { });
+		assertEquals("1 of 3 loads blocked (1 skipped): {connect-src=1}", result.toString());
+
+		try {
+			simulator.simulate(new StringReader("[{\"type\": "), 2, v -> { });
+			fail();
+		} catch (IOException e) {
+			// expected
+		}
+	}
+}
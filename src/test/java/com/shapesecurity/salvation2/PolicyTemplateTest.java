@@ -0,0 +1,72 @@
+package com.shapesecurity.salvation2;
+
+import com.shapesecurity.salvation2.Values.Nonce;
+import org.junit.Test;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class PolicyTemplateTest extends TestBase {
+	@Test
+	public void testRender() {
+		Policy policy = Policy.parseSerializedCSP("default-src 'self'; script-src 'strict-dynamic'; style-src 'self'", throwIfPolicyError);
+		policy.getFetchDirective(FetchDirectiveKind.ScriptSrc).get().addNonce(PolicyTemplate.PLACEHOLDER, throwIfManipulationError);
+		policy.getFetchDirective(FetchDirectiveKind.StyleSrc).get().addNonce(PolicyTemplate.PLACEHOLDER, throwIfManipulationError);
+		PolicyTemplate template = PolicyTemplate.compile(policy);
+		assertEquals(2, template.placeholderCount());
+
+		Nonce nonce = Nonce.parseNonce("'nonce-aBc+/='").get();
+		String expected = "default-src 'self'; script-src 'strict-dynamic' 'nonce-aBc+/='; style-src 'self' 'nonce-aBc+/='";
+		assertEquals(expected, template.renderToString(nonce));
+		assertEquals(expected.length(), template.renderedLength(nonce.base64ValuePart.length()));
+
+		// the template is a snapshot
+		policy.setUpgradeInsecureRequests(true);
+		assertEquals(expected, template.renderToString(nonce));
+
+		byte[] out = new byte[expected.length() + 2];
+		assertEquals(expected.length(), template.render(nonce, out, 1));
+		assertEquals(expected, new String(out, 1, expected.length(), StandardCharsets.US_ASCII));
+		try {
+			template.render(nonce, out, 3);
+			fail();
+		} catch (IndexOutOfBoundsException e) {
+			// expected
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocate(expected.length());
+		template.render(nonce, buffer);
+		assertEquals(expected, new String(buffer.array(), StandardCharsets.US_ASCII));
+		try {
+			template.render(nonce, buffer);
+			fail();
+		} catch (BufferOverflowException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testPlaceholderPositions() {
+		rendersTo("script-src 'NONCE-salvation-template-placeholder'", "script-src 'NONCE-n'");
+		rendersTo("script-src 'nonce-salvation-template-placeholder' 'self'", "script-src 'nonce-n' 'self'");
+		rendersTo("script-src 'nonce-salvation-template-placeholder'; img-src *", "script-src 'nonce-n'; img-src *");
+		rendersTo("script-src 'nonce-salvation-template-placeholderx' 'nonce-salvation-template-placeholder'", "script-src 'nonce-salvation-template-placeholderx' 'nonce-n'");
+		rendersTo("x-salvation-template-placeholder 'nonce-salvation-template-placeholder'", "x-salvation-template-placeholder 'nonce-n'");
+
+		try {
+			PolicyTemplate.compile(Policy.parseSerializedCSP("script-src 'nonce-abc'", throwIfPolicyError));
+			fail();
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	private void rendersTo(String policy, String expected) {
+		PolicyTemplate template = PolicyTemplate.compile(Policy.parseSerializedCSP(policy, Policy.PolicyErrorConsumer.ignored));
+		assertEquals(expected, template.renderToString(Nonce.parseNonce("'nonce-n'").get()));
+	}
+}
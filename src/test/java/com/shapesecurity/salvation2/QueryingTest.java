@@ -1,13 +1,21 @@
 package com.shapesecurity.salvation2;
 
+import com.shapesecurity.salvation2.Directives.SandboxDirective;
 import com.shapesecurity.salvation2.URLs.GUID;
+import com.shapesecurity.salvation2.URLs.MutableURL;
 import com.shapesecurity.salvation2.URLs.URI;
 import com.shapesecurity.salvation2.URLs.URLWithScheme;
 import com.shapesecurity.salvation2.Values.MediaType;
 import org.junit.Test;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumSet;
 import java.util.Optional;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
@@ -1474,7 +1482,141 @@ public class QueryingTest extends TestBase {
 		assertTrue(p.allowsExternalScript(Optional.empty(), Optional.empty(), Optional.empty(), Optional.empty(), Optional.empty()));
 	}
 
+	@Test
+	public void testEffectiveSandbox() {
+		PolicyList list = Policy.parseSerializedCSPList("sandbox allow-scripts allow-forms, script-src 'self', sandbox allow-forms allow-popups", throwIfPolicyListError);
+		assertEquals(SandboxDirective.Keyword.AllowForms.bit, list.effectiveSandboxFlags());
+		assertEquals(Optional.of(EnumSet.of(SandboxDirective.Keyword.AllowForms)), list.effectiveSandbox());
+
+		list = Policy.parseSerializedCSPList("script-src 'self', img-src 'self'", throwIfPolicyListError);
+		assertEquals(SandboxDirective.NOT_SANDBOXED, list.effectiveSandboxFlags());
+		assertEquals(Optional.empty(), list.effectiveSandbox());
+
+		list = Policy.parseSerializedCSPList("sandbox, img-src 'self'", throwIfPolicyListError);
+		assertEquals(Optional.of(EnumSet.noneOf(SandboxDirective.Keyword.class)), list.effectiveSandbox());
+	}
+
+
+	@Test
+	public void testPolicyInOriginAgreesWithPolicy() {
+		String[] policies = {
+			"default-src *",
+			"default-src 'self'",
+			"default-src example.com:* 'self'; connect-src example.com ws:",
+			"script-src *.example.com/a/ 'self'; img-src http:; frame-ancestors 'self' *",
+			"form-action 'self'; navigate-to example.com",
+		};
+		URLWithScheme[] origins = {
+			URI.parseURI("http://example.com").orElse(null),
+			URI.parseURI("https://example.com").orElse(null),
+			URI.parseURI("https://example.com:8443").orElse(null),
+			URI.parseURI("ws://example.com").orElse(null),
+			URI.parseURI("wss://example.com").orElse(null),
+			URI.parseURI("custom-scheme://example.com").orElse(null),
+			new GUID("data", "text/html,"),
+		};
+		URLWithScheme[] urls = {
+			URI.parseURI("http://example.com").orElse(null),
+			URI.parseURI("https://example.com:443/a/b").orElse(null),
+			URI.parseURI("https://example.com:8443").orElse(null),
+			URI.parseURI("ws://example.com").orElse(null),
+			URI.parseURI("wss://a.example.com/a/").orElse(null),
+			URI.parseURI("ftp://example.com").orElse(null),
+			URI.parseURI("custom-scheme://example.com").orElse(null),
+			new GUID("data", "text/html,"),
+		};
+		for (String policyText : policies) {
+			Policy policy = parse(policyText);
+			for (URLWithScheme origin : origins) {
+				PolicyInOrigin p = new PolicyInOrigin(policy, origin);
+				Optional<URLWithScheme> o = Optional.of(origin);
+				for (URLWithScheme url : urls) {
+					Optional<URLWithScheme> u = Optional.of(url);
+					String message = policyText + " in " + origin.scheme + "://" + origin.host + " for " + url.scheme + "://" + url.host;
+					assertEquals(message, policy.allowsExternalScript(Optional.empty(), Optional.empty(), u, Optional.empty(), o), p.allowsScriptFromSource(url));
+					assertEquals(message, policy.allowsImage(u, o), p.allowsImageFromSource(url));
+					assertEquals(message, policy.allowsConnection(u, o), p.allowsConnection(url));
+					assertEquals(message, policy.allowsFrameAncestor(u, o), p.allowsFrameAncestor(url));
+					assertEquals(message, policy.allowsFormAction(u, Optional.empty(), Optional.empty(), o), p.allowsFormAction(url));
+					assertEquals(message, policy.allowsNavigation(u, Optional.empty(), Optional.empty(), o), p.allowsNavigation(url));
+				}
+			}
+		}
+
+		PolicyInOrigin p = parse("default-src * 'self'", "custom-scheme://example.com");
+		assertTrue(p.allowsImageFromSource(URI.parseURI("custom-scheme://other.com").orElse(null)));
+		assertFalse(p.allowsImageFromSource(URI.parseURI("other-scheme://example.com").orElse(null)));
+
+		p = parse("default-src 'self'", "https://example.com");
+		assertTrue(p.allowsImageFromSource(URI.parseURI("https://example.com:443").orElse(null)));
+		assertFalse(p.allowsImageFromSource(URI.parseURI("http://example.com").orElse(null)));
 
+		p = parse("default-src 'self'", "http://example.com");
+		assertTrue(p.allowsImageFromSource(URI.parseURI("http://example.com").orElse(null)));
+		assertTrue(p.allowsImageFromSource(URI.parseURI("https://example.com").orElse(null)));
+	}
+
+	@Test
+	public void testMatchUrl() {
+		PolicyInOrigin p = parse("default-src https://a.com 'self'; img-src https://a.com http://b.com/x/ *.c.com data: 'self'; connect-src https://d.com", "https://example.com");
+
+		SourceMatch match = p.matchUrl(FetchDirectiveKind.ImgSrc, URI.parseURI("https://www.c.com/").get());
+		assertTrue(match.allowed);
+		assertEquals(FetchDirectiveKind.ImgSrc, match.governingDirective);
+		assertEquals(SourceMatch.Source.Host, match.source);
+		assertEquals(2, match.index);
+		assertEquals("*.c.com", p.policy.getFetchDirective(FetchDirectiveKind.ImgSrc).get().getHosts().get(match.index).toString());
+		assertEquals("allowed by img-src Host 2", match.toString());
+
+		assertEquals("allowed by img-src Host 1", p.matchUrl(FetchDirectiveKind.ImgSrc, URI.parseURI("https://b.com/x/y").get()).toString());
+		assertEquals("allowed by img-src Scheme 0", p.matchUrl(FetchDirectiveKind.ImgSrc, new GUID("data", "a")).toString());
+		assertEquals("allowed by img-src Self", p.matchUrl(FetchDirectiveKind.ImgSrc, URI.parseURI("https://example.com/").get()).toString());
+		assertEquals("blocked by img-src", p.matchUrl(FetchDirectiveKind.ImgSrc, URI.parseURI("https://b.com/").get()).toString());
+		assertEquals("allowed by default-src Host 0", p.matchUrl(FetchDirectiveKind.ScriptSrcElem, URI.parseURI("https://a.com/").get()).toString());
+		assertEquals("blocked by default-src", p.matchUrl(FetchDirectiveKind.FontSrc, URI.parseURI("https://b.com/").get()).toString());
+		assertEquals("allowed by connect-src Host 0", p.matchUrl(FetchDirectiveKind.ConnectSrc, URI.parseURI("wss://d.com/").get()).toString());
+
+		SourceMatch noDirective = parse("img-src *", "https://example.com").matchUrl(FetchDirectiveKind.FontSrc, URI.parseURI("https://a.com/").get());
+		assertTrue(noDirective.allowed);
+		assertEquals(null, noDirective.governingDirective);
+		assertEquals(null, noDirective.source);
+		assertEquals("allowed by img-src Star", parse("img-src *", "https://example.com").matchUrl(FetchDirectiveKind.ImgSrc, URI.parseURI("https://a.com/").get()).toString());
+
+		int encoded = p.matchUrlEncoded(FetchDirectiveKind.ImgSrc, new MutableURL().set(URI.parseURI("http://b.com/x/").get()));
+		assertTrue(SourceMatch.allowed(encoded));
+		assertEquals(FetchDirectiveKind.ImgSrc, SourceMatch.governingDirective(encoded));
+		assertEquals(SourceMatch.Source.Host, SourceMatch.source(encoded));
+		assertEquals(1, SourceMatch.index(encoded));
+		assertFalse(SourceMatch.allowed(p.matchUrlEncoded(FetchDirectiveKind.ImgSrc, new MutableURL().set(URI.parseURI("http://b.com/").get()))));
+
+		assertFalse(p.policy.matchUrl(FetchDirectiveKind.ImgSrc, Optional.empty(), Optional.empty()).allowed);
+	}
+
+	@Test
+	public void testMatchUrlAgreesWithAllows() throws IOException {
+		URLWithScheme[] urls = {
+			URI.parseURI("https://example.com/a/b").get(),
+			URI.parseURI("http://example.com").get(),
+			URI.parseURI("https://www.google-analytics.com/ga.js").get(),
+			URI.parseURI("wss://example.com").get(),
+			URI.parseURI("http://127.0.0.1:8080/").get(),
+			new GUID("data", "image/png"),
+		};
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(QueryingTest.class.getResourceAsStream("/csp.txt"), StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String host = line.substring(0, line.indexOf(':'));
+				for (Policy policy : Policy.parseSerializedCSPList(line.substring(host.length() + 1), Policy.PolicyListErrorConsumer.ignored).policies) {
+					PolicyInOrigin p = new PolicyInOrigin(policy, URI.parseURI("https://" + host).get());
+					for (URLWithScheme url : urls) {
+						assertEquals(line, p.allowsImageFromSource(url), p.matchUrl(FetchDirectiveKind.ImgSrc, url).allowed);
+						assertEquals(line, p.allowsFrameFromSource(url), p.matchUrl(FetchDirectiveKind.FrameSrc, url).allowed);
+						assertEquals(line, p.allowsConnection(url), p.matchUrl(FetchDirectiveKind.ConnectSrc, url).allowed);
+					}
+				}
+			}
+		}
+	}
 
 	private Policy parse(String policy) {
 		return Policy.parseSerializedCSP(policy, throwIfPolicyError);
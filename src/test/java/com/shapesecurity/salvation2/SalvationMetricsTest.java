@@ -0,0 +1,144 @@
+package com.shapesecurity.salvation2;
+
+import com.shapesecurity.salvation2.URLs.URI;
+import com.shapesecurity.salvation2.URLs.URLWithScheme;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SalvationMetricsTest extends TestBase {
+	@After
+	public void tearDown() {
+		Policy.setMetrics(null);
+	}
+
+	@Test
+	public void testListener() {
+		List<String> events = new ArrayList<>();
+		Policy.setMetrics(new SalvationMetrics() {
+			@Override
+			public void policyParsed(Policy policy, int directiveCount, long durationNanos) {
+				events.add("parsed " + directiveCount);
+			}
+
+			@Override
+			public void parseError(Policy.Severity severity, String directiveName, String message) {
+				events.add(severity + " " + directiveName + ": " + message);
+			}
+
+			@Override
+			public void templateCompiled(Policy policy, PolicyTemplate template, long durationNanos) {
+				events.add("compiled " + template.placeholderCount());
+			}
+
+			@Override
+			public void queryAnswered(Policy policy, FetchDirectiveKind effectiveDirective, boolean allowed, long durationNanos) {
+				events.add(effectiveDirective.repr + " " + allowed);
+			}
+		});
+
+		Policy.parseSerializedCSPList("IMG-SRC a b a; script-src 'self', frame-src c, ", Policy.PolicyListErrorConsumer.ignored);
+		Policy policy = Policy.parseSerializedCSP("default-src 'self'; style-src 'unsafe-inline'", throwIfPolicyError);
+		Optional<URLWithScheme> origin = Optional.of(URI.parseURI("https://a.com").get());
+		policy.allowsImage(Optional.of(URI.parseURI("https://a.com/1.png").get()), origin);
+		policy.allowsConnection(Optional.of(URI.parseURI("https://b.com").get()), origin);
+		policy.allowsInlineStyle(Optional.empty(), Optional.empty());
+		policy.allowsEval();
+		policy.allowsFrameAncestor(Optional.of(URI.parseURI("https://b.com").get()), origin);
+		new PolicyInOrigin(policy, origin.get()).allowsScriptFromSource(URI.parseURI("https://a.com/a.js").get());
+		PolicyTemplate.compile(Policy.parseSerializedCSP("script-src 'nonce-salvation-template-placeholder'", throwIfPolicyError));
+
+		String[] expected = {
+			"Warning IMG-SRC: Duplicate host a",
+			"parsed 2",
+			"parsed 1",
+			"parsed 0",
+			"parsed 2",
+			"img-src true",
+			"connect-src false",
+			"style-src-elem true",
+			"script-src false",
+			"script-src-elem true",
+			"parsed 1",
+			"compiled 1",
+		};
+		assertEquals(String.join("\n", expected), String.join("\n", events));
+
+		Policy.setMetrics(null);
+		policy.allowsEval();
+		assertEquals(expected.length, events.size());
+		assertFalse(Policy.getMetrics().isPresent());
+	}
+
+	@Test
+	public void testStripedMetrics() {
+		StripedMetrics metrics = new StripedMetrics();
+		Policy.setMetrics(metrics);
+		assertTrue(Policy.getMetrics().isPresent());
+
+		Policy policy = Policy.parseSerializedCSP("img-src a a; Img-Src b; x-unknown", Policy.PolicyErrorConsumer.ignored);
+		Optional<URLWithScheme> origin = Optional.of(URI.parseURI("https://a.com").get());
+		for (int i = 0; i < 3; ++i) {
+			policy.allowsImage(Optional.of(URI.parseURI("https://a/").get()), origin);
+		}
+		policy.allowsImage(Optional.of(URI.parseURI("https://b/").get()), origin);
+		policy.allowsFont(Optional.empty(), origin);
+
+		assertEquals(1, metrics.policiesParsed());
+		assertEquals(3, metrics.directivesParsed());
+		assertEquals(1, metrics.parseLatency().count());
+		Map<String, Long> warnings = metrics.parseErrors(Policy.Severity.Warning);
+		// the duplicate value and the duplicate directive
+		assertEquals(2, warnings.size());
+		assertEquals(2L, (long) warnings.get("img-src"));
+		assertEquals(1L, (long) warnings.get("x-unknown"));
+		assertTrue(metrics.parseErrors(Policy.Severity.Error).isEmpty());
+		assertEquals(3, metrics.allowed(FetchDirectiveKind.ImgSrc));
+		assertEquals(1, metrics.denied(FetchDirectiveKind.ImgSrc));
+		assertEquals(1, metrics.allowed(FetchDirectiveKind.FontSrc));
+		assertEquals(4, metrics.queryLatency(FetchDirectiveKind.ImgSrc).count());
+		assertEquals(0, metrics.queryLatency(FetchDirectiveKind.ScriptSrc).count());
+
+		String scraped = new PrometheusExporter(metrics).scrape();
+		assertTrue(scraped, scraped.contains("\nsalvation_policies_parsed_total 1\n"));
+		assertTrue(scraped, scraped.contains("\nsalvation_parse_errors_total{severity=\"warning\",directive=\"x-unknown\"} 1\n"));
+		assertTrue(scraped, scraped.contains("\nsalvation_queries_total{directive=\"img-src\",verdict=\"denied\"} 1\n"));
+		assertTrue(scraped, scraped.contains("\nsalvation_query_duration_seconds_bucket{directive=\"img-src\",le=\"+Inf\"} 4\n"));
+		assertTrue(scraped, scraped.contains("\nsalvation_query_duration_seconds_count{directive=\"img-src\"} 4\n"));
+		assertFalse(scraped, scraped.contains("salvation_query_duration_seconds_count{directive=\"script-src\"}"));
+	}
+
+	@Test
+	public void testDirectiveNamesAreBounded() {
+		StripedMetrics metrics = new StripedMetrics();
+		for (int i = 0; i < 200; ++i) {
+			metrics.parseError(Policy.Severity.Warning, "x-" + i, "Unrecognized directive x-" + i);
+		}
+		Map<String, Long> warnings = metrics.parseErrors(Policy.Severity.Warning);
+		assertEquals(129, warnings.size());
+		assertEquals(72L, (long) warnings.get(StripedMetrics.OTHER_DIRECTIVES));
+	}
+
+	@Test
+	public void testLatencyHistogram() {
+		StripedMetrics.LatencyHistogram histogram = new StripedMetrics().parseLatency();
+		histogram.record(1);
+		histogram.record(256);
+		histogram.record(257);
+		histogram.record(512);
+		histogram.record(Long.MAX_VALUE / 2);
+		assertEquals(2, histogram.bucketCount(0));
+		assertEquals(2, histogram.bucketCount(1));
+		assertEquals(1, histogram.bucketCount(StripedMetrics.LatencyHistogram.BOUNDED_BUCKETS));
+		assertEquals(5, histogram.count());
+		assertEquals(512, StripedMetrics.LatencyHistogram.upperBoundNanos(1));
+	}
+}
@@ -0,0 +1,96 @@
+package com.shapesecurity.salvation2;
+
+import com.shapesecurity.salvation2.URLs.URI;
+import com.shapesecurity.salvation2.URLs.URLWithScheme;
+import com.shapesecurity.salvation2.Values.Scheme;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SourceHitCounterTest extends TestBase {
+	private static final Optional<URLWithScheme> ORIGIN = Optional.of(URI.parseURI("https://example.com").get());
+
+	@Test
+	public void testCounts() {
+		Policy policy = Policy.parseSerializedCSP("default-src 'self' https://a.com; img-src * data:; script-src 'nonce-abc' 'sha256-LPJNul+wow4m6DsqxbninhsWHlwfp0JecwQzYpOLmCQ=' b.com b.com/x; img-src c.com", Policy.PolicyErrorConsumer.ignored);
+		SourceHitCounter counter = policy.countSourceHits();
+		assertSame(counter, policy.countSourceHits());
+
+		assertTrue(policy.allowsImage(url("https://anything.com/"), ORIGIN));
+		assertTrue(policy.allowsImage(url("https://anything.com/"), ORIGIN));
+		assertTrue(policy.allowsFont(url("https://example.com/f"), ORIGIN));
+		assertTrue(policy.allowsFont(url("https://a.com/f"), ORIGIN));
+		assertFalse(policy.allowsFont(url("https://z.com/f"), ORIGIN));
+		assertTrue(policy.allowsExternalScript(Optional.of("abc"), Optional.empty(), url("https://z.com/"), Optional.empty(), ORIGIN));
+		// the first matching source is the one counted
+		assertTrue(policy.allowsExternalScript(Optional.empty(), Optional.empty(), url("https://b.com/x"), Optional.empty(), ORIGIN));
+		assertTrue(policy.allowsInlineScript(Optional.empty(), Optional.of("hello"), Optional.empty()));
+
+		assertEquals(
+			"[default-src 'self': 1, default-src https://a.com: 1, img-src *: 2, img-src data:: 0, script-src b.com: 1, script-src b.com/x: 0, script-src 'nonce-abc': 1, script-src 'sha256-LPJNul+wow4m6DsqxbninhsWHlwfp0JecwQzYpOLmCQ=': 1]",
+			counter.hits().toString()
+		);
+		assertEquals(
+			"[img-src data:, script-src b.com/x]",
+			counter.neverHit().stream().map(h -> h.directive + " " + h.source).collect(Collectors.toList()).toString()
+		);
+		List<SourceHitCounter.SourceHits> rare = counter.rarelyHit(2);
+		assertEquals(5, rare.size());
+		assertEquals("default-src: hit fewer than 2 times: 'self' (1) https://a.com (1)\n"
+				+ "img-src: never hit: data:\n"
+				+ "script-src: never hit: b.com/x; hit fewer than 2 times: b.com (1) 'nonce-abc' (1) 'sha256-LPJNul+wow4m6DsqxbninhsWHlwfp0JecwQzYpOLmCQ=' (1)\n",
+			counter.report(2)
+		);
+	}
+
+	@Test
+	public void testIntegrity() {
+		Policy policy = Policy.parseSerializedCSP("script-src 'sha256-abc' 'sha384-def'", Policy.PolicyErrorConsumer.ignored);
+		SourceHitCounter counter = policy.countSourceHits();
+		assertTrue(policy.allowsExternalScript(Optional.empty(), Optional.of("sha384-def"), Optional.empty(), Optional.empty(), Optional.empty()));
+		assertEquals("[script-src 'sha256-abc': 0, script-src 'sha384-def': 1]", counter.hits().toString());
+	}
+
+	@Test
+	public void testFrozen() {
+		Policy policy = Policy.parseSerializedCSP("img-src a.com", throwIfPolicyError);
+		policy.countSourceHits();
+		try {
+			policy.getFetchDirective(FetchDirectiveKind.ImgSrc).get().addScheme(Scheme.parseScheme("https:").get(), throwIfManipulationError);
+			fail();
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		// the policy itself can still be edited
+		policy.setUpgradeInsecureRequests(true);
+		assertEquals("img-src a.com; upgrade-insecure-requests", policy.toString());
+	}
+
+	@Test
+	public void testResultsUnchanged() {
+		String text = "default-src 'self'; script-src 'nonce-abc' https:; frame-ancestors 'none'; form-action a.com";
+		Policy counted = Policy.parseSerializedCSP(text, throwIfPolicyError);
+		Policy plain = Policy.parseSerializedCSP(text, throwIfPolicyError);
+		counted.countSourceHits();
+		for (String u : new String[]{ "https://example.com/a", "http://example.com/a", "https://a.com", "ftp://b.com" }) {
+			Optional<URLWithScheme> url = url(u);
+			assertEquals(u, plain.allowsImage(url, ORIGIN), counted.allowsImage(url, ORIGIN));
+			assertEquals(u, plain.allowsConnection(url, ORIGIN), counted.allowsConnection(url, ORIGIN));
+			assertEquals(u, plain.allowsFrameAncestor(url, ORIGIN), counted.allowsFrameAncestor(url, ORIGIN));
+			assertEquals(u, plain.allowsFormAction(url, Optional.empty(), Optional.empty(), ORIGIN), counted.allowsFormAction(url, Optional.empty(), Optional.empty(), ORIGIN));
+			assertEquals(u, plain.allowsExternalScript(Optional.of("x"), Optional.empty(), url, Optional.empty(), ORIGIN), counted.allowsExternalScript(Optional.of("x"), Optional.empty(), url, Optional.empty(), ORIGIN));
+		}
+	}
+
+	private static Optional<URLWithScheme> url(String url) {
+		return Optional.of(URI.parseURI(url).get());
+	}
+}
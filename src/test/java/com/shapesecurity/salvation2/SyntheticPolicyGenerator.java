@@ -0,0 +1,161 @@
+package com.shapesecurity.salvation2;
+
+import com.shapesecurity.salvation2.URLs.URI;
+import com.shapesecurity.salvation2.URLs.URLWithScheme;
+import com.shapesecurity.salvation2.Values.Hash;
+
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+// Generates policies far larger than any in csp.txt, along with URLs and inline sources to query them with, for tests and benchmarks
+// which need to see how things scale. Output depends only on the seed and settings, so runs are repeatable.
+//
+// Hosts, nonces, and hashes all go in default-src, which is the first directive; the other directives get hosts of their own.
+// img-src is the last directive the generator will add, so image queries are governed by default-src unless all 17 are asked for.
+public final class SyntheticPolicyGenerator {
+	private static final String[] DIRECTIVE_NAMES = {
+		"default-src", "script-src-attr", "style-src-attr", "connect-src", "font-src", "frame-src", "manifest-src", "media-src", "object-src",
+		"prefetch-src", "worker-src", "child-src", "script-src-elem", "style-src-elem", "script-src", "style-src", "img-src",
+	};
+
+	private final long seed;
+	private int directives = 1;
+	private int hostsPerDirective = 10;
+	private double wildcardFraction = 0.1;
+	private double pathFraction = 0.1;
+	private int nonces = 0;
+	private int hashes = 0;
+	private int urls = 100;
+	private double matchingFraction = 0.5;
+
+	public SyntheticPolicyGenerator(long seed) {
+		this.seed = seed;
+	}
+
+	public SyntheticPolicyGenerator directives(int directives) {
+		if (directives < 1 || directives > DIRECTIVE_NAMES.length) {
+			throw new IllegalArgumentException("directives must be between 1 and " + DIRECTIVE_NAMES.length);
+		}
+		this.directives = directives;
+		return this;
+	}
+
+	public SyntheticPolicyGenerator hostsPerDirective(int hostsPerDirective) {
+		this.hostsPerDirective = requireNonNegative(hostsPerDirective);
+		return this;
+	}
+
+	// The fraction of hosts which are like `*.example.com` rather than `a.example.com`
+	public SyntheticPolicyGenerator wildcardFraction(double wildcardFraction) {
+		this.wildcardFraction = requireFraction(wildcardFraction);
+		return this;
+	}
+
+	// The fraction of hosts which are restricted to a path, like `a.example.com/static/`
+	public SyntheticPolicyGenerator pathFraction(double pathFraction) {
+		this.pathFraction = requireFraction(pathFraction);
+		return this;
+	}
+
+	public SyntheticPolicyGenerator nonces(int nonces) {
+		this.nonces = requireNonNegative(nonces);
+		return this;
+	}
+
+	// Each hash is of one of Workload.inlineSources
+	public SyntheticPolicyGenerator hashes(int hashes) {
+		this.hashes = requireNonNegative(hashes);
+		return this;
+	}
+
+	// `matchingFraction` of the URLs match some host in default-src; the rest match nothing
+	public SyntheticPolicyGenerator urls(int urls, double matchingFraction) {
+		this.urls = requireNonNegative(urls);
+		this.matchingFraction = requireFraction(matchingFraction);
+		return this;
+	}
+
+	public Workload generate() {
+		Random random = new Random(this.seed);
+		StringBuilder policy = new StringBuilder();
+		List<URLWithScheme> matchingUrls = new ArrayList<>();
+		List<String> inlineSources = new ArrayList<>();
+		for (int d = 0; d < this.directives; ++d) {
+			if (d > 0) {
+				policy.append("; ");
+			}
+			policy.append(DIRECTIVE_NAMES[d]);
+			if (this.hostsPerDirective == 0 && (d > 0 || this.nonces + this.hashes == 0)) {
+				policy.append(" 'none'");
+			}
+			for (int h = 0; h < this.hostsPerDirective; ++h) {
+				// Every host is distinct, so that none is a duplicate of another
+				String domain = "d" + d + "-h" + h + "-" + Integer.toString(random.nextInt(1 << 20), 36) + ".example.com";
+				boolean wildcard = random.nextDouble() < this.wildcardFraction;
+				String path = random.nextDouble() < this.pathFraction ? "/p" + random.nextInt(100) + "/" : "";
+				policy.append(' ').append(wildcard ? "*." : "").append(domain).append(path);
+				if (d == 0) {
+					matchingUrls.add(URI.parseURI("https://" + (wildcard ? "sub." : "") + domain + (path.isEmpty() ? "/" : path) + "resource" + h + ".js").get());
+				}
+			}
+		}
+		if (this.nonces + this.hashes > 0) {
+			int insertAt = this.directives == 1 ? policy.length() : policy.indexOf(";");
+			StringBuilder sources = new StringBuilder();
+			byte[] nonce = new byte[16];
+			for (int i = 0; i < this.nonces; ++i) {
+				random.nextBytes(nonce);
+				sources.append(" 'nonce-").append(Base64.getEncoder().encodeToString(nonce)).append('\'');
+			}
+			for (int i = 0; i < this.hashes; ++i) {
+				String source = "console.log(" + random.nextInt() + ", " + i + ");";
+				inlineSources.add(source);
+				sources.append(' ').append(Hash.digest(Hash.Algorithm.SHA256, source));
+			}
+			policy.insert(insertAt, sources);
+		}
+
+		List<URLWithScheme> urls = new ArrayList<>(this.urls);
+		for (int i = 0; i < this.urls; ++i) {
+			if (!matchingUrls.isEmpty() && random.nextDouble() < this.matchingFraction) {
+				urls.add(matchingUrls.get(random.nextInt(matchingUrls.size())));
+			} else {
+				urls.add(URI.parseURI("https://nomatch" + random.nextInt(1 << 20) + ".example.org/resource.js").get());
+			}
+		}
+		return new Workload(policy.toString(), URI.parseURI("https://origin.example.net").get(), Collections.unmodifiableList(urls), Collections.unmodifiableList(inlineSources));
+	}
+
+	private static int requireNonNegative(int value) {
+		if (value < 0) {
+			throw new IllegalArgumentException("counts must not be negative");
+		}
+		return value;
+	}
+
+	private static double requireFraction(double value) {
+		if (!(value >= 0 && value <= 1)) {
+			throw new IllegalArgumentException("fractions must be between 0 and 1");
+		}
+		return value;
+	}
+
+	public static final class Workload {
+		public final String policy;
+		// Where the URLs are requested from. It is not one of the generated hosts.
+		public final URLWithScheme origin;
+		public final List<URLWithScheme> urls;
+		// The inline scripts whose hashes are in the policy, in order
+		public final List<String> inlineSources;
+
+		private Workload(String policy, URLWithScheme origin, List<URLWithScheme> urls, List<String> inlineSources) {
+			this.policy = policy;
+			this.origin = origin;
+			this.urls = urls;
+			this.inlineSources = inlineSources;
+		}
+	}
+}
@@ -0,0 +1,74 @@
+package com.shapesecurity.salvation2;
+
+import com.shapesecurity.salvation2.Directives.SourceExpressionDirective;
+import com.shapesecurity.salvation2.URLs.URLWithScheme;
+import org.junit.Test;
+
+import java.util.Optional;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SyntheticPolicyGeneratorTest extends TestBase {
+	@Test
+	public void testDeterministic() {
+		SyntheticPolicyGenerator.Workload a = new SyntheticPolicyGenerator(1).hostsPerDirective(50).nonces(2).hashes(2).generate();
+		SyntheticPolicyGenerator.Workload b = new SyntheticPolicyGenerator(1).hostsPerDirective(50).nonces(2).hashes(2).generate();
+		SyntheticPolicyGenerator.Workload c = new SyntheticPolicyGenerator(2).hostsPerDirective(50).nonces(2).hashes(2).generate();
+		assertEquals(a.policy, b.policy);
+		assertEquals(a.inlineSources, b.inlineSources);
+		assertEquals(a.urls.size(), b.urls.size());
+		for (int i = 0; i < a.urls.size(); ++i) {
+			assertEquals(a.urls.get(i).toString(), b.urls.get(i).toString());
+		}
+		assertNotEquals(a.policy, c.policy);
+	}
+
+	@Test
+	public void testShape() {
+		SyntheticPolicyGenerator.Workload workload = new SyntheticPolicyGenerator(3)
+			.directives(4)
+			.hostsPerDirective(1000)
+			.wildcardFraction(0.3)
+			.pathFraction(0.2)
+			.nonces(5)
+			.hashes(7)
+			.urls(500, 0.6)
+			.generate();
+		Policy policy = Policy.parseSerializedCSP(workload.policy, throwIfPolicyError);
+		SourceExpressionDirective defaultSrc = policy.getFetchDirective(FetchDirectiveKind.DefaultSrc).get();
+		assertEquals(1000, defaultSrc.getHosts().size());
+		assertEquals(5, defaultSrc.getNonces().size());
+		assertEquals(7, defaultSrc.getHashes().size());
+		assertEquals(1000, policy.getFetchDirective(FetchDirectiveKind.ConnectSrc).get().getHosts().size());
+		assertFalse(policy.getFetchDirective(FetchDirectiveKind.ImgSrc).isPresent());
+
+		long wildcards = defaultSrc.getHosts().stream().filter(h -> h.host.startsWith("*")).count();
+		long paths = defaultSrc.getHosts().stream().filter(h -> h.path != null).count();
+		assertTrue(wildcards > 200 && wildcards < 400);
+		assertTrue(paths > 120 && paths < 280);
+
+		Optional<URLWithScheme> origin = Optional.of(workload.origin);
+		int matching = 0;
+		for (URLWithScheme url : workload.urls) {
+			boolean allowed = policy.allowsImage(Optional.of(url), origin);
+			assertEquals(url.host + url.path, !url.host.startsWith("nomatch"), allowed);
+			if (allowed) {
+				++matching;
+			}
+		}
+		assertTrue(matching > 250 && matching < 350);
+
+		for (String source : workload.inlineSources) {
+			assertTrue(policy.allowsInlineScript(Optional.empty(), Optional.of(source), Optional.empty()));
+		}
+		assertFalse(policy.allowsInlineScript(Optional.empty(), Optional.of("alert(1)"), Optional.empty()));
+	}
+
+	@Test
+	public void testEmptyDirectives() {
+		assertEquals("default-src 'none'; script-src-attr 'none'", new SyntheticPolicyGenerator(0).directives(2).hostsPerDirective(0).generate().policy);
+	}
+}
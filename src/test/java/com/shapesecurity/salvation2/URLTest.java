@@ -0,0 +1,159 @@
+package com.shapesecurity.salvation2;
+
+import com.shapesecurity.salvation2.URLs.GUID;
+import com.shapesecurity.salvation2.URLs.MutableURL;
+import com.shapesecurity.salvation2.URLs.URI;
+import com.shapesecurity.salvation2.URLs.URLWithScheme;
+import org.junit.Test;
+
+import java.util.Locale;
+import java.util.Optional;
+import java.util.regex.Matcher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class URLTest extends TestBase {
+	@Test
+	public void testParseAgreesWithPattern() {
+		String[] inputs = {
+			"http://example.com",
+			"HTTPS://EXAMPLE.com:443/A/b%2Fc?q=1#frag",
+			"https://example.com:8080",
+			"https://example.com:*",
+			"https://*",
+			"https://*.example.com/",
+			"custom+scheme.v1-2://a-b.c/d;e=f:@!$&'()*+,",
+			"ws://127.0.0.1:9000/ws",
+			"http://a.b.c//d/./e/../f",
+			"http://example.com?x#y",
+			"http://example.com#y",
+			"http://example.com/\n",
+			"http://example.com/\r\n",
+			"http://example.com/?a\nb",
+			"http://example.com/#a\nb",
+			"http://example.com\n\n",
+			"http://example.com:",
+			"http://example.com:8o",
+			"http://example.com:*80",
+			"http://example.com.",
+			"http://.example.com",
+			"http://*example.com",
+			"http://*.",
+			"http://example.com/%zz",
+			"http://example.com/%4",
+			"http://example.com%41",
+			"http://exa mple.com",
+			"http://example.com/a b",
+			"http://",
+			"http:/example.com",
+			"example.com",
+			"1http://example.com",
+			"://example.com",
+			"",
+		};
+		MutableURL url = new MutableURL();
+		for (String input : inputs) {
+			Optional<URI> expected = parseWithPattern(input);
+			assertEquals(input, expected.isPresent(), url.parse(input));
+			assertEquals(input, expected, URI.parseURI(input));
+			if (expected.isPresent()) {
+				assertEquals(input, expected.get(), url.toURLWithScheme());
+			}
+		}
+	}
+
+	@Test
+	public void testParseRegion() {
+		MutableURL url = new MutableURL();
+		String line = "GET HTTP://Example.COM:8080/Path?query 200";
+		assertTrue(url.parse(line, 4, 38));
+		assertEquals("http", url.scheme());
+		assertEquals("example.com", url.host().toString());
+		assertEquals(8080, url.port());
+		assertEquals("/Path", url.path().toString());
+
+		assertFalse(url.parse(line, 0, 38));
+		// a failed parse leaves the URL as it was
+		assertEquals("example.com", url.host().toString());
+
+		assertTrue(url.parse(new StringBuilder("ftp://b"), 0, 7));
+		assertEquals("ftp", url.scheme());
+		assertEquals("b", url.host().toString());
+		assertEquals(21, url.port());
+		assertEquals("", url.path().toString());
+
+		assertFalse(url.parse("http://example.com:99999999999"));
+	}
+
+	@Test
+	public void testSet() {
+		MutableURL url = new MutableURL().set(new GUID("data", "text/html,a"));
+		assertEquals("data", url.scheme());
+		assertEquals(null, url.host());
+		assertEquals(Constants.NO_PORT, url.port());
+		assertEquals(new GUID("data", "text/html,a"), url.toURLWithScheme());
+
+		URLWithScheme uri = URI.parseURI("https://example.com/a").orElse(null);
+		assertEquals(uri, url.set(uri).toURLWithScheme());
+	}
+
+	@Test
+	public void testQueryingWithMutableURL() {
+		Policy policy = Policy.parseSerializedCSP("default-src 'self' *.example.com/a/ example.org:8443; connect-src wss://ws.example.com", throwIfPolicyError);
+		PolicyInOrigin p = new PolicyInOrigin(policy, URI.parseURI("https://example.com").orElse(null));
+		String[] urls = {
+			"https://example.com",
+			"http://example.com",
+			"https://www.example.com/a/b",
+			"https://www.example.com/b",
+			"https://www.example.com/a%2Fb/c",
+			"https://example.org:8443",
+			"https://example.org",
+			"wss://ws.example.com",
+			"https://ws.example.com",
+			"ftp://example.com",
+		};
+		MutableURL url = MutableURL.forCurrentThread();
+		for (String input : urls) {
+			URI uri = URI.parseURI(input).orElse(null);
+			assertTrue(url.parse(input));
+			assertEquals(input, p.allowsImageFromSource(uri), p.allowsImageFromSource(url));
+			assertEquals(input, p.allowsScriptFromSource(uri), p.allowsScriptFromSource(url));
+			assertEquals(input, p.allowsConnection(uri), p.allowsConnection(url));
+			assertEquals(input, p.allowsNavigation(uri), p.allowsNavigation(url));
+		}
+
+		assertTrue(url.parse("https://www.example.com/a/b"));
+		assertTrue(p.allowsImageFromSource(url));
+		assertTrue(url.parse("https://www.example.com/b"));
+		assertFalse(p.allowsImageFromSource(url));
+	}
+
+	// This is how URI.parseURI used to work
+	private static Optional<URI> parseWithPattern(String uri) {
+		Matcher matcher = Constants.hostSourcePattern.matcher(uri);
+		if (!matcher.find()) {
+			return Optional.empty();
+		}
+		String scheme = matcher.group(1);
+		if (scheme == null) {
+			return Optional.empty();
+		}
+		scheme = scheme.substring(0, scheme.length() - 3);
+		String portString = matcher.group(3);
+		int port;
+		if (portString == null) {
+			port = URI.defaultPortForProtocol(scheme.toLowerCase(Locale.ENGLISH));
+		} else {
+			port = portString.equals(":*") ? Constants.WILDCARD_PORT : Integer.parseInt(portString.substring(1));
+		}
+		String host = matcher.group(2);
+		String path = matcher.group(4);
+		if (path == null) {
+			path = "";
+		}
+		return Optional.of(new URI(scheme, host, port, path));
+	}
+}
@@ -0,0 +1,248 @@
+package com.shapesecurity.salvation2;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ViolationReportTest extends TestBase {
+	private static final String REPORT_URI = "{\"csp-report\": {"
+			+ "\"document-uri\": \"https://example.com/page?q=1\", \"referrer\": \"\", "
+			+ "\"blocked-uri\": \"https://CDN.example.net:443/lib.js?v=2#x\", \"violated-directive\": \"script-src-elem\", "
+			+ "\"effective-directive\": \"script-src-elem\", \"original-policy\": \"script-src 'self'; report-uri /r\", "
+			+ "\"disposition\": \"enforce\", \"status-code\": 200, \"line-number\": 12, \"script-sample\": \"\", \"unknown\": [1, {\"a\": null}]}}";
+
+	private static final String REPORT_TO = "[{\"type\": \"csp-violation\", \"age\": 1500, \"url\": \"https://example.com/a\", \"user_agent\": \"x\", \"body\": {"
+			+ "\"documentURL\": \"https://example.com/a\", \"blockedURL\": \"inline\", \"effectiveDirective\": \"style-src-elem\", "
+			+ "\"originalPolicy\": \"style-src 'self'\", \"disposition\": \"report\", \"statusCode\": 0, \"lineNumber\": 3, \"columnNumber\": 4, \"sample\": \"b{}\"}}, "
+			+ "{\"type\": \"deprecation\", \"body\": {\"id\": \"x\"}}]";
+
+	@Test
+	public void testParse() {
+		List<ViolationReport> reports = ViolationReport.parse(REPORT_URI);
+		assertEquals(1, reports.size());
+		ViolationReport report = reports.get(0);
+		assertEquals("https://example.com/page?q=1", report.documentUri);
+		assertEquals("script-src-elem", report.directive());
+		assertEquals(Optional.of(FetchDirectiveKind.ScriptSrcElem), report.fetchDirective());
+		assertEquals("https://cdn.example.net/lib.js", report.blockedResource());
+		assertEquals("https://example.com", report.documentOrigin());
+		assertEquals(200, report.statusCode);
+		assertEquals(12, report.lineNumber);
+		assertEquals(-1, report.columnNumber);
+		assertEquals(0, report.ageMillis);
+
+		reports = ViolationReport.parse(REPORT_TO);
+		assertEquals(1, reports.size());
+		report = reports.get(0);
+		assertEquals("style-src-elem", report.directive());
+		assertEquals("inline", report.blockedResource());
+		assertEquals("report", report.disposition);
+		assertEquals(1500, report.ageMillis);
+		assertEquals("b{}", report.sample);
+		assertEquals(4, report.columnNumber);
+	}
+
+	@Test
+	public void testStream() throws IOException {
+		List<ViolationReport> reports = new ArrayList<>();
+		ViolationReport.parse(new StringReader(REPORT_URI + "\n" + REPORT_TO + "\n\n" + REPORT_URI + "\n"), reports::add);
+		assertEquals(3, reports.size());
+
+		String[] malformed = { "{\"csp-report\": {", "{\"csp-report\" {}}", "[1, 2", "{\"a\": tru}", "{\"a\": \"\\q\"}", "}" };
+		for (String json : malformed) {
+			try {
+				ViolationReport.parse(json);
+				fail(json);
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+		}
+
+		StringBuilder deep = new StringBuilder();
+		for (int i = 0; i <= JsonReader.MAX_DEPTH; ++i) {
+			deep.append('[');
+		}
+		try {
+			ViolationReport.parse(deep.toString());
+			fail();
+		} catch (IllegalArgumentException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("nested"));
+		}
+	}
+
+	@Test
+	public void testNormalization() {
+		assertEquals("inline", report("", "script-src", null).blockedResource());
+		assertEquals("eval", report("EVAL", "script-src", null).blockedResource());
+		assertEquals("data:", report("data", "img-src", null).blockedResource());
+		assertEquals("data:", report("data:image/png;base64,AAAA", "img-src", null).blockedResource());
+		assertEquals("http://a.com:8080/x", report("http://a.com:8080/x?y", "img-src", null).blockedResource());
+		assertEquals("not a url", report("not a url", "img-src", null).blockedResource());
+
+		// older browsers send only the violated directive, and say script-src where they mean script-src-elem
+		ViolationReport old = report("https://a.com/", null, "script-src https://b.com 'self'");
+		assertEquals("script-src", old.directive());
+		assertEquals(Optional.of(FetchDirectiveKind.ScriptSrcElem), old.fetchDirective());
+		assertEquals(Optional.empty(), report("https://a.com/", "default-src", null).fetchDirective());
+		assertEquals(Optional.empty(), report("https://a.com/", "sandbox", null).fetchDirective());
+	}
+
+	@Test
+	public void testReevaluate() {
+		Policy old = Policy.parseSerializedCSP("default-src 'self'", throwIfPolicyError);
+		Policy fixed = Policy.parseSerializedCSP("default-src 'self'; script-src 'self' https://cdn.example.net; img-src 'self' data:", throwIfPolicyError);
+
+		ViolationReport script = ViolationReport.parse(REPORT_URI).get(0);
+		assertEquals(ViolationReport.Verdict.Blocked, script.reevaluate(old));
+		assertEquals(ViolationReport.Verdict.Allowed, script.reevaluate(fixed));
+		assertTrue(script.isStale(fixed));
+
+		ViolationReport image = report("data", "img-src", null);
+		assertEquals(ViolationReport.Verdict.Blocked, image.reevaluate(old));
+		assertEquals(ViolationReport.Verdict.Allowed, image.reevaluate(fixed));
+
+		ViolationReport self = report("https://example.com/x.png", "img-src", null);
+		assertEquals(ViolationReport.Verdict.Allowed, self.reevaluate(old));
+
+		ViolationReport inline = ViolationReport.parse(REPORT_TO).get(0);
+		assertEquals(ViolationReport.Verdict.Blocked, inline.reevaluate(old));
+		assertEquals(ViolationReport.Verdict.Allowed, inline.reevaluate(Policy.parseSerializedCSP("style-src 'unsafe-inline'", throwIfPolicyError)));
+
+		assertEquals(ViolationReport.Verdict.Blocked, report("eval", "script-src", null).reevaluate(old));
+		assertEquals(ViolationReport.Verdict.Blocked, report("https://evil.com/", "frame-ancestors", null).reevaluate(Policy.parseSerializedCSP("frame-ancestors 'self'", throwIfPolicyError)));
+		assertEquals(ViolationReport.Verdict.Unknown, report("trusted-types-sink", "require-trusted-types-for", null).reevaluate(old));
+		assertFalse(report("https://a.com/", "sandbox", null).isStale(old));
+	}
+
+	@Test
+	public void testRollup() {
+		ViolationRollup rollup = new ViolationRollup(Duration.ofMinutes(1), 3);
+		Instant t = Instant.parse("2024-01-01T00:00:30Z");
+		ViolationReport script = ViolationReport.parse(REPORT_URI).get(0);
+		assertTrue(rollup.add(script, t));
+		// a duplicate, and the same violation on another page of the same origin
+		assertFalse(rollup.add(script, t.plusSeconds(1)));
+		assertTrue(rollup.add(ViolationReport.parse(REPORT_URI.replace("/page?q=1", "/other")).get(0), t));
+		// 1.5s old, so it happened in the previous window
+		assertTrue(rollup.add(ViolationReport.parse(REPORT_TO).get(0), Instant.parse("2024-01-01T00:00:01Z")));
+		for (int i = 0; i < 5; ++i) {
+			rollup.add(report("https://" + i + ".com/", "img-src", null), t);
+		}
+
+		List<ViolationRollup.WindowSnapshot> windows = rollup.snapshot();
+		assertEquals(2, windows.size());
+		assertEquals(Instant.parse("2023-12-31T23:59:00Z"), windows.get(0).start);
+		assertEquals("[style-src-elem inline on https://example.com (report): 1]", windows.get(0).groups.toString());
+
+		ViolationRollup.WindowSnapshot window = windows.get(1);
+		assertEquals(Instant.parse("2024-01-01T00:01:00Z"), window.end);
+		assertEquals(7, window.reports);
+		assertEquals(1, window.duplicates);
+		assertEquals(3, window.groups.size());
+		assertEquals("other other on other (other): 4", window.groups.get(0).toString());
+		assertEquals("script-src-elem https://cdn.example.net/lib.js on https://example.com (enforce): 2", window.groups.get(1).toString());
+
+		rollup.evictBefore(Instant.parse("2024-01-01T00:00:00Z"));
+		assertEquals(1, rollup.snapshot().size());
+		rollup.evictBefore(Instant.parse("2024-01-01T00:01:00Z"));
+		assertEquals(0, rollup.snapshot().size());
+	}
+
+	@Test
+	public void testRollupDropsOldReports() {
+		ViolationRollup rollup = new ViolationRollup(Duration.ofMinutes(1), 3, Duration.ofMinutes(5));
+		Instant t = Instant.parse("2024-01-01T00:10:30Z");
+		String reportTo = REPORT_TO.replace("\"age\": 1500", "\"age\": %d");
+		for (int i = 0; i < 100; ++i) {
+			rollup.add(ViolationReport.parse(String.format(reportTo, i * 60000L)).get(0), t);
+		}
+		// only the windows of the last five minutes, and the current one
+		assertEquals(6, rollup.snapshot().size());
+		assertEquals(94, rollup.dropped());
+
+		// evicted windows do not come back
+		rollup.evictBefore(Instant.parse("2024-01-01T00:09:00Z"));
+		assertEquals(2, rollup.snapshot().size());
+		assertFalse(rollup.add(ViolationReport.parse(String.format(reportTo, 120000L)).get(0), t));
+		assertTrue(rollup.add(ViolationReport.parse(String.format(reportTo.replace("b{}", "c{}"), 60000L)).get(0), t));
+		assertEquals(2, rollup.snapshot().size());
+		assertEquals(95, rollup.dropped());
+	}
+
+	@Test
+	public void testRollupEvictsWhileAdding() throws InterruptedException {
+		String reportTo = REPORT_TO.replace("\"age\": 1500", "\"age\": %d").replace("b{}", "%d");
+		Instant t = Instant.parse("2024-01-01T00:10:30Z");
+		Instant cutoff = Instant.parse("2024-01-01T00:09:00Z");
+		// even reports are from 00:10, odd ones from 00:08
+		List<ViolationReport> reports = new ArrayList<>();
+		for (int i = 0; i < 2000; ++i) {
+			reports.add(ViolationReport.parse(String.format(reportTo, i % 2 == 0 ? 0 : 120000, i)).get(0));
+		}
+		for (int trial = 0; trial < 20; ++trial) {
+			ViolationRollup rollup = new ViolationRollup(Duration.ofMinutes(1), 3);
+			AtomicInteger next = new AtomicInteger();
+			List<Thread> threads = new ArrayList<>();
+			for (int j = 0; j < 4; ++j) {
+				threads.add(new Thread(() -> {
+					int i;
+					while ((i = next.getAndIncrement()) < reports.size()) {
+						rollup.add(reports.get(i), t);
+					}
+				}));
+			}
+			for (Thread thread : threads) {
+				thread.start();
+			}
+			while (next.get() < reports.size() / 2) {
+				Thread.yield();
+			}
+			rollup.evictBefore(cutoff);
+			for (Thread thread : threads) {
+				thread.join();
+			}
+			// no window before the cutoff comes back, and no report after it is lost
+			List<ViolationRollup.WindowSnapshot> windows = rollup.snapshot();
+			assertEquals(1, windows.size());
+			assertEquals(Instant.parse("2024-01-01T00:10:00Z"), windows.get(0).start);
+			assertEquals(reports.size() / 2, windows.get(0).reports);
+		}
+	}
+
+	@Test
+	public void testRollupMatchesBothFormats() {
+		ViolationRollup rollup = new ViolationRollup(Duration.ofMinutes(1), 3);
+		Instant t = Instant.parse("2024-01-01T00:00:30Z");
+		ViolationReport reportUri = ViolationReport.parse(REPORT_URI).get(0);
+		ViolationReport reportTo = ViolationReport.parse("{\"type\": \"csp-violation\", \"age\": 10, \"body\": {"
+				+ "\"documentURL\": \"https://example.com/page?q=1\", \"blockedURL\": \"https://CDN.example.net:443/lib.js?v=2#x\", "
+				+ "\"effectiveDirective\": \"script-src-elem\", \"originalPolicy\": \"script-src 'self'; report-uri /r\", "
+				+ "\"disposition\": \"enforce\", \"statusCode\": 200, \"lineNumber\": 12, \"sample\": \"\"}}").get(0);
+		assertTrue(rollup.add(reportUri, t));
+		assertFalse(rollup.add(reportTo, t));
+		assertEquals(1, rollup.snapshot().get(0).reports);
+	}
+
+	private static ViolationReport report(String blockedUri, String effectiveDirective, String violatedDirective) {
+		StringBuilder json = new StringBuilder("{\"csp-report\": {\"document-uri\": \"https://example.com/\", \"blocked-uri\": \"").append(blockedUri).append('"');
+		if (effectiveDirective != null) {
+			json.append(", \"effective-directive\": \"").append(effectiveDirective).append('"');
+		}
+		if (violatedDirective != null) {
+			json.append(", \"violated-directive\": \"").append(violatedDirective).append('"');
+		}
+		return ViolationReport.parse(json.append("}}").toString()).get(0);
+	}
+}